@@ -21,15 +21,20 @@ package edu.ucsb.nceas.metacat.common;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
 import org.apache.solr.client.solrj.impl.HttpSolrClient;
 import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.core.CoreContainer;
 import org.dataone.configuration.Settings;
 import org.dataone.service.exceptions.UnsupportedType;
@@ -62,6 +67,7 @@ public class SolrServerFactory {
     private static final String HTTPSERVERCLASS = "org.apache.solr.client.solrj.impl.CommonsHttpSolrServer";
     private static final String CORENAME_PROPERTY_NAME = "solr.coreName";
     private static final String SLASH = "/";
+    private static final String QUERY_ENDPOINTS_PROPERTY_NAME = "solr.query.endpoints";
 
 	public static Log log = LogFactory.getLog(SolrServerFactory.class);
 	
@@ -77,15 +83,11 @@ public class SolrServerFactory {
 	        if (className != null && className.equals(EMBEDDEDSERVERCLASS)) {
 	            generateEmbeddedServer();
 	        } else if (className != null && className.equals(HTTPSERVERCLASS)) {
-	            String solrServerBaseURL = Settings.getConfiguration().getString(SOLR_ENPOINT_PROPERTY_NAME);
 	            String coreName = Settings.getConfiguration().getString(CORENAME_PROPERTY_NAME);
-	            if (solrServerBaseURL != null && solrServerBaseURL.endsWith(SLASH)) {
-	                solrServerBaseURL = solrServerBaseURL+coreName;
-	            } else {
-	                solrServerBaseURL = solrServerBaseURL+SLASH+coreName;
-	            }
+	            String solrServerBaseURL = getCoreURL(coreName);
 	            log.info("SolrServerFactory.createSolrServer - the final solr server base url is "+solrServerBaseURL);
-	            solrServer = new HttpSolrClient.Builder(solrServerBaseURL).build();
+	            solrServer = new HttpSolrClient.Builder(solrServerBaseURL)
+	                                        .withHttpClient(createPooledHttpClient()).build();
 	        } else {
 	            throw new UnsupportedType("0000","SolrServerFactory.createSolrServer - MetacatIndex doesn't support this solr server type: "+className);
 	        }
@@ -118,6 +120,58 @@ public class SolrServerFactory {
         return solrAdminClient;
     }
 	
+	/**
+	 * Get the base url of a core on the main Solr server (solr.baseURL)
+	 * @param coreName  the name of the core
+	 * @return the url, e.g. http://localhost:8983/solr/metacat-index
+	 */
+	public static String getCoreURL(String coreName) {
+	    String solrServerBaseURL = Settings.getConfiguration().getString(SOLR_ENPOINT_PROPERTY_NAME);
+	    if (solrServerBaseURL != null && solrServerBaseURL.endsWith(SLASH)) {
+	        return solrServerBaseURL + coreName;
+	    } else {
+	        return solrServerBaseURL + SLASH + coreName;
+	    }
+	}
+
+	/**
+	 * Create the http client with the connection pool shared by all Solr query endpoints
+	 * @return the pooled http client
+	 */
+	private static CloseableHttpClient createPooledHttpClient() {
+	    ModifiableSolrParams params = new ModifiableSolrParams();
+	    params.set(HttpClientUtil.PROP_MAX_CONNECTIONS,
+	               Settings.getConfiguration().getInt("solr.http.maxConnections", 256));
+	    params.set(HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST,
+	               Settings.getConfiguration().getInt("solr.http.maxConnectionsPerHost", 64));
+	    params.set(HttpClientUtil.PROP_CONNECTION_TIMEOUT,
+	               Settings.getConfiguration().getInt("solr.http.connectionTimeout", 5000));
+	    params.set(HttpClientUtil.PROP_SO_TIMEOUT,
+	               Settings.getConfiguration().getInt("solr.http.socketTimeout", 600000));
+	    return HttpClientUtil.createClient(params);
+	}
+
+	/**
+	 * Get the base urls (with the core name) of the Solr endpoints serving the queries, e.g. the
+	 * replicas of the core. They are configured by the comma separated property
+	 * solr.query.endpoints.
+	 * @return the list of the base urls. It is empty if the property isn't set, which means the
+	 *         queries go to the main Solr server.
+	 */
+	public static List<String> getQueryEndpoints() {
+	    List<String> endpoints = new ArrayList<String>();
+	    String[] urls =
+	                Settings.getConfiguration().getStringArray(QUERY_ENDPOINTS_PROPERTY_NAME);
+	    for (String endpoint : urls) {
+	        if (endpoint != null && !endpoint.trim().equals("")) {
+	            endpoint = endpoint.trim();
+	            endpoints.add(endpoint.endsWith(SLASH)
+	                            ? endpoint.substring(0, endpoint.length() - 1) : endpoint);
+	        }
+	    }
+	    return endpoints;
+	}
+
 	private static void generateEmbeddedServer() throws ParserConfigurationException, IOException, SAXException  {
 	    String solrHomeDir = Settings.getConfiguration().getString(SOLR_HOME_PROPERTY_NAME);
         log.info("The configured solr home from properties is " + solrHomeDir);
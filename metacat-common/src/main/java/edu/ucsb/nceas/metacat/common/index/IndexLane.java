@@ -0,0 +1,112 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.common.index;
+
+/**
+ * The lanes of the index tasks. Every class of work has its own RabbitMQ queue, so a big
+ * backfill can't sit in front of the fresh uploads. Metacat routes the tasks to the lanes and
+ * the index workers consume the lanes with weighted fair scheduling. The weight and the prefetch
+ * of a lane can be overwritten by the properties index.lane.[name].weight and
+ * index.lane.[name].prefetch.
+ * @author tao
+ */
+public enum IndexLane {
+    //the creates, updates and deletes done by the users
+    INTERACTIVE("interactive", 8, 1),
+    //the system metadata changes
+    SYSMETA("sysmeta", 4, 1),
+    //the resource maps, which are slow to index
+    RESOURCEMAP("resourcemap", 2, 1),
+    //the reindexing and regenerating tasks
+    BULK("bulk", 1, 2);
+
+    //The prefix of the queue names of the lanes
+    public static final String QUEUE_PREFIX = "index.";
+    //The priorities and index types used to route the tasks. They are the same as the ones
+    //in the IndexGenerator class of Metacat
+    private static final int LOW_PRIORITY = 1;
+    private static final int MEDIUM_RESOURCEMAP_PRIORITY = 3;
+    private static final String DELETE_INDEX_TYPE = "delete";
+    private static final String SYSMETA_CHANGE_TYPE = "sysmeta";
+
+    private String name;
+    private int defaultWeight;
+    private int defaultPrefetch;
+
+    private IndexLane(String name, int defaultWeight, int defaultPrefetch) {
+        this.name = name;
+        this.defaultWeight = defaultWeight;
+        this.defaultPrefetch = defaultPrefetch;
+    }
+
+    /**
+     * Get the name of the lane
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the name of the RabbitMQ queue of the lane. It is also the routing key.
+     * @return the queue name
+     */
+    public String getQueueName() {
+        return QUEUE_PREFIX + name;
+    }
+
+    /**
+     * Get the default weight of the lane in the fair scheduling
+     * @return the default weight
+     */
+    public int getDefaultWeight() {
+        return defaultWeight;
+    }
+
+    /**
+     * Get the default number of the unacknowledged messages a worker can hold from the lane
+     * @return the default prefetch
+     */
+    public int getDefaultPrefetch() {
+        return defaultPrefetch;
+    }
+
+    /**
+     * Route an index task to its lane. A delete is always interactive, since it is only done
+     * by the users; otherwise the low priority tasks are bulk work.
+     * @param indexType  the type of the index task
+     * @param priority  the priority of the index task
+     * @return the lane of the task
+     */
+    public static IndexLane of(String indexType, int priority) {
+        if (DELETE_INDEX_TYPE.equals(indexType)) {
+            return INTERACTIVE;
+        }
+        if (priority <= LOW_PRIORITY) {
+            return BULK;
+        }
+        if (SYSMETA_CHANGE_TYPE.equals(indexType)) {
+            return SYSMETA;
+        }
+        if (priority == MEDIUM_RESOURCEMAP_PRIORITY) {
+            return RESOURCEMAP;
+        }
+        return INTERACTIVE;
+    }
+}
@@ -0,0 +1,362 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.common.index;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A disk-backed priority queue of index tasks for single-node deployments which don't run a
+ * RabbitMQ broker. Metacat publishes the tasks and the worker pool embedded in the metacat-index
+ * webapp consumes them. Since the two webapps don't share class loaders, they only share the
+ * queue directory:
+ * base/tmp     - the tasks being written
+ * base/ready   - the tasks waiting for a worker
+ * base/claimed - the tasks being processed by a worker
+ * Each task is a small properties file. Its name starts with the inverted priority and the
+ * publish time, so the natural order of the names is the consuming order - higher priority
+ * first, then first in first out. Publishing and claiming are atomic renames, so a crash never
+ * leaves a half-written task in the ready directory, and a task can only be claimed by one
+ * worker. The claimed tasks left by a crashed worker are moved back by recover().
+ *
+ * The consumer keeps the names of the ready tasks in an ordered in-memory index, so claiming a
+ * task doesn't depend on the size of the backlog. The index is built from the ready directory
+ * once, on the first claim or size call, and then kept up to date by the tasks published and
+ * claimed through this instance and by a WatchService on the ready directory for the other
+ * processes. The directory is only scanned again if the watch service overflows. The workers of
+ * a webapp should share one instance.
+ * @author tao
+ */
+public class LocalIndexQueue implements Closeable {
+    public static final String TMP = "tmp";
+    public static final String READY = "ready";
+    public static final String CLAIMED = "claimed";
+    private static final String SUFFIX = ".task";
+    private static final String ID = "id";
+    private static final String INDEX_TYPE = "index_type";
+    private static final String PATH = "path";
+    private static final String PRIORITY = "priority";
+    private static final String CORE = "core";
+    private static final int MAX_PRIORITY = 99;
+
+    private static Log log = LogFactory.getLog(LocalIndexQueue.class);
+    private Path tmpDir = null;
+    private Path readyDir = null;
+    private Path claimedDir = null;
+    private AtomicLong sequence = new AtomicLong(0);
+    //The names of the ready tasks in the consuming order. It is built on the first use.
+    private TreeSet<String> ready = new TreeSet<String>();
+    private WatchService watcher = null;
+
+    /**
+     * A task claimed from the queue
+     */
+    public static class Task {
+        private String name;
+        private String id;
+        private String indexType;
+        private String path;
+        private int priority;
+        private String core;
+
+        /**
+         * Get the identifier of the object which will be indexed
+         * @return the identifier
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Get the index type - create, delete or sysmeta
+         * @return the index type
+         */
+        public String getIndexType() {
+            return indexType;
+        }
+
+        /**
+         * Get the relative path of the object. It can be null.
+         * @return the relative path
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Get the priority of the task
+         * @return the priority
+         */
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * Get the Solr core the task is for, e.g. the shadow core of a rebuild
+         * @return the name of the core. Null means the configured core.
+         */
+        public String getCore() {
+            return core;
+        }
+    }
+
+    /**
+     * Constructor. The sub-directories will be created if they don't exist.
+     * @param baseDir  the base directory of the queue
+     * @throws IOException
+     */
+    public LocalIndexQueue(Path baseDir) throws IOException {
+        tmpDir = Files.createDirectories(baseDir.resolve(TMP));
+        readyDir = Files.createDirectories(baseDir.resolve(READY));
+        claimedDir = Files.createDirectories(baseDir.resolve(CLAIMED));
+        log.info("LocalIndexQueue.constructor - the local index queue is at " + baseDir);
+    }
+
+    /**
+     * Publish an index task into the queue
+     * @param id  the identifier of the object which will be indexed
+     * @param indexType  the type of the index task
+     * @param path  the relative path of the object. It can be null.
+     * @param priority  the priority of the task. The bigger, the higher.
+     * @throws IOException
+     */
+    public void publish(String id, String indexType, String path, int priority)
+                                                                        throws IOException {
+        publish(id, indexType, path, priority, null);
+    }
+
+    /**
+     * Publish an index task for a given Solr core into the queue
+     * @param id  the identifier of the object which will be indexed
+     * @param indexType  the type of the index task
+     * @param path  the relative path of the object. It can be null.
+     * @param priority  the priority of the task. The bigger, the higher.
+     * @param core  the name of the Solr core. Null means the configured core.
+     * @throws IOException
+     */
+    public void publish(String id, String indexType, String path, int priority, String core)
+                                                                        throws IOException {
+        int inverted = MAX_PRIORITY - Math.max(0, Math.min(priority, MAX_PRIORITY));
+        String name = String.format("%02d-%019d-%09d-%s%s", inverted, System.currentTimeMillis(),
+                                    sequence.incrementAndGet() % 1000000000,
+                                    UUID.randomUUID().toString().substring(0, 8), SUFFIX);
+        Properties properties = new Properties();
+        properties.setProperty(ID, id);
+        properties.setProperty(INDEX_TYPE, indexType);
+        if (path != null) {
+            properties.setProperty(PATH, path);
+        }
+        properties.setProperty(PRIORITY, Integer.toString(priority));
+        if (core != null) {
+            properties.setProperty(CORE, core);
+        }
+        Path tmp = tmpDir.resolve(name);
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            properties.store(out, null);
+        }
+        Files.move(tmp, readyDir.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+        added(name);
+    }
+
+    /**
+     * Claim the next task in the queue. The task must be acknowledged by ack() after it is
+     * processed.
+     * @return the claimed task. Null will be returned if the queue is empty.
+     * @throws IOException
+     */
+    public Task claim() throws IOException {
+        while (true) {
+            String name = nextName();
+            if (name == null) {
+                return null;
+            }
+            Path claimed = claimedDir.resolve(name);
+            try {
+                Files.move(readyDir.resolve(name), claimed, StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException | FileAlreadyExistsException e) {
+                // another worker got it first
+                continue;
+            }
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(claimed)) {
+                properties.load(in);
+            }
+            Task task = new Task();
+            task.name = name;
+            task.id = properties.getProperty(ID);
+            task.indexType = properties.getProperty(INDEX_TYPE);
+            task.path = properties.getProperty(PATH);
+            task.priority = Integer.parseInt(properties.getProperty(PRIORITY, "0"));
+            task.core = properties.getProperty(CORE);
+            return task;
+        }
+    }
+
+    /**
+     * Acknowledge a processed task. It will be removed from the queue.
+     * @param task  the task has been processed
+     * @throws IOException
+     */
+    public void ack(Task task) throws IOException {
+        Files.deleteIfExists(claimedDir.resolve(task.name));
+    }
+
+    /**
+     * Move the claimed tasks back to the ready directory. It should only be called when no
+     * worker is running, e.g. before the workers start after a crash.
+     * @return the number of the recovered tasks
+     * @throws IOException
+     */
+    public int recover() throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(claimedDir, "*" + SUFFIX)) {
+            for (Path claimed : stream) {
+                Files.move(claimed, readyDir.resolve(claimed.getFileName()),
+                           StandardCopyOption.ATOMIC_MOVE);
+                added(claimed.getFileName().toString());
+                count++;
+            }
+        }
+        if (count > 0) {
+            log.warn("LocalIndexQueue.recover - moved " + count
+                        + " unfinished tasks back to the queue.");
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of the tasks waiting for a worker
+     * @return the number of the tasks
+     * @throws IOException
+     */
+    public synchronized int size() throws IOException {
+        refresh();
+        return ready.size();
+    }
+
+    /**
+     * Stop watching the ready directory
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+        ready.clear();
+    }
+
+    /**
+     * Take the name of the next task from the index
+     * @return the name of the next task. Null if there is no task.
+     * @throws IOException
+     */
+    private synchronized String nextName() throws IOException {
+        refresh();
+        return ready.pollFirst();
+    }
+
+    /**
+     * Add a task moved into the ready directory by this instance to the index, if it is built,
+     * so it doesn't have to wait for the watch service
+     * @param name  the name of the task
+     */
+    private synchronized void added(String name) {
+        if (watcher != null) {
+            ready.add(name);
+        }
+    }
+
+    /**
+     * Build the index on the first call, then apply the changes of the ready directory reported
+     * by the watch service since the last call. A task which was claimed elsewhere but is still
+     * in the index is skipped by claim().
+     * @throws IOException
+     */
+    private void refresh() throws IOException {
+        if (watcher == null) {
+            // watch before the scan, so no task published during the scan is missed
+            watcher = readyDir.getFileSystem().newWatchService();
+            readyDir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                              StandardWatchEventKinds.ENTRY_DELETE);
+            rebuild();
+            return;
+        }
+        WatchKey key = watcher.poll();
+        while (key != null) {
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    log.warn("LocalIndexQueue.refresh - the watch service overflowed and the "
+                                + "ready directory will be scanned again.");
+                    rebuild();
+                    continue;
+                }
+                String name = event.context().toString();
+                if (!name.endsWith(SUFFIX)) {
+                    continue;
+                }
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    ready.add(name);
+                } else {
+                    ready.remove(name);
+                }
+            }
+            if (!key.reset()) {
+                throw new IOException("The ready directory " + readyDir
+                                        + " can't be watched any more.");
+            }
+            key = watcher.poll();
+        }
+    }
+
+    /**
+     * Build the index from the ready directory
+     * @throws IOException
+     */
+    private void rebuild() throws IOException {
+        ready.clear();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(readyDir, "*" + SUFFIX)) {
+            for (Path path : stream) {
+                ready.add(path.getFileName().toString());
+            }
+        }
+        log.info("LocalIndexQueue.rebuild - indexed " + ready.size() + " ready tasks in "
+                    + readyDir);
+    }
+}
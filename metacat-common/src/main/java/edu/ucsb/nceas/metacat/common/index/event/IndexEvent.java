@@ -50,6 +50,9 @@ public class IndexEvent implements Serializable {
     private Date date = null;
     private Identifier identifier = null;
     private String description = null;
+    private int attempts = 0;
+    private Date nextAttempt = null;
+    private boolean deadLetter = false;
 
     /**
      * Get the action of the event.
@@ -116,4 +119,52 @@ public class IndexEvent implements Serializable {
         this.description = description;
     }
 
+    /**
+     * Get the number of the failed attempts to resubmit the index task
+     * @return the number of the failed attempts
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Set the number of the failed attempts to resubmit the index task
+     * @param attempts
+     */
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    /**
+     * Get the earliest time when the index task can be resubmitted again
+     * @return the time of the next attempt. Null means it can be resubmitted now.
+     */
+    public Date getNextAttempt() {
+        return nextAttempt;
+    }
+
+    /**
+     * Set the earliest time when the index task can be resubmitted again
+     * @param nextAttempt
+     */
+    public void setNextAttempt(Date nextAttempt) {
+        this.nextAttempt = nextAttempt;
+    }
+
+    /**
+     * Check if Metacat has given up resubmitting the index task
+     * @return true if the event is in the dead-letter state
+     */
+    public boolean isDeadLetter() {
+        return deadLetter;
+    }
+
+    /**
+     * Set if Metacat has given up resubmitting the index task
+     * @param deadLetter
+     */
+    public void setDeadLetter(boolean deadLetter) {
+        this.deadLetter = deadLetter;
+    }
+
 }
@@ -39,7 +39,9 @@ import org.apache.solr.core.CoreContainer;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.servlet.SolrRequestParsers;
+import org.apache.solr.util.RefCounted;
 import org.dataone.service.exceptions.NotFound;
 import org.dataone.service.exceptions.NotImplemented;
 import org.dataone.service.exceptions.UnsupportedType;
@@ -178,6 +180,21 @@ public class EmbeddedSolrQueryService extends SolrQueryService {
         }
     }
     
+    /**
+     * Get the generation of the commit opened by the current searcher of the core
+     * @return the generation
+     * @throws IOException
+     */
+    @Override
+    public long getIndexGeneration() throws IOException {
+        RefCounted<SolrIndexSearcher> searcher = solrCore.getSearcher();
+        try {
+            return searcher.get().getIndexReader().getIndexCommit().getGeneration();
+        } finally {
+            searcher.decref();
+        }
+    }
+
     /**
      * If there is a solr doc for the given id.
      * @param id - the specified id.
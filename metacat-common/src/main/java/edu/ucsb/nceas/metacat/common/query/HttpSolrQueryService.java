@@ -22,13 +22,20 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.Vector;
+import java.util.function.LongConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -40,13 +47,28 @@ import javax.xml.xpath.XPathFactory;
 import org.apache.commons.codec.net.URLCodec;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
 import org.apache.lucene.util.Version;
+import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.BaseHttpSolrClient;
 import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.request.GenericSolrRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
 import org.apache.solr.core.SolrResourceLoader;
 import org.apache.solr.core.ConfigSetService;
 import org.apache.solr.core.SolrConfig;
@@ -70,6 +92,8 @@ import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import edu.ucsb.nceas.metacat.common.query.stream.ContentTypeHttpInputStream;
+
 
 
 
@@ -79,7 +103,7 @@ import org.xml.sax.SAXException;
  *
  */
 public class HttpSolrQueryService extends SolrQueryService {
-    private static final String SELECTIONPHASE = "/select";
+    static final String SELECTIONPHASE = "/select";
     private static final String SOLR_SYSTEMINFO_URLAPPENDIX = "solr.systeminfo.urlappendix";
     private static final String SOLR_SCHEMA_URLAPPENDIX = "solr.schema.urlappendix";
     private static final String SOLR_CONFIG_URLAPPENDIX = "solr.config.urlappendix";
@@ -88,9 +112,29 @@ public class HttpSolrQueryService extends SolrQueryService {
     private static final String COPY_FIELDS_PATH = "//copyField";
     private static final String DEST = "dest";
     private static final String TRUE = "true";
+    private static final String REPLICATION_PATH = "/replication";
+    private static final String COMMAND = "command";
+    private static final String INDEX_VERSION_COMMAND = "indexversion";
+    private static final String GENERATION = "generation";
+    //The max length of a Solr error body copied into the exception message
+    private static final int MAX_ERROR_LENGTH = 2000;
+    //The response types which Solr can write directly, so the response needn't be re-serialized
+    private static final List<String> passThroughWriterTypes = new ArrayList<String>();
+    //The QTime is in the response header at the beginning of an xml or json response, e.g.
+    //<int name="QTime">3</int> or "QTime":3
+    private static final int QTIME_HEAD_SIZE = 256;
+    private static final Pattern QTIME_PATTERN = Pattern.compile("QTime\\D{0,3}(\\d+)");
+    private static volatile SolrQueryObserver observer = null;
+    static {
+        passThroughWriterTypes.add(SolrQueryResponseWriterFactory.XML);
+        passThroughWriterTypes.add(SolrQueryResponseWriterFactory.JSON);
+        passThroughWriterTypes.add(SolrQueryResponseWriterFactory.CSV);
+    }
     
     private String solrServerBaseURL = null;
     private HttpSolrClient httpSolrServer = null;
+    private SolrEndpointBalancer balancer = null;
+    private Timer maintenance = null;
     private static Log log = LogFactory.getLog(HttpSolrQueryService.class);
     /**
      * Constructor
@@ -101,12 +145,109 @@ public class HttpSolrQueryService extends SolrQueryService {
      * @throws MalformedURLException 
      */
     public HttpSolrQueryService(HttpSolrClient httpSolrServer) throws MalformedURLException, ParserConfigurationException, IOException, SAXException {
+        this(httpSolrServer, null);
+    }
+
+    /**
+     * Constructor
+     * @param httpSolrServer  the client of the main Solr endpoint. The schema, the version and
+     *                         the index generation are read from it.
+     * @param queryEndpoints  the base urls of the Solr endpoints serving the queries, e.g. the
+     *                         replicas of the core. The main endpoint is used if it is empty.
+     * @throws MalformedURLException
+     * @throws ParserConfigurationException
+     * @throws IOException
+     * @throws SAXException
+     */
+    public HttpSolrQueryService(HttpSolrClient httpSolrServer, List<String> queryEndpoints)
+            throws MalformedURLException, ParserConfigurationException, IOException, SAXException {
         if(httpSolrServer == null) {
             throw new NullPointerException("HttpSolrQueryService.constructor - The httpSolrServer parameter can't be null");
         }
         this.httpSolrServer = httpSolrServer;
         this.solrServerBaseURL = httpSolrServer.getBaseURL();
+        if (queryEndpoints == null || queryEndpoints.isEmpty()) {
+            queryEndpoints = new ArrayList<String>();
+            queryEndpoints.add(solrServerBaseURL);
+        }
+        balancer = createBalancer(queryEndpoints);
         getIndexSchemaFieldFromServer();
+        startMaintenance(queryEndpoints.size() > 1);
+    }
+
+    /*
+     * Create the balancer of the query endpoints
+     */
+    private SolrEndpointBalancer createBalancer(List<String> queryEndpoints) {
+        long hedgeDelay = Settings.getConfiguration().getLong("solr.query.hedge.delay", 0);
+        int pingTimeout =
+                    Settings.getConfiguration().getInt("solr.query.healthCheck.timeout", 2000);
+        int maxHedgeThreads =
+                    Settings.getConfiguration().getInt("solr.query.hedge.maxThreads", 64);
+        return new SolrEndpointBalancer(queryEndpoints, httpSolrServer.getHttpClient(),
+                                        hedgeDelay, pingTimeout, maxHedgeThreads);
+    }
+
+    /*
+     * Schedule the health checks of the query endpoints and the refreshing of the schema
+     */
+    private void startMaintenance(boolean multipleEndpoints) {
+        long healthCheckInterval =
+                    Settings.getConfiguration().getLong("solr.query.healthCheck.interval", 10000);
+        long schemaRefreshInterval =
+                    Settings.getConfiguration().getLong("solr.query.schema.refreshInterval", 0);
+        if ((!multipleEndpoints || healthCheckInterval <= 0) && schemaRefreshInterval <= 0) {
+            return;
+        }
+        maintenance = new Timer("solr-query-maintenance", true);
+        if (multipleEndpoints && healthCheckInterval > 0) {
+            maintenance.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    balancer.checkHealth();
+                }
+            }, healthCheckInterval, healthCheckInterval);
+        }
+        if (schemaRefreshInterval > 0) {
+            maintenance.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        refreshSchema();
+                    } catch (Exception e) {
+                        log.warn("HttpSolrQueryService.startMaintenance - can't refresh the "
+                                    + "schema, so the old one is kept, since " + e.getMessage());
+                    }
+                }
+            }, schemaRefreshInterval, schemaRefreshInterval);
+        }
+    }
+
+    /**
+     * Stop the health checks and the schema refreshing, and release the threads and the clients
+     * of the query endpoints
+     */
+    public void shutdown() {
+        if (maintenance != null) {
+            maintenance.cancel();
+        }
+        balancer.shutdown();
+    }
+
+    /**
+     * Download the schema from the Solr server again, so the changed fields are known without
+     * restarting Metacat
+     * @throws MalformedURLException
+     * @throws ParserConfigurationException
+     * @throws IOException
+     * @throws SAXException
+     */
+    public void refreshSchema() throws MalformedURLException, ParserConfigurationException,
+                                                                    IOException, SAXException {
+        getIndexSchemaFieldFromServer();
+        validSolrFieldNames = null;
+        log.info("HttpSolrQueryService.refreshSchema - the schema has " + fieldMap.size()
+                    + " fields now");
     }
     
     /**
@@ -147,16 +288,61 @@ public class HttpSolrQueryService extends SolrQueryService {
      * @throws Exception
      */
     public  InputStream query(SolrParams query, Set<Subject> subjects, SolrRequest.METHOD method) throws IOException, NotFound, UnsupportedType, SolrServerException {
+        return query(query, subjects, method, null);
+    }
+
+    /**
+     * Query the Solr server with specified query and user's identity, and report the commit
+     * generation of the endpoint which answered
+     * @param query  the query params
+     * @param subjects  the user's identity which sent the query. If the Subjects is null, there
+     *                   wouldn't be any access control.
+     * @param method  the method such as GET, POST and et al will be used in this query
+     * @param generation  the listener of the generation of the endpoint which answered, read
+     *                     before the query was sent. Null means it isn't read.
+     * @return the response
+     * @throws IOException
+     * @throws NotFound
+     * @throws UnsupportedType
+     * @throws SolrServerException
+     */
+    public InputStream query(SolrParams query, Set<Subject> subjects, SolrRequest.METHOD method,
+                             LongConsumer generation)
+                             throws IOException, NotFound, UnsupportedType, SolrServerException {
         InputStream inputStream = null;
         String wt = query.get(WT);
+        SolrParams userQuery = query;
         query = appendAccessFilterParams(query, subjects);
         SolrQueryResponseTransformer solrTransformer = new SolrQueryResponseTransformer(null);
+        SolrQueryObserver queryObserver = observer;
+        long start = System.nanoTime();
         // handle normal and skin-based queries
-        if (isSupportedWT(wt)) {
+        if (isPassThrough(wt)) {
+            // stream the body of the solr response as it is
+            if (wt == null) {
+                ModifiableSolrParams params = new ModifiableSolrParams(query);
+                params.set(WT, SolrQueryResponseWriterFactory.XML);
+                query = params;
+            }
+            inputStream = balancer.passThrough(query, method, wt, generation);
+            if (queryObserver != null) {
+                long qTime = -1;
+                if (inputStream instanceof ContentTypeHttpInputStream) {
+                    qTime = parseQTime(((ContentTypeHttpInputStream) inputStream)
+                                                                        .peek(QTIME_HEAD_SIZE));
+                }
+                observe(queryObserver, userQuery, qTime, System.nanoTime() - start, 0);
+            }
+        } else if (isSupportedWT(wt)) {
             // just handle as normal solr query
             //reload the core before query. Only after reloading the core, the query result can reflect the change made in metacat-index module.
-            QueryResponse response = httpSolrServer.query(query, method);
+            QueryResponse response = balancer.query(query, method, generation);
+            long responded = System.nanoTime();
             inputStream = solrTransformer.transformResults(query, response, wt);
+            if (queryObserver != null) {
+                observe(queryObserver, userQuery, response.getQTime(), responded - start,
+                        System.nanoTime() - responded);
+            }
         } else {
             throw new UnsupportedType("0000","HttpSolrQueryService.query - the wt type " + wt + " in the solr query is not supported");
         }
@@ -167,6 +353,111 @@ public class HttpSolrQueryService extends SolrQueryService {
     
     
     
+    /**
+     * Set the observer getting the timings of the queries
+     * @param queryObserver  the observer. Null means no observer.
+     */
+    public static void setObserver(SolrQueryObserver queryObserver) {
+        observer = queryObserver;
+    }
+
+    /*
+     * A failure of the observer doesn't fail the query
+     */
+    private static void observe(SolrQueryObserver queryObserver, SolrParams query, long qTime,
+                                long solrNanos, long serializationNanos) {
+        try {
+            queryObserver.observe(query, qTime, solrNanos, serializationNanos);
+        } catch (RuntimeException e) {
+            log.warn("HttpSolrQueryService.observe - the observer failed since " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the QTime from the head of an xml or json response of Solr
+     * @param head  the first bytes of the response
+     * @return the QTime (ms). A negative value means it isn't found, e.g. in a csv response.
+     */
+    protected static long parseQTime(byte[] head) {
+        Matcher matcher =
+                QTIME_PATTERN.matcher(new String(head, StandardCharsets.ISO_8859_1));
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    /**
+     * If the response of the given type is passed through from Solr without being parsed
+     * @param wt  the response type. Null means xml.
+     * @return true if it is passed through; otherwise false.
+     */
+    protected static boolean isPassThrough(String wt) {
+        boolean enabled = Settings.getConfiguration().getBoolean("solr.query.passThrough", true);
+        return enabled && (wt == null || passThroughWriterTypes.contains(wt));
+    }
+
+    /**
+     * Send the query to the Solr select handler and return the body of the response as a stream.
+     * Nothing is buffered, so the first bytes reach the caller as soon as Solr writes them.
+     * @param client  the http client of the solr client
+     * @param selectURL  the url of the select handler
+     * @param query  the query params including the response type
+     * @param method  the http method. GET is used if it isn't POST.
+     * @param wt  the response type. Null means xml.
+     * @return the body of the response. The caller must close it to release the connection.
+     * @throws IOException
+     * @throws SolrServerException
+     */
+    protected static InputStream passThrough(HttpClient client, String selectURL,
+                    SolrParams query, SolrRequest.METHOD method, String wt)
+                                                    throws IOException, SolrServerException {
+        HttpRequestBase request = null;
+        if (method == SolrRequest.METHOD.POST) {
+            List<NameValuePair> pairs = new ArrayList<NameValuePair>();
+            Iterator<String> names = query.getParameterNamesIterator();
+            while (names.hasNext()) {
+                String name = names.next();
+                for (String value : query.getParams(name)) {
+                    pairs.add(new BasicNameValuePair(name, value));
+                }
+            }
+            HttpPost post = new HttpPost(selectURL);
+            post.setEntity(new UrlEncodedFormEntity(pairs, StandardCharsets.UTF_8));
+            request = post;
+        } else {
+            request = new HttpGet(selectURL + ClientUtils.toQueryString(query, false));
+        }
+        HttpResponse response = null;
+        try {
+            response = client.execute(request);
+        } catch (IOException e) {
+            request.releaseConnection();
+            throw new SolrServerException("HttpSolrQueryService.passThrough - can't query "
+                                            + selectURL + " since " + e.getMessage(), e);
+        }
+        HttpEntity entity = response.getEntity();
+        int status = response.getStatusLine().getStatusCode();
+        if (status != 200 || entity == null) {
+            String error = null;
+            try {
+                if (entity != null) {
+                    error = EntityUtils.toString(entity, StandardCharsets.UTF_8);
+                }
+            } finally {
+                request.releaseConnection();
+            }
+            if (error != null && error.length() > MAX_ERROR_LENGTH) {
+                error = error.substring(0, MAX_ERROR_LENGTH);
+            }
+            throw new BaseHttpSolrClient.RemoteSolrException(selectURL, status,
+                        "HttpSolrQueryService.passThrough - Solr returned the status " + status
+                        + ": " + error, null);
+        }
+        ContentTypeHttpInputStream stream =
+                                    new ContentTypeHttpInputStream(entity.getContent(), request);
+        stream.setContentType(SolrQueryResponseWriterFactory.getContentType(wt));
+        log.debug("HttpSolrQueryService.passThrough - streaming the response of " + selectURL);
+        return stream;
+    }
+
     /**
      * Get the fields list of the index schema
      * @return
@@ -215,9 +506,10 @@ public class HttpSolrQueryService extends SolrQueryService {
         ConfigSetService service = null;
         ConfigSetService.ConfigResource configureResource  = IndexSchemaFactory.getConfigResource(service, lookupSchema(), loader, "dataone");
         Properties substitutableProperties = new Properties();
-        schema = new IndexSchema("dataone", configureResource,  Version.LUCENE_8_8_2, loader, substitutableProperties);
-        log.debug("Intialize the schema is +++++++++++++++++++++++++++++++++++++++++++++++++++" + schema);
-        fieldMap = schema.getFields();
+        IndexSchema newSchema = new IndexSchema("dataone", configureResource,  Version.LUCENE_8_8_2, loader, substitutableProperties);
+        log.debug("Intialize the schema is +++++++++++++++++++++++++++++++++++++++++++++++++++" + newSchema);
+        fieldMap = newSchema.getFields();
+        schema = newSchema;
     }
     
     /*
@@ -290,6 +582,33 @@ public class HttpSolrQueryService extends SolrQueryService {
     }
     
     
+    /**
+     * Get the generation of the current commit of the index from the replication handler
+     * @return the generation. A negative value means it is unknown.
+     * @throws SolrServerException
+     * @throws IOException
+     */
+    @Override
+    public long getIndexGeneration() throws SolrServerException, IOException {
+        return getIndexGeneration(httpSolrServer);
+    }
+
+    /**
+     * Get the generation of the current commit of the index of a Solr endpoint
+     * @param client  the client of the endpoint
+     * @return the generation. A negative value means it is unknown.
+     * @throws SolrServerException
+     * @throws IOException
+     */
+    static long getIndexGeneration(SolrClient client) throws SolrServerException, IOException {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(COMMAND, INDEX_VERSION_COMMAND);
+        NamedList<Object> response = client.request(
+                        new GenericSolrRequest(SolrRequest.METHOD.GET, REPLICATION_PATH, params));
+        Object generation = response.get(GENERATION);
+        return generation instanceof Number ? ((Number) generation).longValue() : -1;
+    }
+
     /*
      * Get the solr server version from the system information url. 
      */
@@ -0,0 +1,500 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.common.query;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.BaseHttpSolrClient;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.SolrParams;
+
+/**
+ * Spreads the queries over several Solr endpoints (e.g. the replicas of the Metacat core),
+ * which share one pooled http client. The endpoints are taken in the round-robin order and the
+ * unhealthy ones are skipped. A failed endpoint is marked unhealthy and the query is sent to the
+ * next one. If a streamed query doesn't get the response of an endpoint in the hedge delay, it
+ * is sent to the next endpoint as well and the first response wins. The hedged requests run in a
+ * bounded pool. When it is full, the queries are sent one endpoint after another. On request,
+ * the commit generation of an endpoint is read before the query is sent to it, and the one of
+ * the endpoint which answered is reported, e.g. so a cache can tell a lagging replica.
+ * @author tao
+ */
+public class SolrEndpointBalancer {
+    private static final String PING_PATH = "/admin/ping";
+    private static Log log = LogFactory.getLog(SolrEndpointBalancer.class);
+
+    private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+    private final HttpClient client;
+    private final long hedgeDelay;
+    private final int healthCheckTimeout;
+    private final AtomicInteger next = new AtomicInteger(0);
+    private final AtomicInteger hedgedCount = new AtomicInteger(0);
+    private final ExecutorService executor;
+
+    /**
+     * A Solr endpoint
+     */
+    private static class Endpoint {
+        private final String baseURL;
+        private final HttpSolrClient solrClient;
+        private volatile boolean healthy = true;
+
+        private Endpoint(String baseURL, HttpClient client) {
+            this.baseURL = baseURL;
+            this.solrClient = new HttpSolrClient.Builder(baseURL).withHttpClient(client).build();
+        }
+    }
+
+    /**
+     * A request sent to an endpoint by a hedged query. The response of a request which lost the
+     * race is closed as soon as it arrives.
+     */
+    private static class Attempt {
+        private InputStream response = null;
+        private boolean discarded = false;
+        private volatile long generation = -1;
+
+        private synchronized InputStream arrive(InputStream response) throws IOException {
+            if (discarded) {
+                response.close();
+                return null;
+            }
+            this.response = response;
+            return response;
+        }
+
+        private synchronized void discard() {
+            discarded = true;
+            if (response != null) {
+                try {
+                    response.close();
+                } catch (IOException e) {
+                    // closing an unread response aborts its connection
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     * @param baseURLs  the base urls of the endpoints, e.g. http://host:8983/solr/metacat-index
+     * @param client  the pooled http client shared by the endpoints
+     * @param hedgeDelay  the time (ms) to wait for an endpoint before the query is sent to the
+     *                     next one as well. A non-positive value disables the hedged requests.
+     * @param healthCheckTimeout  the connection and socket timeout (ms) of a health check
+     * @param maxHedgeThreads  the max number of the requests of the hedged queries in flight
+     */
+    public SolrEndpointBalancer(List<String> baseURLs, HttpClient client, long hedgeDelay,
+                                int healthCheckTimeout, int maxHedgeThreads) {
+        if (baseURLs == null || baseURLs.isEmpty()) {
+            throw new IllegalArgumentException("SolrEndpointBalancer.constructor - there should "
+                                                + "be at least one Solr endpoint");
+        }
+        for (String baseURL : baseURLs) {
+            endpoints.add(new Endpoint(baseURL, client));
+        }
+        this.client = client;
+        this.hedgeDelay = hedgeDelay;
+        this.healthCheckTimeout = healthCheckTimeout;
+        this.executor = new ThreadPoolExecutor(0, Math.max(1, maxHedgeThreads), 60L,
+                                    TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                                    runnable -> {
+                                        Thread thread = new Thread(runnable, "solr-query-hedge");
+                                        thread.setDaemon(true);
+                                        return thread;
+                                    });
+    }
+
+    /**
+     * Send a query to the select handler and stream its response
+     * @param query  the query params including the response type
+     * @param method  the http method. GET is used if it isn't POST.
+     * @param wt  the response type. Null means xml.
+     * @return the body of the response. The caller must close it to release the connection.
+     * @throws IOException
+     * @throws SolrServerException
+     */
+    public InputStream passThrough(SolrParams query, SolrRequest.METHOD method, String wt)
+                                                    throws IOException, SolrServerException {
+        return passThrough(query, method, wt, null);
+    }
+
+    /**
+     * Send a query to the select handler and stream its response
+     * @param query  the query params including the response type
+     * @param method  the http method. GET is used if it isn't POST.
+     * @param wt  the response type. Null means xml.
+     * @param generation  the listener of the commit generation of the endpoint which answered.
+     *                     Null means the generations aren't read.
+     * @return the body of the response. The caller must close it to release the connection.
+     * @throws IOException
+     * @throws SolrServerException
+     */
+    public InputStream passThrough(SolrParams query, SolrRequest.METHOD method, String wt,
+                    LongConsumer generation) throws IOException, SolrServerException {
+        List<Endpoint> candidates = candidates();
+        if (candidates.size() == 1 || hedgeDelay <= 0) {
+            return passThrough(candidates, 0, query, method, wt, generation);
+        }
+        CompletionService<InputStream> completion =
+                                        new ExecutorCompletionService<InputStream>(executor);
+        List<Future<InputStream>> submitted = new ArrayList<Future<InputStream>>();
+        List<Attempt> attempts = new ArrayList<Attempt>();
+        int pending = 0;
+        boolean canHedge = true;
+        Exception failure = null;
+        try {
+            if (submit(completion, submitted, attempts, candidates, query, method, wt,
+                       generation != null) == null) {
+                // the pool is full
+                return passThrough(candidates, 0, query, method, wt, generation);
+            }
+            pending++;
+            while (pending > 0) {
+                canHedge = canHedge && submitted.size() < candidates.size();
+                Future<InputStream> done = canHedge
+                                        ? completion.poll(hedgeDelay, TimeUnit.MILLISECONDS)
+                                        : completion.take();
+                if (done == null) {
+                    // the endpoint is slow, so ask the next one as well
+                    log.debug("SolrEndpointBalancer.passThrough - no response in " + hedgeDelay
+                                + " ms, so the query is sent to "
+                                + candidates.get(submitted.size()).baseURL + " too");
+                    if (submit(completion, submitted, attempts, candidates, query, method,
+                               wt, generation != null) == null) {
+                        canHedge = false;
+                    } else {
+                        hedgedCount.incrementAndGet();
+                        pending++;
+                    }
+                    continue;
+                }
+                pending--;
+                try {
+                    InputStream stream = done.get();
+                    int winner = submitted.indexOf(done);
+                    discard(attempts, winner);
+                    if (generation != null) {
+                        generation.accept(attempts.get(winner).generation);
+                    }
+                    return stream;
+                } catch (ExecutionException e) {
+                    failure = (Exception) e.getCause();
+                    if (!isRetryable(failure)) {
+                        discard(attempts, -1);
+                        break;
+                    }
+                    if (pending == 0 && submitted.size() < candidates.size()) {
+                        // fail over to the next endpoints in this thread if the pool is full
+                        if (submit(completion, submitted, attempts, candidates, query, method,
+                                   wt, generation != null) == null) {
+                            return passThrough(candidates, submitted.size(), query, method, wt,
+                                               generation);
+                        }
+                        pending++;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            discard(attempts, -1);
+            throw new SolrServerException("SolrEndpointBalancer.passThrough - interrupted while "
+                                            + "waiting for the Solr response", e);
+        }
+        throw rethrow(failure);
+    }
+
+    /**
+     * Send a query to the Solr endpoints, failing over to the next one on a connection failure
+     * @param query  the query params
+     * @param method  the http method
+     * @return the parsed response
+     * @throws IOException
+     * @throws SolrServerException
+     */
+    public QueryResponse query(SolrParams query, SolrRequest.METHOD method)
+                                                    throws IOException, SolrServerException {
+        return query(query, method, null);
+    }
+
+    /**
+     * Send a query to the Solr endpoints, failing over to the next one on a connection failure
+     * @param query  the query params
+     * @param method  the http method
+     * @param generation  the listener of the commit generation of the endpoint which answered.
+     *                     Null means the generations aren't read.
+     * @return the parsed response
+     * @throws IOException
+     * @throws SolrServerException
+     */
+    public QueryResponse query(SolrParams query, SolrRequest.METHOD method,
+                    LongConsumer generation) throws IOException, SolrServerException {
+        Exception failure = null;
+        for (Endpoint endpoint : candidates()) {
+            try {
+                long endpointGeneration = generation == null ? -1 : readGeneration(endpoint);
+                QueryResponse response = endpoint.solrClient.query(query, method);
+                if (generation != null) {
+                    generation.accept(endpointGeneration);
+                }
+                return response;
+            } catch (SolrServerException | BaseHttpSolrClient.RemoteSolrException e) {
+                failure = e;
+                if (!isRetryable(e)) {
+                    break;
+                }
+                markUnhealthy(endpoint, e);
+            }
+        }
+        throw rethrow(failure);
+    }
+
+    /**
+     * Ping all endpoints and mark them healthy or unhealthy
+     */
+    public void checkHealth() {
+        RequestConfig config = RequestConfig.custom().setConnectTimeout(healthCheckTimeout)
+                                    .setSocketTimeout(healthCheckTimeout).build();
+        for (Endpoint endpoint : endpoints) {
+            HttpGet ping = new HttpGet(endpoint.baseURL + PING_PATH);
+            ping.setConfig(config);
+            boolean healthy = false;
+            try {
+                HttpResponse response = client.execute(ping);
+                healthy = response.getStatusLine().getStatusCode() == 200;
+                EntityUtils.consumeQuietly(response.getEntity());
+            } catch (IOException e) {
+                log.debug("SolrEndpointBalancer.checkHealth - can't ping " + endpoint.baseURL
+                            + " since " + e.getMessage());
+            } finally {
+                ping.releaseConnection();
+            }
+            if (healthy != endpoint.healthy) {
+                log.warn("SolrEndpointBalancer.checkHealth - the Solr endpoint "
+                            + endpoint.baseURL + " is " + (healthy ? "healthy" : "unhealthy")
+                            + " now");
+            }
+            endpoint.healthy = healthy;
+        }
+    }
+
+    /**
+     * @return the base urls of the endpoints which are healthy
+     */
+    public List<String> getHealthyEndpoints() {
+        List<String> healthy = new ArrayList<String>();
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.healthy) {
+                healthy.add(endpoint.baseURL);
+            }
+        }
+        return healthy;
+    }
+
+    /**
+     * @return the number of the queries which were sent to a second endpoint
+     */
+    public int getHedgedCount() {
+        return hedgedCount.get();
+    }
+
+    /**
+     * Stop the threads of the hedged requests once the requests in flight are done and close the
+     * Solr clients of the endpoints. The queries sent afterwards aren't hedged. The shared http
+     * client isn't closed, since it belongs to the caller.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        for (Endpoint endpoint : endpoints) {
+            try {
+                endpoint.solrClient.close();
+            } catch (IOException e) {
+                log.warn("SolrEndpointBalancer.shutdown - can't close the client of "
+                            + endpoint.baseURL + " since " + e.getMessage());
+            }
+        }
+    }
+
+    /*
+     * The order of the endpoints to try: the healthy ones in the round-robin order, then the
+     * unhealthy ones in case the health information is stale.
+     */
+    private List<Endpoint> candidates() {
+        int start = Math.floorMod(next.getAndIncrement(), endpoints.size());
+        List<Endpoint> candidates = new ArrayList<Endpoint>();
+        List<Endpoint> unhealthy = new ArrayList<Endpoint>();
+        for (int i = 0; i < endpoints.size(); i++) {
+            Endpoint endpoint = endpoints.get((start + i) % endpoints.size());
+            if (endpoint.healthy) {
+                candidates.add(endpoint);
+            } else {
+                unhealthy.add(endpoint);
+            }
+        }
+        candidates.addAll(unhealthy);
+        return candidates;
+    }
+
+    private InputStream passThrough(Endpoint endpoint, SolrParams query,
+                    SolrRequest.METHOD method, String wt) throws IOException, SolrServerException {
+        try {
+            return HttpSolrQueryService.passThrough(client,
+                        endpoint.baseURL + HttpSolrQueryService.SELECTIONPHASE, query, method, wt);
+        } catch (IOException | SolrServerException | BaseHttpSolrClient.RemoteSolrException e) {
+            if (isRetryable(e)) {
+                markUnhealthy(endpoint, e);
+            }
+            throw e;
+        }
+    }
+
+    /*
+     * Read the commit generation of an endpoint. A failure isn't worth failing the query, so -1
+     * (unknown) is returned then.
+     */
+    private static long readGeneration(Endpoint endpoint) {
+        try {
+            return HttpSolrQueryService.getIndexGeneration(endpoint.solrClient);
+        } catch (IOException | SolrServerException | RuntimeException e) {
+            log.debug("SolrEndpointBalancer.readGeneration - can't read the generation of "
+                        + endpoint.baseURL + " since " + e.getMessage());
+            return -1;
+        }
+    }
+
+    private void markUnhealthy(Endpoint endpoint, Exception e) {
+        if (endpoint.healthy) {
+            log.warn("SolrEndpointBalancer.markUnhealthy - the Solr endpoint " + endpoint.baseURL
+                        + " is unhealthy since " + e.getMessage());
+        }
+        endpoint.healthy = false;
+    }
+
+    /*
+     * A connection failure or a server error is worth trying on another endpoint, while a bad
+     * query would fail on every endpoint.
+     */
+    private static boolean isRetryable(Exception e) {
+        if (e instanceof BaseHttpSolrClient.RemoteSolrException) {
+            return ((BaseHttpSolrClient.RemoteSolrException) e).code() >= 500;
+        }
+        return e instanceof SolrServerException || e instanceof IOException;
+    }
+
+    /*
+     * Send a query to the endpoints one after another, from the given one on, in this thread
+     */
+    private InputStream passThrough(List<Endpoint> candidates, int from, SolrParams query,
+                    SolrRequest.METHOD method, String wt, LongConsumer generation)
+                    throws IOException, SolrServerException {
+        Exception failure = null;
+        for (int i = from; i < candidates.size(); i++) {
+            try {
+                long endpointGeneration =
+                                generation == null ? -1 : readGeneration(candidates.get(i));
+                InputStream stream = passThrough(candidates.get(i), query, method, wt);
+                if (generation != null) {
+                    generation.accept(endpointGeneration);
+                }
+                return stream;
+            } catch (IOException | SolrServerException
+                        | BaseHttpSolrClient.RemoteSolrException e) {
+                failure = e;
+                if (!isRetryable(e)) {
+                    break;
+                }
+            }
+        }
+        throw rethrow(failure);
+    }
+
+    /*
+     * Send a query to the next endpoint in the pool. Return null if the pool is full.
+     */
+    private Future<InputStream> submit(CompletionService<InputStream> completion,
+                    List<Future<InputStream>> submitted, List<Attempt> attempts,
+                    List<Endpoint> candidates, SolrParams query, SolrRequest.METHOD method,
+                    String wt, boolean readGeneration) {
+        Endpoint endpoint = candidates.get(submitted.size());
+        Attempt attempt = new Attempt();
+        Future<InputStream> future = null;
+        try {
+            future = completion.submit(() -> {
+                if (readGeneration) {
+                    attempt.generation = readGeneration(endpoint);
+                }
+                return attempt.arrive(passThrough(endpoint, query, method, wt));
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("SolrEndpointBalancer.submit - all threads of the hedged requests are "
+                        + "busy, so the query isn't hedged");
+            return null;
+        }
+        submitted.add(future);
+        attempts.add(attempt);
+        return future;
+    }
+
+    /*
+     * Close the responses of all attempts except the winner when they arrive. Closing an unread
+     * response aborts its connection.
+     */
+    private static void discard(List<Attempt> attempts, int winner) {
+        for (int i = 0; i < attempts.size(); i++) {
+            if (i != winner) {
+                attempts.get(i).discard();
+            }
+        }
+    }
+
+    private static IOException rethrow(Exception failure) throws SolrServerException {
+        if (failure instanceof SolrServerException) {
+            throw (SolrServerException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof IOException) {
+            return (IOException) failure;
+        }
+        throw new SolrServerException(failure);
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.common.query;
+
+import org.apache.solr.common.params.SolrParams;
+
+/**
+ * Gets the timings of the queries sent to the http Solr server, e.g. to record them as metrics.
+ * It is called on the thread of the query, so it should be quick.
+ * @author tao
+ */
+public interface SolrQueryObserver {
+
+    /**
+     * A query was answered by Solr
+     * @param query  the query params without the access filter added by Metacat
+     * @param qTime  the QTime (ms) reported by Solr. A negative value means it is unknown.
+     * @param solrNanos  the time from sending the query until Solr's response could be read,
+     *                    not including the serialization
+     * @param serializationNanos  the time of parsing and writing the response in another
+     *                             format. It is 0 if the response is passed through.
+     */
+    public void observe(SolrParams query, long qTime, long solrNanos, long serializationNanos);
+}
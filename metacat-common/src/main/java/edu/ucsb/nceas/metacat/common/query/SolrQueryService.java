@@ -20,9 +20,12 @@ package edu.ucsb.nceas.metacat.common.query;
 
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -32,6 +35,7 @@ import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
+import org.dataone.configuration.Settings;
 import org.dataone.service.types.v1.Subject;
 import org.dataone.service.util.Constants;
 
@@ -58,13 +62,18 @@ public abstract class SolrQueryService {
     private static final String CLOSEPARENTHESES = ")";
     private static final String COLON = ":";
     private static final String OR = "OR";
+    //a printable token, since the filter is echoed in the XML response header
+    private static final String TERMS_SEPARATOR = "|;|";
     
     private static Log log = LogFactory.getLog(SolrQueryService.class);
     private static List<String> supportedWriterTypes = null;
+    //The generated access filters keyed by the sorted subject values
+    static Map<List<String>, String> accessFilterCache = createAccessFilterCache();
     
-    protected IndexSchema schema = null;
-    protected Map<String, SchemaField> fieldMap = null;
-    protected List<String> validSolrFieldNames = null;
+    //The schema may be refreshed by another thread
+    protected volatile IndexSchema schema = null;
+    protected volatile Map<String, SchemaField> fieldMap = null;
+    protected volatile List<String> validSolrFieldNames = null;
     protected String solrSpecVersion = null;
     
     static {
@@ -111,6 +120,16 @@ public abstract class SolrQueryService {
      */
     public abstract String getSolrServerVersion();
     
+    /**
+     * Get the generation of the current commit of the index. It changes every time new
+     * changes become visible to the queries.
+     * @return the generation. A negative value means it is unknown.
+     * @throws Exception
+     */
+    public long getIndexGeneration() throws Exception {
+        return -1;
+    }
+
     /**
      * Get the list of the valid field name (moved the fields names of the CopyFieldTarget).
      * @return
@@ -169,39 +188,121 @@ public abstract class SolrQueryService {
         return append;
     }
     
+    /**
+     * Generate the access filter query for the subjects. The subject values are sorted and
+     * deduplicated, and every permission field is matched by one terms query, so the same
+     * subject set always produces the same short filter and shares one entry of the Solr
+     * filter cache. The generated filters are cached by the subject set as well.
+     * @param subjects  the user's identity which sent the query
+     * @return the filter query. It is empty if there is no valid subject.
+     */
     protected StringBuffer generateAccessFilterParamsString(Set<Subject>subjects) {
+        TreeSet<String> names = new TreeSet<String>();
+        if (subjects != null) {
+            for (Subject subject : subjects) {
+                if (subject != null && subject.getValue() != null
+                                    && !subject.getValue().trim().equals("")) {
+                    names.add(subject.getValue());
+                }
+            }
+        }
+        if (names.isEmpty()) {
+            return new StringBuffer();
+        }
+        List<String> key = new ArrayList<String>(names);
+        String filter = null;
+        synchronized (accessFilterCache) {
+            filter = accessFilterCache.get(key);
+        }
+        if (filter == null) {
+            filter = buildAccessFilter(names);
+            synchronized (accessFilterCache) {
+                accessFilterCache.put(key, filter);
+            }
+        }
+        return new StringBuffer(filter);
+    }
+
+    /*
+     * Build the access filter query from the sorted subject values
+     */
+    private static String buildAccessFilter(TreeSet<String> names) {
+        List<String> owners = new ArrayList<String>();
+        for (String name : names) {
+            if (!name.equals(Constants.SUBJECT_PUBLIC)
+                                && !name.equals(Constants.SUBJECT_AUTHENTICATED_USER)) {
+                owners.add(name);
+            }
+        }
         StringBuffer query = new StringBuffer();
+        appendTermsQuery(query, READPERMISSION, names);
+        query.append(OR);
+        appendTermsQuery(query, WRITEPERMISSION, names);
+        query.append(OR);
+        appendTermsQuery(query, CHANGEPERMISSION, names);
+        if (!owners.isEmpty()) {
+            query.append(OR);
+            appendTermsQuery(query, RIGHTSHOLDER, owners);
+        }
+        if (names.contains(Constants.SUBJECT_PUBLIC)) {
+            query.append(OR + OPENPARENTHESES + IS_PUBLIC + COLON + "true" + CLOSEPARENTHESES);
+        }
+        return query.toString();
+    }
+
+    /*
+     * Append a clause such as ({!terms f=readPermission separator='|;|' v='a|;|b'}). The values
+     * of subjects may have commas (e.g. the LDAP DNs), so the terms are separated by a token
+     * instead. The terms query can't escape its separator, so a value which has the token is
+     * matched by its own clause such as OR(readPermission:"a|;|b").
+     */
+    private static void appendTermsQuery(StringBuffer query, String field,
+                                                                Collection<String> values) {
+        List<String> terms = new ArrayList<String>();
+        List<String> others = new ArrayList<String>();
+        for (String value : values) {
+            if (value.contains(TERMS_SEPARATOR)) {
+                others.add(value);
+            } else {
+                terms.add(value);
+            }
+        }
         boolean first = true;
-        if(subjects != null) {
-            for(Subject subject : subjects) {
-                if(subject != null) {
-                    String subjectName = subject.getValue();
-                    if(subjectName != null && !subjectName.trim().equals("")) {
-                        if(first) {
-                            first = false;
-                            query.append(OPENPARENTHESES + READPERMISSION + COLON + "\"" + subjectName + "\"" + CLOSEPARENTHESES);
-                            query.append(OR + OPENPARENTHESES + WRITEPERMISSION + COLON + "\"" + subjectName + "\"" + CLOSEPARENTHESES);
-                            query.append(OR + OPENPARENTHESES + CHANGEPERMISSION + COLON + "\"" + subjectName + "\"" + CLOSEPARENTHESES);
-                            if(!subjectName.equals(Constants.SUBJECT_PUBLIC) && !subjectName.equals(Constants.SUBJECT_AUTHENTICATED_USER)) {
-                                query.append(OR + OPENPARENTHESES + RIGHTSHOLDER + COLON + "\"" + subjectName + "\"" + CLOSEPARENTHESES);
-                            } else if (subjectName.equals(Constants.SUBJECT_PUBLIC)) {
-                                query.append(OR + OPENPARENTHESES + IS_PUBLIC+COLON + "true" + CLOSEPARENTHESES);
-                            }
-                        } else {
-                            query.append(OR + OPENPARENTHESES + READPERMISSION + COLON + "\"" + subjectName + "\"" + CLOSEPARENTHESES);
-                            query.append(OR + OPENPARENTHESES + WRITEPERMISSION + COLON + "\"" + subjectName + "\"" + CLOSEPARENTHESES);
-                            query.append(OR + OPENPARENTHESES + CHANGEPERMISSION + COLON + "\"" + subjectName + "\"" + CLOSEPARENTHESES);
-                            if(!subjectName.equals(Constants.SUBJECT_PUBLIC) && !subjectName.equals(Constants.SUBJECT_AUTHENTICATED_USER)) {
-                                query.append(OR + OPENPARENTHESES + RIGHTSHOLDER + COLON + "\"" + subjectName + "\"" + CLOSEPARENTHESES);
-                            } else if (subjectName.equals(Constants.SUBJECT_PUBLIC)) {
-                                query.append(OR + OPENPARENTHESES + IS_PUBLIC + COLON + "true" + CLOSEPARENTHESES);
-                            }
-                        }
-                    }
+        if (!terms.isEmpty()) {
+            query.append(OPENPARENTHESES + "{!terms f=" + field + " separator='"
+                            + TERMS_SEPARATOR + "' v='");
+            for (String value : terms) {
+                if (!first) {
+                    query.append(TERMS_SEPARATOR);
                 }
-               
+                first = false;
+                // backslash and single quote are the escaped characters in a quoted local param
+                query.append(value.replace("\\", "\\\\").replace("'", "\\'"));
             }
+            query.append("'}" + CLOSEPARENTHESES);
         }
-        return query;
+        for (String value : others) {
+            if (!first) {
+                query.append(OR);
+            }
+            first = false;
+            query.append(OPENPARENTHESES + field + COLON + "\""
+                            + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\""
+                            + CLOSEPARENTHESES);
+        }
+    }
+
+    /*
+     * Create the LRU cache of the generated access filters
+     */
+    private static Map<List<String>, String> createAccessFilterCache() {
+        final int maxSize = Settings.getConfiguration()
+                                    .getInt("solr.query.accessFilter.cache.size", 1000);
+        return new LinkedHashMap<List<String>, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<String>, String> eldest) {
+                return size() > maxSize;
+            }
+        };
     }
 }
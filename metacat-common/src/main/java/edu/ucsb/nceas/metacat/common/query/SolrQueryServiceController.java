@@ -24,6 +24,7 @@ import java.net.MalformedURLException;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.LongConsumer;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -73,7 +74,8 @@ public class SolrQueryServiceController {
         } else {
             isEmbeddedSolrServer = false;
             HttpSolrClient httpServer = (HttpSolrClient)solrServer;
-            httpQueryService = new HttpSolrQueryService(httpServer);
+            httpQueryService = new HttpSolrQueryService(httpServer,
+                                                    SolrServerFactory.getQueryEndpoints());
         }
     }
     
@@ -92,6 +94,16 @@ public class SolrQueryServiceController {
         }
         return controller;
     }
+
+    /**
+     * Release the threads and the connections of the http query service, if the controller was
+     * created. It is called when Metacat stops.
+     */
+    public static void shutdown() {
+        if (controller != null && controller.httpQueryService != null) {
+            controller.httpQueryService.shutdown();
+        }
+    }
     
    
     
@@ -111,12 +123,38 @@ public class SolrQueryServiceController {
      * @throws UnsupportedType 
      */
     public InputStream query(SolrParams params,Set<Subject> subjects, SolrRequest.METHOD method) throws NotImplemented, NotFound, IOException, UnsupportedType, ParserConfigurationException, SAXException, SolrServerException  {
-        if(isEmbeddedSolrServer) {
+        return query(params, subjects, method, null);
+    }
+
+    /**
+     * Query the Solr server and report the commit generation of the index which answered, e.g.
+     * the replica chosen by the http query service
+     * @param params  the query params
+     * @param subjects  the user's identity
+     * @param method  the http method. It only works for the HTTP Solr server.
+     * @param generation  the listener of the generation, read before the query was sent. Null
+     *                     means it isn't read.
+     * @return the response
+     * @throws NotImplemented
+     * @throws NotFound
+     * @throws IOException
+     * @throws UnsupportedType
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     * @throws SolrServerException
+     */
+    public InputStream query(SolrParams params, Set<Subject> subjects, SolrRequest.METHOD method,
+                             LongConsumer generation) throws NotImplemented, NotFound,
+                             IOException, UnsupportedType, ParserConfigurationException,
+                             SAXException, SolrServerException {
+        if (isEmbeddedSolrServer) {
+            if (generation != null) {
+                generation.accept(embeddedQueryService.getIndexGeneration());
+            }
             return embeddedQueryService.query(params, subjects, method);
         } else {
-            return httpQueryService.query(params, subjects, method);
+            return httpQueryService.query(params, subjects, method, generation);
         }
-      
     }
     
     /**
@@ -165,6 +203,19 @@ public class SolrQueryServiceController {
        
     }
     
+    /**
+     * Get the generation of the current commit of the index
+     * @return the generation. A negative value means it is unknown.
+     * @throws Exception
+     */
+    public long getIndexGeneration() throws Exception {
+        if (isEmbeddedSolrServer) {
+            return embeddedQueryService.getIndexGeneration();
+        } else {
+            return httpQueryService.getIndexGeneration();
+        }
+    }
+
     /**
      * If the solr client was configured as an embedded solr server.
      * @return true if it is; false otherwise.
@@ -0,0 +1,121 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.common.query.stream;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * The body of an HTTP response streamed to the caller as it arrives. Closing the stream
+ * releases the HTTP connection, so the caller must always close it.
+ * @author tao
+ */
+public class ContentTypeHttpInputStream extends FilterInputStream
+                                                        implements ContentTypeInputStream {
+    /** The max number of the bytes which can be peeked at */
+    public static final int PEEK_SIZE = 1024;
+
+    private String contentType;
+    private HttpRequestBase request;
+    private boolean eof = false;
+
+    /**
+     * Constructor
+     * @param body  the body of the HTTP response
+     * @param request  the request which got the response
+     */
+    public ContentTypeHttpInputStream(InputStream body, HttpRequestBase request) {
+        super(new PushbackInputStream(body, PEEK_SIZE));
+        this.request = request;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        eof = b < 0;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int count = super.read(b, off, len);
+        eof = count < 0;
+        return count;
+    }
+
+    /**
+     * Read the head of the body without consuming it, e.g. to get the response header of Solr.
+     * It blocks until the bytes arrive or the body ends.
+     * @param length  the number of the bytes to read. It can't be more than PEEK_SIZE.
+     * @return the head of the body. It is shorter than the length if the body is.
+     * @throws IOException
+     */
+    public byte[] peek(int length) throws IOException {
+        if (length > PEEK_SIZE) {
+            throw new IllegalArgumentException("ContentTypeHttpInputStream.peek - can't peek at "
+                                                + "more than " + PEEK_SIZE + " bytes");
+        }
+        byte[] head = new byte[length];
+        int size = 0;
+        while (size < length) {
+            int count = in.read(head, size, length - size);
+            if (count < 0) {
+                break;
+            }
+            size += count;
+        }
+        ((PushbackInputStream) in).unread(head, 0, size);
+        if (size < length) {
+            byte[] shorter = new byte[size];
+            System.arraycopy(head, 0, shorter, 0, size);
+            return shorter;
+        }
+        return head;
+    }
+
+    /**
+     * Close the body and release the connection. If the body wasn't read to the end (e.g. the
+     * client went away), the connection is aborted rather than drained.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!eof) {
+                request.abort();
+            }
+            super.close();
+        } finally {
+            request.releaseConnection();
+        }
+    }
+}
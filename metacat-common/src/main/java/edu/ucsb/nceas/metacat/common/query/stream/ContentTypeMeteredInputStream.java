@@ -0,0 +1,106 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.common.query.stream;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.LongConsumer;
+
+/**
+ * Counts the bytes read from a stream and reports the count when the stream is closed the first
+ * time, e.g. to record the size of a query response after it was sent to the client. The
+ * content type of the wrapped stream is kept.
+ * @author tao
+ */
+public class ContentTypeMeteredInputStream extends FilterInputStream
+                                                        implements ContentTypeInputStream {
+    private String contentType = null;
+    private LongConsumer onClose = null;
+    private long count = 0;
+    private boolean closed = false;
+
+    /**
+     * Constructor
+     * @param in  the wrapped stream
+     * @param onClose  it gets the number of the read bytes when the stream is closed
+     */
+    public ContentTypeMeteredInputStream(InputStream in, LongConsumer onClose) {
+        super(in);
+        this.onClose = onClose;
+        if (in instanceof ContentTypeInputStream) {
+            contentType = ((ContentTypeInputStream) in).getContentType();
+        }
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            count++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0) {
+            count += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count += skipped;
+        return skipped;
+    }
+
+    /**
+     * The count can't follow a reset, so marks aren't supported
+     */
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (!closed) {
+                closed = true;
+                onClose.accept(count);
+            }
+        }
+    }
+}
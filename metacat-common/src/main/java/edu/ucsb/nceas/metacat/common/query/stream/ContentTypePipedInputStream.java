@@ -0,0 +1,152 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.common.query.stream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.dataone.configuration.Settings;
+
+/**
+ * A stream whose content is written by a producer on another thread, e.g. the output of a
+ * transformation. Only the pipe buffer is held in memory, so the caller can copy the content to
+ * the response while it is being produced. A failure of the producer is thrown to the reader at
+ * the end of the stream, or by close if the reader stops before. Closing the stream early makes
+ * the producer fail on its next write. The producers run in a bounded pool: a stream waits for a
+ * thread when they are all busy and can't be created when too many streams are waiting.
+ * @author tao
+ */
+public class ContentTypePipedInputStream extends PipedInputStream
+                                                        implements ContentTypeInputStream {
+    private static final int MAX_PRODUCERS =
+                Math.max(1, Settings.getConfiguration().getInt("solr.query.stream.maxProducers",
+                                                               64));
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_PRODUCERS,
+                MAX_PRODUCERS, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_PRODUCERS * 4), runnable -> {
+                    Thread thread = new Thread(runnable, "metacat-stream-producer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private String contentType;
+    private volatile Exception failure = null;
+    private volatile boolean closing = false;
+    private boolean failureThrown = false;
+
+    /**
+     * The writer of the content
+     */
+    public interface Producer {
+        /**
+         * Write the content
+         * @param out  the stream to write to. It is closed after this method returns.
+         * @throws Exception
+         */
+        public void produce(OutputStream out) throws Exception;
+    }
+
+    /**
+     * Constructor. The producer starts as soon as a thread of the pool is free.
+     * @param pipeSize  the size (bytes) of the pipe buffer
+     * @param producer  the writer of the content
+     * @throws IOException  if too many streams are waiting for the producer threads
+     */
+    public ContentTypePipedInputStream(int pipeSize, Producer producer) throws IOException {
+        super(pipeSize);
+        PipedOutputStream out = new PipedOutputStream(this);
+        try {
+            executor.execute(() -> {
+                try {
+                    producer.produce(out);
+                } catch (Exception e) {
+                    if (!closing) {
+                        // otherwise it is the broken pipe of the early close
+                        failure = e;
+                    }
+                } finally {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // the reader is gone
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            out.close();
+            throw new IOException("ContentTypePipedInputStream - too many streams are waiting "
+                                    + "for the " + MAX_PRODUCERS + " producer threads", e);
+        }
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        return checkFailure(super.read());
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        return checkFailure(super.read(b, off, len));
+    }
+
+    /**
+     * Close the stream. A failure of the producer before the stream was closed is thrown if the
+     * reader didn't get it.
+     */
+    @Override
+    public void close() throws IOException {
+        closing = true;
+        super.close();
+        synchronized (this) {
+            if (failure != null && !failureThrown) {
+                failureThrown = true;
+                throw new IOException("ContentTypePipedInputStream.close - the producer failed "
+                                        + "since " + failure.getMessage(), failure);
+            }
+        }
+    }
+
+    private int checkFailure(int result) throws IOException {
+        if (result < 0 && failure != null) {
+            failureThrown = true;
+            throw new IOException("ContentTypePipedInputStream.read - the producer failed since "
+                                    + failure.getMessage(), failure);
+        }
+        return result;
+    }
+}
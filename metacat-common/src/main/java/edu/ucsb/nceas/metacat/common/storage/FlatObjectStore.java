@@ -0,0 +1,65 @@
+package edu.ucsb.nceas.metacat.common.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The original layout: all objects are the files named by their local ids in one directory.
+ * @author tao
+ */
+public class FlatObjectStore implements ObjectStore {
+    private Path directory = null;
+
+    /**
+     * Constructor
+     * @param directory  the directory of the objects
+     * @throws IOException
+     */
+    public FlatObjectStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory.resolve(TEMP_DIR));
+    }
+
+    @Override
+    public Path getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public Path getPath(String localId) {
+        return directory.resolve(localId);
+    }
+
+    @Override
+    public String getRelativePath(String localId) {
+        return localId;
+    }
+
+    @Override
+    public Path put(String localId, InputStream content) throws IOException {
+        // Files.copy fails if the target exists
+        Path file = getPath(localId);
+        Files.copy(content, file);
+        return file;
+    }
+
+    @Override
+    public Path putFile(String localId, Path file, String sha256) throws IOException {
+        // Files.move fails if the target exists
+        Path target = getPath(localId);
+        Files.move(file, target);
+        return target;
+    }
+
+    @Override
+    public InputStream open(String localId) throws IOException {
+        return ObjectFileInputStream.open(getPath(localId));
+    }
+
+    @Override
+    public boolean delete(String localId) throws IOException {
+        return Files.deleteIfExists(getPath(localId));
+    }
+}
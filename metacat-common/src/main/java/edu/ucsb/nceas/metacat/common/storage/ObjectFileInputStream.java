@@ -0,0 +1,53 @@
+package edu.ucsb.nceas.metacat.common.storage;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The stream of an object opened by an object store. Besides reading it as a normal stream, the
+ * callers serving the object can get its file and channel, so the bytes can be sent by
+ * FileChannel.transferTo or the sendfile of the servlet container instead of a copy loop on the
+ * heap.
+ * @author tao
+ */
+public class ObjectFileInputStream extends FilterInputStream {
+    private Path file = null;
+    private FileChannel channel = null;
+
+    private ObjectFileInputStream(Path file, FileChannel channel) {
+        super(Channels.newInputStream(channel));
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * Open a file for reading
+     * @param file  the file of the object
+     * @return the stream of the file
+     * @throws java.nio.file.NoSuchFileException if the file doesn't exist
+     * @throws IOException
+     */
+    public static ObjectFileInputStream open(Path file) throws IOException {
+        return new ObjectFileInputStream(file, FileChannel.open(file, StandardOpenOption.READ));
+    }
+
+    /**
+     * Get the file which was opened
+     * @return the path of the file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Get the channel of the file. It is closed when the stream is closed.
+     * @return the file channel
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+}
@@ -0,0 +1,130 @@
+package edu.ucsb.nceas.metacat.common.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * The storage of the object files in a directory, e.g. the data or the metadata directory. The
+ * objects are named by their local ids (docids) and never overwritten.
+ * @author tao
+ */
+public interface ObjectStore {
+    /**
+     * The sub-directory for the files being written, such as the staged objects. It is on the
+     * same file system as the objects, so a staged file is published by a rename. The files left
+     * by a crash are removed by removeStaleTempFiles when Metacat starts.
+     */
+    public static final String TEMP_DIR = ".tmp";
+
+    /**
+     * Get the directory of the store
+     * @return the root directory
+     */
+    public Path getDirectory();
+
+    /**
+     * Get the file of an object. The file may not exist.
+     * @param localId  the local id of the object
+     * @return the path of the file where the object is or would be stored
+     * @throws IOException
+     */
+    public Path getPath(String localId) throws IOException;
+
+    /**
+     * Get the path of an object relative to the directory of the store, e.g. for the index
+     * workers which know the directory from their own configuration
+     * @param localId  the local id of the object
+     * @return the relative path
+     * @throws IOException
+     */
+    public String getRelativePath(String localId) throws IOException;
+
+    /**
+     * Store the content of a stream as a new object. The stream isn't closed.
+     * @param localId  the local id of the object
+     * @param content  the content of the object
+     * @return the file of the new object
+     * @throws java.nio.file.FileAlreadyExistsException if the object exists
+     * @throws IOException
+     */
+    public Path put(String localId, InputStream content) throws IOException;
+
+    /**
+     * Move a file into the store as a new object
+     * @param localId  the local id of the object
+     * @param file  the file which is moved
+     * @return the file of the new object
+     * @throws java.nio.file.FileAlreadyExistsException if the object exists
+     * @throws IOException
+     */
+    public default Path putFile(String localId, Path file) throws IOException {
+        return putFile(localId, file, null);
+    }
+
+    /**
+     * Move a file into the store as a new object when the SHA-256 hash of its content is
+     * already known, e.g. calculated while it was uploaded, so the store doesn't read it again
+     * @param localId  the local id of the object
+     * @param file  the file which is moved
+     * @param sha256  the lower case hex SHA-256 hash of the file. Null if it isn't known.
+     * @return the file of the new object
+     * @throws java.nio.file.FileAlreadyExistsException if the object exists
+     * @throws IOException
+     */
+    public Path putFile(String localId, Path file, String sha256) throws IOException;
+
+    /**
+     * Create an empty file in the temporary directory of the store, where an object can be
+     * written and verified before it is published by putFile
+     * @return the new file
+     * @throws IOException
+     */
+    public default Path createStagingFile() throws IOException {
+        return Files.createTempFile(getDirectory().resolve(TEMP_DIR), "stage-", null);
+    }
+
+    /**
+     * Remove the files left in the temporary directory by a crash. It is called once when Metacat
+     * starts, not when the store is created, so a file being written is never removed. A file
+     * modified recently is kept as well, since another Metacat instance sharing the directory
+     * may be writing it.
+     * @param minAge  the minimum time in milliseconds since a file was last modified
+     * @return the number of the removed files
+     * @throws IOException
+     */
+    public default int removeStaleTempFiles(long minAge) throws IOException {
+        int removed = 0;
+        FileTime limit = FileTime.fromMillis(System.currentTimeMillis() - minAge);
+        try (DirectoryStream<Path> files =
+                                Files.newDirectoryStream(getDirectory().resolve(TEMP_DIR))) {
+            for (Path file : files) {
+                if (Files.getLastModifiedTime(file).compareTo(limit) < 0
+                                && Files.deleteIfExists(file)) {
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Open an object for reading
+     * @param localId  the local id of the object
+     * @return the content of the object. The stores of files return an ObjectFileInputStream.
+     * @throws java.nio.file.NoSuchFileException if the object doesn't exist
+     * @throws IOException
+     */
+    public InputStream open(String localId) throws IOException;
+
+    /**
+     * Delete an object
+     * @param localId  the local id of the object
+     * @return true if it was deleted; false if it didn't exist
+     * @throws IOException
+     */
+    public boolean delete(String localId) throws IOException;
+}
@@ -0,0 +1,120 @@
+package edu.ucsb.nceas.metacat.common.storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dataone.configuration.Settings;
+
+/**
+ * Creates the object stores of the data and metadata directories. The layout is chosen by the
+ * property storage.layout - flat (the default, the layout of the existing installations) or
+ * sharded. The properties are read from the
+ * DataONE configuration, so both Metacat and the index worker resolve the same paths.
+ * @author tao
+ */
+public class ObjectStoreFactory {
+    public static final String FLAT_LAYOUT = "flat";
+    public static final String SHARDED_LAYOUT = "sharded";
+
+    private static Log logMetacat = LogFactory.getLog(ObjectStoreFactory.class);
+    private static Map<Path, ObjectStore> stores = new ConcurrentHashMap<Path, ObjectStore>();
+
+    /**
+     * Get the store of a directory. There is one store per directory.
+     * @param directory  the directory of the objects
+     * @return the object store
+     * @throws IOException
+     */
+    public static ObjectStore getStore(String directory) throws IOException {
+        Path dir = Paths.get(directory).toAbsolutePath().normalize();
+        ObjectStore store = stores.get(dir);
+        if (store == null) {
+            synchronized (ObjectStoreFactory.class) {
+                store = stores.get(dir);
+                if (store == null) {
+                    store = createStore(dir);
+                    stores.put(dir, store);
+                }
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Get the store of the metadata objects (application.documentfilepath)
+     * @return the object store
+     * @throws IOException
+     */
+    public static ObjectStore getMetadataStore() throws IOException {
+        return getStore(getDirectory("application.documentfilepath"));
+    }
+
+    /**
+     * Get the store of the data objects (application.datafilepath)
+     * @return the object store
+     * @throws IOException
+     */
+    public static ObjectStore getDataStore() throws IOException {
+        return getStore(getDirectory("application.datafilepath"));
+    }
+
+    /**
+     * Get the store of the metadata or data objects
+     * @param isScienceMetadata  true for the metadata objects; false for the data objects
+     * @return the object store
+     * @throws IOException
+     */
+    public static ObjectStore getStore(boolean isScienceMetadata) throws IOException {
+        return isScienceMetadata ? getMetadataStore() : getDataStore();
+    }
+
+    /**
+     * Get the relative path of an object when it isn't known if it is a metadata or data
+     * object. The path of an existing object in either store is returned.
+     * @param localId  the local id of the object
+     * @return the path relative to its store's directory
+     * @throws IOException
+     */
+    public static String getRelativePath(String localId) throws IOException {
+        ObjectStore metadataStore = getMetadataStore();
+        if (Files.exists(metadataStore.getPath(localId))) {
+            return metadataStore.getRelativePath(localId);
+        }
+        return getDataStore().getRelativePath(localId);
+    }
+
+    /*
+     * Get the directory configured by the given property
+     */
+    private static String getDirectory(String propertyName) throws IOException {
+        String directory = Settings.getConfiguration().getString(propertyName);
+        if (directory == null || directory.isBlank()) {
+            throw new IOException("ObjectStoreFactory.getDirectory - the property " + propertyName
+                                      + " isn't set, so the object store can't be located.");
+        }
+        return directory;
+    }
+
+    /*
+     * Create the store of the configured layout
+     */
+    private static ObjectStore createStore(Path dir) throws IOException {
+        String layout = Settings.getConfiguration().getString("storage.layout", FLAT_LAYOUT);
+        boolean deduplicate = Settings.getConfiguration().getBoolean("storage.deduplicate", false);
+        if (!SHARDED_LAYOUT.equalsIgnoreCase(layout)) {
+            logMetacat.info("ObjectStoreFactory.createStore - the objects in " + dir
+                                + " are stored in the flat layout");
+            return new FlatObjectStore(dir);
+        }
+        logMetacat.info("ObjectStoreFactory.createStore - the objects in " + dir
+                            + " are stored in the sharded layout and the deduplication is "
+                            + deduplicate);
+        return new ShardedObjectStore(dir, deduplicate);
+    }
+}
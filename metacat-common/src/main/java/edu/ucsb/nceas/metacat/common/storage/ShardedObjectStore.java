@@ -0,0 +1,427 @@
+package edu.ucsb.nceas.metacat.common.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Stores the objects in two levels of sub-directories named by the hex prefix of the SHA-256
+ * hash of their local ids, e.g. the object autogen.1.1 is in ab/cd/autogen.1.1, so no directory
+ * holds more than a few hundred files even with millions of objects.
+ *
+ * If the deduplication is on, the content of an object is also stored once under its SHA-256
+ * hash in the .content directory, e.g. .content/12/34/1234..., and the file of every object with
+ * the same bytes is a hard link to it. So the link count of the content file is the reference
+ * count of the content (plus one for the content file itself). The content file is removed when
+ * no object refers to it any more. Since the objects are hard links, an object stays readable
+ * even if its content file is removed, and other code can keep opening the objects by path.
+ * The link count is the only record of the references, so the files must not be linked by
+ * other tools: a backup or rsync adding hard links to them makes the counts too high, and the
+ * contents are then never removed. A copy which doesn't preserve the hard links breaks the
+ * sharing, and each object is counted as the only reference to its own content.
+ *
+ * The objects of the flat layout (directly in the directory) are still found, so the store can be
+ * used while they are moved by the linkToShard and migrate methods.
+ * @author tao
+ */
+public class ShardedObjectStore implements ObjectStore {
+    public static final String CONTENT_DIR = ".content";
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int MAX_LINK_ATTEMPTS = 3;
+
+    private static Log logMetacat = LogFactory.getLog(ShardedObjectStore.class);
+
+    private Path directory = null;
+    private Path contentDirectory = null;
+    private Path tempDirectory = null;
+    private boolean deduplicate = true;
+
+    /**
+     * Constructor
+     * @param directory  the directory of the objects
+     * @param deduplicate  if the objects with the same content share one file
+     * @throws IOException
+     */
+    public ShardedObjectStore(Path directory, boolean deduplicate) throws IOException {
+        this.directory = directory;
+        this.deduplicate = deduplicate;
+        contentDirectory = directory.resolve(CONTENT_DIR);
+        tempDirectory = directory.resolve(TEMP_DIR);
+        Files.createDirectories(contentDirectory);
+        Files.createDirectories(tempDirectory);
+    }
+
+    @Override
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Check if the objects with the same content share one file
+     * @return true if the deduplication is on
+     */
+    public boolean isDeduplicating() {
+        return deduplicate;
+    }
+
+    @Override
+    public Path getPath(String localId) {
+        Path sharded = getShardedPath(localId);
+        if (!Files.exists(sharded)) {
+            Path flat = directory.resolve(localId);
+            if (Files.exists(flat)) {
+                return flat;
+            }
+        }
+        return sharded;
+    }
+
+    @Override
+    public String getRelativePath(String localId) {
+        return directory.relativize(getPath(localId)).toString();
+    }
+
+    @Override
+    public Path put(String localId, InputStream content) throws IOException {
+        Path file = getShardedPath(localId);
+        checkAbsent(localId, file);
+        Files.createDirectories(file.getParent());
+        if (!deduplicate) {
+            Files.copy(content, file);
+            return file;
+        }
+        // write a temporary file while hashing the content, then link it under the hash
+        Path temp = Files.createTempFile(tempDirectory, "put-", null);
+        try {
+            MessageDigest md = newDigest();
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                new DigestInputStream(content, md).transferTo(out);
+            }
+            return link(file, temp, HexFormat.of().formatHex(md.digest()), true);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    @Override
+    public Path putFile(String localId, Path source, String sha256) throws IOException {
+        Path file = getShardedPath(localId);
+        checkAbsent(localId, file);
+        Files.createDirectories(file.getParent());
+        if (!deduplicate) {
+            Files.move(source, file);
+            return file;
+        }
+        if (sha256 == null) {
+            // the file is read once more to get its hash
+            sha256 = hash(source);
+        }
+        link(file, source, sha256, true);
+        Files.deleteIfExists(source);
+        return file;
+    }
+
+    @Override
+    public InputStream open(String localId) throws IOException {
+        Path sharded = getShardedPath(localId);
+        try {
+            return ObjectFileInputStream.open(sharded);
+        } catch (NoSuchFileException e) {
+            // try the flat layout
+        }
+        try {
+            return ObjectFileInputStream.open(directory.resolve(localId));
+        } catch (NoSuchFileException e) {
+            // it may have been migrated after the first try
+            return ObjectFileInputStream.open(sharded);
+        }
+    }
+
+    @Override
+    public boolean delete(String localId) throws IOException {
+        Path file = getPath(localId);
+        if (!Files.exists(file)) {
+            return false;
+        }
+        // the flat name of an object linked into its shard but not migrated yet
+        Path flat = directory.resolve(localId);
+        boolean linked = !flat.equals(file) && Files.exists(flat);
+        Path content = null;
+        if (deduplicate) {
+            try {
+                // the object (under one or two names) and the content file are the only links
+                if (getLinkCount(file) == (getFlatTwin(localId, file) == null ? 2 : 3)) {
+                    Path candidate = getContentPath(hash(file));
+                    if (Files.exists(candidate) && Files.isSameFile(candidate, file)) {
+                        content = candidate;
+                    }
+                }
+            } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                logMetacat.debug("ShardedObjectStore.delete - can't get the link count of "
+                                    + file + " since " + e.getMessage());
+            }
+        }
+        boolean deleted = Files.deleteIfExists(file);
+        if (linked) {
+            Files.deleteIfExists(flat);
+        }
+        if (content != null) {
+            collect(content);
+        }
+        return deleted;
+    }
+
+    /**
+     * Get the number of the other objects sharing the content of an object. Until the migration
+     * is done, the flat names of the other objects linked by linkToShard may be counted as well.
+     * @param localId  the local id of the object
+     * @return the number of the other objects with the same content file
+     * @throws IOException
+     */
+    public int getReferenceCount(String localId) throws IOException {
+        Path file = getPath(localId);
+        if (!deduplicate || !isLinkedToContent(file)) {
+            return 0;
+        }
+        // minus the object itself (under one or two names) and the content file
+        return getLinkCount(file) - (getFlatTwin(localId, file) == null ? 2 : 3);
+    }
+
+    /**
+     * Link an object of the flat layout into its sharded directory and keep its flat name, so
+     * both paths of the object are valid, e.g. the flat path in an index task queued before.
+     * The migrate method removes the flat name later. If the file system has no hard links,
+     * the object is left in the flat layout and the migrate method moves it.
+     * @param localId  the local id of the object
+     * @return true if it was linked; false if it isn't in the flat layout or it was linked
+     * @throws IOException
+     */
+    public boolean linkToShard(String localId) throws IOException {
+        Path flat = directory.resolve(localId);
+        if (!Files.isRegularFile(flat, LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        Path file = getShardedPath(localId);
+        if (Files.exists(file)) {
+            // linked before, or a duplicate which the migrate method checks
+            return false;
+        }
+        Files.createDirectories(file.getParent());
+        if (deduplicate) {
+            link(file, flat, hash(flat), false);
+            return true;
+        }
+        try {
+            Files.createLink(file, flat);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            logMetacat.warn("ShardedObjectStore.linkToShard - can't link " + file + " to "
+                                + flat + " since " + e.getMessage()
+                                + ". So the object is moved by the migration.");
+            return false;
+        }
+    }
+
+    /**
+     * Move an object of the flat layout into its sharded directory, or remove the flat name of
+     * an object linked by linkToShard. The object stays readable during the move, since it is
+     * linked into the new place before it is removed from the old.
+     * @param localId  the local id of the object
+     * @return true if it was moved; false if it isn't in the flat layout
+     * @throws IOException
+     */
+    public boolean migrate(String localId) throws IOException {
+        Path flat = directory.resolve(localId);
+        if (!Files.isRegularFile(flat, LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        Path file = getShardedPath(localId);
+        Files.createDirectories(file.getParent());
+        if (Files.exists(file)) {
+            // an interrupted migration or a duplicate
+            if (!Files.isSameFile(file, flat) && !hash(file).equals(hash(flat))) {
+                throw new FileAlreadyExistsException(file.toString(), flat.toString(),
+                                        "the object is in both layouts with different content");
+            }
+        } else if (deduplicate) {
+            link(file, flat, hash(flat), false);
+        } else {
+            Files.move(flat, file);
+            return true;
+        }
+        Files.deleteIfExists(flat);
+        return true;
+    }
+
+    /**
+     * List the objects still in the flat layout
+     * @return the stream of the files directly in the directory. It should be closed.
+     * @throws IOException
+     */
+    public DirectoryStream<Path> newFlatObjectStream() throws IOException {
+        return Files.newDirectoryStream(directory, path -> !path.getFileName().toString()
+                                    .startsWith(".") && Files.isRegularFile(path,
+                                                                    LinkOption.NOFOLLOW_LINKS));
+    }
+
+    /**
+     * Get the sharded path of an object
+     * @param localId  the local id of the object
+     * @return the path in the sharded layout
+     */
+    protected Path getShardedPath(String localId) {
+        MessageDigest md = newDigest();
+        String hash = HexFormat.of().formatHex(md.digest(localId.getBytes(StandardCharsets.UTF_8)));
+        return directory.resolve(shard(hash)).resolve(localId);
+    }
+
+    /*
+     * The flat name of an object if it is another link of the given sharded file; otherwise null.
+     * With the deduplication, only the first object of a content shares the file with its flat
+     * name, since the others are linked to the existing content file.
+     */
+    private Path getFlatTwin(String localId, Path file) throws IOException {
+        Path flat = directory.resolve(localId);
+        if (!flat.equals(file) && Files.exists(flat) && Files.isSameFile(flat, file)) {
+            return flat;
+        }
+        return null;
+    }
+
+    /*
+     * The path of the content file with the given hash
+     */
+    private Path getContentPath(String hash) {
+        return contentDirectory.resolve(shard(hash)).resolve(hash);
+    }
+
+    /*
+     * The two levels of the directories from the prefix of a hex hash, e.g. ab/cd
+     */
+    private static String shard(String hash) {
+        return hash.substring(0, 2) + "/" + hash.substring(2, 4);
+    }
+
+    /*
+     * Link the object file to the content file with the given hash. The content file is created
+     * from the source if it doesn't exist, by moving or linking the source.
+     */
+    private Path link(Path file, Path source, String hash, boolean move) throws IOException {
+        Path content = getContentPath(hash);
+        Files.createDirectories(content.getParent());
+        for (int attempt = 1;; attempt++) {
+            try {
+                Files.createLink(file, content);
+                return file;
+            } catch (NoSuchFileException e) {
+                if (attempt >= MAX_LINK_ATTEMPTS) {
+                    throw e;
+                }
+                // this is the first object with the content, or the content was just removed
+                try {
+                    if (move) {
+                        Files.move(source, content);
+                    } else {
+                        Files.createLink(content, source);
+                    }
+                } catch (FileAlreadyExistsException ee) {
+                    // another object with the same content was stored meanwhile
+                }
+            } catch (FileAlreadyExistsException e) {
+                collect(content);
+                throw e;
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                // e.g. the file system has no hard links or the content has too many links
+                logMetacat.warn("ShardedObjectStore.link - can't link " + file + " to the "
+                                    + "content " + content + " since " + e.getMessage()
+                                    + ". So the object has its own copy.");
+                if (move && Files.exists(source)) {
+                    Files.move(source, file);
+                } else {
+                    Files.copy(Files.exists(source) ? source : content, file);
+                }
+                collect(content);
+                return file;
+            }
+        }
+    }
+
+    /*
+     * Remove a content file which no object refers to
+     */
+    private void collect(Path content) {
+        try {
+            // an object linked to it meanwhile keeps the bytes anyway
+            if (Files.exists(content) && getLinkCount(content) == 1) {
+                Files.deleteIfExists(content);
+            }
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            logMetacat.warn("ShardedObjectStore.collect - can't remove the content " + content
+                                + " since " + e.getMessage());
+        }
+    }
+
+    /*
+     * If the object file is a link of a content file
+     */
+    private boolean isLinkedToContent(Path file) throws IOException {
+        if (getLinkCount(file) < 2) {
+            return false;
+        }
+        Path content = getContentPath(hash(file));
+        return Files.exists(content) && Files.isSameFile(content, file);
+    }
+
+    private static int getLinkCount(Path file) throws IOException {
+        return (Integer) Files.getAttribute(file, "unix:nlink");
+    }
+
+    /**
+     * Get the SHA-256 hash of a file
+     * @param file  the file
+     * @return the hash in lower case hex
+     * @throws IOException
+     */
+    protected static String hash(Path file) throws IOException {
+        MessageDigest md = newDigest();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), md)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * Fail early, before the content is written, if the object exists in either layout
+     */
+    private void checkAbsent(String localId, Path file) throws FileAlreadyExistsException {
+        if (Files.exists(file) || Files.exists(directory.resolve(localId))) {
+            throw new FileAlreadyExistsException(file.toString());
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package edu.ucsb.nceas.metacat.common.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The test class of LocalIndexQueue
+ */
+public class LocalIndexQueueTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private Path base = null;
+
+    /**
+     * Create the queue directory
+     */
+    @Before
+    public void setup() throws Exception {
+        base = folder.newFolder("index-queue").toPath();
+    }
+
+    /**
+     * Test that the tasks are consumed by priority, then in the publishing order
+     */
+    @Test
+    public void testOrder() throws Exception {
+        LocalIndexQueue queue = new LocalIndexQueue(base);
+        queue.publish("low.1", "create", "autogen.1.1", 1);
+        queue.publish("medium.1", "create", "autogen.2.1", 4);
+        queue.publish("low.2", "delete", null, 1);
+        queue.publish("high.1", "sysmeta", "autogen.3.1", 10);
+        queue.publish("medium.2", "create", "autogen.4.1", 4);
+        assertEquals(5, queue.size());
+        String[] expected = {"high.1", "medium.1", "medium.2", "low.1", "low.2"};
+        for (String id : expected) {
+            LocalIndexQueue.Task task = queue.claim();
+            assertEquals(id, task.getId());
+            queue.ack(task);
+        }
+        assertNull(queue.claim());
+        assertEquals(0, queue.size());
+    }
+
+    /**
+     * Test the content of a task
+     */
+    @Test
+    public void testTaskContent() throws Exception {
+        LocalIndexQueue queue = new LocalIndexQueue(base);
+        queue.publish("foo.1", "create", "autogen.1.1", 4);
+        queue.publish("foo.2", "delete", null, 1, "metacat-index-rebuild");
+        LocalIndexQueue.Task task = queue.claim();
+        assertEquals("foo.1", task.getId());
+        assertEquals("create", task.getIndexType());
+        assertEquals("autogen.1.1", task.getPath());
+        assertEquals(4, task.getPriority());
+        assertNull(task.getCore());
+        task = queue.claim();
+        assertEquals("foo.2", task.getId());
+        assertEquals("delete", task.getIndexType());
+        assertNull(task.getPath());
+        assertEquals("metacat-index-rebuild", task.getCore());
+    }
+
+    /**
+     * Test that the claimed but not acknowledged tasks come back after recovery
+     */
+    @Test
+    public void testRecover() throws Exception {
+        LocalIndexQueue queue = new LocalIndexQueue(base);
+        queue.publish("foo.1", "create", "autogen.1.1", 4);
+        queue.publish("foo.2", "create", "autogen.2.1", 4);
+        LocalIndexQueue.Task task = queue.claim();
+        queue.ack(task);
+        queue.claim();
+        assertEquals(0, queue.size());
+        // a new worker process after a crash
+        LocalIndexQueue restarted = new LocalIndexQueue(base);
+        assertEquals(1, restarted.recover());
+        assertEquals(1, restarted.size());
+        assertEquals("foo.2", restarted.claim().getId());
+    }
+
+    /**
+     * Test that the index of a consumer follows the tasks published and claimed by the other
+     * processes after it was built
+     */
+    @Test
+    public void testIndexFollowsOtherProcesses() throws Exception {
+        LocalIndexQueue publisher = new LocalIndexQueue(base);
+        LocalIndexQueue consumer = new LocalIndexQueue(base);
+        LocalIndexQueue other = new LocalIndexQueue(base);
+        try {
+            publisher.publish("foo.1", "create", "autogen.1.1", 1);
+            publisher.publish("foo.2", "create", "autogen.2.1", 1);
+            // build the index
+            assertEquals(2, consumer.size());
+            publisher.publish("high.1", "create", "autogen.3.1", 10);
+            waitForSize(consumer, 3);
+            assertEquals("high.1", consumer.claim().getId());
+            // a task claimed by another process is skipped
+            assertEquals("foo.1", other.claim().getId());
+            assertEquals("foo.2", consumer.claim().getId());
+            assertNull(consumer.claim());
+        } finally {
+            publisher.close();
+            consumer.close();
+            other.close();
+        }
+    }
+
+    private static void waitForSize(LocalIndexQueue queue, int size) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (queue.size() != size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(size, queue.size());
+    }
+
+    /**
+     * Test that every task is claimed exactly once by the concurrent workers
+     */
+    @Test
+    public void testConcurrentClaims() throws Exception {
+        LocalIndexQueue publisher = new LocalIndexQueue(base);
+        int total = 500;
+        for (int i = 0; i < total; i++) {
+            publisher.publish("id." + i, "create", "autogen." + i + ".1", i % 10);
+        }
+        int workers = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+        for (int i = 0; i < workers; i++) {
+            // each worker has its own queue instance like the different webapps
+            final LocalIndexQueue queue = new LocalIndexQueue(base);
+            results.add(executor.submit(() -> {
+                List<String> ids = new ArrayList<String>();
+                LocalIndexQueue.Task task = queue.claim();
+                while (task != null) {
+                    ids.add(task.getId());
+                    queue.ack(task);
+                    task = queue.claim();
+                }
+                return ids;
+            }));
+        }
+        List<String> all = new ArrayList<String>();
+        for (Future<List<String>> result : results) {
+            all.addAll(result.get());
+        }
+        executor.shutdown();
+        Set<String> unique = new HashSet<String>(all);
+        assertEquals(total, all.size());
+        assertEquals(total, unique.size());
+        assertFalse(unique.contains(null));
+        assertEquals(0, publisher.size());
+    }
+}
@@ -0,0 +1,231 @@
+package edu.ucsb.nceas.metacat.common.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.impl.BaseHttpSolrClient;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.ucsb.nceas.metacat.common.query.stream.ContentTypeInputStream;
+
+/**
+ * Test the pass-through mode of the HttpSolrQueryService class against a stand-in of the Solr
+ * select handler, which writes a large result in two parts with a pause between them.
+ * It also reports the time to the first byte and the bytes allocated while reading.
+ */
+public class HttpSolrQueryServicePassThroughTest {
+    private static final int ROWS = 10000;
+    private static final long PAUSE = 1000;
+    private HttpServer server = null;
+    private CloseableHttpClient client = null;
+    private String selectURL = null;
+    private volatile String lastMethod = null;
+    private volatile String lastQuery = null;
+
+    /**
+     * Start the stand-in of Solr
+     */
+    @Before
+    public void setup() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/solr/select", exchange -> handle(exchange));
+        server.start();
+        selectURL = "http://localhost:" + server.getAddress().getPort() + "/solr/select";
+        client = HttpClients.createDefault();
+    }
+
+    /**
+     * Stop the stand-in of Solr
+     */
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        server.stop(0);
+    }
+
+    /**
+     * Test that a large result is streamed: the first byte arrives before Solr finishes
+     * writing, and the bytes allocated while reading are less than the size of the result.
+     */
+    @Test
+    public void testStreaming() throws Exception {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("q", "*:*");
+        params.set("rows", 1);
+        params.set(SolrQueryService.WT, SolrQueryResponseWriterFactory.JSON);
+        // warm up the client, so the class loading isn't counted
+        try (InputStream stream = HttpSolrQueryService.passThrough(client, selectURL, params,
+                                    SolrRequest.METHOD.GET, SolrQueryResponseWriterFactory.JSON)) {
+            IOUtils.toString(stream, StandardCharsets.UTF_8);
+        }
+        params.set("rows", ROWS);
+        com.sun.management.ThreadMXBean threads =
+                            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long size = 0;
+        long firstByte = -1;
+        try (InputStream stream = HttpSolrQueryService.passThrough(client, selectURL, params,
+                                    SolrRequest.METHOD.GET, SolrQueryResponseWriterFactory.JSON)) {
+            assertEquals("text/json", ((ContentTypeInputStream) stream).getContentType());
+            byte[] buffer = new byte[8192];
+            int count = stream.read(buffer);
+            firstByte = (System.nanoTime() - start) / 1000000;
+            while (count >= 0) {
+                size += count;
+                count = stream.read(buffer);
+            }
+        }
+        long total = (System.nanoTime() - start) / 1000000;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        System.out.println("HttpSolrQueryServicePassThroughTest.testStreaming - " + ROWS
+                    + " rows, " + size + " bytes, time to first byte " + firstByte
+                    + " ms, total " + total + " ms, allocated " + allocated + " bytes");
+        assertEquals("GET", lastMethod);
+        assertTrue(lastQuery.contains("rows=" + ROWS));
+        assertEquals(expectedSize(), size);
+        assertTrue("first byte at " + firstByte + " ms", firstByte < PAUSE);
+        assertTrue(total >= PAUSE);
+        assertTrue("allocated " + allocated + " bytes", allocated < size);
+    }
+
+    /**
+     * Test that the params are sent in the body of a POST request
+     */
+    @Test
+    public void testPost() throws Exception {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("q", "title:\"a & b\"");
+        params.set("rows", 1);
+        params.set(SolrQueryService.WT, SolrQueryResponseWriterFactory.XML);
+        try (InputStream stream = HttpSolrQueryService.passThrough(client, selectURL, params,
+                                    SolrRequest.METHOD.POST, SolrQueryResponseWriterFactory.XML)) {
+            assertEquals("text/xml", ((ContentTypeInputStream) stream).getContentType());
+            IOUtils.toString(stream, StandardCharsets.UTF_8);
+        }
+        assertEquals("POST", lastMethod);
+        assertTrue(lastQuery.contains("q=title%3A%22a+%26+b%22"));
+    }
+
+    /**
+     * Test that an error of Solr is thrown as a RemoteSolrException
+     */
+    @Test
+    public void testError() throws Exception {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("q", "bad:(");
+        try {
+            HttpSolrQueryService.passThrough(client, selectURL, params, SolrRequest.METHOD.GET,
+                                             SolrQueryResponseWriterFactory.XML);
+            fail("A bad query should fail");
+        } catch (BaseHttpSolrClient.RemoteSolrException e) {
+            assertEquals(400, e.code());
+            assertTrue(e.getMessage().contains("org.apache.solr.search.SyntaxError"));
+        }
+    }
+
+    /**
+     * Test that closing a partially read result doesn't wait for the rest of it
+     */
+    @Test
+    public void testCloseEarly() throws Exception {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("q", "*:*");
+        long start = System.nanoTime();
+        InputStream stream = HttpSolrQueryService.passThrough(client, selectURL, params,
+                                    SolrRequest.METHOD.GET, SolrQueryResponseWriterFactory.JSON);
+        assertTrue(stream.read() >= 0);
+        stream.close();
+        assertTrue((System.nanoTime() - start) / 1000000 < PAUSE);
+        // the client can still be used
+        params.set("rows", 1);
+        try (InputStream second = HttpSolrQueryService.passThrough(client, selectURL, params,
+                                    SolrRequest.METHOD.GET, SolrQueryResponseWriterFactory.JSON)) {
+            assertTrue(second.read() >= 0);
+        }
+    }
+
+    /**
+     * The stand-in of the Solr select handler
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        lastMethod = exchange.getRequestMethod();
+        if ("POST".equals(lastMethod)) {
+            lastQuery = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+        } else {
+            lastQuery = exchange.getRequestURI().getRawQuery();
+        }
+        if (lastQuery.contains("bad")) {
+            byte[] error = "org.apache.solr.search.SyntaxError".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(400, error.length);
+            exchange.getResponseBody().write(error);
+            exchange.close();
+            return;
+        }
+        int rows = lastQuery.contains("rows=1&") || lastQuery.endsWith("rows=1") ? 1 : ROWS;
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        // chunked
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(header().getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < rows; i++) {
+                out.write(row(i).getBytes(StandardCharsets.UTF_8));
+                if (i == rows / 10) {
+                    out.flush();
+                    sleep();
+                }
+            }
+            out.write(footer().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // the client closed the connection early
+        }
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(PAUSE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String header() {
+        return "{\"response\":{\"numFound\":" + ROWS + ",\"start\":0,\"docs\":[";
+    }
+
+    private static String row(int i) {
+        return (i == 0 ? "" : ",") + "{\"id\":\"urn:uuid:" + i + "\",\"title\":\"Dataset " + i
+                    + " of the pass-through test with some text to make it realistic\"}";
+    }
+
+    private static String footer() {
+        return "]}}";
+    }
+
+    private static long expectedSize() {
+        long size = header().length() + footer().length();
+        for (int i = 0; i < ROWS; i++) {
+            size += row(i).length();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,338 @@
+package edu.ucsb.nceas.metacat.common.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPathFactory;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.QueryResponseWriter;
+import org.apache.solr.response.QueryResponseWriterUtil;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.servlet.SolrRequestParsers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test the SolrEndpointBalancer class against three replicas of a Solr core. The replicas are
+ * http servers answering the queries with the responses of one embedded Solr core, so the
+ * balancer reads the bodies Solr writes. A replica can be made slow, unhealthy or stopped.
+ */
+public class SolrEndpointBalancerTest {
+    private static final String CORE_PATH = "/solr/metacat-index";
+    private static final String COLLECTION = "collection1";
+    private static final int DOCS = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private EmbeddedSolrServer solr = null;
+    private List<Replica> replicas = new ArrayList<Replica>();
+    private List<String> endpoints = new ArrayList<String>();
+    private CloseableHttpClient client = null;
+    private SolrEndpointBalancer balancer = null;
+
+    /**
+     * The stand-in of a replica
+     */
+    private static class Replica {
+        private EmbeddedSolrServer solr;
+        private HttpServer server;
+        private ExecutorService executor = Executors.newCachedThreadPool();
+        private AtomicInteger queries = new AtomicInteger(0);
+        private volatile long delay = 0;
+        private volatile boolean healthy = true;
+        private boolean stopped = false;
+
+        private Replica(EmbeddedSolrServer solr) throws IOException {
+            this.solr = solr;
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            server.createContext(CORE_PATH + "/select", exchange -> select(exchange));
+            server.createContext(CORE_PATH + "/admin/ping", exchange -> {
+                write(exchange, healthy ? 200 : 503, "application/json",
+                      "{\"status\":\"OK\"}");
+            });
+            server.setExecutor(executor);
+            server.start();
+        }
+
+        private String getBaseURL() {
+            return "http://localhost:" + server.getAddress().getPort() + CORE_PATH;
+        }
+
+        private void select(HttpExchange exchange) throws IOException {
+            queries.incrementAndGet();
+            if (!healthy) {
+                write(exchange, 503, "text/plain", "Service Unavailable");
+                return;
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            SolrParams params = SolrRequestParsers.parseQueryString(
+                                                        exchange.getRequestURI().getRawQuery());
+            try (SolrCore core = solr.getCoreContainer().getCore(COLLECTION)) {
+                QueryResponse response = solr.query(params);
+                SolrQueryResponse solrResponse = new SolrQueryResponse();
+                solrResponse.setAllValues(response.getResponse());
+                SolrQueryRequest request = new LocalSolrQueryRequest(core, params);
+                try {
+                    QueryResponseWriter writer = core.getQueryResponseWriter(request);
+                    String contentType = writer.getContentType(request, solrResponse);
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    QueryResponseWriterUtil.writeQueryResponse(body, writer, request,
+                                                               solrResponse, contentType);
+                    write(exchange, 200, contentType, body.toByteArray());
+                } finally {
+                    request.close();
+                }
+            } catch (Exception e) {
+                write(exchange, 500, "text/plain", e.getMessage());
+            }
+        }
+
+        private void stop() {
+            if (!stopped) {
+                stopped = true;
+                server.stop(0);
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Start the embedded Solr core with a few documents and the replicas serving it
+     */
+    @Before
+    public void setup() throws Exception {
+        File solrHome = folder.newFolder("solr-home");
+        FileUtils.copyDirectory(new File("target/solr-home"), solrHome);
+        CoreContainer container = new CoreContainer(solrHome.toPath(), new Properties());
+        container.load();
+        solr = new EmbeddedSolrServer(container, COLLECTION);
+        for (int i = 0; i < DOCS; i++) {
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.addField("id", "doc." + i);
+            doc.addField("title", "replicated document " + i);
+            solr.add(doc);
+        }
+        solr.commit();
+        for (int i = 0; i < 3; i++) {
+            Replica replica = new Replica(solr);
+            replicas.add(replica);
+            endpoints.add(replica.getBaseURL());
+        }
+        client = HttpClients.custom().setMaxConnTotal(100).setMaxConnPerRoute(20).build();
+        // no hedged requests, so every query is sent to one endpoint
+        balancer = new SolrEndpointBalancer(endpoints, client, 0, 1000, 10);
+    }
+
+    /**
+     * Stop the replicas and the embedded Solr core
+     */
+    @After
+    public void tearDown() throws Exception {
+        balancer.shutdown();
+        client.close();
+        for (Replica replica : replicas) {
+            replica.stop();
+        }
+        solr.close();
+    }
+
+    /**
+     * Test that the queries are spread over the replicas
+     */
+    @Test
+    public void testRoundRobin() throws Exception {
+        for (int i = 0; i < 30; i++) {
+            assertEquals(DOCS, query());
+        }
+        for (Replica replica : replicas) {
+            assertEquals(10, replica.queries.get());
+        }
+    }
+
+    /**
+     * Test that a stopped replica is marked unhealthy and the queries fail over to the others
+     */
+    @Test
+    public void testFailover() throws Exception {
+        replicas.get(1).stop();
+        for (int i = 0; i < 30; i++) {
+            assertEquals(DOCS, query());
+        }
+        assertFalse(balancer.getHealthyEndpoints().contains(endpoints.get(1)));
+        assertEquals(30, replicas.get(0).queries.get() + replicas.get(2).queries.get());
+        balancer.checkHealth();
+        assertEquals(2, balancer.getHealthyEndpoints().size());
+    }
+
+    /**
+     * Test that the parsed queries fail over from a stopped replica and from one answering
+     * with a server error
+     */
+    @Test
+    public void testQueryFailover() throws Exception {
+        replicas.get(0).stop();
+        replicas.get(1).healthy = false;
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(CommonParams.Q, "id:doc.1");
+        for (int i = 0; i < 6; i++) {
+            QueryResponse response = balancer.query(params, SolrRequest.METHOD.GET);
+            assertEquals(1, response.getResults().getNumFound());
+            assertEquals("doc.1", response.getResults().get(0).getFieldValue("id"));
+        }
+        assertEquals(6, replicas.get(2).queries.get());
+        assertEquals(1, balancer.getHealthyEndpoints().size());
+    }
+
+    /**
+     * Test that the health checks take a replica out of the rotation and put it back
+     */
+    @Test
+    public void testHealthCheck() throws Exception {
+        replicas.get(2).healthy = false;
+        balancer.checkHealth();
+        assertFalse(balancer.getHealthyEndpoints().contains(endpoints.get(2)));
+        for (int i = 0; i < 20; i++) {
+            query();
+        }
+        assertEquals(0, replicas.get(2).queries.get());
+        replicas.get(2).healthy = true;
+        balancer.checkHealth();
+        assertEquals(3, balancer.getHealthyEndpoints().size());
+        for (int i = 0; i < 30; i++) {
+            query();
+        }
+        assertTrue(replicas.get(2).queries.get() > 0);
+    }
+
+    /**
+     * Test that a query to a slow replica is hedged to the next one after the delay
+     */
+    @Test
+    public void testHedging() throws Exception {
+        balancer.shutdown();
+        balancer = new SolrEndpointBalancer(endpoints, client, 100, 1000, 10);
+        replicas.get(0).delay = 2000;
+        long slowest = 0;
+        for (int i = 0; i < 9; i++) {
+            long start = System.nanoTime();
+            assertEquals(DOCS, query());
+            slowest = Math.max(slowest, (System.nanoTime() - start) / 1000000);
+        }
+        System.out.println("SolrEndpointBalancerTest.testHedging - the slowest query took "
+                            + slowest + " ms with " + balancer.getHedgedCount() + " hedged");
+        assertEquals(3, balancer.getHedgedCount());
+        assertTrue("the slowest query took " + slowest + " ms", slowest < 1000);
+    }
+
+    /**
+     * Test that a query is sent to one endpoint at a time without the hedge delay
+     */
+    @Test
+    public void testNoHedging() throws Exception {
+        replicas.get(0).delay = 300;
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(DOCS, query());
+        }
+        assertTrue((System.nanoTime() - start) / 1000000 >= 300);
+        assertEquals(0, balancer.getHedgedCount());
+        for (Replica replica : replicas) {
+            assertEquals(1, replica.queries.get());
+        }
+    }
+
+    /**
+     * Test that the queries aren't hedged when all threads of the hedged requests are busy
+     */
+    @Test
+    public void testFullHedgePool() throws Exception {
+        balancer.shutdown();
+        balancer = new SolrEndpointBalancer(endpoints, client, 100, 1000, 1);
+        replicas.get(0).delay = 500;
+        assertEquals(DOCS, query());
+        assertEquals(0, balancer.getHedgedCount());
+        assertEquals(1, replicas.get(0).queries.get());
+        assertEquals(0, replicas.get(1).queries.get());
+        // the queries after the shutdown are sent directly
+        balancer.shutdown();
+        assertEquals(DOCS, query());
+        assertEquals(1, replicas.get(1).queries.get());
+    }
+
+    /*
+     * Stream the xml response of a query through the balancer and return its numFound
+     */
+    private int query() throws Exception {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(CommonParams.Q, "*:*");
+        params.set(SolrQueryService.WT, SolrQueryResponseWriterFactory.XML);
+        byte[] body = null;
+        try (InputStream stream = balancer.passThrough(params, SolrRequest.METHOD.GET,
+                                                    SolrQueryResponseWriterFactory.XML)) {
+            body = IOUtils.toByteArray(stream);
+        }
+        Document response = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                                                    .parse(new ByteArrayInputStream(body));
+        assertEquals("0", XPathFactory.newInstance().newXPath().evaluate(
+                "/response/lst[@name='responseHeader']/int[@name='status']", response));
+        return Integer.parseInt(XPathFactory.newInstance().newXPath()
+                                        .evaluate("/response/result/@numFound", response));
+    }
+
+    private static void write(HttpExchange exchange, int status, String contentType,
+                              String body) throws IOException {
+        write(exchange, status, contentType, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void write(HttpExchange exchange, int status, String contentType,
+                              byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
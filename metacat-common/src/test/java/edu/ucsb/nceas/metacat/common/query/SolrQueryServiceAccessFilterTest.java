@@ -0,0 +1,179 @@
+package edu.ucsb.nceas.metacat.common.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.servlet.SolrRequestParsers;
+import org.dataone.service.types.v1.Subject;
+import org.dataone.service.util.Constants;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import edu.ucsb.nceas.metacat.common.MetacatCommonTestBase;
+import edu.ucsb.nceas.metacat.common.SolrServerFactory;
+
+/**
+ * Test the access filter query generated by the SolrQueryService class
+ */
+public class SolrQueryServiceAccessFilterTest extends MetacatCommonTestBase {
+    private SolrQueryService service = null;
+
+    /**
+     * Create a query service which only generates the filters
+     */
+    @Before
+    public void createService() {
+        service = new SolrQueryService() {
+            @Override
+            public InputStream query(SolrParams query, Set<Subject> subjects,
+                                        SolrRequest.METHOD method) throws Exception {
+                return null;
+            }
+
+            @Override
+            public Map<String, SchemaField> getIndexSchemaFields() throws Exception {
+                return null;
+            }
+
+            @Override
+            public String getSolrServerVersion() {
+                return null;
+            }
+        };
+        SolrQueryService.accessFilterCache.clear();
+    }
+
+    /**
+     * Test that the same subjects in any order generate the same filter, which is cached
+     */
+    @Test
+    public void testCanonicalFilter() throws Exception {
+        Set<Subject> subjects = subjects("uid=tao,o=NCEAS,dc=ecoinformatics,dc=org",
+                            "CN=group-b", "CN=group-a", Constants.SUBJECT_AUTHENTICATED_USER,
+                            Constants.SUBJECT_PUBLIC, " ");
+        Set<Subject> reversed = subjects(Constants.SUBJECT_PUBLIC,
+                            Constants.SUBJECT_AUTHENTICATED_USER, "CN=group-a", "CN=group-b",
+                            "uid=tao,o=NCEAS,dc=ecoinformatics,dc=org", "CN=group-a");
+        String filter = service.generateAccessFilterParamsString(subjects).toString();
+        assertEquals(filter, service.generateAccessFilterParamsString(reversed).toString());
+        assertEquals(1, SolrQueryService.accessFilterCache.size());
+        String separator = "|;|";
+        String all = "CN=group-a" + separator + "CN=group-b" + separator
+                        + Constants.SUBJECT_AUTHENTICATED_USER + separator
+                        + Constants.SUBJECT_PUBLIC + separator
+                        + "uid=tao,o=NCEAS,dc=ecoinformatics,dc=org";
+        String owners = "CN=group-a" + separator + "CN=group-b" + separator
+                        + "uid=tao,o=NCEAS,dc=ecoinformatics,dc=org";
+        assertEquals("({!terms f=readPermission separator='" + separator + "' v='" + all + "'})"
+                + "OR({!terms f=writePermission separator='" + separator + "' v='" + all + "'})"
+                + "OR({!terms f=changePermission separator='" + separator + "' v='" + all + "'})"
+                + "OR({!terms f=rightsHolder separator='" + separator + "' v='" + owners + "'})"
+                + "OR(isPublic:true)", filter);
+    }
+
+    /**
+     * Test the filters of the public user, the escaped values and no subjects
+     */
+    @Test
+    public void testPublicAndEscaping() throws Exception {
+        String filter = service.generateAccessFilterParamsString(
+                                        subjects(Constants.SUBJECT_PUBLIC)).toString();
+        assertFalse(filter.contains("rightsHolder"));
+        assertTrue(filter.endsWith("OR(isPublic:true)"));
+        filter = service.generateAccessFilterParamsString(subjects("O'Brien\\x")).toString();
+        assertTrue(filter, filter.contains("v='O\\'Brien\\\\x'"));
+        assertFalse(filter.contains("isPublic"));
+        // a value with the separator can't be a term of the terms query
+        filter = service.generateAccessFilterParamsString(subjects("CN=a|;|b\"", "CN=c"))
+                                                                                .toString();
+        assertTrue(filter, filter.startsWith("({!terms f=readPermission separator='|;|' v='CN=c'})"
+                                + "OR(readPermission:\"CN=a|;|b\\\"\")OR("));
+        assertEquals(0, service.generateAccessFilterParamsString(null).length());
+        assertEquals(0, service.generateAccessFilterParamsString(subjects("")).length());
+    }
+
+    /**
+     * Report the size and the generation time of the filter of a user in 200 groups
+     */
+    @Test
+    public void testManyGroups() throws Exception {
+        String[] names = new String[202];
+        for (int i = 0; i < 200; i++) {
+            names[i] = "CN=group-" + i + ",DC=dataone,DC=org";
+        }
+        names[200] = "http://orcid.org/0000-0002-1825-0097";
+        names[201] = Constants.SUBJECT_PUBLIC;
+        Set<Subject> subjects = subjects(names);
+        long start = System.nanoTime();
+        String filter = service.generateAccessFilterParamsString(subjects).toString();
+        long generated = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            service.generateAccessFilterParamsString(subjects);
+        }
+        long cached = (System.nanoTime() - start) / 1000;
+        // four terms clauses and the public clause, rather than 4 clauses per subject
+        assertEquals(5, filter.split("\\)OR\\(").length);
+        System.out.println("The access filter of 200 groups has " + filter.length()
+                    + " characters. Generated in " + generated / 1000 + " us and "
+                    + cached / 1000 + " us from the cache");
+    }
+
+    /**
+     * Test that a query with a filter of several subjects returns a well-formed XML response,
+     * which echoes the filter in its header, from the embedded Solr server
+     */
+    @Test
+    public void testFilterInXmlResponse() throws Exception {
+        EmbeddedSolrServer solrServer = (EmbeddedSolrServer) SolrServerFactory.createSolrServer();
+        EmbeddedSolrQueryService embedded = new EmbeddedSolrQueryService(solrServer,
+                                SolrServerFactory.getCoreContainer(),
+                                SolrServerFactory.getCollectionName());
+        Set<Subject> subjects = subjects("uid=tao,o=NCEAS,dc=ecoinformatics,dc=org",
+                                "CN=group-a,DC=dataone,DC=org", Constants.SUBJECT_PUBLIC);
+        String filter = service.generateAccessFilterParamsString(subjects).toString();
+        SolrParams query = SolrRequestParsers.parseQueryString("q=*:*&wt=xml");
+        Document response = null;
+        try (InputStream input = embedded.query(query, subjects, SolrRequest.METHOD.GET)) {
+            response = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(input);
+        }
+        XPath xpath = XPathFactory.newInstance().newXPath();
+        assertEquals("0", xpath.evaluate("/response/lst[@name='responseHeader']"
+                                            + "/int[@name='status']", response));
+        NodeList echoed = (NodeList) xpath.evaluate("/response/lst[@name='responseHeader']"
+                + "/lst[@name='params']//*[@name='fq' or parent::arr[@name='fq']]",
+                response, XPathConstants.NODESET);
+        boolean found = false;
+        for (int i = 0; i < echoed.getLength(); i++) {
+            found = found || filter.equals(echoed.item(i).getTextContent());
+        }
+        assertTrue("The filter " + filter + " isn't echoed in the response", found);
+    }
+
+    private static Set<Subject> subjects(String... values) {
+        Set<Subject> subjects = new LinkedHashSet<Subject>();
+        for (String value : values) {
+            Subject subject = new Subject();
+            subject.setValue(value);
+            subjects.add(subject);
+        }
+        return subjects;
+    }
+}
@@ -0,0 +1,240 @@
+package edu.ucsb.nceas.metacat.common.query.stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.Test;
+
+/**
+ * Test the ContentTypePipedInputStream class with the way the skins are rendered: a Solr xml
+ * response is streamed into a cached stylesheet and the html is read while it is written.
+ */
+public class ContentTypePipedInputStreamTest {
+    private static final int DOCS = 50000;
+    private static final String XSL = "<xsl:stylesheet version=\"1.0\" "
+                + "xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+                + "<xsl:output method=\"html\"/>"
+                + "<xsl:template match=\"/\"><html><body><table>"
+                + "<xsl:for-each select=\"response/result/doc\"><tr>"
+                + "<td><xsl:value-of select=\"str[@name='id']\"/></td>"
+                + "<td><xsl:value-of select=\"str[@name='title']\"/></td>"
+                + "</tr></xsl:for-each></table></body></html></xsl:template>"
+                + "</xsl:stylesheet>";
+
+    /**
+     * A Solr xml response generated as it is read, so the test itself holds no copy of it
+     */
+    private static class SolrResponseStream extends InputStream {
+        private final boolean truncated;
+        private int doc = -1;
+        private byte[] chunk = "<response><result name=\"response\">"
+                                                        .getBytes(StandardCharsets.UTF_8);
+        private int position = 0;
+        private long size = 0;
+
+        /**
+         * Constructor
+         * @param truncated  if true, the response breaks off in the middle, as if Solr failed
+         */
+        private SolrResponseStream(boolean truncated) {
+            this.truncated = truncated;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == chunk.length) {
+                doc++;
+                if (doc > DOCS || truncated && doc >= DOCS / 2) {
+                    return -1;
+                }
+                String next = doc == DOCS ? "</result></response>"
+                                : "<doc><str name=\"id\">urn:uuid:" + doc + "</str><str "
+                                    + "name=\"title\">Dataset " + doc + " of the skin test</str>"
+                                    + "</doc>";
+                chunk = next.getBytes(StandardCharsets.UTF_8);
+                position = 0;
+            }
+            size++;
+            return chunk[position++] & 0xff;
+        }
+    }
+
+    /**
+     * Test that the html is read while the transformation is running, and the reading thread
+     * allocates less than the size of the html
+     */
+    @Test
+    public void testStreamingTransform() throws Exception {
+        SolrResponseStream solr = new SolrResponseStream(false);
+        AtomicBoolean producing = new AtomicBoolean(true);
+        com.sun.management.ThreadMXBean threads =
+                            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long readerId = Thread.currentThread().getId();
+        long readerBefore = threads.getThreadAllocatedBytes(readerId);
+        long size = 0;
+        boolean readWhileProducing = false;
+        try (ContentTypePipedInputStream html = new ContentTypePipedInputStream(65536, out -> {
+            try {
+                transform(solr, out);
+            } finally {
+                producing.set(false);
+            }
+        })) {
+            html.setContentType("text/html");
+            assertEquals("text/html", html.getContentType());
+            byte[] buffer = new byte[8192];
+            int count = html.read(buffer);
+            while (count >= 0) {
+                size += count;
+                readWhileProducing |= producing.get();
+                count = html.read(buffer);
+            }
+        }
+        long readerAllocated = threads.getThreadAllocatedBytes(readerId) - readerBefore;
+        assertTrue(size > solr.size / 2);
+        assertTrue(readWhileProducing);
+        assertTrue("the reader allocated " + readerAllocated, readerAllocated < size / 4);
+    }
+
+    /**
+     * Test that a transformation failing on a broken Solr response is thrown to the reader
+     * instead of being written into the html
+     */
+    @Test
+    public void testTransformFailure() throws Exception {
+        ByteArrayOutputStream html = new ByteArrayOutputStream();
+        try (InputStream stream = new ContentTypePipedInputStream(65536,
+                                        out -> transform(new SolrResponseStream(true), out))) {
+            byte[] buffer = new byte[8192];
+            int count = stream.read(buffer);
+            while (count >= 0) {
+                html.write(buffer, 0, count);
+                count = stream.read(buffer);
+            }
+            fail("The failure of the transformation should be thrown");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getCause() instanceof TransformerException);
+        }
+        assertFalse(html.toString(StandardCharsets.UTF_8.name()).contains("Error"));
+    }
+
+    /**
+     * Test that a failure of the producer is thrown by close if the reader stops before the end
+     */
+    @Test
+    public void testFailureOnClose() throws Exception {
+        CountDownLatch failed = new CountDownLatch(1);
+        InputStream stream = new ContentTypePipedInputStream(1024, out -> {
+            try {
+                out.write("<html>".getBytes(StandardCharsets.UTF_8));
+                throw new IOException("solr went away");
+            } finally {
+                failed.countDown();
+            }
+        });
+        assertEquals('<', stream.read());
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        // the producer records its failure right after it is thrown
+        Thread.sleep(100);
+        try {
+            stream.close();
+            fail("The failure of the producer should be thrown");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("solr went away"));
+        }
+        // it is thrown only once
+        stream.close();
+    }
+
+    /**
+     * Test that a failure of the producer is thrown at the end of the stream
+     */
+    @Test
+    public void testFailure() throws Exception {
+        try (InputStream stream = new ContentTypePipedInputStream(1024, out -> {
+            out.write("<html>".getBytes(StandardCharsets.UTF_8));
+            throw new IOException("solr went away");
+        })) {
+            assertEquals('<', stream.read());
+            byte[] buffer = new byte[100];
+            while (stream.read(buffer) >= 0) {
+                // read to the end
+            }
+            fail("The failure of the producer should be thrown");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("solr went away"));
+        }
+    }
+
+    /**
+     * Test that closing the stream early stops the producer without a failure
+     */
+    @Test
+    public void testCloseEarly() throws Exception {
+        AtomicBoolean stopped = new AtomicBoolean(false);
+        InputStream stream = new ContentTypePipedInputStream(1024, out -> {
+            try {
+                while (true) {
+                    out.write(new byte[512]);
+                }
+            } finally {
+                stopped.set(true);
+            }
+        });
+        assertEquals(0, stream.read());
+        // the broken pipe of the producer isn't a failure
+        stream.close();
+        long start = System.currentTimeMillis();
+        while (!stopped.get() && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10);
+        }
+        assertTrue(stopped.get());
+    }
+
+    /*
+     * Transform a Solr response into the html the way a skin does: the stylesheet errors are
+     * thrown rather than written into the output
+     */
+    private static void transform(InputStream solr, OutputStream out) throws Exception {
+        Templates templates = TransformerFactory.newInstance()
+                                        .newTemplates(new StreamSource(new StringReader(XSL)));
+        Transformer transformer = templates.newTransformer();
+        transformer.setErrorListener(new ErrorListener() {
+            @Override
+            public void warning(TransformerException exception) {
+            }
+
+            @Override
+            public void error(TransformerException exception) throws TransformerException {
+                throw exception;
+            }
+
+            @Override
+            public void fatalError(TransformerException exception) throws TransformerException {
+                throw exception;
+            }
+        });
+        transformer.transform(new StreamSource(solr), new StreamResult(out));
+    }
+}
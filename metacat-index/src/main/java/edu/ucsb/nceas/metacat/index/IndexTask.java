@@ -0,0 +1,117 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.index;
+
+/**
+ * An index task delivered to a worker of the IndexWorkerPool
+ * @author tao
+ */
+public class IndexTask {
+    public static final String CREATE_INDEX_TYPE = "create";
+    public static final String DELETE_INDEX_TYPE = "delete";
+    public static final String SYSMETA_CHANGE_TYPE = "sysmeta";
+
+    private String id;
+    private String indexType;
+    private String path;
+    private int priority;
+    //The solr core the task is indexed into. Null means the configured core.
+    private String core;
+    //The handle the task source needs to acknowledge the task
+    private Object receipt;
+
+    /**
+     * Constructor
+     * @param id  the identifier of the object which will be indexed
+     * @param indexType  the type of the task - create, delete or sysmeta
+     * @param path  the relative path of the object. It can be null.
+     * @param priority  the priority of the task
+     * @param receipt  the handle the task source needs to acknowledge the task
+     */
+    public IndexTask(String id, String indexType, String path, int priority, Object receipt) {
+        this(id, indexType, path, priority, null, receipt);
+    }
+
+    /**
+     * Constructor
+     * @param id  the identifier of the object which will be indexed
+     * @param indexType  the type of the task - create, delete or sysmeta
+     * @param path  the relative path of the object. It can be null.
+     * @param priority  the priority of the task
+     * @param core  the solr core the task is indexed into. Null means the configured core.
+     * @param receipt  the handle the task source needs to acknowledge the task
+     */
+    public IndexTask(String id, String indexType, String path, int priority, String core,
+                     Object receipt) {
+        this.id = id;
+        this.indexType = indexType;
+        this.path = path;
+        this.priority = priority;
+        this.core = core;
+        this.receipt = receipt;
+    }
+
+    /**
+     * Get the identifier of the object which will be indexed
+     * @return the identifier
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Get the type of the task
+     * @return the index type
+     */
+    public String getIndexType() {
+        return indexType;
+    }
+
+    /**
+     * Get the relative path of the object
+     * @return the relative path. It can be null.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Get the priority of the task
+     * @return the priority
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Get the solr core the task is indexed into
+     * @return the name of the core. Null means the configured core.
+     */
+    public String getCore() {
+        return core;
+    }
+
+    /**
+     * Get the handle the task source needs to acknowledge the task
+     * @return the receipt
+     */
+    Object getReceipt() {
+        return receipt;
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.index;
+
+/**
+ * The handler processing the index tasks taken by the workers of the IndexWorkerPool.
+ * It is shared by all workers, so it must be thread safe.
+ * @author tao
+ */
+public interface IndexTaskHandler {
+
+    /**
+     * Process an index task
+     * @param task  the task will be processed
+     * @throws Exception
+     */
+    public void index(IndexTask task) throws Exception;
+}
@@ -0,0 +1,55 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.index;
+
+/**
+ * The source of the index tasks for one worker of the IndexWorkerPool. A task must be
+ * acknowledged after it is processed; the tasks which were taken but never acknowledged will
+ * be delivered again.
+ * @author tao
+ */
+public interface IndexTaskSource {
+
+    /**
+     * Take the next task
+     * @param timeout  the max time (ms) to wait for a task
+     * @return the next task. Null will be returned if no task came in the timeout.
+     * @throws Exception
+     */
+    public IndexTask take(long timeout) throws Exception;
+
+    /**
+     * Acknowledge a processed task, so it will never be delivered again
+     * @param task  the processed task
+     * @throws Exception
+     */
+    public void ack(IndexTask task) throws Exception;
+
+    /**
+     * Stop receiving new tasks. The taken tasks can still be acknowledged.
+     * @throws Exception
+     */
+    public void stopConsuming() throws Exception;
+
+    /**
+     * Close the source. The tasks received but not taken are given back to the queue.
+     * @throws Exception
+     */
+    public void close() throws Exception;
+}
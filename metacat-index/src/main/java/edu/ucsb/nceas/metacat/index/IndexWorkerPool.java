@@ -0,0 +1,239 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.index;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A pool of index workers. Each worker has its own task source (e.g. its own RabbitMQ channel
+ * with its own prefetch window) and processes one task at a time. Stopping the pool drains it
+ * gracefully: the sources stop receiving new tasks, the in-flight tasks are finished and
+ * acknowledged, and only then are the sources closed, which gives the received but unprocessed
+ * tasks back to the queue. So a restart neither loses nor redoes a task.
+ * @author tao
+ */
+public class IndexWorkerPool {
+    public static final String TASKS_METRIC = "metacat_index_worker_tasks_total";
+    public static final String FAILURES_METRIC = "metacat_index_worker_failures_total";
+    public static final String LATENCY_SUM_METRIC = "metacat_index_worker_latency_seconds_sum";
+    public static final String BUSY_METRIC = "metacat_index_worker_busy";
+    //The max time (ms) a worker waits for a task before checking if the pool is stopped
+    private static final long TAKE_TIMEOUT = 500;
+
+    private static Log log = LogFactory.getLog(IndexWorkerPool.class);
+    private IndexTaskHandler handler = null;
+    private List<Worker> workers = new ArrayList<Worker>();
+    private ExecutorService executor = null;
+    private volatile boolean running = false;
+
+    /**
+     * The factory creating a task source for every worker
+     */
+    public interface SourceFactory {
+        /**
+         * Create a task source
+         * @return the task source
+         * @throws Exception
+         */
+        public IndexTaskSource create() throws Exception;
+    }
+
+    /**
+     * A worker and its statistics
+     */
+    private class Worker implements Runnable {
+        private int number;
+        private IndexTaskSource source;
+        private AtomicLong tasks = new AtomicLong(0);
+        private AtomicLong failures = new AtomicLong(0);
+        private AtomicLong latencyNanos = new AtomicLong(0);
+        private volatile boolean busy = false;
+
+        private Worker(int number, IndexTaskSource source) {
+            this.number = number;
+            this.source = source;
+        }
+
+        public void run() {
+            while (running) {
+                IndexTask task = null;
+                try {
+                    task = source.take(TAKE_TIMEOUT);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    log.error("IndexWorkerPool.Worker.run - the worker " + number
+                                + " can't take a task since " + e.getMessage());
+                }
+                if (task != null) {
+                    process(task);
+                }
+            }
+        }
+
+        /**
+         * Index a task and acknowledge it. A failed task is acknowledged as well, the same as
+         * the dataone IndexWorker does, since redelivering it would fail again.
+         * @param task  the task will be processed
+         */
+        private void process(IndexTask task) {
+            busy = true;
+            long start = System.nanoTime();
+            try {
+                handler.index(task);
+            } catch (Exception e) {
+                failures.incrementAndGet();
+                log.error("IndexWorkerPool.Worker.process - the worker " + number
+                            + " failed to index " + task.getId() + " since " + e.getMessage(), e);
+            } finally {
+                long latency = System.nanoTime() - start;
+                latencyNanos.addAndGet(latency);
+                tasks.incrementAndGet();
+                busy = false;
+                log.debug("IndexWorkerPool.Worker.process - the worker " + number + " processed "
+                            + task.getId() + " with the type " + task.getIndexType() + " in "
+                            + latency / 1000000 + " ms.");
+            }
+            try {
+                source.ack(task);
+            } catch (Exception e) {
+                log.warn("IndexWorkerPool.Worker.process - the worker " + number
+                            + " can't acknowledge the task of " + task.getId() + " since "
+                            + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     * @param handler  the handler processing the tasks
+     */
+    public IndexWorkerPool(IndexTaskHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Start the workers
+     * @param size  the number of the workers
+     * @param factory  the factory creating a task source for every worker
+     * @throws Exception
+     */
+    public synchronized void start(int size, SourceFactory factory) throws Exception {
+        if (running) {
+            throw new IllegalStateException("IndexWorkerPool.start - the pool is running.");
+        }
+        workers.clear();
+        for (int i = 0; i < size; i++) {
+            workers.add(new Worker(i, factory.create()));
+        }
+        running = true;
+        executor = Executors.newFixedThreadPool(size);
+        for (Worker worker : workers) {
+            executor.submit(worker);
+        }
+        log.info("IndexWorkerPool.start - started " + size + " index workers.");
+    }
+
+    /**
+     * Drain and stop the workers
+     * @param timeout  the max time (ms) to wait for the in-flight tasks
+     */
+    public synchronized void stop(long timeout) {
+        if (!running) {
+            return;
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.source.stopConsuming();
+            } catch (Exception e) {
+                log.warn("IndexWorkerPool.stop - the worker " + worker.number
+                            + " can't stop consuming since " + e.getMessage());
+            }
+        }
+        running = false;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                log.warn("IndexWorkerPool.stop - the in-flight tasks didn't finish in " + timeout
+                            + " ms. They will be delivered again.");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.source.close();
+            } catch (Exception e) {
+                log.warn("IndexWorkerPool.stop - can't close the task source of the worker "
+                            + worker.number + " since " + e.getMessage());
+            }
+        }
+        log.info("IndexWorkerPool.stop - stopped " + workers.size() + " index workers.");
+    }
+
+    /**
+     * Get the total number of the tasks processed by the workers of the pool
+     * @return the number of the processed tasks
+     */
+    public long getProcessedCount() {
+        long count = 0;
+        for (Worker worker : workers) {
+            count += worker.tasks.get();
+        }
+        return count;
+    }
+
+    /**
+     * Write the per-worker metrics in the Prometheus text format
+     * @param writer  the destination of the metrics
+     * @throws IOException
+     */
+    public void writeMetrics(Writer writer) throws IOException {
+        StringBuilder tasks = new StringBuilder("# TYPE " + TASKS_METRIC + " counter\n");
+        StringBuilder failures = new StringBuilder("# TYPE " + FAILURES_METRIC + " counter\n");
+        StringBuilder latency = new StringBuilder("# TYPE " + LATENCY_SUM_METRIC + " counter\n");
+        StringBuilder busy = new StringBuilder("# TYPE " + BUSY_METRIC + " gauge\n");
+        for (Worker worker : workers) {
+            String label = "{worker=\"" + worker.number + "\"} ";
+            tasks.append(TASKS_METRIC).append(label).append(worker.tasks.get()).append('\n');
+            failures.append(FAILURES_METRIC).append(label).append(worker.failures.get())
+                    .append('\n');
+            latency.append(LATENCY_SUM_METRIC).append(label)
+                   .append(worker.latencyNanos.get() / 1.0e9).append('\n');
+            busy.append(BUSY_METRIC).append(label).append(worker.busy ? 1 : 0).append('\n');
+        }
+        writer.write(tasks.toString());
+        writer.write(failures.toString());
+        writer.write(latency.toString());
+        writer.write(busy.toString());
+    }
+}
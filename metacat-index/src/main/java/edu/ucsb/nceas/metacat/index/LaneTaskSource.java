@@ -0,0 +1,126 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dataone.configuration.Settings;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+
+import edu.ucsb.nceas.metacat.common.index.IndexLane;
+
+/**
+ * The index task source consuming all index lanes for one worker. Every lane is consumed on its
+ * own channel with its own prefetch, so a deep backfill lane only holds a few messages in the
+ * worker, and the delivered tasks are taken in the weighted fair order.
+ * @author tao
+ */
+public class LaneTaskSource implements IndexTaskSource {
+    private List<Channel> channels = new ArrayList<Channel>();
+    private List<String> consumerTags = new ArrayList<String>();
+    private WeightedLaneScheduler scheduler = null;
+    private boolean consuming = false;
+
+    /**
+     * The handle to acknowledge a message of a lane
+     */
+    private static class Receipt {
+        private Channel channel;
+        private long deliveryTag;
+
+        private Receipt(Channel channel, long deliveryTag) {
+            this.channel = channel;
+            this.deliveryTag = deliveryTag;
+        }
+    }
+
+    /**
+     * Constructor. It starts consuming the lanes.
+     * @param connection  the connection to RabbitMQ
+     * @throws IOException
+     */
+    public LaneTaskSource(Connection connection) throws IOException {
+        IndexLane[] lanes = IndexLane.values();
+        int[] weights = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            weights[i] = Settings.getConfiguration().getInt("index.lane." + lanes[i].getName()
+                                                + ".weight", lanes[i].getDefaultWeight());
+        }
+        scheduler = new WeightedLaneScheduler(weights);
+        for (int i = 0; i < lanes.length; i++) {
+            final int lane = i;
+            final Channel channel = connection.createChannel();
+            channel.basicQos(Settings.getConfiguration().getInt("index.lane."
+                            + lanes[i].getName() + ".prefetch", lanes[i].getDefaultPrefetch()));
+            channels.add(channel);
+            consumerTags.add(channel.basicConsume(lanes[i].getQueueName(), false,
+                                                  new DefaultConsumer(channel) {
+                @Override
+                public void handleDelivery(String tag, Envelope envelope,
+                                        AMQP.BasicProperties properties, byte[] body) {
+                    Receipt receipt = new Receipt(channel, envelope.getDeliveryTag());
+                    scheduler.offer(lane, RabbitMQTaskSource.toTask(properties, receipt));
+                }
+            }));
+        }
+        consuming = true;
+    }
+
+    @Override
+    public IndexTask take(long timeout) throws InterruptedException {
+        return scheduler.take(timeout);
+    }
+
+    @Override
+    public void ack(IndexTask task) throws IOException {
+        Receipt receipt = (Receipt) task.getReceipt();
+        receipt.channel.basicAck(receipt.deliveryTag, false);
+    }
+
+    @Override
+    public synchronized void stopConsuming() throws IOException {
+        if (consuming) {
+            for (int i = 0; i < channels.size(); i++) {
+                channels.get(i).basicCancel(consumerTags.get(i));
+            }
+            consuming = false;
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        // cancel first, otherwise the broker delivers the given back messages to this source again
+        stopConsuming();
+        // give the prefetched but unprocessed messages back to the broker
+        for (IndexTask task : scheduler.drain()) {
+            Receipt receipt = (Receipt) task.getReceipt();
+            receipt.channel.basicNack(receipt.deliveryTag, false, true);
+        }
+        for (Channel channel : channels) {
+            channel.close();
+        }
+    }
+}
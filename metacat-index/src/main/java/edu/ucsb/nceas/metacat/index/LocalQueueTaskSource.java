@@ -0,0 +1,72 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.index;
+
+import edu.ucsb.nceas.metacat.common.index.LocalIndexQueue;
+
+/**
+ * The index task source reading the local index queue. A task is claimed only when a worker
+ * takes it, so nothing needs to be given back when the source is closed.
+ * @author tao
+ */
+public class LocalQueueTaskSource implements IndexTaskSource {
+    //The time (ms) to sleep between two polls of an empty queue
+    private static final long POLL_INTERVAL = 200;
+    private LocalIndexQueue queue = null;
+
+    /**
+     * Constructor
+     * @param queue  the local index queue
+     */
+    public LocalQueueTaskSource(LocalIndexQueue queue) {
+        this.queue = queue;
+    }
+
+    @Override
+    public IndexTask take(long timeout) throws Exception {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            LocalIndexQueue.Task task = queue.claim();
+            if (task != null) {
+                return new IndexTask(task.getId(), task.getIndexType(), task.getPath(),
+                                     task.getPriority(), task.getCore(), task);
+            }
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return null;
+            }
+            Thread.sleep(Math.min(left, POLL_INTERVAL));
+        }
+    }
+
+    @Override
+    public void ack(IndexTask task) throws Exception {
+        queue.ack((LocalIndexQueue.Task) task.getReceipt());
+    }
+
+    @Override
+    public void stopConsuming() {
+        //nothing is pushed to this source
+    }
+
+    @Override
+    public void close() {
+        //nothing is held by this source
+    }
+}
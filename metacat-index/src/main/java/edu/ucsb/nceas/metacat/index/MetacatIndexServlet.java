@@ -23,6 +23,8 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -36,14 +38,31 @@ import org.apache.commons.logging.LogFactory;
 import org.dataone.cn.indexer.IndexWorker;
 import org.dataone.configuration.Settings;
 
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+import edu.ucsb.nceas.metacat.common.index.IndexLane;
+import edu.ucsb.nceas.metacat.common.index.LocalIndexQueue;
+
 
 /**
- * A servlet class for the Metadata Index module. This class only does one thing - initialize the ApplicationController class.
+ * A servlet class for the Metadata Index module. It starts a pool of index workers consuming
+ * the index queue and drains it when the servlet is destroyed. A GET request returns the
+ * per-worker metrics.
  * @author tao
  *
  */
 public class MetacatIndexServlet extends HttpServlet {
+    //The names of the RabbitMQ objects, which must match the ones declared by Metacat
+    private static final String EXCHANGE_NAME = "dataone-index";
+    private static final String INDEX_QUEUE_NAME = "index";
+    private static final String INDEX_ROUTING_KEY = "index";
     private static Log log = LogFactory.getLog(MetacatIndexServlet.class);
+    private IndexWorkerPool pool = null;
+    private SolrIndexTaskHandler handler = null;
+    private Connection RabbitMQconnection = null;
+    private LocalIndexQueue localQueue = null;
 
     /**
      * Initialize the servlet
@@ -71,25 +90,145 @@ public class MetacatIndexServlet extends HttpServlet {
                 throw new IOException(errorMsg);
             }
             IndexWorker.loadAdditionalPropertyFile(metacatSitePropertiesFilePath.toString());
-            IndexWorker worker = new IndexWorker();
-            worker.start();
+            startWorkerPool();
         } catch (Exception e) {
             throw new ServletException(e.getMessage());
         }
     }
     
+    /**
+     * Start the pool of index workers consuming the configured index queue
+     * @throws Exception
+     */
+    private void startWorkerPool() throws Exception {
+        int size = getPoolSize();
+        int prefetch = Settings.getConfiguration().getInt("index.worker.prefetch", 1);
+        String queueType = Settings.getConfiguration().getString("index.queue.type", "rabbitmq");
+        handler = new SolrIndexTaskHandler();
+        pool = new IndexWorkerPool(handler);
+        if ("local".equalsIgnoreCase(queueType)) {
+            Path directory = Paths.get(Settings.getConfiguration()
+                        .getString("index.queue.local.directory", "/var/metacat/index-queue"));
+            // no worker is running now, so the tasks left by a crash can be moved back
+            localQueue = new LocalIndexQueue(directory);
+            localQueue.recover();
+            // the workers share the in-memory index of the ready tasks
+            pool.start(size, () -> new LocalQueueTaskSource(localQueue));
+        } else if (Settings.getConfiguration()
+                                .getBoolean("index.rabbitmq.lanes.enabled", false)) {
+            RabbitMQconnection = connectRabbitMQ(true);
+            pool.start(size, () -> new LaneTaskSource(RabbitMQconnection));
+            queueType = queueType + " lanes";
+        } else {
+            RabbitMQconnection = connectRabbitMQ(false);
+            pool.start(size, () -> new RabbitMQTaskSource(RabbitMQconnection, INDEX_QUEUE_NAME,
+                                                          prefetch));
+        }
+        log.info("MetacatIndexServlet.startWorkerPool - started " + size + " workers consuming "
+                    + "the " + queueType + " index queue with the prefetch " + prefetch);
+    }
+
+    /**
+     * Get the size of the worker pool from the property index.thread.number. If it is blank or
+     * less than 1, the number of processors minus one (at least 1) is used. A bigger value than
+     * that is honored with a warning, since the workers may be waiting on Solr rather than
+     * using the processors.
+     * @return the size of the worker pool
+     */
+    private static int getPoolSize() {
+        int defaultSize = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        String value = Settings.getConfiguration().getString("index.thread.number", "");
+        try {
+            int size = Integer.parseInt(value.trim());
+            if (size > defaultSize) {
+                log.warn("MetacatIndexServlet.getPoolSize - the index.thread.number " + size
+                            + " is more than the number of processors minus one ("
+                            + defaultSize + "). The workers may compete for the processors.");
+            }
+            if (size >= 1) {
+                return size;
+            }
+            log.warn("MetacatIndexServlet.getPoolSize - the index.thread.number " + size
+                        + " is less than 1 and the default " + defaultSize + " will be used.");
+        } catch (NumberFormatException e) {
+            log.debug("MetacatIndexServlet.getPoolSize - the index.thread.number " + value
+                        + " isn't a number and the default one will be used.");
+        }
+        return defaultSize;
+    }
+
+    /**
+     * Connect to RabbitMQ and declare the index queue (or the lanes) the same way as Metacat does
+     * @param lanes  if the index lanes are declared instead of the single priority queue
+     * @return the connection to RabbitMQ
+     * @throws Exception
+     */
+    private static Connection connectRabbitMQ(boolean lanes) throws Exception {
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost(Settings.getConfiguration()
+                                    .getString("index.rabbitmq.hostname", "localhost"));
+        factory.setPort(Settings.getConfiguration().getInt("index.rabbitmq.hostport", 5672));
+        factory.setUsername(Settings.getConfiguration()
+                                    .getString("index.rabbitmq.username", "guest"));
+        factory.setPassword(Settings.getConfiguration()
+                                    .getString("index.rabbitmq.password", "guest"));
+        factory.setAutomaticRecoveryEnabled(true);
+        factory.setNetworkRecoveryInterval(10000);
+        Connection connection = factory.newConnection();
+        try (Channel channel = connection.createChannel()) {
+            channel.exchangeDeclare(EXCHANGE_NAME, "direct", true);
+            if (lanes) {
+                for (IndexLane lane : IndexLane.values()) {
+                    channel.queueDeclare(lane.getQueueName(), true, false, false, null);
+                    channel.queueBind(lane.getQueueName(), EXCHANGE_NAME, lane.getQueueName());
+                }
+            } else {
+                Map<String, Object> argus = new HashMap<String, Object>();
+                argus.put("x-max-priority",
+                          Settings.getConfiguration().getInt("index.rabbitmq.max.priority"));
+                channel.queueDeclare(INDEX_QUEUE_NAME, true, false, false, argus);
+                channel.queueBind(INDEX_QUEUE_NAME, EXCHANGE_NAME, INDEX_ROUTING_KEY);
+            }
+        }
+        return connection;
+    }
+
     /**
      *Actions needed to be done before close the servlet
      */
     public void destroy() {
-       //don nothing
+        if (pool != null) {
+            long timeout = Settings.getConfiguration().getLong("index.worker.drain.timeout", 60000);
+            pool.stop(timeout);
+        }
+        if (handler != null) {
+            handler.close();
+        }
+        if (localQueue != null) {
+            try {
+                localQueue.close();
+            } catch (IOException e) {
+                log.warn("MetacatIndexServlet.destroy - can't close the local index queue since "
+                            + e.getMessage());
+            }
+        }
+        if (RabbitMQconnection != null) {
+            try {
+                RabbitMQconnection.close();
+            } catch (Exception e) {
+                log.warn("MetacatIndexServlet.destroy - can't close the RabbitMQ connection since "
+                            + e.getMessage());
+            }
+        }
     }
     
-    /** Handle "GET" method requests from HTTP clients */
+    /** Handle "GET" method requests from HTTP clients. It returns the worker metrics. */
     public void doGet(HttpServletRequest request, HttpServletResponse response)
     throws ServletException, IOException {
-        //do nothing
-      
+        response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        if (pool != null) {
+            pool.writeMetrics(response.getWriter());
+        }
     }
     
     /** Handle "POST" method requests from HTTP clients */
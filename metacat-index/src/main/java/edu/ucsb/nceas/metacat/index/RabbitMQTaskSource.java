@@ -0,0 +1,131 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.index;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * The index task source consuming a RabbitMQ queue on its own channel, so every worker has its
+ * own prefetch window. The messages are acknowledged manually after they are indexed.
+ * @author tao
+ */
+public class RabbitMQTaskSource implements IndexTaskSource {
+    //The header names in the messages published by the IndexGenerator class of Metacat
+    private static final String HEADER_ID = "id";
+    private static final String HEADER_PATH = "path";
+    private static final String HEADER_INDEX_TYPE = "index_type";
+    private static final String HEADER_CORE = "core";
+
+    private static Log log = LogFactory.getLog(RabbitMQTaskSource.class);
+    private Channel channel = null;
+    private String consumerTag = null;
+    private boolean consuming = false;
+    private BlockingQueue<IndexTask> deliveries = new LinkedBlockingQueue<IndexTask>();
+
+    /**
+     * Constructor. It starts consuming the queue.
+     * @param connection  the connection to RabbitMQ
+     * @param queueName  the name of the queue
+     * @param prefetch  the max number of the unacknowledged messages on the channel
+     * @throws IOException
+     */
+    public RabbitMQTaskSource(Connection connection, String queueName, int prefetch)
+                                                                        throws IOException {
+        channel = connection.createChannel();
+        channel.basicQos(prefetch);
+        consumerTag = channel.basicConsume(queueName, false, new DefaultConsumer(channel) {
+            @Override
+            public void handleDelivery(String tag, Envelope envelope,
+                                    AMQP.BasicProperties properties, byte[] body) {
+                deliveries.add(toTask(properties, envelope.getDeliveryTag()));
+            }
+        });
+        consuming = true;
+    }
+
+    @Override
+    public IndexTask take(long timeout) throws InterruptedException {
+        return deliveries.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void ack(IndexTask task) throws IOException {
+        channel.basicAck((Long) task.getReceipt(), false);
+    }
+
+    @Override
+    public synchronized void stopConsuming() throws IOException {
+        if (consuming) {
+            channel.basicCancel(consumerTag);
+            consuming = false;
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        // cancel first, otherwise the broker delivers the given back messages to this source again
+        stopConsuming();
+        IndexTask task = deliveries.poll();
+        while (task != null) {
+            // give the prefetched but unprocessed messages back to the broker
+            channel.basicNack((Long) task.getReceipt(), false, true);
+            task = deliveries.poll();
+        }
+        channel.close();
+    }
+
+    /**
+     * Convert a message to an index task
+     * @param properties  the properties of the message
+     * @param receipt  the handle needed to acknowledge the message
+     * @return the index task
+     */
+    static IndexTask toTask(AMQP.BasicProperties properties, Object receipt) {
+        Map<String, Object> headers = properties.getHeaders();
+        String id = null;
+        String indexType = null;
+        String path = null;
+        String core = null;
+        if (headers != null) {
+            // the string headers are delivered as LongString objects
+            id = headers.get(HEADER_ID) == null ? null : headers.get(HEADER_ID).toString();
+            indexType = headers.get(HEADER_INDEX_TYPE) == null ? null
+                                            : headers.get(HEADER_INDEX_TYPE).toString();
+            path = headers.get(HEADER_PATH) == null ? null : headers.get(HEADER_PATH).toString();
+            core = headers.get(HEADER_CORE) == null ? null : headers.get(HEADER_CORE).toString();
+        }
+        int priority = properties.getPriority() == null ? 0 : properties.getPriority();
+        log.debug("RabbitMQTaskSource.toTask - received the task of " + id + " with the type "
+                    + indexType + " and the path " + path + " for the core " + core);
+        return new IndexTask(id, indexType, path, priority, core, receipt);
+    }
+}
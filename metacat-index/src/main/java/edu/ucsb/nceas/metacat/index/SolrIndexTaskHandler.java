@@ -0,0 +1,193 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.index;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dataone.cn.indexer.SolrIndex;
+import org.dataone.configuration.Settings;
+import org.dataone.service.types.v1.Identifier;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+import edu.ucsb.nceas.metacat.common.SolrServerFactory;
+import edu.ucsb.nceas.metacat.common.storage.ObjectStoreFactory;
+
+/**
+ * The index task handler driving the same SolrIndex bean as the dataone IndexWorker does.
+ * A task naming a solr core (e.g. the shadow core of a rebuild) is indexed by a SolrIndex
+ * bean of its own, whose spring context resolves solr.base.uri, solr.query.uri and
+ * solr.index.uri to that core. The beans of the other cores are created on first use.
+ * The path of a task is resolved again through the object stores before indexing, since the
+ * object may have been moved into the sharded layout after the task was queued.
+ * @author tao
+ */
+public class SolrIndexTaskHandler implements IndexTaskHandler {
+    private static final String SPRING_CONTEXT = "/index-parser-context.xml";
+    private static final String SOLR_INDEX_BEAN = "solrIndex";
+    private static Log log = LogFactory.getLog(SolrIndexTaskHandler.class);
+
+    private ClassPathXmlApplicationContext context = null;
+    private ObjectIndexer indexer = null;
+    private Map<String, ClassPathXmlApplicationContext> coreContexts =
+                                        new HashMap<String, ClassPathXmlApplicationContext>();
+
+    /**
+     * The index operations of a SolrIndex bean
+     */
+    interface ObjectIndexer {
+
+        /**
+         * Index an object
+         * @param pid  the identifier of the object
+         * @param relativePath  the path of the object relative to its store's directory
+         * @param isSysmetaChangeOnly  if only the system metadata changed
+         * @throws Exception
+         */
+        public void update(Identifier pid, String relativePath, boolean isSysmetaChangeOnly)
+                                                                            throws Exception;
+
+        /**
+         * Remove an object from the index
+         * @param pid  the identifier of the object
+         * @throws Exception
+         */
+        public void remove(Identifier pid) throws Exception;
+    }
+
+    /**
+     * Constructor. The property files must be loaded before calling it.
+     */
+    public SolrIndexTaskHandler() {
+        context = new ClassPathXmlApplicationContext(SPRING_CONTEXT);
+        indexer = toIndexer((SolrIndex) context.getBean(SOLR_INDEX_BEAN));
+    }
+
+    /**
+     * Constructor with the indexer of the configured core. It is used by the tests.
+     * @param indexer  the indexer of the configured core
+     */
+    SolrIndexTaskHandler(ObjectIndexer indexer) {
+        this.indexer = indexer;
+    }
+
+    @Override
+    public void index(IndexTask task) throws Exception {
+        ObjectIndexer index = getIndexer(task.getCore());
+        Identifier pid = new Identifier();
+        pid.setValue(task.getId());
+        if (IndexTask.DELETE_INDEX_TYPE.equals(task.getIndexType())) {
+            index.remove(pid);
+        } else {
+            boolean sysmetaOnly = IndexTask.SYSMETA_CHANGE_TYPE.equals(task.getIndexType());
+            index.update(pid, resolvePath(task.getPath()), sysmetaOnly);
+        }
+    }
+
+    /**
+     * Resolve the path of a task against the object stores. The path was taken when the task
+     * was queued, so it is the flat one if the object was moved into the sharded layout since.
+     * The local id of the object is the last segment of the path.
+     * @param path  the path of the task, relative to the directory of the store
+     * @return the current path of the object relative to the directory of its store. Null if
+     *         the task has no path, e.g. the object isn't stored by this Metacat.
+     * @throws IOException
+     */
+    static String resolvePath(String path) throws IOException {
+        if (path == null || path.isBlank()) {
+            return null;
+        }
+        Path fileName = Paths.get(path).getFileName();
+        String relativePath = ObjectStoreFactory.getRelativePath(fileName.toString());
+        if (!relativePath.equals(path)) {
+            log.debug("SolrIndexTaskHandler.resolvePath - the object of the task path " + path
+                          + " is at " + relativePath);
+        }
+        return relativePath;
+    }
+
+    /**
+     * Get the indexer writing to the given core
+     * @param core  the name of the core. Null means the configured core.
+     * @return the indexer
+     */
+    private ObjectIndexer getIndexer(String core) {
+        if (core == null || core.equals(Settings.getConfiguration().getString("solr.coreName"))) {
+            return indexer;
+        }
+        synchronized (coreContexts) {
+            ClassPathXmlApplicationContext coreContext = coreContexts.get(core);
+            if (coreContext == null) {
+                String baseUri = SolrServerFactory.getCoreURL(core);
+                Map<String, Object> uris = new HashMap<String, Object>();
+                uris.put("solr.base.uri", baseUri);
+                uris.put("solr.query.uri", baseUri + "/select/");
+                uris.put("solr.index.uri", baseUri + "/update/?commit=true");
+                coreContext = new ClassPathXmlApplicationContext(
+                                                        new String[] {SPRING_CONTEXT}, false);
+                coreContext.getEnvironment().getPropertySources()
+                                    .addFirst(new MapPropertySource("solr-core-" + core, uris));
+                coreContext.refresh();
+                coreContexts.put(core, coreContext);
+                log.info("SolrIndexTaskHandler.getIndexer - created the SolrIndex of the core "
+                            + core + " at " + baseUri);
+            }
+            return toIndexer((SolrIndex) coreContext.getBean(SOLR_INDEX_BEAN));
+        }
+    }
+
+    /*
+     * The indexer driving a SolrIndex bean
+     */
+    private static ObjectIndexer toIndexer(SolrIndex solrIndex) {
+        return new ObjectIndexer() {
+            @Override
+            public void update(Identifier pid, String relativePath, boolean isSysmetaChangeOnly)
+                                                                            throws Exception {
+                solrIndex.update(pid, relativePath, isSysmetaChangeOnly);
+            }
+
+            @Override
+            public void remove(Identifier pid) throws Exception {
+                solrIndex.remove(pid);
+            }
+        };
+    }
+
+    /**
+     * Close the spring contexts
+     */
+    public void close() {
+        synchronized (coreContexts) {
+            for (ClassPathXmlApplicationContext coreContext : coreContexts.values()) {
+                coreContext.close();
+            }
+            coreContexts.clear();
+        }
+        if (context != null) {
+            context.close();
+        }
+    }
+}
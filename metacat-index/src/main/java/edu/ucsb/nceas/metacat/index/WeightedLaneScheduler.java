@@ -0,0 +1,110 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A smooth weighted round-robin scheduler over the tasks delivered by several lanes. When
+ * all lanes have tasks, a lane with the weight w gets w of every sum(weights) takes, and the
+ * takes of the lanes are interleaved; an empty lane gives its turns to the others. The tasks
+ * can be offered by any thread, but they must be taken by one thread.
+ * @author tao
+ */
+public class WeightedLaneScheduler {
+    private int[] weights;
+    private int[] current;
+    private List<ConcurrentLinkedQueue<IndexTask>> lanes =
+                                            new ArrayList<ConcurrentLinkedQueue<IndexTask>>();
+    //One permit per buffered task, so a taker can wait without polling
+    private Semaphore available = new Semaphore(0);
+
+    /**
+     * Constructor
+     * @param weights  the weights of the lanes. The lanes are referred by their index.
+     */
+    public WeightedLaneScheduler(int[] weights) {
+        this.weights = weights.clone();
+        this.current = new int[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            if (this.weights[i] < 1) {
+                this.weights[i] = 1;
+            }
+            lanes.add(new ConcurrentLinkedQueue<IndexTask>());
+        }
+    }
+
+    /**
+     * Offer a task delivered by a lane
+     * @param lane  the index of the lane
+     * @param task  the delivered task
+     */
+    public void offer(int lane, IndexTask task) {
+        lanes.get(lane).add(task);
+        available.release();
+    }
+
+    /**
+     * Take the next task in the weighted fair order
+     * @param timeout  the max time (ms) to wait for a task
+     * @return the next task. Null will be returned if no task came in the timeout.
+     * @throws InterruptedException
+     */
+    public IndexTask take(long timeout) throws InterruptedException {
+        if (!available.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+            return null;
+        }
+        int total = 0;
+        int chosen = -1;
+        for (int i = 0; i < weights.length; i++) {
+            if (lanes.get(i).isEmpty()) {
+                continue;
+            }
+            total += weights[i];
+            current[i] += weights[i];
+            if (chosen < 0 || current[i] > current[chosen]) {
+                chosen = i;
+            }
+        }
+        current[chosen] -= total;
+        return lanes.get(chosen).poll();
+    }
+
+    /**
+     * Remove all buffered tasks
+     * @return the removed tasks
+     */
+    public List<IndexTask> drain() {
+        List<IndexTask> tasks = new ArrayList<IndexTask>();
+        while (available.tryAcquire()) {
+            for (ConcurrentLinkedQueue<IndexTask> lane : lanes) {
+                IndexTask task = lane.poll();
+                if (task != null) {
+                    tasks.add(task);
+                    break;
+                }
+            }
+        }
+        return tasks;
+    }
+}
@@ -0,0 +1,109 @@
+package edu.ucsb.nceas.metacat.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.ucsb.nceas.metacat.common.index.LocalIndexQueue;
+
+/**
+ * The test class of IndexWorkerPool. The local index queue stands in for the broker and an
+ * in-memory map stands in for Solr.
+ */
+public class IndexWorkerPoolTest {
+    private static final int TOTAL = 400;
+    private static final int WORKERS = 4;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private Path base = null;
+    private Map<String, AtomicInteger> indexed = new ConcurrentHashMap<String, AtomicInteger>();
+    private IndexTaskHandler handler = task -> {
+        Thread.sleep(2);
+        indexed.computeIfAbsent(task.getId(), id -> new AtomicInteger(0)).incrementAndGet();
+    };
+
+    /**
+     * Create the queue directory
+     */
+    @Before
+    public void setup() throws Exception {
+        base = folder.newFolder("index-queue").toPath();
+    }
+
+    /**
+     * Test that restarting the pool in the middle of a load neither loses nor redoes a task
+     */
+    @Test
+    public void testRestartMidLoad() throws Exception {
+        LocalIndexQueue publisher = new LocalIndexQueue(base);
+        for (int i = 0; i < TOTAL; i++) {
+            publisher.publish("id." + i, IndexTask.CREATE_INDEX_TYPE, "autogen." + i + ".1", 4);
+        }
+        IndexWorkerPool pool = new IndexWorkerPool(handler);
+        pool.start(WORKERS, () -> new LocalQueueTaskSource(new LocalIndexQueue(base)));
+        long deadline = System.currentTimeMillis() + 30000;
+        while (pool.getProcessedCount() < TOTAL / 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        pool.stop(30000);
+        long firstRun = pool.getProcessedCount();
+        assertTrue(firstRun >= TOTAL / 4);
+        assertTrue(firstRun < TOTAL);
+        // every in-flight task was finished and acknowledged before the pool stopped
+        assertEquals(0, new LocalIndexQueue(base).recover());
+        assertEquals(TOTAL - firstRun, publisher.size());
+
+        // the restarted servlet
+        IndexWorkerPool restarted = new IndexWorkerPool(handler);
+        restarted.start(WORKERS, () -> new LocalQueueTaskSource(new LocalIndexQueue(base)));
+        deadline = System.currentTimeMillis() + 30000;
+        while (publisher.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        restarted.stop(30000);
+        assertEquals(TOTAL, firstRun + restarted.getProcessedCount());
+        assertEquals(TOTAL, indexed.size());
+        for (int i = 0; i < TOTAL; i++) {
+            assertEquals("id." + i, 1, indexed.get("id." + i).get());
+        }
+    }
+
+    /**
+     * Test the per-worker metrics
+     */
+    @Test
+    public void testMetrics() throws Exception {
+        LocalIndexQueue publisher = new LocalIndexQueue(base);
+        publisher.publish("foo", IndexTask.CREATE_INDEX_TYPE, "autogen.1.1", 4);
+        publisher.publish("bar", IndexTask.DELETE_INDEX_TYPE, null, 4);
+        IndexWorkerPool pool = new IndexWorkerPool(task -> {
+            if (task.getId().equals("bar")) {
+                throw new Exception("failed to index bar");
+            }
+        });
+        pool.start(1, () -> new LocalQueueTaskSource(new LocalIndexQueue(base)));
+        long deadline = System.currentTimeMillis() + 30000;
+        while (pool.getProcessedCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        pool.stop(30000);
+        StringWriter writer = new StringWriter();
+        pool.writeMetrics(writer);
+        String metrics = writer.toString();
+        assertTrue(metrics.contains(IndexWorkerPool.TASKS_METRIC + "{worker=\"0\"} 2\n"));
+        assertTrue(metrics.contains(IndexWorkerPool.FAILURES_METRIC + "{worker=\"0\"} 1\n"));
+        assertTrue(metrics.contains(IndexWorkerPool.BUSY_METRIC + "{worker=\"0\"} 0\n"));
+        // a failed task isn't redelivered
+        assertEquals(0, publisher.size());
+    }
+}
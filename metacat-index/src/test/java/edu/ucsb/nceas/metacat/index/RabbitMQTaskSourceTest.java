@@ -0,0 +1,338 @@
+package edu.ucsb.nceas.metacat.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+
+import edu.ucsb.nceas.metacat.common.index.IndexLane;
+
+/**
+ * The test class of RabbitMQTaskSource and LaneTaskSource. A broker stand-in implements the
+ * parts of the channel semantics the sources rely on: the per-consumer prefetch limit, manual
+ * acknowledgement, nack with requeue to the original position in the queue, cancel and the
+ * requeue of the unacknowledged messages when a channel is closed.
+ */
+public class RabbitMQTaskSourceTest {
+    private static final String QUEUE = "index";
+    private StandInBroker broker = new StandInBroker();
+    private Map<String, AtomicInteger> indexed = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * Test that a source never holds more unacknowledged messages than its prefetch
+     */
+    @Test
+    public void testPrefetch() throws Exception {
+        publish(QUEUE, 10);
+        RabbitMQTaskSource source = new RabbitMQTaskSource(broker.connection(), QUEUE, 2);
+        assertEquals(2, broker.unacked(QUEUE));
+        assertEquals(8, broker.ready(QUEUE));
+        IndexTask task = source.take(1000);
+        assertEquals("id.0", task.getId());
+        assertEquals(IndexTask.CREATE_INDEX_TYPE, task.getIndexType());
+        assertEquals("autogen.0.1", task.getPath());
+        assertEquals(4, task.getPriority());
+        assertNull(task.getCore());
+        // the taken task still counts until it is acknowledged
+        assertEquals(2, broker.unacked(QUEUE));
+        source.ack(task);
+        assertEquals(2, broker.unacked(QUEUE));
+        assertEquals(7, broker.ready(QUEUE));
+        // a task for the shadow core of a rebuild
+        task = source.take(1000);
+        assertEquals("id.1", task.getId());
+        assertEquals("metacat-index-rebuild", task.getCore());
+        source.ack(task);
+        source.close();
+    }
+
+    /**
+     * Test that the prefetched but not started deliveries are given back on shutdown, while
+     * the in-flight one is still acknowledged
+     */
+    @Test
+    public void testRequeueOnShutdown() throws Exception {
+        publish(QUEUE, 5);
+        RabbitMQTaskSource source = new RabbitMQTaskSource(broker.connection(), QUEUE, 3);
+        IndexTask inFlight = source.take(1000);
+        source.stopConsuming();
+        source.ack(inFlight);
+        // no more deliveries after the consumer was cancelled
+        assertEquals(2, broker.unacked(QUEUE));
+        source.close();
+        assertEquals(0, broker.unacked(QUEUE));
+        assertEquals(4, broker.ready(QUEUE));
+        assertEquals(2, broker.requeued());
+        // the requeued messages keep their places in the queue
+        RabbitMQTaskSource next = new RabbitMQTaskSource(broker.connection(), QUEUE, 1);
+        assertEquals("id.1", next.take(1000).getId());
+        next.close();
+    }
+
+    /**
+     * Test that restarting a pool of RabbitMQ consumers in the middle of a load neither loses
+     * nor redoes a task
+     */
+    @Test
+    public void testWorkerPoolRestart() throws Exception {
+        int total = 200;
+        publish(QUEUE, total);
+        IndexTaskHandler handler = task -> {
+            Thread.sleep(1);
+            indexed.computeIfAbsent(task.getId(), id -> new AtomicInteger(0)).incrementAndGet();
+        };
+        IndexWorkerPool pool = new IndexWorkerPool(handler);
+        pool.start(4, () -> new RabbitMQTaskSource(broker.connection(), QUEUE, 2));
+        long deadline = System.currentTimeMillis() + 30000;
+        while (pool.getProcessedCount() < total / 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        pool.stop(30000);
+        long firstRun = pool.getProcessedCount();
+        assertTrue(firstRun < total);
+        assertEquals(0, broker.unacked(QUEUE));
+        assertEquals(total - firstRun, broker.ready(QUEUE));
+
+        IndexWorkerPool restarted = new IndexWorkerPool(handler);
+        restarted.start(4, () -> new RabbitMQTaskSource(broker.connection(), QUEUE, 2));
+        deadline = System.currentTimeMillis() + 30000;
+        while (broker.ready(QUEUE) + broker.unacked(QUEUE) > 0
+                    && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        restarted.stop(30000);
+        assertEquals(total, firstRun + restarted.getProcessedCount());
+        assertEquals(total, indexed.size());
+        for (int i = 0; i < total; i++) {
+            assertEquals("id." + i, 1, indexed.get("id." + i).get());
+        }
+    }
+
+    /**
+     * Test that every lane is consumed with its own prefetch and that closing the source gives
+     * back the deliveries of all lanes
+     */
+    @Test
+    public void testLanes() throws Exception {
+        for (IndexLane lane : IndexLane.values()) {
+            publish(lane.getQueueName(), 5);
+        }
+        LaneTaskSource source = new LaneTaskSource(broker.connection());
+        for (IndexLane lane : IndexLane.values()) {
+            assertEquals(lane.getName(), lane.getDefaultPrefetch(),
+                         broker.unacked(lane.getQueueName()));
+        }
+        IndexTask task = source.take(1000);
+        assertNotNull(task);
+        source.ack(task);
+        source.stopConsuming();
+        source.close();
+        int ready = 0;
+        for (IndexLane lane : IndexLane.values()) {
+            assertEquals(0, broker.unacked(lane.getQueueName()));
+            ready += broker.ready(lane.getQueueName());
+        }
+        assertEquals(5 * IndexLane.values().length - 1, ready);
+        // nothing is delivered to a closed source
+        assertNull(source.take(10));
+    }
+
+    private void publish(String queue, int count) {
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> headers = new HashMap<String, Object>();
+            headers.put("id", "id." + i);
+            headers.put("index_type", IndexTask.CREATE_INDEX_TYPE);
+            headers.put("path", "autogen." + i + ".1");
+            if (i == 1) {
+                headers.put("core", "metacat-index-rebuild");
+            }
+            broker.publish(queue, new AMQP.BasicProperties.Builder().headers(headers)
+                                                                    .priority(4).build());
+        }
+    }
+
+    /**
+     * An in-memory stand-in of a RabbitMQ broker. The connections and channels are dynamic
+     * proxies which implement only the methods used by the task sources.
+     */
+    private static class StandInBroker {
+        // the ready messages of the queues by their publishing sequence
+        private final Map<String, TreeMap<Long, AMQP.BasicProperties>> queues =
+                                    new HashMap<String, TreeMap<Long, AMQP.BasicProperties>>();
+        private long sequence = 0;
+        private final Map<String, Integer> unacked = new HashMap<String, Integer>();
+        private int requeued = 0;
+
+        synchronized void publish(String queue, AMQP.BasicProperties properties) {
+            queue(queue).put(sequence++, properties);
+        }
+
+        synchronized int ready(String queue) {
+            return queue(queue).size();
+        }
+
+        synchronized int unacked(String queue) {
+            return unacked.getOrDefault(queue, 0);
+        }
+
+        synchronized int requeued() {
+            return requeued;
+        }
+
+        private TreeMap<Long, AMQP.BasicProperties> queue(String name) {
+            return queues.computeIfAbsent(name, n -> new TreeMap<Long, AMQP.BasicProperties>());
+        }
+
+        private void count(String queue, int delta) {
+            unacked.put(queue, unacked(queue) + delta);
+        }
+
+        Connection connection() {
+            InvocationHandler handler = (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "createChannel":
+                        return new StandInChannel().proxy();
+                    case "close":
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            };
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                                                       new Class<?>[] {Connection.class}, handler);
+        }
+
+        /**
+         * A channel with one prefetch limit for its consumers
+         */
+        private class StandInChannel implements InvocationHandler {
+            private Channel proxy = null;
+            private int prefetch = 0;
+            private long nextTag = 0;
+            private boolean open = true;
+            // the consumer tags, their queues and consumers
+            private final Map<String, String> consumerQueues = new LinkedHashMap<String, String>();
+            private final Map<String, Consumer> consumers = new HashMap<String, Consumer>();
+            // the delivery tags of the unacknowledged messages and their queues, sequences and
+            // properties
+            private final Map<Long, Object[]> deliveries = new LinkedHashMap<Long, Object[]>();
+
+            Channel proxy() {
+                proxy = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                                                         new Class<?>[] {Channel.class}, this);
+                return proxy;
+            }
+
+            @Override
+            public Object invoke(Object target, Method method, Object[] args) throws Exception {
+                synchronized (StandInBroker.this) {
+                    switch (method.getName()) {
+                        case "basicQos":
+                            prefetch = (Integer) args[0];
+                            return null;
+                        case "basicConsume":
+                            String tag = "consumer." + consumers.size();
+                            consumerQueues.put(tag, (String) args[0]);
+                            consumers.put(tag, (Consumer) args[args.length - 1]);
+                            dispatch();
+                            return tag;
+                        case "basicAck":
+                            settle((Long) args[0], false);
+                            return null;
+                        case "basicNack":
+                            settle((Long) args[0], (Boolean) args[2]);
+                            return null;
+                        case "basicCancel":
+                            consumerQueues.remove(args[0]);
+                            consumers.remove(args[0]);
+                            return null;
+                        case "close":
+                            // the broker requeues the unacknowledged messages of a closed channel
+                            for (Long deliveryTag : deliveries.keySet().toArray(new Long[0])) {
+                                settle(deliveryTag, true);
+                            }
+                            consumerQueues.clear();
+                            open = false;
+                            return null;
+                        case "isOpen":
+                            return open;
+                        case "hashCode":
+                            return System.identityHashCode(target);
+                        case "equals":
+                            return target == args[0];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                }
+            }
+
+            private void settle(long deliveryTag, boolean requeue) {
+                Object[] delivery = deliveries.remove(deliveryTag);
+                if (delivery == null) {
+                    throw new IllegalStateException("unknown delivery tag " + deliveryTag);
+                }
+                String queue = (String) delivery[0];
+                count(queue, -1);
+                if (requeue) {
+                    queue(queue).put((Long) delivery[1], (AMQP.BasicProperties) delivery[2]);
+                    requeued++;
+                }
+                dispatch();
+            }
+
+            /**
+             * Deliver the ready messages to every consumer up to the prefetch limit of each
+             */
+            private void dispatch() {
+                for (Map.Entry<String, String> entry : consumerQueues.entrySet()) {
+                    String queue = entry.getValue();
+                    while (!queue(queue).isEmpty()
+                                && (prefetch <= 0 || inFlight(queue) < prefetch)) {
+                        Map.Entry<Long, AMQP.BasicProperties> message =
+                                                                queue(queue).pollFirstEntry();
+                        AMQP.BasicProperties properties = message.getValue();
+                        long deliveryTag = ++nextTag;
+                        deliveries.put(deliveryTag,
+                                       new Object[] {queue, message.getKey(), properties});
+                        count(queue, 1);
+                        try {
+                            consumers.get(entry.getKey()).handleDelivery(entry.getKey(),
+                                    new Envelope(deliveryTag, false, "", queue), properties,
+                                    new byte[0]);
+                        } catch (Exception e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                }
+            }
+
+            private int inFlight(String queue) {
+                int count = 0;
+                for (Object[] delivery : deliveries.values()) {
+                    if (queue.equals(delivery[0])) {
+                        count++;
+                    }
+                }
+                return count;
+            }
+        }
+    }
+}
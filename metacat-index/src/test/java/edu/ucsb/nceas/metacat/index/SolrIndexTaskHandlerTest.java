@@ -0,0 +1,165 @@
+package edu.ucsb.nceas.metacat.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.CoreContainer;
+import org.dataone.configuration.Settings;
+import org.dataone.service.types.v1.Identifier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.ucsb.nceas.metacat.common.storage.ObjectStore;
+import edu.ucsb.nceas.metacat.common.storage.ObjectStoreFactory;
+import edu.ucsb.nceas.metacat.common.storage.ShardedObjectStore;
+
+/**
+ * The test class of SolrIndexTaskHandler. The objects are stored in the sharded layout and
+ * an embedded Solr server, built from the solr home of this webapp, stands in for the
+ * SolrIndex bean: the indexer reads the object from the resolved path and writes a document.
+ */
+public class SolrIndexTaskHandlerTest {
+    private static final String[] PROPERTIES = {"application.documentfilepath",
+                                        "application.datafilepath", "storage.layout"};
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private Object[] saved = new Object[PROPERTIES.length];
+    private Path dataDir = null;
+    private CoreContainer container = null;
+    private EmbeddedSolrServer solr = null;
+    private SolrIndexTaskHandler handler = null;
+
+    /**
+     * Point the object stores to new directories in the sharded layout and start the
+     * embedded Solr server
+     */
+    @Before
+    public void setup() throws Exception {
+        for (int i = 0; i < PROPERTIES.length; i++) {
+            saved[i] = Settings.getConfiguration().getProperty(PROPERTIES[i]);
+        }
+        Path documentDir = folder.newFolder("documents").toPath();
+        dataDir = folder.newFolder("data").toPath();
+        Settings.getConfiguration().setProperty("application.documentfilepath",
+                                                documentDir.toString());
+        Settings.getConfiguration().setProperty("application.datafilepath", dataDir.toString());
+        Settings.getConfiguration().setProperty("storage.layout",
+                                                ObjectStoreFactory.SHARDED_LAYOUT);
+        Path solrHome = folder.newFolder("solr-home").toPath();
+        FileUtils.copyDirectory(Paths.get("target/classes/solr-home").toFile(),
+                                solrHome.toFile());
+        container = new CoreContainer(solrHome, new Properties());
+        container.load();
+        solr = new EmbeddedSolrServer(container, "collection1");
+        handler = new SolrIndexTaskHandler(new SolrIndexTaskHandler.ObjectIndexer() {
+            @Override
+            public void update(Identifier pid, String relativePath, boolean isSysmetaChangeOnly)
+                                                                            throws Exception {
+                Path file = ObjectStoreFactory.getDataStore().getDirectory()
+                                                                .resolve(relativePath);
+                if (!Files.exists(file)) {
+                    throw new FileNotFoundException("No object at " + file);
+                }
+                SolrInputDocument doc = new SolrInputDocument();
+                doc.addField("id", pid.getValue());
+                doc.addField("fileName", relativePath);
+                doc.addField("size", Files.size(file));
+                solr.add(doc);
+                solr.commit();
+            }
+
+            @Override
+            public void remove(Identifier pid) throws Exception {
+                solr.deleteById(pid.getValue());
+                solr.commit();
+            }
+        });
+    }
+
+    /**
+     * Stop the embedded Solr server and restore the properties
+     */
+    @After
+    public void tearDown() throws Exception {
+        handler.close();
+        solr.close();
+        for (int i = 0; i < PROPERTIES.length; i++) {
+            if (saved[i] == null) {
+                Settings.getConfiguration().clearProperty(PROPERTIES[i]);
+            } else {
+                Settings.getConfiguration().setProperty(PROPERTIES[i], saved[i]);
+            }
+        }
+    }
+
+    /**
+     * Test indexing and removing an object queued with its sharded path
+     */
+    @Test
+    public void testShardedPath() throws Exception {
+        ObjectStore store = ObjectStoreFactory.getDataStore();
+        assertTrue(store instanceof ShardedObjectStore);
+        String localId = "autogen.1.1";
+        byte[] content = "sharded object".getBytes(StandardCharsets.UTF_8);
+        store.put(localId, new ByteArrayInputStream(content));
+        String path = store.getRelativePath(localId);
+        assertNotEquals(localId, path);
+        assertFalse(Files.exists(dataDir.resolve(localId)));
+
+        handler.index(new IndexTask("urn:uuid:1", IndexTask.CREATE_INDEX_TYPE, path, 4, null));
+        SolrDocument doc = solr.getById("urn:uuid:1");
+        assertEquals(path, doc.getFieldValue("fileName"));
+        assertEquals((long) content.length, doc.getFieldValue("size"));
+
+        handler.index(new IndexTask("urn:uuid:1", IndexTask.DELETE_INDEX_TYPE, null, 4, null));
+        assertNull(solr.getById("urn:uuid:1"));
+    }
+
+    /**
+     * Test indexing an object queued with its flat path and moved into the sharded layout
+     * before the task was taken
+     */
+    @Test
+    public void testStaleFlatPath() throws Exception {
+        String localId = "autogen.2.1";
+        Files.write(dataDir.resolve(localId), "flat object".getBytes(StandardCharsets.UTF_8));
+        IndexTask task = new IndexTask("urn:uuid:2", IndexTask.CREATE_INDEX_TYPE, localId, 4,
+                                       null);
+        ShardedObjectStore store = (ShardedObjectStore) ObjectStoreFactory.getDataStore();
+        assertTrue(store.linkToShard(localId));
+        assertTrue(store.migrate(localId));
+        assertFalse(Files.exists(dataDir.resolve(localId)));
+
+        handler.index(task);
+        SolrDocument doc = solr.getById("urn:uuid:2");
+        assertEquals(store.getRelativePath(localId), doc.getFieldValue("fileName"));
+        assertNotEquals(localId, doc.getFieldValue("fileName"));
+    }
+
+    /**
+     * Test that a task without a path passes no path to the indexer
+     */
+    @Test
+    public void testResolveNoPath() throws Exception {
+        assertNull(SolrIndexTaskHandler.resolvePath(null));
+        assertNull(SolrIndexTaskHandler.resolvePath(""));
+    }
+}
@@ -0,0 +1,160 @@
+package edu.ucsb.nceas.metacat.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * The test class of WeightedLaneScheduler
+ */
+public class WeightedLaneSchedulerTest {
+    private static final int INTERACTIVE = 0;
+    private static final int BULK = 1;
+
+    /**
+     * A stand-in of the broker. Every lane has a backlog, and at most the prefetch number of
+     * its messages are delivered to the scheduler without being acknowledged.
+     */
+    private static class Broker {
+        private List<Deque<IndexTask>> backlogs = new ArrayList<Deque<IndexTask>>();
+        private int[] unacked;
+        private int[] prefetch;
+        private WeightedLaneScheduler scheduler;
+
+        private Broker(WeightedLaneScheduler scheduler, int[] prefetch) {
+            this.scheduler = scheduler;
+            this.prefetch = prefetch;
+            this.unacked = new int[prefetch.length];
+            for (int i = 0; i < prefetch.length; i++) {
+                backlogs.add(new ArrayDeque<IndexTask>());
+            }
+        }
+
+        private synchronized void publish(int lane, String id) {
+            backlogs.get(lane).add(new IndexTask(id, IndexTask.CREATE_INDEX_TYPE, null, 0,
+                                                 new long[] {lane, System.nanoTime()}));
+            deliver(lane);
+        }
+
+        private synchronized void ack(IndexTask task) {
+            int lane = (int) ((long[]) task.getReceipt())[0];
+            unacked[lane]--;
+            deliver(lane);
+        }
+
+        private synchronized int backlog(int lane) {
+            return backlogs.get(lane).size();
+        }
+
+        private void deliver(int lane) {
+            while (unacked[lane] < prefetch[lane] && !backlogs.get(lane).isEmpty()) {
+                unacked[lane]++;
+                scheduler.offer(lane, backlogs.get(lane).poll());
+            }
+        }
+    }
+
+    /**
+     * Test that the lanes are taken by their weights and an empty lane gives its turns away
+     */
+    @Test
+    public void testWeights() throws Exception {
+        WeightedLaneScheduler scheduler = new WeightedLaneScheduler(new int[] {3, 1});
+        for (int i = 0; i < 8; i++) {
+            scheduler.offer(INTERACTIVE, new IndexTask("i." + i, "create", null, 0, null));
+            scheduler.offer(BULK, new IndexTask("b." + i, "create", null, 0, null));
+        }
+        int interactive = 0;
+        for (int i = 0; i < 8; i++) {
+            if (scheduler.take(10).getId().startsWith("i.")) {
+                interactive++;
+            }
+        }
+        assertEquals(6, interactive);
+        // the interactive lane has two left, then the bulk lane gets all turns
+        List<String> rest = new ArrayList<String>();
+        for (int i = 0; i < 8; i++) {
+            rest.add(scheduler.take(10).getId());
+        }
+        assertEquals(2, rest.stream().filter(id -> id.startsWith("i.")).count());
+        assertTrue(rest.get(7).startsWith("b."));
+        assertNull(scheduler.take(10));
+    }
+
+    /**
+     * Test that the buffered tasks are given back on drain
+     */
+    @Test
+    public void testDrain() throws Exception {
+        WeightedLaneScheduler scheduler = new WeightedLaneScheduler(new int[] {8, 1});
+        scheduler.offer(INTERACTIVE, new IndexTask("i.1", "create", null, 0, null));
+        scheduler.offer(BULK, new IndexTask("b.1", "create", null, 0, null));
+        scheduler.offer(BULK, new IndexTask("b.2", "create", null, 0, null));
+        assertEquals("i.1", scheduler.take(10).getId());
+        assertEquals(2, scheduler.drain().size());
+        assertNull(scheduler.take(10));
+    }
+
+    /**
+     * A load test: the latency of the interactive tasks stays flat during a big backfill
+     */
+    @Test
+    public void testInteractiveLatencyDuringBackfill() throws Exception {
+        WeightedLaneScheduler scheduler = new WeightedLaneScheduler(new int[] {8, 1});
+        Broker broker = new Broker(scheduler, new int[] {1, 2});
+        int backfill = 100000;
+        for (int i = 0; i < backfill; i++) {
+            broker.publish(BULK, "bulk." + i);
+        }
+        List<Long> latencies = new ArrayList<Long>();
+        int[] processed = new int[2];
+        Thread worker = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    IndexTask task = scheduler.take(100);
+                    if (task == null) {
+                        continue;
+                    }
+                    Thread.sleep(1); // indexing a document
+                    long[] receipt = (long[]) task.getReceipt();
+                    int lane = (int) receipt[0];
+                    processed[lane]++;
+                    if (lane == INTERACTIVE) {
+                        synchronized (latencies) {
+                            latencies.add((System.nanoTime() - receipt[1]) / 1000000);
+                        }
+                    }
+                    broker.ack(task);
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            }
+        });
+        worker.start();
+        int uploads = 50;
+        for (int i = 0; i < uploads; i++) {
+            broker.publish(INTERACTIVE, "upload." + i);
+            Thread.sleep(20);
+        }
+        Thread.sleep(100);
+        worker.interrupt();
+        worker.join();
+        assertEquals(uploads, latencies.size());
+        // the backfill was still deep, but was not starved
+        assertTrue(broker.backlog(BULK) > backfill / 2);
+        assertTrue(processed[BULK] > 0);
+        // every upload waited for at most a few in-flight bulk tasks
+        long firstHalf = latencies.subList(0, uploads / 2).stream().max(Long::compare).get();
+        long secondHalf = latencies.subList(uploads / 2, uploads).stream()
+                                                                .max(Long::compare).get();
+        assertTrue("first half max latency " + firstHalf, firstHalf < 100);
+        assertTrue("second half max latency " + secondHalf, secondHalf < 100);
+    }
+}
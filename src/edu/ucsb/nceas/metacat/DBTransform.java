@@ -31,9 +31,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.StringReader;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -49,6 +51,7 @@ import javax.xml.transform.TransformerException;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.transform.stream.StreamResult;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.xerces.parsers.DOMParser;
@@ -204,6 +207,49 @@ public class DBTransform {
   }
 
 
+  /**
+   * Transform an XML stream using the stylesheet reference from the db. The stream is parsed
+   * by the transformer directly and the result is written to the writer as it is produced,
+   * so the document is never held as a string. The stream must not have a DOCTYPE declaration.
+   *
+   * @param doc the stream of the document to be transformed. It isn't closed by this method.
+   * @param sourceType the document type of the source
+   * @param targetType the target document type
+   * @param qformat the name of the style set to use
+   * @param w the Writer to which output is written
+   * @param param some parameters for the transformation
+   * @param sessionid the session id
+   * @throws IOException if the transformation fails. Unlike the string version, the error isn't
+   *          written to the writer, so the reader of a streamed result gets the error rather
+   *          than a page ending with its text.
+   */
+  public void transformXMLDocument(InputStream doc, String sourceType, String targetType,
+                                   String qformat, Writer w, Hashtable<String, String[]> param,
+                                   String sessionid) throws IOException {
+      String xslSystemId = getStyleSystemId(qformat, sourceType, targetType);
+      try {
+          if (xslSystemId != null) {
+              Transformer transformer = DBTransform.getTransformer(xslSystemId);
+              if (transformer == null) {
+                  //Try to get the transformer again. The second time the internal url may change
+                  internalContextURL = SystemUtil.getInternalContextURL();
+                  xslSystemId = getStyleSystemId(qformat, sourceType, targetType);
+                  transformer = DBTransform.getTransformer(xslSystemId);
+              }
+              doTransform(new StreamSource(doc), new StreamResult(w), transformer, param,
+                          qformat, sessionid);
+          } else {
+              // No stylesheet registered for this document type, so just copy the stream
+              IOUtils.copy(doc, w, StandardCharsets.UTF_8);
+          }
+      } catch (Exception e) {
+          String msg = xslSystemId + ": Error transforming document in "
+                          + "DBTransform.transformXMLDocument: " + e.getMessage();
+          logMetacat.error(msg, e);
+          throw new IOException(msg, e);
+      }
+  }
+
   /**
    * Reads skin's config file if it exists, and populates Transformer paramaters
    * with its contents.
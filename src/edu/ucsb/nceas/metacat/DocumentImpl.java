@@ -24,10 +24,12 @@ import java.util.regex.Pattern;
 
 import edu.ucsb.nceas.utilities.access.AccessControlInterface;
 import edu.ucsb.nceas.metacat.client.MetacatException;
+import edu.ucsb.nceas.metacat.common.storage.ObjectStoreFactory;
 import edu.ucsb.nceas.metacat.database.DBConnection;
 import edu.ucsb.nceas.metacat.database.DBConnectionPool;
 import edu.ucsb.nceas.metacat.index.MetacatSolrIndex;
 import edu.ucsb.nceas.metacat.properties.PropertyService;
+import edu.ucsb.nceas.metacat.service.SchemaParserPool;
 import edu.ucsb.nceas.metacat.service.XMLSchema;
 import edu.ucsb.nceas.metacat.service.XMLSchemaService;
 import edu.ucsb.nceas.metacat.systemmetadata.SystemMetadataManager;
@@ -425,20 +427,19 @@ public class DocumentImpl {
      */
     public InputStream toXml(OutputStream out, String user, String[] groups, boolean withInLineData)
         throws McdbException {
-        String documentDir = null;
         String documentPath = null;
         FileOutputStream fos = null;
         try {
             String separator = PropertyService.getProperty("document.accNumSeparator");
-            documentDir = PropertyService.getProperty("application.documentfilepath");
-            documentPath = documentDir + FileUtil.getFS() + docid + separator + rev;
+            documentPath = ObjectStoreFactory.getMetadataStore().getPath(docid + separator + rev)
+                                                                                    .toString();
 
             if (FileUtil.getFileStatus(documentPath) == FileUtil.DOES_NOT_EXIST
                 || FileUtil.getFileSize(documentPath) == 0) {
                 throw new McdbException("Could not read file: " + documentPath
                                             + " : since it doesn't exist or the sieze is 0.");
             }
-        } catch (PropertyNotFoundException pnfe) {
+        } catch (PropertyNotFoundException | IOException pnfe) {
             throw new McdbException(
                 "Could not write file: " + documentPath + " : " + pnfe.getMessage());
         } finally {
@@ -553,46 +554,14 @@ public class DocumentImpl {
             throw new McdbException("Could not delete file.  Accession Number number is null");
         }
 
-        // remove the document from disk
-        String documentPath = null;
-
-        // get the correct location on disk
-        documentPath = getFilePath(accNumber, isXml);
-        // delete it if it exists
-        if (accNumber != null && FileUtil.getFileStatus(documentPath) != FileUtil.DOES_NOT_EXIST) {
-            try {
-                FileUtil.deleteFile(documentPath);
-            } catch (IOException ioe) {
-                throw new McdbException(
-                    "Could not delete file: " + documentPath + " : " + ioe.getMessage());
-            }
-        }
-
-    }
-
-    private static String getFilePath(String accNumber, boolean isXml) throws McdbException {
-        if (accNumber == null || accNumber.trim().equals("")) {
-            throw new McdbException(
-                "Could not get the file path since the Accession Number number is null");
-        }
-        String documentPath = null;
+        // remove the document from disk. A content shared with other objects is kept.
         try {
-            String documentDir = null;
-
-            // get the correct location on disk
-            if (isXml) {
-                documentDir = PropertyService.getProperty("application.documentfilepath");
-            } else {
-                documentDir = PropertyService.getProperty("application.datafilepath");
-            }
-            documentPath = documentDir + FileUtil.getFS() + accNumber;
-            return documentPath;
-
-        } catch (PropertyNotFoundException pnfe) {
+            ObjectStoreFactory.getStore(isXml).delete(accNumber);
+        } catch (IOException e) {
             throw new McdbException(
-                pnfe.getClass().getName() + ": Could not delete file because: " + documentPath
-                    + " : " + pnfe.getMessage());
+                "Could not delete file: " + accNumber + " : " + e.getMessage());
         }
+
     }
 
     /**
@@ -1127,7 +1096,9 @@ public class DocumentImpl {
     }
 
     /**
-     * Set up the parser handlers for writing the document to the database
+     * Set up the parser handlers for writing the document to the database. The schema
+     * validating parsers come from the SchemaParserPool, which keeps the compiled schemas, so
+     * they should be given back by releaseParser after the parsing.
      * @param schemaList  the list of schema will be used
      * @param dtd  the dtd content
      * @param ruleBase  the validation base - schema or dtd
@@ -1148,33 +1119,23 @@ public class DocumentImpl {
         DTDHandler dtdhandler;
         // Get an instance of the parser
         String parserName = PropertyService.getProperty("xml.saxparser");
-        parser = XMLReaderFactory.createXMLReader(parserName);
         handler = new DBSAXHandler();
-        parser.setContentHandler(handler);
-        parser.setErrorHandler(handler);
-        parser.setProperty(DECLARATIONHANDLERPROPERTY, handler);
-        parser.setProperty(LEXICALPROPERTY, handler);
         boolean valid = ruleBase != null && needValidation;
         if (valid && (ruleBase.equals(SCHEMA)
                       || ruleBase.equals(EML200)
                       || ruleBase.equals(EML210))) {
             XMLSchemaService xmlss = XMLSchemaService.getInstance();
             logMetacat.info("DocumentImpl.initalizeParser - Using General schema parser");
-            // turn on schema validation feature
-            parser.setFeature(VALIDATIONFEATURE, true);
-            parser.setFeature(NAMESPACEFEATURE, true);
-            parser.setFeature(SCHEMAVALIDATIONFEATURE, true);
-
             boolean allSchemasRegistered = XMLSchemaService.areAllSchemasRegistered(schemaList);
-            if (xmlss.useFullSchemaValidation() && !allSchemasRegistered
-                                      && !ruleBase.equals(EML210) && !ruleBase.equals(EML200)) {
-                parser.setFeature(FULLSCHEMAVALIDATIONFEATURE, true);
-            }
+            boolean fullChecking = xmlss.useFullSchemaValidation() && !allSchemasRegistered
+                                    && !ruleBase.equals(EML210) && !ruleBase.equals(EML200);
             logMetacat.info("DocumentImpl.initalizeParser - Generic external schema location: "
                                 + schemaLocation);
             // Set external schemalocation.
             if (schemaLocation != null && !(schemaLocation.trim()).equals("")) {
-                parser.setProperty(EXTERNALSCHEMALOCATIONPROPERTY, schemaLocation);
+                // the parser has the schema validation features turned on
+                parser = SchemaParserPool.getInstance()
+                            .getParser(parserName, schemaLocation, false, fullChecking);
             } else {
                 throw new ServiceFailure("0000", "The schema for the document "
                                         + " can't be found in any place. So we can't validate"
@@ -1182,16 +1143,14 @@ public class DocumentImpl {
             }
         } else if (valid && ruleBase.equals(NONAMESPACESCHEMA)) {
             logMetacat.info("DocumentImpl.initalizeParser - Using General schema parser");
-            // turn on schema validation feature
-            parser.setFeature(VALIDATIONFEATURE, true);
-            parser.setFeature(NAMESPACEFEATURE, true);
-            parser.setFeature(SCHEMAVALIDATIONFEATURE, true);
             logMetacat.info(
                 "DocumentImpl.initalizeParser - Generic external no-namespace schema location: "
                     + schemaLocation);
             // Set external schemalocation.
             if (schemaLocation != null && !schemaLocation.isBlank()) {
-                parser.setProperty(EXTERNALNONAMESPACESCHEMALOCATIONPROPERTY, schemaLocation);
+                // the parser has the schema validation features turned on
+                parser = SchemaParserPool.getInstance()
+                            .getParser(parserName, schemaLocation, true, false);
             } else {
                 throw new ServiceFailure("0000", "The schema for the document "
                                         + " can't be found in any place. So we can't validate"
@@ -1199,6 +1158,7 @@ public class DocumentImpl {
             }
         } else if (valid && ruleBase.equals(DTD)) {
             logMetacat.info("DocumentImpl.initalizeParser - Using dtd parser");
+            parser = XMLReaderFactory.createXMLReader(parserName);
             // turn on dtd validaton feature
             parser.setFeature(VALIDATIONFEATURE, true);
             eresolver = new DBEntityResolver((DBSAXHandler) handler, dtd);
@@ -1207,6 +1167,7 @@ public class DocumentImpl {
             parser.setDTDHandler((DTDHandler) dtdhandler);
         } else {
             logMetacat.info("DocumentImpl.initalizeParser - Using other parser");
+            parser = XMLReaderFactory.createXMLReader(parserName);
             // non validation
             parser.setFeature(VALIDATIONFEATURE, false);
             eresolver = new DBEntityResolver((DBSAXHandler) handler, dtd);
@@ -1214,9 +1175,22 @@ public class DocumentImpl {
             parser.setEntityResolver((EntityResolver) eresolver);
             parser.setDTDHandler((DTDHandler) dtdhandler);
         }
+        parser.setContentHandler(handler);
+        parser.setErrorHandler(handler);
+        parser.setProperty(DECLARATIONHANDLERPROPERTY, handler);
+        parser.setProperty(LEXICALPROPERTY, handler);
         return parser;
     }
 
+    /**
+     * Give back a parser from initializeParser after the parsing, whether it succeeded or not,
+     * so a schema validating parser can be reused for the next document.
+     * @param parser  the parser to give back
+     */
+    public static void releaseParser(XMLReader parser) {
+        SchemaParserPool.getInstance().release(parser);
+    }
+
     /**
      * This method will copy a document record from the xml_documents table
      * to the xml_revisions table if the record exists in the xml_documents table.
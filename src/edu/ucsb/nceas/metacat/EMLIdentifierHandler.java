@@ -0,0 +1,223 @@
+package edu.ucsb.nceas.metacat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ecoinformatics.eml.EMLParserException;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * A DBSAXHandler which checks the identifiers of an EML document while the document is
+ * validated against the EML schema, so the document is parsed only once and the EMLParser
+ * doesn't parse it again. It checks that the ids are unique, that every references element,
+ * references attribute (e.g. of an annotation) and describes element points to an id of the
+ * document, that a references element points to an element of the same type as its parent and
+ * that the parent doesn't have an id itself. The access rules are checked by the same rules,
+ * including the inline ones in the distributions of the entities: an access element either has
+ * an id or references another access element of the document.
+ *
+ * The violations are reported as the EMLParserException the EMLParser would have thrown, the
+ * duplicated ids first. The schema validation errors are kept rather than thrown, so the whole
+ * document is checked and the id errors can be reported first, as they were when the EMLParser
+ * ran before the validation.
+ * @author tao
+ */
+public class EMLIdentifierHandler extends DBSAXHandler {
+    private static final String ID = "id";
+    private static final String REFERENCES = "references";
+    private static final String DESCRIBES = "describes";
+    private static final String ERROR_PREFIX =
+                            "Error in xml document. This EML document is not valid because ";
+    private static Log logMetacat = LogFactory.getLog(EMLIdentifierHandler.class);
+
+    private final Set<String> allIds = new HashSet<String>();
+    // the ids of the elements in the eml namespace or without a namespace and their types
+    private final Map<String, String> ids = new HashMap<String, String>();
+    // the pointed ids and the types they should have. The type is null if any type will do.
+    private final List<String[]> pointers = new ArrayList<String[]>();
+    private final Deque<String> elements = new ArrayDeque<String>();
+    private final Deque<Boolean> elementHasId = new ArrayDeque<Boolean>();
+    private String emlNamespace = null;
+    private StringBuilder pointerText = null;
+    private String pointerType = null;
+    private String duplicate = null;
+    private String violation = null;
+    private boolean ended = false;
+    private SAXException validationError = null;
+    private SAXParseException fatalError = null;
+
+    /**
+     * Construct an instance of the handler class
+     */
+    public EMLIdentifierHandler() {
+        super();
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts)
+                                                                        throws SAXException {
+        if (emlNamespace == null) {
+            emlNamespace = uri == null ? "" : uri;
+        }
+        super.startElement(uri, localName, qName, atts);
+        if (pointerText != null) {
+            violate("the element " + elements.peek() + " has the child " + localName);
+        }
+        boolean eml = uri == null || uri.equals("") || uri.equals(emlNamespace);
+        String id = atts.getValue("", ID);
+        if (id != null) {
+            if (!allIds.add(id) && duplicate == null) {
+                duplicate = "the id " + id + " is not unique";
+                logMetacat.debug("EMLIdentifierHandler.startElement - " + duplicate);
+            }
+            if (eml) {
+                ids.put(id, localName);
+            }
+        }
+        String reference = atts.getValue("", REFERENCES);
+        if (reference != null) {
+            pointers.add(new String[] {reference, null});
+        }
+        if (localName.equals(REFERENCES) || localName.equals(DESCRIBES)) {
+            pointerText = new StringBuilder();
+            pointerType = null;
+            if (localName.equals(REFERENCES) && !elements.isEmpty()) {
+                pointerType = elements.peek();
+                if (elementHasId.peek()) {
+                    violate("the element " + pointerType + " has both an id and references");
+                }
+            }
+        } else {
+            pointerText = null;
+        }
+        elements.push(localName);
+        elementHasId.push(id != null);
+    }
+
+    @Override
+    public void characters(char[] cbuf, int start, int len) throws SAXException {
+        super.characters(cbuf, start, len);
+        if (pointerText != null) {
+            pointerText.append(cbuf, start, len);
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        super.endElement(uri, localName, qName);
+        if (pointerText != null) {
+            pointers.add(new String[] {pointerText.toString(), pointerType});
+            pointerText = null;
+        }
+        elements.pop();
+        elementHasId.pop();
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        super.endDocument();
+        for (String[] pointer : pointers) {
+            String type = ids.get(pointer[0]);
+            if (type == null) {
+                violate("no element has the id " + pointer[0]);
+            } else if (pointer[1] != null && !pointer[1].equals(type)) {
+                violate("the element " + pointer[1] + " references the " + type + " "
+                            + pointer[0]);
+            }
+        }
+        ended = true;
+    }
+
+    /**
+     * Keep the error of a document which isn't well-formed, so it can be reported as the
+     * EMLParser did, and stop the parsing
+     */
+    @Override
+    public void fatalError(SAXParseException exception) throws SAXException {
+        if (fatalError == null) {
+            fatalError = exception;
+        }
+        super.fatalError(exception);
+    }
+
+    /**
+     * Keep the first schema validation error rather than throwing it, so the parsing goes on
+     * and the ids of the whole document are checked
+     */
+    @Override
+    public void error(SAXParseException exception) throws SAXException {
+        if (validationError == null) {
+            try {
+                super.error(exception);
+            } catch (SAXException e) {
+                validationError = e;
+            }
+        }
+    }
+
+    /**
+     * Keep the first warning rather than throwing it, as the validation errors are kept
+     */
+    @Override
+    public void warning(SAXParseException exception) throws SAXException {
+        if (validationError == null) {
+            try {
+                super.warning(exception);
+            } catch (SAXException e) {
+                validationError = e;
+            }
+        }
+    }
+
+    private void violate(String reason) {
+        if (violation == null) {
+            violation = reason;
+            logMetacat.debug("EMLIdentifierHandler.violate - " + reason);
+        }
+    }
+
+    /**
+     * Check if the whole document was parsed and its ids passed the checks
+     * @return true if the ids of the document are fine
+     */
+    public boolean isChecked() {
+        return ended && duplicate == null && violation == null;
+    }
+
+    /**
+     * Get the error the EMLParser would have thrown for the document: the parse error of a
+     * document which isn't well-formed, the first duplicated id or the first other violation.
+     * @return the error. Null if there is none or if the parsing was stopped by another error,
+     *         e.g. of the content handler, before the ids were checked.
+     */
+    public EMLParserException getIdentifierError() {
+        if (fatalError != null) {
+            return new EMLParserException(fatalError.getMessage());
+        } else if (!ended) {
+            return null;
+        } else if (duplicate != null) {
+            return new EMLParserException(ERROR_PREFIX + duplicate + ".");
+        } else if (violation != null) {
+            return new EMLParserException(ERROR_PREFIX + violation + ".");
+        }
+        return null;
+    }
+
+    /**
+     * Get the first schema validation error or warning found in the document
+     * @return the error as the DBSAXHandler would have thrown it. Null if there is none.
+     */
+    public SAXException getValidationError() {
+        return validationError;
+    }
+}
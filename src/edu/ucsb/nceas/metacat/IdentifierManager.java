@@ -1,6 +1,7 @@
 package edu.ucsb.nceas.metacat;
 
 import java.io.File;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -33,14 +34,13 @@ import org.dataone.service.types.v2.MediaTypeProperty;
 import org.dataone.service.types.v2.SystemMetadata;
 
 import edu.ucsb.nceas.metacat.accesscontrol.XMLAccessAccess;
+import edu.ucsb.nceas.metacat.common.storage.ObjectStoreFactory;
 import edu.ucsb.nceas.metacat.database.DBConnection;
 import edu.ucsb.nceas.metacat.database.DBConnectionPool;
 import edu.ucsb.nceas.metacat.database.DatabaseService;
-import edu.ucsb.nceas.metacat.properties.PropertyService;
 import edu.ucsb.nceas.metacat.shared.AccessException;
 import edu.ucsb.nceas.metacat.shared.ServiceException;
 import edu.ucsb.nceas.metacat.util.DocumentUtil;
-import edu.ucsb.nceas.utilities.FileUtil;
 import edu.ucsb.nceas.utilities.PropertyNotFoundException;
 import edu.ucsb.nceas.utilities.access.AccessControlInterface;
 import edu.ucsb.nceas.utilities.access.XMLAccessDAO;
@@ -1899,15 +1899,15 @@ public class IdentifierManager {
      */
     public String getObjectFilePath(String localId, boolean isScienceMetadata) throws PropertyNotFoundException {
         String documentPath = null;
-        if (localId != null) {      
-            String documentDir = null;
+        if (localId != null) {
             // get the correct location on disk
-            if (isScienceMetadata) {
-                documentDir = PropertyService.getProperty("application.documentfilepath");
-            } else {
-                documentDir = PropertyService.getProperty("application.datafilepath");
+            try {
+                documentPath = ObjectStoreFactory.getStore(isScienceMetadata).getPath(localId)
+                                                                                .toString();
+            } catch (IOException e) {
+                logMetacat.error("IdentifierManager.getObjectFilePath - can't open the object "
+                                     + "store since " + e.getMessage());
             }
-            documentPath = documentDir + FileUtil.getFS() + localId;
         }
         logMetacat.debug("IdentifierManager.getObjectFilePath - the file path for the object with localId "
                         + localId + " which is scienceMetacat " + isScienceMetadata + ", is "
@@ -1,24 +1,25 @@
 package edu.ucsb.nceas.metacat;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.io.StringReader;
-import java.nio.charset.StandardCharsets;
+import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
+import java.nio.file.StandardCopyOption;
 import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.bind.DatatypeConverter;
+import javax.xml.stream.XMLStreamException;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
@@ -30,7 +31,9 @@ import org.dataone.service.types.v1.Checksum;
 import org.dataone.service.types.v1.Identifier;
 import org.dataone.service.types.v1.ObjectFormatIdentifier;
 import org.dataone.service.types.v2.SystemMetadata;
-import org.ecoinformatics.eml.EMLParser;
+import org.dspace.foresite.OREException;
+import org.dspace.foresite.OREParserException;
+import org.ecoinformatics.eml.EMLParserException;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
@@ -38,17 +41,23 @@ import org.xml.sax.XMLReader;
 import edu.ucsb.nceas.metacat.client.InsufficientKarmaException;
 import edu.ucsb.nceas.metacat.client.MetacatException;
 import edu.ucsb.nceas.metacat.common.Settings;
+import edu.ucsb.nceas.metacat.common.storage.ObjectStore;
+import edu.ucsb.nceas.metacat.common.storage.ObjectStoreFactory;
 import edu.ucsb.nceas.metacat.database.DBConnection;
 import edu.ucsb.nceas.metacat.database.DBConnectionPool;
 import edu.ucsb.nceas.metacat.dataone.D1NodeService;
+import edu.ucsb.nceas.metacat.dataone.resourcemap.PackageMembershipDAO;
 import edu.ucsb.nceas.metacat.object.handler.NonXMLMetadataHandler;
 import edu.ucsb.nceas.metacat.object.handler.NonXMLMetadataHandlers;
 import edu.ucsb.nceas.metacat.properties.PropertyService;
+import edu.ucsb.nceas.metacat.restservice.multipart.CheckedFile;
 import edu.ucsb.nceas.metacat.restservice.multipart.DetailedFileInputStream;
 import edu.ucsb.nceas.metacat.restservice.multipart.StreamingMultipartRequestResolver;
+import edu.ucsb.nceas.metacat.service.XMLPrologParser;
 import edu.ucsb.nceas.metacat.service.XMLSchema;
 import edu.ucsb.nceas.metacat.service.XMLSchemaService;
-import edu.ucsb.nceas.metacat.shared.ServiceException;
+import edu.ucsb.nceas.metacat.storage.ChecksumCalculator;
+import edu.ucsb.nceas.metacat.storage.ChecksumDAO;
 import edu.ucsb.nceas.metacat.systemmetadata.SystemMetadataManager;
 import edu.ucsb.nceas.metacat.util.DocumentUtil;
 import edu.ucsb.nceas.utilities.LSIDUtil;
@@ -296,10 +305,31 @@ public class MetacatHandler {
             throw new InvalidRequest("1181", "Metacat cannot save the object for "
                             + pid.getValue() + " into disk since the client identity is blank");
         }
-        InputStream dataStream = validate(object, sysmeta, docType);
+        StagedObject staged = null;
         int serialNumber = -1;
         DBConnection conn = null;
         try {
+            // Write and verify the bytes before a DB connection is checked out, so a slow or
+            // large upload doesn't pin a pooled connection and the row locks of the transaction.
+            // The object stream will be closed in the stageBytes method.
+            ObjectStore objectStore = null;
+            try {
+                objectStore = getObjectStore(docType);
+            } catch (IOException e) {
+                throw new ServiceFailure("1190", "Metacat cannot save the object "
+                                            + pid.getValue() + " since " + e.getMessage());
+            }
+            staged = stageBytes(objectStore, object, sysmeta.getChecksum(), pid);
+            if (!docType.equals(DocumentImpl.BIN)) {
+                // validate the metadata from the staged file, which can be read several times
+                // without holding the object in memory
+                validateSciMeta(ReplayableInputSource.of(staged.getFile()),
+                                sysmeta.getFormatId());
+            }
+            Set<Identifier> members = null;
+            if (PackageMembershipDAO.isResourceMap(sysmeta.getFormatId())) {
+                members = parsePackageMembers(pid, staged.getFile());
+            }
             conn = DBConnectionPool.getDBConnection("MetacatHandler.save");
             serialNumber = conn.getCheckOutSerialNumber();
             Path newObject = null;
@@ -330,15 +360,17 @@ public class MetacatHandler {
                     SystemMetadataManager.getInstance().store(preSys, true, conn,
                                                       SystemMetadataManager.SysMetaVersion.CHECKED);
                 }
-                // Save bytes into disk. If the localId already exists, the saveBytes should
-                // throw an exception
-                newObject = saveBytes(dataStream, localId, sysmeta.getChecksum(), docType, pid);
+                // Publish the staged bytes by moving them to the object file. If the localId
+                // already exists, the publish should throw an exception
+                newObject = publish(objectStore, localId, staged, pid);
+                ChecksumDAO.getInstance().add(pid, staged.getChecksums(), conn);
+                PackageMembershipDAO.getInstance().add(pid, members, conn);
                 conn.commit();
             } catch (InvalidSystemMetadata e) {
-                error = clearUp(e, newObject, error, conn);
+                error = clearUp(e, newObject, docType, error, conn);
                 throw new InvalidSystemMetadata("1180", error.toString());
             } catch (Exception e) {
-                error = clearUp(e, newObject, error, conn);
+                error = clearUp(e, newObject, docType, error, conn);
                 throw new ServiceFailure("1190", error.toString());
             }
         } catch (SQLException e) {
@@ -357,72 +389,45 @@ public class MetacatHandler {
             if (conn != null) {
                 DBConnectionPool.returnDBConnection(conn, serialNumber);
             }
-            IOUtils.closeQuietly(dataStream);
+            if (staged != null) {
+                staged.discard();
+            }
             IOUtils.closeQuietly(object);
         }
         return localId;
     }
 
     /**
-     * Validate the object if it is a metadata object and return back the same content
-     * (in a readable InputStream object format) for the next steps
-     * @param object  the InputStream object of the object
-     * @param sysmeta  the system metadata associated with the object
-     * @param docType  the doc type of the object
-     * @return the content of the given object (in a readable InputStream object format)
+     * Parse the members of a resource map, which are recorded in the package_membership table
+     * in the transaction saving the resource map. A resource map which can't be parsed has no
+     * members, as it wouldn't be indexed either.
+     * @param pid  the identifier of the resource map
+     * @param resourceMap  the (staged) file of the resource map
+     * @return the identifiers of the members. Null if it can't be parsed.
      * @throws IOException
-     * @throws InvalidRequest
-     * @throws ServiceFailure
      */
-    private InputStream validate(InputStream object, SystemMetadata sysmeta, String docType)
-                                               throws IOException, InvalidRequest, ServiceFailure {
-        InputStream dataStream = null; // we will assign different stream for this variable.
-        if (!docType.equals(DocumentImpl.BIN)) {
-            // Handle the metadata objects and it needs validation
-            // Validation will consume the input stream. If the original input
-            // stream (the case is in the MN.replicate method) can't be reset, it will be an issue.
-            // So we put it in the memory. This has been a long practice and doesn't cause issues.
-            // The hash-map storage will fix it eventually
-            byte[] metaBytes = IOUtils.toByteArray(object);
-            validateSciMeta(metaBytes, sysmeta.getFormatId());
-            if (object instanceof DetailedFileInputStream detailedStream) {
-                if (detailedStream.getExpectedChecksum() == null) {
-                    dataStream = new ByteArrayInputStream(metaBytes);
-                    if (detailedStream.getFile() != null) {
-                        // Metacat needs to delete the temp file
-                        StreamingMultipartRequestResolver.deleteTempFile(detailedStream.getFile());
-                    }
-                    IOUtils.closeQuietly(detailedStream);
-                    logMetacat.info("The DetailedInputStream doesn't have the checksum."
-                              + "So Metacat will use ByteArrayInputStream as the source for "
-                              + "saving to disk because of its higher performance.");
-                } else {
-                    dataStream = object;
-                    logMetacat.info("The DetailedInputStream does have the checksum."
-                            + "So Metacat will use DetailedInputStream as the source for "
-                            + "saving to disk because of no need to calculate checksum.");
-                }
-            } else {
-                dataStream = new ByteArrayInputStream(metaBytes);
-                logMetacat.info("Be default, Metacat will use ByteArrayInputStream as "
-                              + "the source for saving to disk.");
-            }
-        } else {
-            dataStream = object;
-            logMetacat.info("In the data route, dataStream will use the original object stream.");
+    private Set<Identifier> parsePackageMembers(Identifier pid, Path resourceMap)
+                                                                        throws IOException {
+        try (InputStream content = Files.newInputStream(resourceMap)) {
+            return PackageMembershipDAO.parseMembers(content);
+        } catch (OREException | OREParserException | URISyntaxException e) {
+            logMetacat.warn("MetacatHandler.parsePackageMembers - Metacat can't parse the "
+                                + "resource map " + pid.getValue() + " since " + e.getMessage()
+                                + ". So its members are not recorded.");
+            return null;
         }
-        return dataStream;
     }
 
     /**
      * Clear up database and object file when the save failed. Try to restore the original state.
      * @param e  the exception arose in the save method
      * @param newObject  the object which might create in the save method
+     * @param docType  the type of the object - data (BIN) or metadata
      * @param error  the string buffer holding the error message
      * @param conn  the connection to db
      * @return the string buffer which holds all error message.
      */
-    private StringBuffer clearUp(Exception e, Path newObject,
+    private StringBuffer clearUp(Exception e, Path newObject, String docType,
                                                     StringBuffer error, DBConnection conn) {
         error.append(e.getMessage());
         // Clean up database
@@ -435,11 +440,12 @@ public class MetacatHandler {
         // Metacat also needs to delete the new created file. Null is the indicator if an object
         // was created.
         if (newObject != null) {
-            // This means that we successfully created a new object in the saveBytes method.
+            // This means that we successfully created a new object in the publish method.
             // Note: even though the dir+localId may physically point to an existing object,
-            // the newObject still should be null when the saveBytes method throws an exception.
+            // the newObject still should be null when the publish method throws an exception.
             try {
-                Files.delete(newObject);
+                // the file name is the local id in every layout
+                getObjectStore(docType).delete(newObject.getFileName().toString());
             } catch (IOException ie) {
                 error.append(". Moreover, it cannot delete generated object since ")
                                                                 .append(ie.getMessage());
@@ -448,6 +454,18 @@ public class MetacatHandler {
         return error;
     }
 
+    /**
+     * Get the store of the objects of the given type
+     * @param docType  the type of object. BIN means data; otherwise means metadata
+     * @return the object store of the data or metadata directory
+     * @throws IOException
+     */
+    private static ObjectStore getObjectStore(String docType) throws IOException {
+        checkObjectDirs();
+        return ObjectStoreFactory.getStore(docType.equals(DocumentImpl.BIN) ? dataDir
+                                                                               : metadataDir);
+    }
+
     /**
      * Read a file from Metacat's configured file system object directories.
      * @param dir  the directory where the file is located
@@ -462,7 +480,7 @@ public class MetacatHandler {
         InputStream inputStream = null;
 
         try {
-            inputStream = Files.newInputStream(Paths.get(dir,filename));
+            inputStream = ObjectStoreFactory.getStore(dir).open(filename);
 
         } catch (NoSuchFileException fnfe) {
             logMetacat.warn("There was an error reading the file " + filename + ". The error was: "
@@ -490,64 +508,58 @@ public class MetacatHandler {
     protected Path saveBytes(InputStream object, String localId, Checksum checksum,
                                                             String docType, Identifier pid)
                                       throws ServiceFailure, InvalidSystemMetadata, InvalidRequest {
-        try {
-            checkObjectDirs();
-        } catch (IOException e) {
-            throw new ServiceFailure("1190", e.getMessage());
-        }
         if (docType == null || docType.isBlank()) {
             throw new InvalidRequest("1181", "Metacat cannot save bytes for "
                                      + pid.getValue() + " into disk since the doc type is blank.");
         }
-        String objectDirectory = null;
-        if (!docType.equals(DocumentImpl.BIN)) {
-            objectDirectory = metadataDir;
-        } else {
-            objectDirectory = dataDir;
+        if (localId == null || localId.isBlank()) {
+             throw new InvalidRequest("1181", "The docid which will be used as file name for "
+                                 + " saving " + pid.getValue() + " to disk should not be blank");
+        }
+        ObjectStore objectStore = null;
+        try {
+            objectStore = getObjectStore(docType);
+        } catch (IOException e) {
+            throw new ServiceFailure("1190", e.getMessage());
+        }
+        logMetacat.debug("File " + localId + " will be saved to " + objectStore.getDirectory());
+        // The object stream will be closed in the stageBytes method
+        StagedObject staged = stageBytes(objectStore, object, checksum, pid);
+        try {
+            return publish(objectStore, localId, staged, pid);
+        } finally {
+            staged.discard();
         }
-        logMetacat.debug("File " + localId + " will be saved to " + objectDirectory);
-        // The object stream will be closed in the writeStreamToFile method
-        return writeStreamToFile(objectDirectory, localId, object, checksum, pid);
     }
 
     /**
-     * Write a stream to a file. This method prevents the overwriting of an existing object by
-     * using the Files.move and Files.copy methods.
+     * Write a stream to a staging file of the object store and verify it against the checksum
+     * from the system metadata. This happens before the database transaction of the saving, so a
+     * slow upload doesn't hold a DB connection. The staged file isn't visible as an object until
+     * it is published.
      *
-     * @param dir  the directory to write to
-     * @param localId  the file name to write to
-     * @param dataStream  the object bytes as an input stream
-     * @param cheksum  the checksum from system metadata. We need to compare it to the one, which
-     *                  Metacat calculate during the saving process.
+     * @param objectStore  the object store where the object will be published
+     * @param dataStream  the object bytes as an input stream. It will be closed.
+     * @param checksum  the checksum from system metadata. We need to compare it to the one, which
+     *                  Metacat calculate during the staging process.
      * @param pid  only for debugging purpose
-     * @return a Path object - the new file created
-     *
+     * @return the staged object with its checksums
      * @throws ServiceFailure
      * @throws InvalidSystemMetadata
      * @throws InvalidRequest
      */
-    private Path writeStreamToFile(String dir, String localId, InputStream dataStream,
+    protected StagedObject stageBytes(ObjectStore objectStore, InputStream dataStream,
                                           Checksum checksum, Identifier pid) throws ServiceFailure,
                                                             InvalidSystemMetadata, InvalidRequest {
-        if(checksum == null) {
-             throw new InvalidSystemMetadata("1180", "The checksum from the system metadata for "
-                              + " saving " + pid.getValue() + " into disk shouldn't be null.");
-        }
-        if (localId == null || localId.isBlank()) {
-             throw new InvalidRequest("1181", "The docid which will be used as file name for "
-                                 + " saving " + pid.getValue() + " to disk should not be blank");
-        }
-        if (dataStream == null) {
-            throw new InvalidRequest("1181", "The source stream for saving "
-                                     + pid.getValue() + " into disk should not be blank");
-        }
-        Path newFile = null;
-        logMetacat.debug("Starting to write to disk.");
-        newFile = Paths.get(dir, localId);
-        File tempFile = null;
-        logMetacat.debug( "The file path for writing is: " + newFile + " for the data object pid "
-                          + pid.getValue());
         try {
+            if(checksum == null) {
+                 throw new InvalidSystemMetadata("1180", "The checksum from the system metadata "
+                                  + "for saving " + pid.getValue() + " into disk shouldn't be null.");
+            }
+            if (dataStream == null) {
+                throw new InvalidRequest("1181", "The source stream for saving "
+                                         + pid.getValue() + " into disk should not be blank");
+            }
             String checksumValue = checksum.getValue();
             logMetacat.debug("The checksum value from the system " + "metadata is "
                                 + checksumValue + " for the object " + pid.getValue());
@@ -565,97 +577,93 @@ public class MetacatHandler {
                                  + "shouldn't be null or blank.");
             }
             long start = System.currentTimeMillis();
+            File tempFile = null;
             //if the input stream is an object DetailedFileInputStream, it means this object
             // may already have the checksum information when Metacat save request from the clients.
             if (dataStream instanceof DetailedFileInputStream) {
                 DetailedFileInputStream stream = (DetailedFileInputStream) dataStream;
                 tempFile = stream.getFile();
-                Checksum expectedChecksum = stream.getExpectedChecksum();
+                // the multipart handler calculates several algorithms, so it may have the one of
+                // the system metadata even if it didn't know the system metadata then
+                Checksum expectedChecksum = stream.getChecksum(algorithm);
                 if (expectedChecksum != null) {
                     //Good, Metacat has already calculated the checksum during the first place.
                     //This Metacat calculated checksum is considered as the true value.
                     //We need to compare the true value with the declaration from the systemmetadata
-                    String expectedAlgorithm = expectedChecksum.getAlgorithm();
                     String expectedChecksumValue = expectedChecksum.getValue();
-                    if (expectedAlgorithm != null
-                                               && expectedAlgorithm.equalsIgnoreCase(algorithm)) {
-                        //The algorithm is the same and the checksum is same, we just need to
-                        // move the file from the temporary location (serialized by the
-                        // multiple parts handler) to the permanent location
-                        if (expectedChecksumValue != null
-                            && expectedChecksumValue.equalsIgnoreCase(checksumValue)) {
-                            //**********************************************************************
-                            //**********************************************************************
-                            // This is the first place (the total places is two) to write bytes to
-                            // the permanent object storage location. This is a fast one - moving.
-                            // According to documentation, By default, the move method attempts to
-                            // move the file to the target file, failing if the target file
-                            // exists except if the source and target are the same file, in
-                            // which case this method has no effect. So It should not overwrite an
-                            // existing data object.
-                            // https://docs.oracle.com/javase/8/docs/api/java/nio/file/Files.html
-                            Files.move(tempFile.toPath(), newFile);
-                            long end = System.currentTimeMillis();
-                            logMetacat.info("Metacat only needs the move the object file from "
-                                    + "temporary location to the permanent location for the object "
-                                    + pid.getValue());
-                            logMetacat.info(Settings.PERFORMANCELOG + pid.getValue()
-                                    + Settings.PERFORMANCELOG_CREATE_UPDATE_METHOD
-                                    + " Only move the data file from the temporary location "
-                                    + "to the permanent location since the multiparts handler"
-                                    + " has calculated the checksum"
-                                    + Settings.PERFORMANCELOG_DURATION + (end - start)/1000);
-                            return newFile;
-                        } else {
-                            throw new InvalidSystemMetadata("1180", "The check sum calculated "
-                                   + "from the saved local file is "
-                                    + expectedChecksumValue
-                                    + ". But it doesn't match the value from the system "
-                                    + "metadata " + checksumValue
-                                    + " for the object " + pid.getValue());
-                        }
-                    } else {
-                        logMetacat.info( "The checksum algorithm which "
-                                        + "the multipart handler used is "
-                                        + expectedAlgorithm
-                                        + " and it is different to one on the system metadata "
-                                        + algorithm + ". So we have to calculate again.");
+                    if (expectedChecksumValue == null
+                        || !expectedChecksumValue.equalsIgnoreCase(checksumValue)) {
+                        throw new InvalidSystemMetadata("1180", "The check sum calculated "
+                               + "from the saved local file is "
+                                + expectedChecksumValue
+                                + ". But it doesn't match the value from the system "
+                                + "metadata " + checksumValue
+                                + " for the object " + pid.getValue());
                     }
+                    //**************************************************************************
+                    // This is the fast one. The file written by the multiple parts handler is
+                    // moved into the temporary directory of the object store and staged there.
+                    // The multipart directory may be on another file system, where the move
+                    // copies the bytes, so it happens here rather than in the transaction.
+                    Path stagedFile = objectStore.createStagingFile();
+                    try {
+                        Files.move(tempFile.toPath(), stagedFile,
+                                   StandardCopyOption.REPLACE_EXISTING);
+                    } catch (IOException e) {
+                        Files.deleteIfExists(stagedFile);
+                        throw e;
+                    }
+                    Map<String, String> checksums = new HashMap<String, String>();
+                    checksums.put(ChecksumCalculator.normalize(algorithm),
+                                  expectedChecksumValue.toLowerCase());
+                    if (tempFile instanceof CheckedFile
+                                        && ((CheckedFile) tempFile).getChecksums() != null) {
+                        checksums.putAll(((CheckedFile) tempFile).getChecksums());
+                    }
+                    long end = System.currentTimeMillis();
+                    logMetacat.info(Settings.PERFORMANCELOG + pid.getValue()
+                            + Settings.PERFORMANCELOG_CREATE_UPDATE_METHOD
+                            + " Only verify the data file and move it to the staging location "
+                            + "since the multiparts handler has calculated the checksum"
+                            + Settings.PERFORMANCELOG_DURATION + (end - start)/1000);
+                    return new StagedObject(stagedFile, checksums);
+                } else {
+                    logMetacat.info("The multipart handler didn't calculate the checksum with "
+                                    + "the algorithm on the system metadata " + algorithm
+                                    + ". So we have to calculate again.");
                 }
             }
             //**************************************************************************************
-            //**************************************************************************************
-            // This is the second place (the total places is two) to write bytes to
-            // the permanent object storage location. This is a slow one - Writing bytes into disk
-            // while calculating the checksum. This place handle all other scenarios except the
-            // first quick one, which already has the checksum and we can compare it to the one from
-            // the system metadata.
-            // According to documentation, by default, the Files.copy fails if the target file
-            // already exists or is a symbolic link. So It should not overwrite an
-            // existing data object, which is good.
-            // https://docs.oracle.com/javase/8/docs/api/java/nio/file/Files.html
-            MessageDigest md = MessageDigest.getInstance(algorithm);//use the one from the systemeta
-            try (DigestInputStream is = new DigestInputStream(dataStream, md)) {
-                Files.copy(is, newFile);
-            }
-            String localChecksum = DatatypeConverter.printHexBinary(md.digest());
-            logMetacat.debug("The check sum calculated from the finally saved process is "
+            // This is the slow one - Writing bytes into a staging file while calculating the
+            // checksum. This place handle all other scenarios except the first quick one, which
+            // already has the checksum and we can compare it to the one from the system metadata.
+            Path stagedFile = objectStore.createStagingFile();
+            logMetacat.debug("The staging file for writing is: " + stagedFile
+                              + " for the data object pid " + pid.getValue());
+            // calculate the one from the systemeta and the common ones in the same pass
+            ChecksumCalculator calculator = new ChecksumCalculator(algorithm);
+            try (OutputStream out = calculator.wrap(Files.newOutputStream(stagedFile))) {
+                dataStream.transferTo(out);
+            } catch (IOException e) {
+                Files.deleteIfExists(stagedFile);
+                throw e;
+            }
+            String localChecksum = calculator.getChecksum(algorithm).getValue();
+            logMetacat.debug("The check sum calculated from the staged file is "
                              + localChecksum);
-            if (localChecksum == null || localChecksum.isBlank()
-                || !localChecksum.equalsIgnoreCase(checksumValue)) {
+            if (!localChecksum.equalsIgnoreCase(checksumValue)) {
                 StringBuffer error = new StringBuffer();
                 error.append("The checksum calculated from the saved local file is ")
                      .append(localChecksum)
                      .append(". But it doesn't match the value from the system metadata ")
                      .append(checksumValue).append(" for the object ").append(pid.getValue());
-                // The new object file was already generated even though the checksum in the
-                // system metadata is incorrect. So we have to delete it to restore to the original
-                // state and throw an exception
+                // The staged file was already generated even though the checksum in the
+                // system metadata is incorrect. So we have to delete it and throw an exception
                 try {
-                    Files.delete(newFile);
+                    Files.deleteIfExists(stagedFile);
                 } catch (IOException io) {
-                    error.append(" Moreover Metacat tried to delete the already generated file ")
-                         .append(newFile).append(" but failed since ").append(io.getMessage());
+                    error.append(" Moreover Metacat tried to delete the staged file ")
+                         .append(stagedFile).append(" but failed since ").append(io.getMessage());
                 }
                 logMetacat.error(error.toString());
                 throw new InvalidSystemMetadata("1180", error.toString());
@@ -664,7 +672,7 @@ public class MetacatHandler {
             logMetacat.info(Settings.PERFORMANCELOG + pid.getValue()
                     + Settings.PERFORMANCELOG_CREATE_UPDATE_METHOD
                     + " Need to read the data file from the temporary location and write it "
-                    + "to the permanent location since the multiparts handler has NOT "
+                    + "to the staging location since the multiparts handler has NOT "
                     + "calculated the checksum"
                     + Settings.PERFORMANCELOG_DURATION
                     + (end - start) / 1000);
@@ -672,21 +680,103 @@ public class MetacatHandler {
                 // Clean up
                 StreamingMultipartRequestResolver.deleteTempFile(tempFile);
             }
+            return new StagedObject(stagedFile, calculator.getChecksums());
         } catch (IOException e) {
             logMetacat.error(
                 "IOE: " + e.getMessage() + " for the data object " + pid.getValue(), e);
             throw new ServiceFailure(
-                "1190", "File was not written: " + localId + " " + e.getMessage());
+                "1190", "File was not staged for " + pid.getValue() + " " + e.getMessage());
         } catch (NoSuchAlgorithmException e) {
             logMetacat.error(
-                "D1NodeService.writeStreamToFile - no such checksum algorithm exception "
+                "MetacatHandler.stageBytes - no such checksum algorithm exception "
                     + e.getMessage() + " for the data object " + pid.getValue(), e);
             throw new ServiceFailure(
                 "1190", "No such checksum algorithm: " + " " + e.getMessage());
         } finally {
             IOUtils.closeQuietly(dataStream);
         }
-        return newFile;
+    }
+
+    /**
+     * Publish a staged object under its local id. The staged file is moved (renamed) into the
+     * object store, which fails if the local id exists, so it never overwrites an existing object.
+     * @param objectStore  the object store where the object was staged
+     * @param localId  the local id (file name) of the object
+     * @param staged  the staged object
+     * @param pid  only for debugging purpose
+     * @return the file of the new object
+     * @throws ServiceFailure
+     * @throws InvalidRequest
+     */
+    protected Path publish(ObjectStore objectStore, String localId, StagedObject staged,
+                                         Identifier pid) throws ServiceFailure, InvalidRequest {
+        if (localId == null || localId.isBlank()) {
+             throw new InvalidRequest("1181", "The docid which will be used as file name for "
+                                 + " saving " + pid.getValue() + " to disk should not be blank");
+        }
+        long start = System.currentTimeMillis();
+        try {
+            // the store doesn't need to read the file again to hash it
+            Path newFile = objectStore.putFile(localId, staged.getFile(),
+                                    staged.getChecksums().get(ChecksumCalculator.SHA_256));
+            long end = System.currentTimeMillis();
+            logMetacat.info(Settings.PERFORMANCELOG + pid.getValue()
+                    + Settings.PERFORMANCELOG_CREATE_UPDATE_METHOD
+                    + " Move the staged file to the permanent location " + newFile
+                    + Settings.PERFORMANCELOG_DURATION + (end - start)/1000);
+            return newFile;
+        } catch (IOException e) {
+            logMetacat.error(
+                "IOE: " + e.getMessage() + " for the data object " + pid.getValue(), e);
+            throw new ServiceFailure(
+                "1190", "File was not written: " + localId + " " + e.getMessage());
+        }
+    }
+
+    /**
+     * The bytes of an object which were written to disk and verified, but not published yet
+     */
+    protected static class StagedObject {
+        private Path file = null;
+        private Map<String, String> checksums = null;
+
+        /**
+         * Constructor
+         * @param file  the staged file in the temporary directory of the object store
+         * @param checksums  the checksums of the file - the normalized algorithm names to values
+         */
+        private StagedObject(Path file, Map<String, String> checksums) {
+            this.file = file;
+            this.checksums = checksums;
+        }
+
+        /**
+         * Get the staged file
+         * @return the path of the staged file
+         */
+        public Path getFile() {
+            return file;
+        }
+
+        /**
+         * Get the checksums calculated during the staging
+         * @return the map of the normalized algorithm names to the lower case hex values
+         */
+        public Map<String, String> getChecksums() {
+            return checksums;
+        }
+
+        /**
+         * Remove the staged file if it wasn't published. Nothing happens after the publishing.
+         */
+        public void discard() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                logMetacat.warn("MetacatHandler.StagedObject.discard - can't remove the "
+                                + "staged file " + file + " since " + e.getMessage());
+            }
+        }
     }
 
     /**
@@ -771,25 +861,38 @@ public class MetacatHandler {
 
     /**
      * Validate a scientific metadata object. It will throw an InvalidRequest if it is invalid.
-     * @param object  the content of the object. This is a byte array and so far it has not caused
-     *                the memory issue. In 3.1.0 release, it will be replaced.
+     * @param object  the content of the object
      * @param formatId  format id of the object
      * @throws InvalidRequest
      * @throws ServiceFailure
-     * @throws ServiceException
-     * @throws PropertyNotFoundException
      * @throws IOException
-     * @throws SAXException
-     * @throws MetacatException
      */
     protected void validateSciMeta(byte[] object, ObjectFormatIdentifier formatId)
                                          throws InvalidRequest, ServiceFailure, IOException {
+        validateSciMeta(ReplayableInputSource.of(object), formatId);
+    }
+
+    /**
+     * Validate a scientific metadata object. It will throw an InvalidRequest if it is invalid.
+     * The content is streamed from the source for every pass, so a file backed source is
+     * validated in memory independent of its size.
+     * @param object  the source of the content of the object
+     * @param formatId  format id of the object
+     * @throws InvalidRequest
+     * @throws ServiceFailure
+     * @throws IOException
+     */
+    protected void validateSciMeta(ReplayableInputSource object,
+                                   ObjectFormatIdentifier formatId)
+                                         throws InvalidRequest, ServiceFailure, IOException {
         NonXMLMetadataHandler handler =
                 NonXMLMetadataHandlers.newNonXMLMetadataHandler(formatId);
             if (handler != null) {
                 // a non-xml metadata object path
                 logMetacat.debug("Validate the non-XML scientific metadata object.");
-                handler.validate(new ByteArrayInputStream(object));
+                try (InputStream content = object.open()) {
+                    handler.validate(content);
+                }
             } else {
                 // an XML object
                 logMetacat.debug("Validate the XML scientific metadata object.");
@@ -799,24 +902,27 @@ public class MetacatHandler {
 
     /**
      * Validate an XML object. If it is not valid, an InvalidRequest will be thrown.
-     * @param object  the content of the object. This is a byte array and so far it has not caused
-     *                the memory issue. In 3.1.0 release, it will be replaced.
+     * @param object  the source of the content of the object
      * @param formatId  format id of the object
      * @throws IOException
      * @throws ServiceFailure
      * @throws InvalidRequest
      */
-    protected void validateXmlSciMeta(byte[] object, String formatId) throws IOException,
-                                                            ServiceFailure, InvalidRequest {
+    protected void validateXmlSciMeta(ReplayableInputSource object, String formatId)
+                                           throws IOException, ServiceFailure, InvalidRequest {
         boolean needValidation = false;
         String rule = null;
         String namespace = null;
         String schemaLocation = null;
-        String doctext = new String(object, StandardCharsets.UTF_8);
-        StringReader xmlReader = null;
+        boolean checkEMLIds = false;
+        InputSource xmlSource = null;
         try {
-            xmlReader = new StringReader(doctext);
-            needValidation = needDTDValidation(xmlReader);
+            // read the prolog and the root start tag once to choose the validator
+            XMLPrologParser prolog = null;
+            try (InputStream content = object.open()) {
+                prolog = XMLPrologParser.parse(content);
+            }
+            needValidation = prolog.hasExternalDTD();
             if (needValidation) {
                 // set a dtd base validation parser
                 logMetacat.debug(
@@ -824,9 +930,9 @@ public class MetacatHandler {
                         + "validate by a dtd");
                 rule = DocumentImpl.DTD;
             } else {
-                XMLSchemaService.getInstance().doRefresh();
-                xmlReader = new StringReader(doctext);
-                namespace = XMLSchemaService.findDocumentNamespace(xmlReader);
+                // the schema registry is a snapshot, which is reloaded only when the xml_catalog
+                // table changes. So it isn't refreshed for every object.
+                namespace = prolog.getNamespace();
                 if (namespace != null) {
                     logMetacat.debug(
                         "MetacatHandler.handleInsertOrUpdateAction - the xml object will be "
@@ -839,18 +945,16 @@ public class MetacatHandler {
                         // set eml2 base     validation parser
                         rule = DocumentImpl.EML200;
                         needValidation = true;
-                        // using emlparser to check id validation
-                        @SuppressWarnings("unused") EMLParser parser =
-                            new EMLParser(doctext);
+                        // the ids are checked in the validating parse
+                        checkEMLIds = true;
                     } else if (namespace.compareTo(DocumentImpl.EML2_1_0NAMESPACE) == 0
                         || namespace.compareTo(DocumentImpl.EML2_1_1NAMESPACE) == 0
                         || namespace.compareTo(DocumentImpl.EML2_2_0NAMESPACE) == 0) {
                         // set eml2 base validation parser
                         rule = DocumentImpl.EML210;
                         needValidation = true;
-                        // using emlparser to check id validation
-                        @SuppressWarnings("unused") EMLParser parser =
-                            new EMLParser(doctext);
+                        // the ids are checked in the validating parse
+                        checkEMLIds = true;
                     } else {
                         if (!XMLSchemaService.isNamespaceRegistered(namespace)) {
                             throw new ServiceFailure("1190", "The namespace " + namespace
@@ -866,9 +970,7 @@ public class MetacatHandler {
                         needValidation = true;
                     }
                 } else {
-                    xmlReader = new StringReader(doctext);
-                    String noNamespaceSchemaLocationAttr =
-                        XMLSchemaService.findNoNamespaceSchemaLocationAttr(xmlReader);
+                    String noNamespaceSchemaLocationAttr = prolog.getNoNamespaceSchemaLocation();
                     if (noNamespaceSchemaLocationAttr != null) {
                         logMetacat.debug(
                             "MetacatHandler.handleInsertOrUpdateAction - the xml object will "
@@ -889,87 +991,51 @@ public class MetacatHandler {
 
                 }
             }
-            xmlReader = new StringReader(doctext);
-            Vector<XMLSchema> schemaList = XMLSchemaService.findSchemasInXML(xmlReader);
-            xmlReader = new StringReader(doctext);
+            Vector<XMLSchema> schemaList = prolog.getSchemaList();
+            xmlSource = object.newInputSource();
             // set the dtd part null;
             XMLReader parser = DocumentImpl.initializeParser(schemaList, null, rule, needValidation,
                                                              schemaLocation);
+            EMLIdentifierHandler emlHandler = null;
+            if (checkEMLIds) {
+                // check the ids in the same pass as the schema validation
+                emlHandler = new EMLIdentifierHandler();
+                parser.setContentHandler(emlHandler);
+                parser.setErrorHandler(emlHandler);
+            }
+            SAXException invalid = null;
             try {
-                parser.parse(new InputSource(xmlReader));
+                parser.parse(xmlSource);
+                if (emlHandler != null) {
+                    invalid = emlHandler.getValidationError();
+                }
             } catch (SAXException e) {
-                throw new InvalidRequest("1181", "Invalid metadata: " + e.getMessage());
+                invalid = e;
+            } finally {
+                DocumentImpl.releaseParser(parser);
+            }
+            if (emlHandler != null) {
+                // The id errors are reported before the validation errors, as they were when
+                // the emlparser checked the document in a second pass.
+                EMLParserException idError = emlHandler.getIdentifierError();
+                if (idError != null) {
+                    throw idError;
+                }
             }
-        } catch (ServiceException | MetacatException | PropertyNotFoundException | SAXException e) {
+            if (invalid != null) {
+                throw new InvalidRequest("1181", "Invalid metadata: " + invalid.getMessage());
+            }
+        } catch (MetacatException | PropertyNotFoundException | SAXException
+                 | XMLStreamException e) {
             throw new ServiceFailure("1190", "Metacat cannot validate the object since "
                                                                             + e.getMessage());
         } finally {
-            if (xmlReader != null) {
-                // We don't use try-resource since the xmlReade object is assigned multiple times.
-                IOUtils.closeQuietly(xmlReader);
+            if (xmlSource != null) {
+                // We don't use try-resource since the stream is opened in the try block.
+                IOUtils.closeQuietly(xmlSource.getByteStream());
             }
         }
     }
 
-    /**
-     * Parse XML Document to look for <!DOCTYPE ... PUBLIC/SYSTEM ... > in order to decide whether
-     * to use validation parser
-     */
-    private static boolean needDTDValidation(StringReader xmlreader) throws IOException {
-        StringBuffer cbuff = new StringBuffer();
-        java.util.Stack<String> st = new java.util.Stack<String>();
-        boolean validate = false;
-        boolean commented = false;
-        int c;
-        int inx;
-
-        // read from the stream until find the keywords
-        while ((st.empty() || st.size() < 4) && ((c = xmlreader.read()) != -1)) {
-            cbuff.append((char) c);
-
-            if ((inx = cbuff.toString().indexOf("<!--")) != -1) {
-                commented = true;
-            }
-
-            // "<!DOCTYPE" keyword is found; put it in the stack
-            if ((inx = cbuff.toString().indexOf("<!DOCTYPE")) != -1) {
-                cbuff = new StringBuffer();
-                st.push("<!DOCTYPE");
-            }
-            // "PUBLIC" keyword is found; put it in the stack
-            if ((inx = cbuff.toString().indexOf("PUBLIC")) != -1) {
-                cbuff = new StringBuffer();
-                st.push("PUBLIC");
-            }
-            // "SYSTEM" keyword is found; put it in the stack
-            if ((inx = cbuff.toString().indexOf("SYSTEM")) != -1) {
-                cbuff = new StringBuffer();
-                st.push("SYSTEM");
-            }
-            // ">" character is found; put it in the stack
-            // ">" is found twice: fisrt from <?xml ...?>
-            // and second from <!DOCTYPE ... >
-            if ((inx = cbuff.toString().indexOf(">")) != -1) {
-                cbuff = new StringBuffer();
-                st.push(">");
-            }
-        }
-
-        // close the stream
-        xmlreader.reset();
-
-        // check the stack whether it contains the keywords:
-        // "<!DOCTYPE", "PUBLIC" or "SYSTEM", and ">" in this order
-        if (st.size() == 4) {
-            if ((st.pop()).equals(">") && ((st.peek()).equals("PUBLIC") | (st.pop()).equals(
-                "SYSTEM")) && (st.pop()).equals("<!DOCTYPE")) {
-                validate = true && !commented;
-            }
-        }
-
-        logMetacat.info("MetacatHandler.needDTDValidation - Validation for dtd is " + validate);
-        return validate;
-    }
-
 
 }
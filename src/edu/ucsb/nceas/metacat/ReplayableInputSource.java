@@ -0,0 +1,74 @@
+package edu.ucsb.nceas.metacat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.xml.sax.InputSource;
+
+/**
+ * The content of an object which can be read as many times as the validation needs, e.g. once
+ * for the prolog and once for the validating parse. It is usually backed by the staged file of
+ * an upload, so the content isn't held in memory; every read opens a new stream of the file.
+ * There is deliberately no way to read the whole content at once.
+ * @author tao
+ */
+public class ReplayableInputSource {
+    private final Path file;
+    private final byte[] bytes;
+
+    private ReplayableInputSource(Path file, byte[] bytes) {
+        this.file = file;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Create a source backed by a file
+     * @param file  the file holding the content
+     * @return the source
+     */
+    public static ReplayableInputSource of(Path file) {
+        return new ReplayableInputSource(file, null);
+    }
+
+    /**
+     * Create a source backed by a byte array in memory
+     * @param bytes  the content
+     * @return the source
+     */
+    public static ReplayableInputSource of(byte[] bytes) {
+        return new ReplayableInputSource(null, bytes);
+    }
+
+    /**
+     * Open a new stream from the beginning of the content. The caller should close it.
+     * @return the input stream
+     * @throws IOException
+     */
+    public InputStream open() throws IOException {
+        if (file != null) {
+            return Files.newInputStream(file);
+        }
+        return new ByteArrayInputStream(bytes);
+    }
+
+    /**
+     * Get a new SAX input source from the beginning of the content. The parser detects the
+     * encoding from the bytes. The caller should close its byte stream after the parsing.
+     * @return the input source
+     * @throws IOException
+     */
+    public InputSource newInputSource() throws IOException {
+        return new InputSource(open());
+    }
+
+    /**
+     * Get the file backing the content
+     * @return the file. Null if the content is in memory.
+     */
+    public Path getFile() {
+        return file;
+    }
+}
@@ -312,7 +312,7 @@ public class SchemaLocationResolver
       DBConnectionPool.returnDBConnection(conn, serialNumber);
 
     }//finally
-    XMLSchemaService.getInstance().populateRegisteredSchemaList();
+    // the caller refreshes the XMLSchemaService, which reloads the whole schema registry
   }
   
   /*
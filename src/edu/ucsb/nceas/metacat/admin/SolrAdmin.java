@@ -21,6 +21,8 @@ import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -67,6 +69,13 @@ public class SolrAdmin extends MetacatAdmin {
 
     private static SolrAdmin solrAdmin = null;
     private static Log logMetacat = LogFactory.getLog(SolrAdmin.class);
+    // runs the rebuild of the solr core. Its thread is interrupted when Metacat stops.
+    private static final ExecutorService rebuildExecutor = Executors.newSingleThreadExecutor(
+                                    task -> {
+                                        Thread thread = new Thread(task, "solr-core-rebuild");
+                                        thread.setDaemon(true);
+                                        return thread;
+                                    });
     //possibilities:
     //1. Create - both core and solr-home doesn't exist. Create solr-home and register the core.
     public static final String CREATE = "create";
@@ -103,6 +112,8 @@ public class SolrAdmin extends MetacatAdmin {
     // as same as the solr-home. There is a schema update indication
     private static final String SOLRXMLFILENAME = "solr.xml";
     public static final String UPDATE = "update";
+    // rebuild the existing core while it keeps serving the queries
+    public static final String REBUILD = "rebuild";
     public static final String UNKNOWN = "Unknown";
     public static final String ACTION = "action";
     public static final String CURRENTCOREINSTANCEDIR = "core-current-instance-dir";
@@ -170,7 +181,9 @@ public class SolrAdmin extends MetacatAdmin {
         String bypass = request.getParameter("bypass");
         String formErrors = (String) request.getAttribute("formErrors");
 
-        if (processForm == null || !processForm.equals("true") || formErrors != null) {
+        if (REBUILD.equals(request.getParameter(ACTION))) {
+            startRebuild(request, response);
+        } else if (processForm == null || !processForm.equals("true") || formErrors != null) {
             // check the current solr status
             // and send back the possible actions which user can operate.
             checkSolrStatus(request, response);
@@ -222,6 +235,36 @@ public class SolrAdmin extends MetacatAdmin {
         }
     }
 
+    /*
+     * Start the rebuild of the solr core and go back to the main configuration page
+     */
+    private void startRebuild(HttpServletRequest request, HttpServletResponse response)
+                                                                        throws AdminException {
+        Vector<String> processingErrors = new Vector<String>();
+        Vector<String> processingSuccess = new Vector<String>();
+        try {
+            rebuildCore();
+            processingSuccess.add("The rebuild of the Solr core started. The live core serves "
+                                + "the queries until the rebuilt core replaces it.");
+        } catch (AdminException e) {
+            logMetacat.error(e.getMessage());
+            processingErrors.add(e.getMessage());
+        }
+        try {
+            RequestUtil.clearRequestMessages(request);
+            if (processingErrors.size() > 0) {
+                RequestUtil.setRequestErrors(request, processingErrors);
+            } else {
+                RequestUtil.setRequestSuccess(request, processingSuccess);
+            }
+            RequestUtil.forwardRequest(request, response,
+                                       "/admin?configureType=configure&processForm=false", null);
+        } catch (MetacatUtilException mue) {
+            throw new AdminException("SolrAdmin.startRebuild - utility problem while processing "
+                                        + "the rebuild of the solr core: " + mue.getMessage());
+        }
+    }
+
     /**
      * Check the current solr status - such as if the solr core/solr-home directory exists,
      * and send back actions which user can choose based on the status.
@@ -687,36 +730,9 @@ public class SolrAdmin extends MetacatAdmin {
                         }
                         FileUtils.copyDirectory(new File(metacatIndexSolrHome),
                                                                new File(solrHomePath), fileFilter );
-                        //The solr home directory will be owned by the solr user,
-                        //but the tomcat group has the permission to write
-                        Path solrHomePathObj = Paths.get(solrHomePath);
-                        final Set<PosixFilePermission> perms = new HashSet<>();
-                        perms.add(PosixFilePermission.OWNER_READ);
-                        perms.add(PosixFilePermission.OWNER_WRITE);
-                        perms.add(PosixFilePermission.OWNER_EXECUTE);
-                        perms.add(PosixFilePermission.GROUP_READ);
-                        perms.add(PosixFilePermission.GROUP_WRITE);
-                        perms.add(PosixFilePermission.GROUP_EXECUTE);
-                        perms.add(PosixFilePermission.OTHERS_READ);
-                        perms.add(PosixFilePermission.OTHERS_EXECUTE);
                         //change the owner to solr
                         try {
-                            //change the file permission on the solr home directory recursively
-                            Files.walkFileTree(solrHomePathObj, new SimpleFileVisitor<Path>() {
-                                @Override
-                                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-                                                                                throws IOException {
-                                    Files.setPosixFilePermissions(file, perms);
-                                    return FileVisitResult.CONTINUE;
-                                }
-                                @Override
-                                public FileVisitResult postVisitDirectory(Path dir, IOException e)
-                                    throws IOException {
-                                    Files.setPosixFilePermissions(dir, perms);
-                                    return FileVisitResult.CONTINUE;
-                                }
-                            });
-
+                            grantGroupWrite(Paths.get(solrHomePath));
                         } catch (Exception e) {
                             String errorString = "SolrAdmin.createSolrHome - Metacat can't "
                                                 + "recursively set the user group the write "
@@ -765,6 +781,93 @@ public class SolrAdmin extends MetacatAdmin {
             }
     }
 
+    /**
+     * Change the file permissions on a solr home directory recursively. The solr home directory
+     * will be owned by the solr user, but the tomcat group has the permission to write.
+     * @param solrHome  the solr home directory
+     * @throws IOException
+     */
+    static void grantGroupWrite(Path solrHome) throws IOException {
+        final Set<PosixFilePermission> perms = new HashSet<>();
+        perms.add(PosixFilePermission.OWNER_READ);
+        perms.add(PosixFilePermission.OWNER_WRITE);
+        perms.add(PosixFilePermission.OWNER_EXECUTE);
+        perms.add(PosixFilePermission.GROUP_READ);
+        perms.add(PosixFilePermission.GROUP_WRITE);
+        perms.add(PosixFilePermission.GROUP_EXECUTE);
+        perms.add(PosixFilePermission.OTHERS_READ);
+        perms.add(PosixFilePermission.OTHERS_EXECUTE);
+        Files.walkFileTree(solrHome, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                                                                            throws IOException {
+                Files.setPosixFilePermissions(file, perms);
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e)
+                                                                            throws IOException {
+                Files.setPosixFilePermissions(dir, perms);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Rebuild the solr core in a background thread. The live core keeps serving the queries
+     * until the rebuilt core is validated and swapped in (see SolrCoreRebuilder). The
+     * embedded solr server is rejected up front.
+     * @throws AdminException  if the core can't be rebuilt or is already being rebuilt
+     */
+    public void rebuildCore() throws AdminException {
+        boolean embedded = false;
+        try {
+            // the factory doesn't create an admin client for the embedded solr server
+            embedded = SolrServerFactory.createSolrAdminClient() == null;
+        } catch (Exception e) {
+            throw new AdminException("SolrAdmin.rebuildCore - can't connect to the solr server "
+                                        + "since " + e.getMessage());
+        }
+        if (embedded) {
+            throw new AdminException("SolrAdmin.rebuildCore - the solr core can't be rebuilt "
+                                        + "since Metacat is configured with the embedded solr "
+                                        + "server. Only an http solr server supports it.");
+        }
+        if (SolrCoreRebuilder.isRunning()) {
+            throw new AdminException("SolrAdmin.rebuildCore - the solr core is already being "
+                                        + "rebuilt");
+        }
+        rebuildExecutor.execute(new SolrCoreRebuilder());
+    }
+
+    /**
+     * Stop a running rebuild of the solr core when Metacat stops. The rebuild rolls back if it
+     * can, otherwise it is recovered at the next start.
+     */
+    public static void shutdownRebuild() {
+        rebuildExecutor.shutdownNow();
+    }
+
+    /**
+     * Record the new instance directory of the solr core after a rebuild in metacat.properties
+     * and in the script file setting the environment variables of solr
+     * @param instanceDir  the instance directory of the rebuilt core
+     * @throws GeneralPropertyException
+     * @throws FileNotFoundException
+     * @throws AdminException
+     */
+    void relocateSolrHome(String instanceDir) throws GeneralPropertyException,
+                                                    FileNotFoundException, AdminException {
+        logMetacat.info("SolrAdmin.relocateSolrHome - the solr instance directory is "
+                                                                    + instanceDir);
+        PropertyService.setPropertyNoPersist("solr.homeDir", instanceDir);
+        PropertyService.persistProperties();
+        PropertyService.syncToSettings();
+        PropertyService.persistMainBackupProperties();
+        String solrEnvScriptPath = PropertyService.getProperty("solr.env.script.path");
+        modifySolrHomeInSolrEnvScript(instanceDir, solrEnvScriptPath);
+    }
+
     /**
      * Register the given core on the solr server
      * @throws PropertyNotFoundException
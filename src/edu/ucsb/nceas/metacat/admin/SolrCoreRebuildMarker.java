@@ -0,0 +1,210 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.admin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Properties;
+import java.util.TimerTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.request.CoreAdminRequest;
+import org.apache.solr.common.util.NamedList;
+import org.dataone.configuration.Settings;
+
+import edu.ucsb.nceas.metacat.common.SolrServerFactory;
+import edu.ucsb.nceas.metacat.properties.PropertyService;
+import edu.ucsb.nceas.utilities.PropertyNotFoundException;
+
+/**
+ * Tells the Metacat instances that the Solr core is being rebuilt, so they send every index
+ * task to the shadow core being filled as well as to the live core (see IndexGenerator).
+ *
+ * The signal shared by all instances is the shadow core itself on the Solr server: as a timer
+ * task, every instance checks whether it exists every solr.rebuild.watchInterval, and the
+ * rebuild waits that long before it submits the objects, so no change is missed. The live core
+ * keeps getting all changes and serving the queries, and nothing is removed from it.
+ *
+ * The host running the rebuild also records its start in a file in the backup directory
+ * (application.backupDir). Only that host reads the record, to clean up a rebuild interrupted
+ * by a restart, so the directory doesn't need to be shared by the instances.
+ * @author tao
+ */
+public class SolrCoreRebuildMarker extends TimerTask {
+    private static final String FILE_NAME = "solr-core-rebuild.properties";
+    private static final String START = "start";
+    private static final String HOST = "host";
+
+    private static Log logMetacat = LogFactory.getLog(SolrCoreRebuildMarker.class);
+    // the shadow core being rebuilt, which gets a copy of the index tasks of this instance
+    private static volatile String rebuildingCore = null;
+
+    @Override
+    public void run() {
+        try {
+            follow();
+        } catch (Exception e) {
+            logMetacat.warn("SolrCoreRebuildMarker.run - can't check if the Solr core is being "
+                                + "rebuilt since " + e.getMessage());
+        }
+    }
+
+    /**
+     * Check if the shadow core of a rebuild exists on the Solr server and send a copy of the
+     * index tasks of this instance to it if it does
+     * @throws Exception
+     */
+    public static synchronized void follow() throws Exception {
+        SolrClient client = getClient();
+        if (client == null) {
+            // the embedded solr server can't be rebuilt
+            return;
+        }
+        String shadowCore = Settings.getConfiguration().getString("solr.coreName")
+                                + SolrCoreRebuilder.SHADOW_SUFFIX;
+        NamedList<Object> status =
+                        CoreAdminRequest.getStatus(shadowCore, client).getCoreStatus(shadowCore);
+        // the status of a core which doesn't exist is missing or empty
+        boolean exists = status != null && status.get("instanceDir") != null;
+        setRebuildingCore(exists ? shadowCore : null);
+    }
+
+    /**
+     * Get the shadow core being rebuilt
+     * @return the name of the core. Null if no rebuild is running.
+     */
+    public static String getRebuildingCore() {
+        return rebuildingCore;
+    }
+
+    /**
+     * Send a copy of the index tasks of this instance to the given core, without waiting for
+     * the timer task
+     * @param core  the shadow core being rebuilt. Null stops sending the copies.
+     */
+    static void setRebuildingCore(String core) {
+        if (core == null ? rebuildingCore != null : !core.equals(rebuildingCore)) {
+            logMetacat.info("SolrCoreRebuildMarker.setRebuildingCore - the index tasks are "
+                    + (core == null ? "only sent to the live core"
+                                    : "sent to the rebuilding core " + core + " as well"));
+        }
+        rebuildingCore = core;
+    }
+
+    /**
+     * Record a rebuild run by this host
+     * @param start  the start of the rebuild
+     * @throws IOException
+     * @throws PropertyNotFoundException
+     */
+    static void write(Date start) throws IOException, PropertyNotFoundException {
+        Properties marker = new Properties();
+        marker.setProperty(START, Long.toString(start.getTime()));
+        marker.setProperty(HOST, getHostName());
+        Path file = getFile();
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), FILE_NAME, null);
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            marker.store(out, "A rebuild of the Solr core is running");
+        }
+        // a restart never reads a partial record
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Remove the record of a rebuild
+     * @throws IOException
+     * @throws PropertyNotFoundException
+     */
+    static void remove() throws IOException, PropertyNotFoundException {
+        Files.deleteIfExists(getFile());
+    }
+
+    /**
+     * Get the start of the rebuild recorded by this host
+     * @return the start. Null if there is no record of this host.
+     * @throws IOException
+     * @throws PropertyNotFoundException
+     */
+    static Date getStart() throws IOException, PropertyNotFoundException {
+        Properties marker = read();
+        if (marker == null || !getHostName().equals(marker.getProperty(HOST))) {
+            return null;
+        }
+        return new Date(Long.parseLong(marker.getProperty(START)));
+    }
+
+    /**
+     * Check if a rebuild started by this host is recorded, i.e. it was interrupted if this host
+     * is starting
+     * @return true if there is a record of this host
+     */
+    public static boolean isRecordedByThisHost() {
+        try {
+            Properties marker = read();
+            return marker != null && getHostName().equals(marker.getProperty(HOST));
+        } catch (IOException | PropertyNotFoundException e) {
+            logMetacat.warn("SolrCoreRebuildMarker.isRecordedByThisHost - can't read the record "
+                                + "of the rebuild of the Solr core since " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static Properties read() throws IOException, PropertyNotFoundException {
+        Properties marker = new Properties();
+        try (InputStream in = Files.newInputStream(getFile())) {
+            marker.load(in);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        return marker;
+    }
+
+    private static Path getFile() throws PropertyNotFoundException {
+        return Paths.get(PropertyService.getProperty("application.backupDir"), FILE_NAME);
+    }
+
+    private static String getHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+    /*
+     * The admin client of the http solr server. Null for the embedded solr server.
+     */
+    private static SolrClient getClient() throws Exception {
+        // the factory keeps one admin client
+        return SolrServerFactory.createSolrAdminClient();
+    }
+}
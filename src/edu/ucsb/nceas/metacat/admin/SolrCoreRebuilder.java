@@ -0,0 +1,550 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.admin;
+
+import java.io.File;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.request.CoreAdminRequest;
+import org.apache.solr.client.solrj.request.GenericSolrRequest;
+import org.apache.solr.client.solrj.request.RequestWriter;
+import org.apache.solr.client.solrj.response.CoreAdminResponse;
+import org.apache.solr.common.params.CoreAdminParams.CoreAdminAction;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.dataone.configuration.Settings;
+
+import edu.ucsb.nceas.metacat.common.SolrServerFactory;
+import edu.ucsb.nceas.metacat.dataone.MNodeService;
+import edu.ucsb.nceas.metacat.properties.PropertyService;
+
+/**
+ * Rebuilds the Solr core blue/green style, so the queries keep being served by the complete
+ * live core while all objects are reindexed into a shadow core, and a failed rebuild leaves
+ * the live core untouched.
+ *
+ * The steps are:
+ * 1. record the rebuild for the recovery after a restart (see SolrCoreRebuildMarker);
+ * 2. create an empty shadow core with a copy of the configuration of the live core and relax
+ *    its commits; 3. wait solr.rebuild.watchInterval, so every Metacat instance notices the
+ *    shadow core and sends a copy of its index tasks to it; 4. submit all objects to the
+ *    shadow core and wait until the documents show up or stop coming; 5. compare the number
+ *    of the documents with the submitted objects; 6. restore the commits and swap the cores,
+ *    so the rebuilt index serves the queries under the live name; 7. drop the old index and
+ *    the record.
+ * The live core gets every change during the rebuild, and so does the shadow core, through the
+ * copies of the index tasks. The index workers must honor the target core of the tasks (see
+ * SolrIndexTaskHandler in metacat-index). A worker ignoring it writes the shadow tasks to the
+ * live core, and the rebuild fails the check of the documents without a swap.
+ * If anything fails before the swap, the shadow core is dropped and the live core keeps
+ * serving the queries as before.
+ * @author tao
+ */
+public class SolrCoreRebuilder implements Runnable {
+    /** The suffix of the name and the instance directory of the shadow core */
+    public static final String SHADOW_SUFFIX = "-rebuild";
+
+    private static final String CONF = "conf";
+    private static Log logMetacat = LogFactory.getLog(SolrCoreRebuilder.class);
+    private static final AtomicBoolean running = new AtomicBoolean(false);
+
+    private SolrCores cores = null;
+    private Reindexer reindexer = null;
+    private String liveCore = null;
+    private String shadowCore = null;
+    private long pollInterval = 60000;
+    private long stallTimeout = 1800000;
+    private double minRatio = 0.999;
+    private long commitInterval = 300000;
+    private long watchInterval = 10000;
+
+    /**
+     * The operations on the cores of the Solr server and on the routing of the index tasks
+     */
+    interface SolrCores {
+        /**
+         * @return the instance directory of the core, or null if the core doesn't exist
+         */
+        String getInstanceDir(String coreName) throws Exception;
+
+        /**
+         * Create a core whose configuration is copied from the source instance directory
+         */
+        void create(String coreName, String sourceInstanceDir, String instanceDir)
+                                                                        throws Exception;
+
+        void swap(String coreName, String otherCoreName) throws Exception;
+
+        /**
+         * Unload the core and delete its index and data directory
+         */
+        void unload(String coreName) throws Exception;
+
+        long count(String coreName) throws Exception;
+
+        void commit(String coreName) throws Exception;
+
+        /**
+         * Only commit automatically at the given interval without opening a searcher
+         */
+        void relaxCommits(String coreName, long interval) throws Exception;
+
+        /**
+         * Go back to the commit settings of the configuration files
+         */
+        void restoreCommits(String coreName) throws Exception;
+
+        /**
+         * Send a copy of the index tasks of this instance to the rebuilding core, without
+         * waiting for the timer task. Null means only the live core gets them.
+         */
+        void follow(String rebuildingCore) throws Exception;
+
+        /**
+         * Record a rebuild run by this host
+         */
+        void mark(Date start) throws Exception;
+
+        /**
+         * Remove the record of the rebuild
+         */
+        void unmark() throws Exception;
+
+        /**
+         * @return the start of the rebuild recorded by this host, or null if there is no record
+         */
+        Date getMarkedStart() throws Exception;
+
+        /**
+         * @return the instance directory of the live core recorded in the configuration
+         */
+        String getHomeDir() throws Exception;
+
+        /**
+         * Record the instance directory of the live core in the configuration
+         */
+        void relocateHomeDir(String instanceDir) throws Exception;
+    }
+
+    /**
+     * The submission of the objects to the index queue
+     */
+    interface Reindexer {
+        /**
+         * Submit all objects to be indexed into the given core
+         * @return the number of the submitted objects
+         */
+        long submitAll(String coreName) throws Exception;
+    }
+
+    /**
+     * Constructor. The settings come from the solr.rebuild properties.
+     * @throws AdminException  if the Solr server isn't an http one
+     */
+    public SolrCoreRebuilder() throws AdminException {
+        this(new HttpSolrCores(), new MetacatReindexer(),
+             Settings.getConfiguration().getString("solr.coreName"),
+             Settings.getConfiguration().getLong("solr.rebuild.pollInterval", 60000),
+             Settings.getConfiguration().getLong("solr.rebuild.stallTimeout", 1800000),
+             Settings.getConfiguration().getDouble("solr.rebuild.minRatio", 0.999),
+             Settings.getConfiguration().getLong("solr.rebuild.commitInterval", 300000),
+             Settings.getConfiguration().getLong("solr.rebuild.watchInterval", 10000));
+    }
+
+    /**
+     * Constructor
+     * @param cores  the operations on the Solr cores
+     * @param reindexer  the submission of the objects
+     * @param liveCore  the name of the core serving the queries
+     * @param pollInterval  the interval (ms) of checking the progress of the reindex
+     * @param stallTimeout  the reindex is over when the count doesn't change in this time (ms)
+     * @param minRatio  the min ratio of the documents to the submitted objects for the swap
+     * @param commitInterval  the interval (ms) of the automatic commits of the rebuilding core
+     * @param watchInterval  the interval (ms) in which all Metacat instances notice the
+     *                        rebuilding core
+     */
+    SolrCoreRebuilder(SolrCores cores, Reindexer reindexer, String liveCore, long pollInterval,
+                      long stallTimeout, double minRatio, long commitInterval,
+                      long watchInterval) {
+        this.cores = cores;
+        this.reindexer = reindexer;
+        this.liveCore = liveCore;
+        this.shadowCore = liveCore + SHADOW_SUFFIX;
+        this.pollInterval = pollInterval;
+        this.stallTimeout = stallTimeout;
+        this.minRatio = minRatio;
+        this.commitInterval = commitInterval;
+        this.watchInterval = watchInterval;
+    }
+
+    /**
+     * @return true if a rebuild is running in this Metacat instance
+     */
+    public static boolean isRunning() {
+        return running.get();
+    }
+
+    @Override
+    public void run() {
+        try {
+            rebuild();
+        } catch (AdminException e) {
+            logMetacat.error("SolrCoreRebuilder.run - " + e.getMessage());
+        }
+    }
+
+    /**
+     * Rebuild the core. It returns after the rebuilt core serves the queries, which can take
+     * hours on a big instance.
+     * @throws AdminException  if the rebuild failed. The live core is unchanged.
+     */
+    public void rebuild() throws AdminException {
+        if (!running.compareAndSet(false, true)) {
+            throw new AdminException("SolrCoreRebuilder.rebuild - the Solr core " + liveCore
+                                            + " is already being rebuilt");
+        }
+        try {
+            if (cores.getMarkedStart() != null) {
+                recover();
+            }
+            if (cores.getInstanceDir(shadowCore) != null) {
+                throw new AdminException("SolrCoreRebuilder.rebuild - the core " + shadowCore
+                        + " exists, so the Solr core " + liveCore + " is being rebuilt by "
+                        + "another Metacat instance or an interrupted rebuild of another "
+                        + "instance left it. Unload the core " + shadowCore + " to start a new "
+                        + "rebuild.");
+            }
+            rebuildCore();
+        } catch (AdminException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new AdminException("SolrCoreRebuilder.rebuild - can't get the status of the "
+                                        + "core " + shadowCore + " since " + e.getMessage());
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Clean up a rebuild of this host which was interrupted, e.g. by a restart. The shadow core
+     * is dropped: it is either the partly filled one or, after the swap, the old index. If the
+     * swap happened, the configuration is pointed to the instance directory of the rebuilt core.
+     * @throws AdminException
+     */
+    public void recover() throws AdminException {
+        try {
+            cores.follow(null);
+            if (cores.getInstanceDir(shadowCore) != null) {
+                logMetacat.warn("SolrCoreRebuilder.recover - drop the core " + shadowCore
+                                        + " left by an interrupted rebuild");
+                cores.unload(shadowCore);
+            }
+            String liveDir = cores.getInstanceDir(liveCore);
+            if (liveDir != null && !sameDir(liveDir, cores.getHomeDir())) {
+                logMetacat.warn("SolrCoreRebuilder.recover - the rebuilt core " + liveCore
+                                + " was swapped in before the interruption, so the solr home "
+                                + "is changed to " + liveDir);
+                cores.relocateHomeDir(liveDir);
+            }
+            cores.unmark();
+        } catch (Exception e) {
+            throw new AdminException("SolrCoreRebuilder.recover - can't clean up the core "
+                                        + shadowCore + " since " + e.getMessage());
+        }
+    }
+
+    /*
+     * The steps of the rebuild
+     */
+    private void rebuildCore() throws AdminException {
+        String liveDir = null;
+        long oldCount = -1;
+        try {
+            liveDir = cores.getInstanceDir(liveCore);
+            if (liveDir != null) {
+                oldCount = cores.count(liveCore);
+            }
+        } catch (Exception e) {
+            throw new AdminException("SolrCoreRebuilder.rebuildCore - can't get the status of "
+                                        + "the core " + liveCore + " since " + e.getMessage());
+        }
+        if (liveDir == null) {
+            throw new AdminException("SolrCoreRebuilder.rebuildCore - the Solr core " + liveCore
+                                        + " doesn't exist");
+        }
+        String shadowDir = getShadowDir(liveDir);
+        logMetacat.info("SolrCoreRebuilder.rebuildCore - rebuild the Solr core " + liveCore
+                            + " having " + oldCount + " documents in " + shadowDir);
+        Date start = new Date();
+        boolean created = false;
+        try {
+            // an interrupted rebuild is recovered from the record
+            cores.mark(start);
+            cores.create(shadowCore, liveDir, shadowDir);
+            created = true;
+            cores.relaxCommits(shadowCore, commitInterval);
+            cores.follow(shadowCore);
+            // the other instances send the changes to the shadow core from now on
+            Thread.sleep(watchInterval);
+            long submitted = reindexer.submitAll(shadowCore);
+            long count = waitForIndex(submitted);
+            long expected = (long) Math.ceil(submitted * minRatio);
+            if (count < expected) {
+                throw new AdminException("the rebuilt core only has " + count
+                                + " documents while " + expected + " were expected from the "
+                                + submitted + " submitted objects");
+            }
+            cores.restoreCommits(shadowCore);
+            cores.commit(shadowCore);
+            cores.swap(liveCore, shadowCore);
+            logMetacat.info("SolrCoreRebuilder.rebuildCore - the rebuilt core " + liveCore
+                                + " with " + count + " documents serves the queries");
+        } catch (Exception e) {
+            rollback(created);
+            throw new AdminException("SolrCoreRebuilder.rebuildCore - the rebuild of the Solr "
+                        + "core " + liveCore + " failed and the live core is kept since "
+                        + e.getMessage());
+        }
+        try {
+            cores.relocateHomeDir(shadowDir);
+            cores.follow(null);
+            cores.unload(shadowCore);
+            cores.unmark();
+        } catch (Exception e) {
+            logMetacat.error("SolrCoreRebuilder.rebuildCore - the core " + liveCore
+                        + " was rebuilt, but the old core " + shadowCore + " in " + liveDir
+                        + " can't be dropped or the solr home can't be changed to " + shadowDir
+                        + " since " + e.getMessage());
+        }
+    }
+
+    /*
+     * Wait until the shadow core has the submitted objects or its number of documents stops
+     * changing. The core is committed at each check.
+     */
+    private long waitForIndex(long submitted) throws Exception {
+        long count = -1;
+        long lastChange = System.currentTimeMillis();
+        while (true) {
+            cores.commit(shadowCore);
+            long current = cores.count(shadowCore);
+            long now = System.currentTimeMillis();
+            logMetacat.info("SolrCoreRebuilder.waitForIndex - the rebuilding core has "
+                                + current + " of the " + submitted + " submitted objects");
+            if (current >= submitted) {
+                return current;
+            }
+            if (current != count) {
+                count = current;
+                lastChange = now;
+            } else if (now - lastChange >= stallTimeout) {
+                return count;
+            }
+            Thread.sleep(pollInterval);
+        }
+    }
+
+    /*
+     * Drop the shadow core. The live core wasn't touched.
+     */
+    private void rollback(boolean created) {
+        try {
+            cores.follow(null);
+            if (created) {
+                cores.unload(shadowCore);
+            }
+        } catch (Exception e) {
+            // the record stays, so recover cleans up at the next start
+            logMetacat.error("SolrCoreRebuilder.rollback - can't drop the core " + shadowCore
+                                + " since " + e.getMessage());
+            return;
+        }
+        try {
+            cores.unmark();
+        } catch (Exception e) {
+            logMetacat.error("SolrCoreRebuilder.rollback - can't remove the record of the "
+                                + "rebuild since " + e.getMessage());
+        }
+    }
+
+    /**
+     * The instance directory of the shadow core. The live and the shadow cores take turns on
+     * the two directories.
+     * @param liveDir  the instance directory of the live core
+     * @return the other directory
+     */
+    static String getShadowDir(String liveDir) {
+        String dir = liveDir.endsWith(File.separator)
+                        ? liveDir.substring(0, liveDir.length() - 1) : liveDir;
+        return dir.endsWith(SHADOW_SUFFIX)
+                    ? dir.substring(0, dir.length() - SHADOW_SUFFIX.length())
+                    : dir + SHADOW_SUFFIX;
+    }
+
+    private static boolean sameDir(String dir1, String dir2) {
+        return dir1 != null && dir2 != null
+                    && new File(dir1).getAbsoluteFile().equals(new File(dir2).getAbsoluteFile());
+    }
+
+    /**
+     * The cores of the http Solr server
+     */
+    static class HttpSolrCores implements SolrCores {
+        private static final String CONFIG_PATH = "/config";
+        private static final String JSON = "application/json";
+        private static final String RELAXED_COMMITS = "{\"set-property\": {"
+                    + "\"updateHandler.autoCommit.maxTime\": %d, "
+                    + "\"updateHandler.autoCommit.openSearcher\": false, "
+                    + "\"updateHandler.autoSoftCommit.maxTime\": -1}}";
+        private static final String DEFAULT_COMMITS = "{\"unset-property\": ["
+                    + "\"updateHandler.autoCommit.maxTime\", "
+                    + "\"updateHandler.autoCommit.openSearcher\", "
+                    + "\"updateHandler.autoSoftCommit.maxTime\"]}";
+
+        private SolrClient client = null;
+
+        HttpSolrCores() throws AdminException {
+            try {
+                client = SolrServerFactory.createSolrAdminClient();
+            } catch (Exception e) {
+                throw new AdminException("SolrCoreRebuilder.HttpSolrCores - can't create the "
+                                            + "Solr admin client since " + e.getMessage());
+            }
+            if (client == null) {
+                throw new AdminException("SolrCoreRebuilder.HttpSolrCores - the core can only be "
+                                            + "rebuilt on an http Solr server");
+            }
+        }
+
+        @Override
+        public String getInstanceDir(String coreName) throws Exception {
+            CoreAdminResponse response = CoreAdminRequest.getStatus(coreName, client);
+            NamedList<Object> status = response.getCoreStatus(coreName);
+            // the status of a core which doesn't exist is missing or empty
+            if (status == null) {
+                return null;
+            }
+            Object instanceDir = status.get("instanceDir");
+            return instanceDir == null ? null : instanceDir.toString();
+        }
+
+        @Override
+        public void create(String coreName, String sourceInstanceDir, String instanceDir)
+                                                                            throws Exception {
+            File conf = new File(instanceDir, CONF);
+            FileUtils.deleteDirectory(conf);
+            FileUtils.copyDirectory(new File(sourceInstanceDir, CONF), conf);
+            SolrAdmin.grantGroupWrite(new File(instanceDir).toPath());
+            CoreAdminRequest.createCore(coreName, instanceDir, client);
+        }
+
+        @Override
+        public void swap(String coreName, String otherCoreName) throws Exception {
+            CoreAdminRequest request = new CoreAdminRequest();
+            request.setAction(CoreAdminAction.SWAP);
+            request.setCoreName(coreName);
+            request.setOtherCoreName(otherCoreName);
+            request.process(client);
+        }
+
+        @Override
+        public void unload(String coreName) throws Exception {
+            CoreAdminRequest.Unload request = new CoreAdminRequest.Unload(true);
+            request.setCoreName(coreName);
+            request.setDeleteDataDir(true);
+            request.process(client);
+        }
+
+        @Override
+        public long count(String coreName) throws Exception {
+            ModifiableSolrParams params = new ModifiableSolrParams();
+            params.set("q", "*:*");
+            params.set("rows", 0);
+            return client.query(coreName, params).getResults().getNumFound();
+        }
+
+        @Override
+        public void commit(String coreName) throws Exception {
+            client.commit(coreName);
+        }
+
+        @Override
+        public void relaxCommits(String coreName, long interval) throws Exception {
+            configure(coreName, String.format(RELAXED_COMMITS, interval));
+        }
+
+        @Override
+        public void restoreCommits(String coreName) throws Exception {
+            configure(coreName, DEFAULT_COMMITS);
+        }
+
+        private void configure(String coreName, String command) throws Exception {
+            GenericSolrRequest request = new GenericSolrRequest(SolrRequest.METHOD.POST,
+                                                                CONFIG_PATH, null);
+            request.setContentWriter(new RequestWriter.StringPayloadContentWriter(command, JSON));
+            client.request(request, coreName);
+        }
+
+        @Override
+        public void follow(String rebuildingCore) {
+            SolrCoreRebuildMarker.setRebuildingCore(rebuildingCore);
+        }
+
+        @Override
+        public void mark(Date start) throws Exception {
+            SolrCoreRebuildMarker.write(start);
+        }
+
+        @Override
+        public void unmark() throws Exception {
+            SolrCoreRebuildMarker.remove();
+        }
+
+        @Override
+        public Date getMarkedStart() throws Exception {
+            return SolrCoreRebuildMarker.getStart();
+        }
+
+        @Override
+        public String getHomeDir() throws Exception {
+            return PropertyService.getProperty("solr.homeDir");
+        }
+
+        @Override
+        public void relocateHomeDir(String instanceDir) throws Exception {
+            SolrAdmin.getInstance().relocateSolrHome(instanceDir);
+        }
+    }
+
+    /**
+     * Submits the objects of this Metacat instance to the index queue
+     */
+    static class MetacatReindexer implements Reindexer {
+        @Override
+        public long submitAll(String coreName) throws Exception {
+            return MNodeService.getInstance(null).submitAllForIndex(coreName);
+        }
+    }
+}
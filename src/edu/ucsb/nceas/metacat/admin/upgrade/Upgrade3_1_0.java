@@ -0,0 +1,103 @@
+package edu.ucsb.nceas.metacat.admin.upgrade;
+
+import java.io.InputStream;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dataone.configuration.Settings;
+import org.dataone.service.types.v1.Identifier;
+
+import edu.ucsb.nceas.metacat.IdentifierManager;
+import edu.ucsb.nceas.metacat.MetacatHandler;
+import edu.ucsb.nceas.metacat.admin.AdminException;
+import edu.ucsb.nceas.metacat.database.DBConnection;
+import edu.ucsb.nceas.metacat.database.DBConnectionPool;
+import edu.ucsb.nceas.metacat.dataone.resourcemap.PackageMembershipDAO;
+
+/**
+ * Fills the package_membership table with the members of the existing resource maps. A resource
+ * map which can't be read or parsed is logged and skipped, so it can't block the upgrade.
+ */
+public class Upgrade3_1_0 implements UpgradeUtilityInterface {
+    private static Log logMetacat = LogFactory.getLog(Upgrade3_1_0.class);
+
+    /**
+     * Record the members of all resource maps
+     */
+    public boolean upgrade() throws AdminException {
+        List<String> formats =
+                            Settings.getConfiguration().getList("index.resourcemap.namespace");
+        List<String> resourceMaps = new ArrayList<String>();
+        DBConnection dbConn = null;
+        int serialNumber = -1;
+        try {
+            dbConn = DBConnectionPool.getDBConnection("Upgrade3_1_0.upgrade");
+            serialNumber = dbConn.getCheckOutSerialNumber();
+            String query = "SELECT guid FROM systemMetadata WHERE object_format = ?";
+            try (PreparedStatement stmt = dbConn.prepareStatement(query)) {
+                for (String format : formats) {
+                    stmt.setString(1, format);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            resourceMaps.add(rs.getString(1));
+                        }
+                    }
+                }
+            }
+            logMetacat.info("Upgrade3_1_0.upgrade - recording the members of "
+                                + resourceMaps.size() + " resource maps");
+            int failed = 0;
+            for (String guid : resourceMaps) {
+                if (!record(guid, dbConn)) {
+                    failed++;
+                }
+            }
+            logMetacat.info("Upgrade3_1_0.upgrade - recorded the members of "
+                                + (resourceMaps.size() - failed) + " resource maps and "
+                                + failed + " failed");
+        } catch (SQLException e) {
+            throw new AdminException("Upgrade3_1_0.upgrade - can't fill the package_membership "
+                                        + "table since " + e.getMessage());
+        } finally {
+            DBConnectionPool.returnDBConnection(dbConn, serialNumber);
+        }
+        return true;
+    }
+
+    /*
+     * Replace the members of a resource map in a transaction
+     */
+    private boolean record(String guid, DBConnection dbConn) throws SQLException {
+        Identifier pid = new Identifier();
+        pid.setValue(guid);
+        Set<Identifier> members = null;
+        try {
+            String localId = IdentifierManager.getInstance().getLocalId(guid);
+            try (InputStream content = MetacatHandler.read(localId, "DATA")) {
+                members = PackageMembershipDAO.parseMembers(content);
+            }
+        } catch (Exception e) {
+            logMetacat.warn("Upgrade3_1_0.record - can't read the members of the resource map "
+                                + guid + " since " + e.getMessage());
+            return false;
+        }
+        dbConn.setAutoCommit(false);
+        try {
+            PackageMembershipDAO.getInstance().remove(pid, dbConn);
+            PackageMembershipDAO.getInstance().add(pid, members, dbConn);
+            dbConn.commit();
+        } catch (SQLException e) {
+            dbConn.rollback();
+            throw e;
+        } finally {
+            dbConn.setAutoCommit(true);
+        }
+        return true;
+    }
+}
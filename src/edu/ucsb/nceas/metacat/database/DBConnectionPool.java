@@ -637,6 +637,24 @@ public class DBConnectionPool implements Runnable
     //return the count result
     return numberOfFreeDBConnetion;
   }//getFreeDBConnectionNumber
+
+  /**
+   * Method to get the number of DBConnections which are checked out by the given method
+   * @param methodName  the method name given to getDBConnection, e.g. MetacatHandler.save
+   * @return the number of the busy DBConnections checked out by the method
+   */
+  public static synchronized int getBusyDBConnectionNumber(String methodName)
+  {
+    int numberOfBusyDBConnection = 0;
+    for (DBConnection db : connectionPool)
+    {
+      if (db.getStatus() == BUSY && methodName.equals(db.getCheckOutMethodName()))
+      {
+        numberOfBusyDBConnection++;
+      }//if
+    }//for
+    return numberOfBusyDBConnection;
+  }//getBusyDBConnectionNumber
       
   	/**
 	 * Print a list of busy connections. This method should be called when the
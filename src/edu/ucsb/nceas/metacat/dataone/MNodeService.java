@@ -17,6 +17,7 @@ import edu.ucsb.nceas.metacat.common.resourcemap.ResourceMapNamespaces;
 import edu.ucsb.nceas.metacat.database.DBConnection;
 import edu.ucsb.nceas.metacat.database.DBConnectionPool;
 import edu.ucsb.nceas.metacat.dataone.quota.QuotaServiceManager;
+import edu.ucsb.nceas.metacat.dataone.resourcemap.PackageMembershipDAO;
 import edu.ucsb.nceas.metacat.dataone.resourcemap.ResourceMapModifier;
 import edu.ucsb.nceas.metacat.doi.DOIException;
 import edu.ucsb.nceas.metacat.doi.DOIServiceFactory;
@@ -27,6 +28,8 @@ import edu.ucsb.nceas.metacat.index.MetacatSolrIndex;
 import edu.ucsb.nceas.metacat.index.queue.IndexGenerator;
 import edu.ucsb.nceas.metacat.properties.PropertyService;
 import edu.ucsb.nceas.metacat.shared.MetacatUtilException;
+import edu.ucsb.nceas.metacat.storage.ChecksumCalculator;
+import edu.ucsb.nceas.metacat.storage.ChecksumDAO;
 import edu.ucsb.nceas.metacat.systemmetadata.SystemMetadataManager;
 import edu.ucsb.nceas.metacat.util.AuthUtil;
 import edu.ucsb.nceas.metacat.util.DocumentUtil;
@@ -115,7 +118,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
@@ -1176,10 +1179,36 @@ public class MNodeService extends D1NodeService
             "The checksum for the object specified by " + pid.getValue() + " couldn't be returned ",
             notFound,
             "The object specified by " + pid.getValue() + " does not exist at this node.");
+        if (algorithm != null && !algorithm.isBlank()) {
+            // the recorded checksum needs the same permission as reading the object
+            isAuthorized(session, pid, Permission.READ);
+            try {
+                checksum = ChecksumDAO.getInstance().get(pid, algorithm);
+            } catch (SQLException e) {
+                logMetacat.warn("MNodeService.getChecksum - can't look up the checksum of "
+                                    + pid.getValue() + " since " + e.getMessage()
+                                    + ". So Metacat calculates it from the object.");
+            }
+            if (checksum != null) {
+                return checksum;
+            }
+        }
         InputStream inputStream = get(session, pid);
 
         try {
-            checksum = ChecksumUtil.checksum(inputStream, algorithm);
+            // the object was stored before the checksums were recorded. Calculate the common
+            // algorithms in the same pass and record them for the next requests.
+            ChecksumCalculator calculator = new ChecksumCalculator(algorithm);
+            try (InputStream content = calculator.wrap(inputStream)) {
+                content.transferTo(OutputStream.nullOutputStream());
+            }
+            checksum = calculator.getChecksum(algorithm);
+            try {
+                ChecksumDAO.getInstance().add(pid, calculator.getChecksums());
+            } catch (SQLException e) {
+                logMetacat.warn("MNodeService.getChecksum - can't record the checksums of "
+                                    + pid.getValue() + " since " + e.getMessage());
+            }
         } catch (NoSuchAlgorithmException e) {
             throw new ServiceFailure("1410",
                 "The checksum for the object specified by " + pid.getValue()
@@ -2574,39 +2603,26 @@ public class MNodeService extends D1NodeService
     }
 
     /**
-     * Determines if we already have registered an ORE map for this package NOTE: uses a solr query
-     * to locate OREs for the object
+     * Determines if we already have registered an ORE map for this package. NOTE: uses the
+     * package_membership table, which is written when the resource maps are saved, to locate OREs
+     * for the object. The archived OREs aren't returned.
      *
      * @param guid of the EML/packaging object
-     * @return list of resource map identifiers for the given pid
+     * @param includeObsolete  if false, no ORE is returned for an obsoleted object
+     * @return list of resource map identifiers for the given pid, sorted by their upload dates.
+     *          Null if there isn't any or the session can't read the object.
      */
     public List<Identifier> lookupOreFor(Session session, Identifier guid,
         boolean includeObsolete) {
-        // Search for the ORE if we can find it
         String pid = guid.getValue();
         List<Identifier> retList = null;
         try {
-            String query =
-                "fl=id,resourceMap&wt=xml&q=-obsoletedBy:[* TO *]+resourceMap:[* TO *]+id:\"" + pid
-                    + "\"";
-            if (includeObsolete) {
-                query = "fl=id,resourceMap&wt=xml&q=resourceMap:[* TO *]+id:\"" + pid + "\"";
-            }
-
-            InputStream results = this.query(session, "solr", query);
-            org.w3c.dom.Node rootNode =
-                XMLUtilities.getXMLReaderAsDOMTreeRootNode(new InputStreamReader(results, "UTF-8"));
-            //String resultString = XMLUtilities.getDOMTreeAsString(rootNode);
-            org.w3c.dom.NodeList nodeList =
-                XMLUtilities.getNodeListWithXPath(rootNode, "//arr[@name=\"resourceMap\"]/str");
-            if (nodeList != null && nodeList.getLength() > 0) {
-                retList = new ArrayList<Identifier>();
-                for (int i = 0; i < nodeList.getLength(); i++) {
-                    String found = nodeList.item(i).getFirstChild().getNodeValue();
-                    Identifier oreId = new Identifier();
-                    oreId.setValue(found);
-                    retList.add(oreId);
-                }
+            // the object should be readable by the session like in a query
+            isAuthorized(session, guid, Permission.READ);
+            List<Identifier> found =
+                PackageMembershipDAO.getInstance().getResourceMaps(guid, includeObsolete);
+            if (!found.isEmpty()) {
+                retList = found;
             }
         } catch (Exception e) {
             logMetacat.error(
@@ -2647,47 +2663,20 @@ public class MNodeService extends D1NodeService
             } else {
                 logMetacat.warn(
                     "MNodeService.getNewestORE - No potential ORE map found for the metadata object"
-                        + metadataPid.getValue() + " by the solr query.");
+                        + metadataPid.getValue() + " in the package membership.");
             }
         }
         return potentialOreIdentifier;
     }
 
     /**
-     * Determines if we already have registered an ORE map for this package NOTE: uses a solr query
-     * to locate OREs for the object
+     * Determines if we already have registered an ORE map for this package, including the OREs
+     * of an obsoleted object
      *
      * @param guid of the EML/packaging object
-     * @todo should be consolidate with the above method.
      */
     private List<Identifier> lookupOreFor(Session session, Identifier guid) {
-        // Search for the ORE if we can find it
-        String pid = guid.getValue();
-        List<Identifier> retList = null;
-        try {
-            String query = "fl=id,resourceMap&wt=xml&q=id:\"" + pid + "\"";
-            InputStream results = this.query(session, "solr", query);
-            org.w3c.dom.Node rootNode =
-                XMLUtilities.getXMLReaderAsDOMTreeRootNode(new InputStreamReader(results, "UTF-8"));
-            //String resultString = XMLUtilities.getDOMTreeAsString(rootNode);
-            org.w3c.dom.NodeList nodeList =
-                XMLUtilities.getNodeListWithXPath(rootNode, "//arr[@name=\"resourceMap\"]/str");
-            if (nodeList != null && nodeList.getLength() > 0) {
-                retList = new ArrayList<Identifier>();
-                for (int i = 0; i < nodeList.getLength(); i++) {
-                    String found = nodeList.item(i).getFirstChild().getNodeValue();
-                    logMetacat.debug("MNodeService.lookupOreRor - found the resource map" + found);
-                    Identifier oreId = new Identifier();
-                    oreId.setValue(found);
-                    retList.add(oreId);
-                }
-            }
-        } catch (Exception e) {
-            logMetacat.error(
-                "Error checking for resourceMap[s] on pid " + pid + ". " + e.getMessage(), e);
-        }
-
-        return retList;
+        return lookupOreFor(session, guid, true);
     }
 
     /**
@@ -3600,20 +3589,43 @@ public class MNodeService extends D1NodeService
                                                + "reindex all objects in this Metacat instance");
         Runnable indexAll = new Runnable() {
             public void run() {
-                List<String> resourceMapFormats = ResourceMapNamespaces.getNamespaces();
-                buildAllNonResourceMapIndex(resourceMapFormats);
-                buildAllResourceMapIndex(resourceMapFormats);
+                submitAllForIndex();
             }
         };
         Thread thread = new Thread(indexAll);
         thread.start();
     }
 
+    /**
+     * Submit all objects in the systemMetadata table to the index queue, the non-resourcemap
+     * objects first. It returns when all of them are submitted, not when they are indexed.
+     * @return the number of the submitted objects
+     */
+    public long submitAllForIndex() {
+        return submitAllForIndex(null);
+    }
+
+    /**
+     * Submit all objects in the systemMetadata table to the index queue for the given solr
+     * core, the non-resourcemap objects first. It returns when all of them are submitted, not
+     * when they are indexed.
+     * @param core  the solr core the objects are indexed into, e.g. the one being rebuilt. Null
+     *               means the configured core.
+     * @return the number of the submitted objects
+     */
+    public long submitAllForIndex(String core) {
+        List<String> resourceMapFormats = ResourceMapNamespaces.getNamespaces();
+        return buildAllNonResourceMapIndex(resourceMapFormats, core)
+                                            + buildAllResourceMapIndex(resourceMapFormats, core);
+    }
+
     /**
      * Index all non-resourcemap objects first. We don't put the list of pids in a vector anymore.
      * @param resourceMapFormatList  the list of the resource map format
+     * @param core  the solr core the objects are indexed into. Null means the configured core.
+     * @return the number of the submitted objects
      */
-    private void buildAllNonResourceMapIndex(List<String> resourceMapFormatList) {
+    private long buildAllNonResourceMapIndex(List<String> resourceMapFormatList, String core) {
         boolean firstTime = true;
         StringBuilder sql = new StringBuilder("select guid from systemmetadata");
         if (resourceMapFormatList != null && resourceMapFormatList.size() > 0) {
@@ -3635,8 +3647,9 @@ public class MNodeService extends D1NodeService
         }
         logMetacat.debug("MNodeService.buildAllNonResourceMapIndex - the final query is "
                                                                         + sql.toString());
+        long size = 0;
         try {
-            long size = buildIndexFromQuery(sql.toString());
+            size = buildIndexFromQuery(sql.toString(), core);
             logMetacat.info(
                 "MNodeService.buildAllNonResourceMapIndex - the number of non-resource map "
                     + "objects is "
@@ -3646,13 +3659,16 @@ public class MNodeService extends D1NodeService
                 "MNodeService.buildAllNonResourceMapIndex - can't index the objects since: "
                     + e.getMessage());
         }
+        return size;
     }
 
     /**
      * Index all resource map objects. We don't put the list of pids in a vector anymore.
      * @param resourceMapFormatList
+     * @param core  the solr core the objects are indexed into. Null means the configured core.
+     * @return the number of the submitted objects
      */
-    private void buildAllResourceMapIndex(List<String> resourceMapFormatList) {
+    private long buildAllResourceMapIndex(List<String> resourceMapFormatList, String core) {
         StringBuilder sql = new StringBuilder("select guid from systemmetadata");
         if (resourceMapFormatList != null && resourceMapFormatList.size() > 0) {
             boolean firstTime = true;
@@ -3674,8 +3690,9 @@ public class MNodeService extends D1NodeService
         }
         logMetacat.info("MNodeService.buildAllResourceMapIndex - the final query is "
                                                                     + sql.toString());
+        long size = 0;
         try {
-            long size = buildIndexFromQuery(sql.toString());
+            size = buildIndexFromQuery(sql.toString(), core);
             logMetacat.info(
                 "MNodeService.buildAllResourceMapIndex - the number of resource map objects is "
                     + size + " being submitted to the index queue.");
@@ -3684,16 +3701,19 @@ public class MNodeService extends D1NodeService
                 "MNodeService.buildAllResourceMapIndex - can't index the objects since: "
                     + e.getMessage());
         }
+        return size;
     }
 
     /**
      * Build index of objects selecting from the given sql query.
      * @param sql  the query which will be used to executed to select identifiers for reindexing
+     * @param core  the solr core the objects are indexed into. Null means the configured core.
      * @return the number of objects which were reindexed
      * @throws SQLException
      * @throws SericeFailure
      */
-    private long buildIndexFromQuery(String sql) throws SQLException, ServiceFailure {
+    private long buildIndexFromQuery(String sql, String core)
+                                                        throws SQLException, ServiceFailure {
         DBConnection dbConn = null;
         long i = 0;
         int serialNumber = -1;
@@ -3720,7 +3740,7 @@ public class MNodeService extends D1NodeService
                         boolean followRevisions = false;
                         metacatSolrIndex
                             .submit(identifier, sysMeta, isSysmetaChangeOnly, followRevisions,
-                                    IndexGenerator.LOW_PRIORITY);
+                                    IndexGenerator.LOW_PRIORITY, core);
                         i++;
                         logMetacat.debug("MNodeService.buildIndexFromQuery - queued "
                                              + "SystemMetadata for indexing in the "
@@ -54,6 +54,7 @@ import edu.ucsb.nceas.metacat.MetacatHandler;
 import edu.ucsb.nceas.metacat.accesscontrol.AccessControlException;
 import edu.ucsb.nceas.metacat.accesscontrol.AccessControlForSingleFile;
 import edu.ucsb.nceas.metacat.client.InsufficientKarmaException;
+import edu.ucsb.nceas.metacat.common.storage.ObjectStoreFactory;
 import edu.ucsb.nceas.metacat.properties.PropertyService;
 import edu.ucsb.nceas.metacat.shared.AccessException;
 import edu.ucsb.nceas.metacat.shared.HandlerException;
@@ -335,24 +336,13 @@ public class SystemMetadataFactory {
         throws McdbException, PropertyNotFoundException {
 
         DocumentImpl doc = new DocumentImpl(docid, false);
-        String filepath = null;
-        String filename = null;
-
-        // deal with data or metadata cases
-        if (doc.getRootNodeID() == 0) {
-            // this is a data file
-            filepath = PropertyService.getProperty("application.datafilepath");
-        } else {
-            filepath = PropertyService.getProperty("application.documentfilepath");
-        }
-        // ensure it is a directory path
-        if (!(filepath.endsWith("/"))) {
-            filepath += "/";
+        // deal with data or metadata cases. The root node id of a data file is 0.
+        try {
+            return ObjectStoreFactory.getStore(doc.getRootNodeID() != 0).getPath(docid).toFile();
+        } catch (IOException e) {
+            throw new McdbException("Could not get the file of " + docid + " : "
+                                        + e.getMessage());
         }
-        filename = filepath + docid;
-        File documentFile = new File(filename);
-
-        return documentFile;
     }
 
     /**
@@ -0,0 +1,203 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.dataone.resourcemap;
+
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dataone.configuration.Settings;
+import org.dataone.ore.ResourceMapFactory;
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v1.ObjectFormatIdentifier;
+import org.dspace.foresite.OREException;
+import org.dspace.foresite.OREParserException;
+
+import edu.ucsb.nceas.metacat.database.DBConnection;
+import edu.ucsb.nceas.metacat.database.DBConnectionPool;
+
+/**
+ * Maintains the package_membership table, which maps the resource maps to the objects they
+ * aggregate. The rows of a resource map are written in the same transaction that saves it, so
+ * the lookups of the packages containing an object don't depend on the Solr index.
+ * @author tao
+ */
+public class PackageMembershipDAO {
+    private static final String INSERT =
+                    "INSERT INTO package_membership (resource_map, member) VALUES (?, ?)";
+    private static final String DELETE = "DELETE FROM package_membership WHERE resource_map = ?";
+    // the resource maps are sorted by the upload date, so the newest one is the last. The
+    // archived ones keep their rows, since an archived object may be restored, but are skipped.
+    private static final String SELECT = "SELECT p.resource_map FROM package_membership p "
+                    + "LEFT JOIN systemMetadata s ON p.resource_map = s.guid "
+                    + "WHERE p.member = ? AND (s.archived IS NULL OR s.archived = FALSE) "
+                    + "ORDER BY s.date_uploaded, p.resource_map";
+    private static final String IS_OBSOLETED =
+                    "SELECT obsoleted_by FROM systemMetadata WHERE guid = ?";
+
+    private static volatile PackageMembershipDAO instance = null;
+    private static Log logMetacat = LogFactory.getLog(PackageMembershipDAO.class);
+    private static List<String> resourceMapNamespaces =
+                        Settings.getConfiguration().getList("index.resourcemap.namespace");
+
+    private PackageMembershipDAO() {}
+
+    /**
+     * Get the singleton instance
+     * @return the instance of PackageMembershipDAO
+     */
+    public static PackageMembershipDAO getInstance() {
+        if (instance == null) {
+            synchronized (PackageMembershipDAO.class) {
+                if (instance == null) {
+                    instance = new PackageMembershipDAO();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * If the format is a resource map format
+     * @param formatId  the format id of an object
+     * @return true if the objects of the format are resource maps
+     */
+    public static boolean isResourceMap(ObjectFormatIdentifier formatId) {
+        return formatId != null && formatId.getValue() != null && resourceMapNamespaces != null
+                                    && resourceMapNamespaces.contains(formatId.getValue());
+    }
+
+    /**
+     * Parse the identifiers of the objects aggregated by a resource map
+     * @param resourceMap  the content of the resource map
+     * @return the identifiers of the metadata and data objects, not including the resource map
+     * @throws OREException
+     * @throws URISyntaxException
+     * @throws UnsupportedEncodingException
+     * @throws OREParserException
+     */
+    public static Set<Identifier> parseMembers(InputStream resourceMap) throws OREException,
+                        URISyntaxException, UnsupportedEncodingException, OREParserException {
+        Set<Identifier> members = new LinkedHashSet<Identifier>();
+        Map<Identifier, Map<Identifier, List<Identifier>>> structure =
+                                ResourceMapFactory.getInstance().parseResourceMap(resourceMap);
+        if (structure != null) {
+            for (Map<Identifier, List<Identifier>> entries : structure.values()) {
+                for (Map.Entry<Identifier, List<Identifier>> entry : entries.entrySet()) {
+                    members.add(entry.getKey());
+                    if (entry.getValue() != null) {
+                        members.addAll(entry.getValue());
+                    }
+                }
+            }
+            members.removeAll(structure.keySet());
+        }
+        return members;
+    }
+
+    /**
+     * Add the members of a resource map. The caller is responsible for the transaction.
+     * @param resourceMap  the identifier of the resource map
+     * @param members  the identifiers of the aggregated objects
+     * @param conn  the connection to run the statements
+     * @throws SQLException
+     */
+    public void add(Identifier resourceMap, Set<Identifier> members, DBConnection conn)
+                                                                        throws SQLException {
+        if (members == null || members.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(INSERT)) {
+            for (Identifier member : members) {
+                stmt.setString(1, resourceMap.getValue());
+                stmt.setString(2, member.getValue());
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+        logMetacat.debug("PackageMembershipDAO.add - added " + members.size()
+                            + " members of the resource map " + resourceMap.getValue());
+    }
+
+    /**
+     * Remove the members of a resource map. The caller is responsible for the transaction.
+     * @param resourceMap  the identifier of the resource map
+     * @param conn  the connection to run the statement
+     * @throws SQLException
+     */
+    public void remove(Identifier resourceMap, DBConnection conn) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(DELETE)) {
+            stmt.setString(1, resourceMap.getValue());
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Get the resource maps which aggregate the given object. The archived resource maps are
+     * left out.
+     * @param member  the identifier of the object
+     * @param includeObsoleteMember  if false, nothing is returned for an obsoleted object
+     * @return the identifiers of the resource maps sorted by their upload dates. It is empty
+     *         if the object doesn't belong to any package.
+     * @throws SQLException
+     */
+    public List<Identifier> getResourceMaps(Identifier member, boolean includeObsoleteMember)
+                                                                        throws SQLException {
+        List<Identifier> resourceMaps = new ArrayList<Identifier>();
+        DBConnection dbConn = null;
+        int serialNumber = -1;
+        try {
+            dbConn = DBConnectionPool.getDBConnection("PackageMembershipDAO.getResourceMaps");
+            serialNumber = dbConn.getCheckOutSerialNumber();
+            if (!includeObsoleteMember) {
+                try (PreparedStatement stmt = dbConn.prepareStatement(IS_OBSOLETED)) {
+                    stmt.setString(1, member.getValue());
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (rs.next() && rs.getString(1) != null) {
+                            return resourceMaps;
+                        }
+                    }
+                }
+            }
+            try (PreparedStatement stmt = dbConn.prepareStatement(SELECT)) {
+                stmt.setString(1, member.getValue());
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        Identifier resourceMap = new Identifier();
+                        resourceMap.setValue(rs.getString(1));
+                        resourceMaps.add(resourceMap);
+                    }
+                }
+            }
+        } finally {
+            DBConnectionPool.returnDBConnection(dbConn, serialNumber);
+        }
+        return resourceMaps;
+    }
+}
@@ -29,6 +29,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -47,6 +48,8 @@ public class IndexEventDAO {
     
     private static IndexEventDAO instance = null;
     private static String DELETESQL = "delete from index_event where guid = ?";
+    private static String COLUMNS = "guid, event_action, description, event_date, attempts, "
+                                    + "next_attempt, dead_letter";
     private static Log logMetacat = LogFactory.getLog(IndexEventDAO.class);
 
     private IndexEventDAO() {}
@@ -59,8 +62,8 @@ public class IndexEventDAO {
     }
 
     public void add(IndexEvent event) throws SQLException {
-        String sql = "insert into index_event(guid, event_action, description, event_date) "
-                        + "values (?, ?, ?, ?)";
+        String sql = "insert into index_event(guid, event_action, description, event_date, "
+                        + "attempts, next_attempt, dead_letter) values (?, ?, ?, ?, ?, ?, ?)";
         DBConnection dbConn = null;
         int serialNumber = -1;
         try {
@@ -83,6 +86,13 @@ public class IndexEventDAO {
             stmt.setString(2, event.getAction());
             stmt.setString(3, event.getDescription());
             stmt.setTimestamp(4, new Timestamp(event.getDate().getTime()));
+            stmt.setInt(5, event.getAttempts());
+            if (event.getNextAttempt() != null) {
+                stmt.setTimestamp(6, new Timestamp(event.getNextAttempt().getTime()));
+            } else {
+                stmt.setNull(6, Types.TIMESTAMP);
+            }
+            stmt.setBoolean(7, event.isDeadLetter());
 
             stmt.executeUpdate();
             stmt.close();
@@ -126,8 +136,7 @@ public class IndexEventDAO {
 
     public IndexEvent get(Identifier identifier) throws SQLException {
         IndexEvent event = null;
-        String sql = "select guid, event_action, description, event_date from index_event "
-                        + "where guid = ?";
+        String sql = "select " + COLUMNS + " from index_event where guid = ?";
         DBConnection dbConn = null;
         int serialNumber = -1;
         try {
@@ -140,16 +149,8 @@ public class IndexEventDAO {
             stmt.setString(1, identifier.getValue());
             ResultSet rs = stmt.executeQuery();
             while (rs.next()) {
-                //String guid = rs.getString(1);
-                String action = rs.getString(2);
-                String description = rs.getString(3);
-                Timestamp timestamp = rs.getTimestamp(4);
-
-                event = new IndexEvent();
+                event = toIndexEvent(rs);
                 event.setIdentifier(identifier);
-                event.setAction(action);
-                event.setDate(timestamp);
-                event.setDescription(description);
             }
             stmt.close();
         } finally {
@@ -199,8 +200,7 @@ public class IndexEventDAO {
         boolean hasAgeLimit = false;
         Timestamp oldestAgeTs = null;
         List<IndexEvent> events = new ArrayList<IndexEvent>();
-        String sql = "select guid, event_action, description, event_date from index_event "
-                      + "where event_action = ?";
+        String sql = "select " + COLUMNS + " from index_event where event_action = ?";
         if (oldestAge != null) {
             hasAgeLimit = true;
             oldestAgeTs = new Timestamp(oldestAge.getTime());
@@ -224,18 +224,7 @@ public class IndexEventDAO {
             ResultSet rs = stmt.executeQuery();
             boolean hasNext = rs.next();
             while (hasNext) {
-                String guid = rs.getString(1);
-                Identifier identifier = new Identifier();
-                identifier.setValue(guid);
-                String action = rs.getString(2);
-                String description = rs.getString(3);
-                Timestamp timestamp = rs.getTimestamp(4);
-                IndexEvent event = new IndexEvent();
-                event.setIdentifier(identifier);
-                event.setAction(action);
-                event.setDate(timestamp);
-                event.setDescription(description);
-                events.add(event);
+                events.add(toIndexEvent(rs));
                 hasNext = rs.next();
             }
             stmt.close();
@@ -245,4 +234,171 @@ public class IndexEventDAO {
         }
         return events;
     }
+
+    /**
+     * Get the list of the index events which have the specified event action, are younger than
+     * the specified oldest age, are not in the dead-letter state and whose next attempt time has
+     * come. The events without a next attempt time come first, then the ones waiting the longest.
+     * @param eventAction  the action which the events should contain
+     * @param oldestAge  the oldest age which the events can be. It can't be null.
+     * @param now  the current time which the next attempt time is compared to
+     * @param limit  the max number of the returned events
+     * @return  list of the index events which are due to be resubmitted
+     * @throws SQLException
+     */
+    public List<IndexEvent> getDue(String eventAction, Date oldestAge, Date now, int limit)
+                                                                        throws SQLException {
+        List<IndexEvent> events = new ArrayList<IndexEvent>();
+        String sql = "select " + COLUMNS + " from index_event where event_action = ? "
+                     + "and event_date > ? and (dead_letter is null or dead_letter = false) "
+                     + "and (next_attempt is null or next_attempt <= ?) "
+                     + "order by next_attempt nulls first, event_date limit ?";
+        DBConnection dbConn = null;
+        int serialNumber = -1;
+        try {
+            // Get a database connection from the pool
+            dbConn = DBConnectionPool.getDBConnection("IndexEventDAO.getDue");
+            serialNumber = dbConn.getCheckOutSerialNumber();
+            // Execute the statement
+            PreparedStatement stmt = dbConn.prepareStatement(sql);
+            stmt.setString(1, eventAction);
+            stmt.setTimestamp(2, new Timestamp(oldestAge.getTime()));
+            stmt.setTimestamp(3, new Timestamp(now.getTime()));
+            stmt.setInt(4, limit);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                events.add(toIndexEvent(rs));
+            }
+            stmt.close();
+        } finally {
+            // Return database connection to the pool
+            DBConnectionPool.returnDBConnection(dbConn, serialNumber);
+        }
+        return events;
+    }
+
+    /**
+     * Record the result of a failed resubmission attempt: the number of attempts, the time of
+     * the next attempt and the dead-letter state. The event date is set back to the date of the
+     * given event since a failed publish saves the event again with the current date. If the
+     * event doesn't exist anymore, it will be added.
+     * @param event  the event carrying the new attempt information
+     * @throws SQLException
+     */
+    public void updateAttempt(IndexEvent event) throws SQLException {
+        String sql = "update index_event set attempts = ?, next_attempt = ?, dead_letter = ?, "
+                      + "event_date = ? where guid = ?";
+        DBConnection dbConn = null;
+        int serialNumber = -1;
+        int updated = 0;
+        try {
+            // Get a database connection from the pool
+            dbConn = DBConnectionPool.getDBConnection("IndexEventDAO.updateAttempt");
+            serialNumber = dbConn.getCheckOutSerialNumber();
+            // Execute the statement
+            PreparedStatement stmt = dbConn.prepareStatement(sql);
+            stmt.setInt(1, event.getAttempts());
+            if (event.getNextAttempt() != null) {
+                stmt.setTimestamp(2, new Timestamp(event.getNextAttempt().getTime()));
+            } else {
+                stmt.setNull(2, Types.TIMESTAMP);
+            }
+            stmt.setBoolean(3, event.isDeadLetter());
+            stmt.setTimestamp(4, new Timestamp(event.getDate().getTime()));
+            stmt.setString(5, event.getIdentifier().getValue());
+            updated = stmt.executeUpdate();
+            stmt.close();
+        } finally {
+            // Return database connection to the pool
+            DBConnectionPool.returnDBConnection(dbConn, serialNumber);
+        }
+        if (updated == 0) {
+            add(event);
+        }
+    }
+
+    /**
+     * Count the index events in the table
+     * @param deadLetter  count the events in the dead-letter state if it is true; otherwise
+     *                    count the ones still waiting for resubmission
+     * @return the number of the events
+     * @throws SQLException
+     */
+    public long count(boolean deadLetter) throws SQLException {
+        String sql = "select count(*) from index_event where ";
+        if (deadLetter) {
+            sql = sql + "dead_letter = true";
+        } else {
+            sql = sql + "(dead_letter is null or dead_letter = false)";
+        }
+        long count = 0;
+        DBConnection dbConn = null;
+        int serialNumber = -1;
+        try {
+            // Get a database connection from the pool
+            dbConn = DBConnectionPool.getDBConnection("IndexEventDAO.count");
+            serialNumber = dbConn.getCheckOutSerialNumber();
+            // Execute the statement
+            PreparedStatement stmt = dbConn.prepareStatement(sql);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                count = rs.getLong(1);
+            }
+            stmt.close();
+        } finally {
+            // Return database connection to the pool
+            DBConnectionPool.returnDBConnection(dbConn, serialNumber);
+        }
+        return count;
+    }
+
+    /**
+     * Get the date of the oldest event which is still waiting for resubmission
+     * @return the date of the oldest event. Null will be returned if there is no such event.
+     * @throws SQLException
+     */
+    public Date getOldestEventDate() throws SQLException {
+        String sql = "select min(event_date) from index_event "
+                      + "where (dead_letter is null or dead_letter = false)";
+        Date oldest = null;
+        DBConnection dbConn = null;
+        int serialNumber = -1;
+        try {
+            // Get a database connection from the pool
+            dbConn = DBConnectionPool.getDBConnection("IndexEventDAO.getOldestEventDate");
+            serialNumber = dbConn.getCheckOutSerialNumber();
+            // Execute the statement
+            PreparedStatement stmt = dbConn.prepareStatement(sql);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                oldest = rs.getTimestamp(1);
+            }
+            stmt.close();
+        } finally {
+            // Return database connection to the pool
+            DBConnectionPool.returnDBConnection(dbConn, serialNumber);
+        }
+        return oldest;
+    }
+
+    /**
+     * Build an index event from the current row of the result set. The columns of the row
+     * should be in the order of COLUMNS.
+     * @param rs  the result set pointing to a row
+     * @return the index event
+     * @throws SQLException
+     */
+    private IndexEvent toIndexEvent(ResultSet rs) throws SQLException {
+        Identifier identifier = new Identifier();
+        identifier.setValue(rs.getString(1));
+        IndexEvent event = new IndexEvent();
+        event.setIdentifier(identifier);
+        event.setAction(rs.getString(2));
+        event.setDescription(rs.getString(3));
+        event.setDate(rs.getTimestamp(4));
+        event.setAttempts(rs.getInt(5));
+        event.setNextAttempt(rs.getTimestamp(6));
+        event.setDeadLetter(rs.getBoolean(7));
+        return event;
+    }
 }
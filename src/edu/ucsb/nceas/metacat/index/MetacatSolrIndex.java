@@ -1,31 +1,32 @@
 package edu.ucsb.nceas.metacat.index;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
-import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
 
 import javax.xml.parsers.ParserConfigurationException;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.ModifiableSolrParams;
-import org.apache.solr.common.params.MultiMapSolrParams;
 import org.apache.solr.common.params.SolrParams;
 
 import org.dataone.configuration.Settings;
@@ -41,11 +42,13 @@ import org.dataone.service.util.Constants;
 import org.xml.sax.SAXException;
 
 import edu.ucsb.nceas.metacat.DBTransform;
+import edu.ucsb.nceas.metacat.common.query.HttpSolrQueryService;
 import edu.ucsb.nceas.metacat.common.query.SolrQueryResponseWriterFactory;
 import edu.ucsb.nceas.metacat.common.query.SolrQueryService;
 import edu.ucsb.nceas.metacat.common.query.SolrQueryServiceController;
-import edu.ucsb.nceas.metacat.common.query.stream.ContentTypeByteArrayInputStream;
+import edu.ucsb.nceas.metacat.common.query.stream.ContentTypePipedInputStream;
 import edu.ucsb.nceas.metacat.index.queue.IndexGenerator;
+import edu.ucsb.nceas.metacat.metrics.MetacatMetrics;
 import edu.ucsb.nceas.metacat.properties.PropertyService;
 import edu.ucsb.nceas.metacat.shared.ServiceException;
 import edu.ucsb.nceas.metacat.systemmetadata.SystemMetadataManager;
@@ -62,6 +65,10 @@ public class MetacatSolrIndex {
     private static Log log = LogFactory.getLog(MetacatSolrIndex.class);
     private static MetacatSolrIndex solrIndex = null;
     private static String nodeType = null;
+    private QueryResultCache queryCache = null;
+    private SolrQueryMetrics queryMetrics = null;
+    //The buffer between the skin transformation and the caller copying the html
+    private static final int SKIN_PIPE_SIZE = 65536;
     private static List<String> resourceMapNamespaces =
         Settings.getConfiguration().getList("index.resourcemap.namespace");
 
@@ -84,6 +91,13 @@ public class MetacatSolrIndex {
      */
     private MetacatSolrIndex() throws Exception {
         nodeType = PropertyService.getProperty("dataone.nodeType");
+        queryCache = createQueryCache();
+        if (Settings.getConfiguration().getBoolean("solr.query.metrics.enabled", true)) {
+            int maxSeries =
+                    Settings.getConfiguration().getInt("solr.query.metrics.maxSeries", 500);
+            queryMetrics = new SolrQueryMetrics(MetacatMetrics.getInstance(), maxSeries);
+            HttpSolrQueryService.setObserver(queryMetrics);
+        }
     }
 
 
@@ -107,45 +121,13 @@ public class MetacatSolrIndex {
         throws SolrServerException, IOException, PropertyNotFoundException, SQLException,
         ClassNotFoundException, ParserConfigurationException, SAXException, NotImplemented,
         NotFound, UnsupportedType, SolrException {
-        //allow "+" in query syntax, see: https://projects.ecoinformatics.org/ecoinfo/issues/6435
-        query = query.replaceAll("\\+", "%2B");
-        SolrParams solrParams = parseQueryString(query);
+        // the "+" is kept in the query syntax by the parser
+        SolrParams solrParams = QueryStringParser.parse(query);
         return query(solrParams, authorizedSubjects, isMNadmin);
 
     }
 
 
-    /**
-     * Given a standard query string map it into solr params
-     *
-     */
-    private static MultiMapSolrParams parseQueryString(String queryString) {
-        Map<String, String[]> map = new HashMap<String, String[]>();
-        if (queryString != null && queryString.length() > 0) {
-            try {
-                for (String kv : queryString.split("&")) {
-                    int idx = kv.indexOf('=');
-                    if (idx > 0) {
-                        String name = URLDecoder.decode(kv.substring(0, idx), "UTF-8");
-                        String value = URLDecoder.decode(kv.substring(idx + 1), "UTF-8");
-                        log.debug(
-                            "SolrIndex.parseQueryString - add the name " + name + " and value "
-                                + value + " pair to the param map");
-                        MultiMapSolrParams.addParam(name, value, map);
-                    } else {
-                        String name = URLDecoder.decode(kv, "UTF-8");
-                        log.debug("SolrIndex.parseQueryString - add the name " + name
-                                      + " to the param map");
-                        MultiMapSolrParams.addParam(name, "", map);
-                    }
-                }
-            } catch (UnsupportedEncodingException uex) {
-                throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, uex);
-            }
-        }
-        return new MultiMapSolrParams(map);
-    }
-
     /**
      * Use the default GET method to handle the query when the query is on the key/value format
      * @param solrParams  the query with the key/value format
@@ -197,6 +179,7 @@ public class MetacatSolrIndex {
         throws SolrServerException, IOException, PropertyNotFoundException, SQLException,
         ClassNotFoundException, ParserConfigurationException, SAXException, NotImplemented,
         NotFound, UnsupportedType {
+        long start = System.nanoTime();
         if (authorizedSubjects == null || authorizedSubjects.isEmpty()) {
             //throw new SolrServerException("MetacatSolrIndex.query - There is no any authorized
             // subjects(even the public user) in this query session.");
@@ -211,13 +194,68 @@ public class MetacatSolrIndex {
                 "MetacatSolrIndex.query - this is the mn admin object and the query will bypass "
                     + "the access controls rules.");
         }
+        if (solrParams.get(SolrCursorExporter.EXPORT_PARAM) != null) {
+            return meter(export(solrParams, authorizedSubjects, method), solrParams, start, false);
+        }
+        if (queryCache != null && isPublicOnly(authorizedSubjects)) {
+            String key = normalize(solrParams);
+            QueryResultCache.Lookup lookup = null;
+            try {
+                lookup = queryCache.lookup(key);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("MetacatSolrIndex.query - interrupted while waiting for "
+                                        + "the same query issued by another request", e);
+            }
+            if (lookup.getResponse() != null) {
+                return meter(lookup.getResponse().open(), solrParams, start, true);
+            }
+            if (lookup.isLoader()) {
+                // the generation of the endpoint which answers
+                AtomicLong answered = new AtomicLong(-1);
+                InputStream upstream = null;
+                try {
+                    upstream = queryUncached(solrParams, authorizedSubjects, method,
+                                             answered::set);
+                } catch (Exception e) {
+                    queryCache.abandon(lookup);
+                    throw e;
+                }
+                return meter(queryCache.complete(lookup, upstream, answered.get()), solrParams,
+                             start, false);
+            }
+        }
+        return meter(queryUncached(solrParams, authorizedSubjects, method, null), solrParams,
+                     start, false);
+    }
+
+    /*
+     * Record the time and the size of the response when it is closed, if the metrics are enabled
+     */
+    private InputStream meter(InputStream response, SolrParams solrParams, long start,
+                              boolean cached) {
+        if (queryMetrics == null) {
+            return response;
+        }
+        return queryMetrics.meter(response, solrParams, start, cached);
+    }
+
+    /*
+     * Query the solr server without the cache. The generation listener, if it isn't null, gets
+     * the commit generation of the endpoint which answered.
+     */
+    private InputStream queryUncached(SolrParams solrParams, Set<Subject> authorizedSubjects,
+                                      SolrRequest.METHOD method, LongConsumer generation)
+        throws SolrServerException, IOException, PropertyNotFoundException, SQLException,
+        ClassNotFoundException, ParserConfigurationException, SAXException, NotImplemented,
+        NotFound, UnsupportedType {
         InputStream inputStream = null;
         String wt = solrParams.get(SolrQueryService.WT);
         // handle normal and skin-based queries
         if (SolrQueryService.isSupportedWT(wt)) {
             // just handle as normal solr query
             inputStream = SolrQueryServiceController.getInstance()
-                .query(solrParams, authorizedSubjects, method);
+                .query(solrParams, authorizedSubjects, method, generation);
         } else {
             // assume it is a skin name
             String qformat = wt;
@@ -226,32 +264,135 @@ public class MetacatSolrIndex {
             wt = SolrQueryResponseWriterFactory.XML;
             ModifiableSolrParams msp = new ModifiableSolrParams(solrParams);
             msp.set(SolrQueryService.WT, wt);
-            inputStream =
-                SolrQueryServiceController.getInstance().query(msp, authorizedSubjects, method);
-
-            // apply the stylesheet (XML->HTML)
-            DBTransform transformer = new DBTransform();
-            String documentContent = IOUtils.toString(inputStream, "UTF-8");
-            String sourceType = "solr";
-            String targetType = "-//W3C//HTML//EN";
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            Writer writer = new OutputStreamWriter(baos, "UTF-8");
-            // TODO: include more params?
-            Hashtable<String, String[]> params = new Hashtable<String, String[]>();
-            params.put("qformat", new String[]{qformat});
-            transformer.transformXMLDocument(documentContent, sourceType, targetType, qformat,
-                                             writer, params, null //sessionid
-            );
-
-            // finally, get the HTML back
-            inputStream = new ContentTypeByteArrayInputStream(baos.toByteArray());
-            ((ContentTypeByteArrayInputStream) inputStream).setContentType("text/html");
+            InputStream solrStream = SolrQueryServiceController.getInstance()
+                .query(msp, authorizedSubjects, method, generation);
+
+            // apply the stylesheet (XML->HTML) while the solr response streams in, and hand
+            // the HTML to the caller as it is written
+            try {
+                DBTransform transformer = new DBTransform();
+                // TODO: include more params?
+                Hashtable<String, String[]> params = new Hashtable<String, String[]>();
+                params.put("qformat", new String[]{qformat});
+                inputStream = new ContentTypePipedInputStream(SKIN_PIPE_SIZE, out -> {
+                    try {
+                        long begin = System.nanoTime();
+                        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                        transformer.transformXMLDocument(solrStream, "solr",
+                                            "-//W3C//HTML//EN", qformat, writer, params, null);
+                        writer.flush();
+                        if (queryMetrics != null) {
+                            // it includes the time of the solr response streaming in
+                            queryMetrics.observeSerialization(solrParams,
+                                                              System.nanoTime() - begin);
+                        }
+                    } finally {
+                        solrStream.close();
+                    }
+                });
+            } catch (IOException | SQLException | ClassNotFoundException
+                                                        | PropertyNotFoundException e) {
+                solrStream.close();
+                throw e;
+            }
+            ((ContentTypePipedInputStream) inputStream).setContentType("text/html");
         }
 
         return inputStream;
 
     }
 
+    /*
+     * Stream all documents matching the query as CSV or JSON lines. Every page is a cursor query
+     * with the same access filter as a normal query.
+     */
+    private InputStream export(SolrParams solrParams, Set<Subject> authorizedSubjects,
+                               SolrRequest.METHOD method) throws IOException, UnsupportedType {
+        int pageSize = Settings.getConfiguration().getInt("solr.query.export.pageSize", 1000);
+        SolrCursorExporter exporter = null;
+        try {
+            exporter = new SolrCursorExporter(solrParams, pageSize, params ->
+                    SolrQueryServiceController.getInstance().query(params, authorizedSubjects,
+                                                                    method));
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedType("0000", "MetacatSolrIndex.export - " + e.getMessage());
+        }
+        ContentTypePipedInputStream stream =
+                                new ContentTypePipedInputStream(SKIN_PIPE_SIZE, exporter::write);
+        stream.setContentType(exporter.getContentType());
+        return stream;
+    }
+
+    /*
+     * If the query session only has the public subject
+     */
+    private static boolean isPublicOnly(Set<Subject> authorizedSubjects) {
+        if (authorizedSubjects == null || authorizedSubjects.size() != 1) {
+            return false;
+        }
+        Subject subject = authorizedSubjects.iterator().next();
+        return subject != null && Constants.SUBJECT_PUBLIC.equals(subject.getValue());
+    }
+
+    /**
+     * Normalize the query params into a cache key. The params are sorted by their names, while
+     * the order of the values of a param is kept since it may matter (e.g. sort).
+     * @param solrParams  the query params
+     * @return the normalized query string
+     * @throws UnsupportedEncodingException
+     */
+    protected static String normalize(SolrParams solrParams)
+                                                        throws UnsupportedEncodingException {
+        TreeSet<String> names = new TreeSet<String>();
+        Iterator<String> iterator = solrParams.getParameterNamesIterator();
+        while (iterator.hasNext()) {
+            names.add(iterator.next());
+        }
+        StringBuilder key = new StringBuilder();
+        for (String name : names) {
+            String[] values = solrParams.getParams(name);
+            if (values == null) {
+                continue;
+            }
+            for (String value : values) {
+                if (key.length() > 0) {
+                    key.append('&');
+                }
+                key.append(URLEncoder.encode(name, "UTF-8")).append('=')
+                   .append(URLEncoder.encode(value, "UTF-8"));
+            }
+        }
+        return key.toString();
+    }
+
+    /*
+     * Create the cache of the public query responses. Null will be returned if it is disabled.
+     */
+    private static QueryResultCache createQueryCache() {
+        if (!Settings.getConfiguration().getBoolean("solr.query.cache.enabled", true)) {
+            return null;
+        }
+        int maxEntries = Settings.getConfiguration().getInt("solr.query.cache.maxEntries", 1000);
+        long maxBytes = Settings.getConfiguration().getLong("solr.query.cache.maxBytes", 67108864);
+        int maxEntryBytes =
+                    Settings.getConfiguration().getInt("solr.query.cache.maxEntryBytes", 1048576);
+        long ttl = Settings.getConfiguration().getLong("solr.query.cache.ttl", 30000);
+        long waitTimeout =
+                    Settings.getConfiguration().getLong("solr.query.cache.waitTimeout", 30000);
+        long checkInterval = Settings.getConfiguration()
+                                    .getLong("solr.query.cache.generationCheckInterval", 1000);
+        return new QueryResultCache(maxEntries, maxBytes, maxEntryBytes, ttl, waitTimeout,
+                                    checkInterval, () -> {
+            try {
+                return SolrQueryServiceController.getInstance().getIndexGeneration();
+            } catch (Exception e) {
+                log.warn("MetacatSolrIndex.createQueryCache - can't get the index generation "
+                            + "since " + e.getMessage());
+                return -1;
+            }
+        });
+    }
+
 
     /**
      * Submit a deleting-index task
@@ -326,6 +467,22 @@ public class MetacatSolrIndex {
     public void submit(
         Identifier pid, SystemMetadata systemMetadata, boolean isSysmetaChangeOnly,
         boolean followRevisions, int priority) {
+        submit(pid, systemMetadata, isSysmetaChangeOnly, followRevisions, priority, null);
+    }
+
+    /**
+     * Submit a index task into the index queue for the given solr core
+     * @param pid  the pid of the object which will be indexed
+     * @param systemMetadata  the system metadata associated with pid
+     * @param isSysmetaChangeOnly  if this is the event of system metadata change only
+     * @param followRevisions  if the obsoleted version will be indexed
+     * @param priority  the priority of this index task
+     * @param core  the solr core the task is indexed into, e.g. the one being rebuilt. Null
+     *               means the configured core, and a copy goes to the rebuilding core if any.
+     */
+    public void submit(
+        Identifier pid, SystemMetadata systemMetadata, boolean isSysmetaChangeOnly,
+        boolean followRevisions, int priority, String core) {
         if (nodeType == null || !nodeType.equalsIgnoreCase("mn")) {
             //only works for MNs
             log.info(
@@ -340,7 +497,11 @@ public class MetacatSolrIndex {
             type = IndexGenerator.SYSMETA_CHANGE_TYPE;
         }
         try {
-            IndexGenerator.getInstance().publish(pid, type, priority);
+            if (core == null) {
+                IndexGenerator.getInstance().publish(pid, type, priority);
+            } else {
+                IndexGenerator.getInstance().publish(pid, type, priority, core);
+            }
             log.info(
                 "MetacatSolrIndex.submit - put the pid " + pid.getValue() + " with type " + type
                     + " into the index queue on the RabbitMQ service successfully.");
@@ -371,7 +532,7 @@ public class MetacatSolrIndex {
      * @return resourceMap medium priority if it is a resource map object; otherwise,
      *          regular medium priority
      */
-    private int getResourceMapPriority(SystemMetadata sysmeta) {
+    public static int getResourceMapPriority(SystemMetadata sysmeta) {
         int priority = IndexGenerator.MEDIUM_PRIORITY;
         if (sysmeta != null && resourceMapNamespaces != null && sysmeta.getFormatId() != null) {
             if (resourceMapNamespaces.contains(sysmeta.getFormatId().getValue())) {
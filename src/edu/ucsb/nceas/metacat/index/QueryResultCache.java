@@ -0,0 +1,420 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.index;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.ucsb.nceas.metacat.common.query.stream.ContentTypeByteArrayInputStream;
+import edu.ucsb.nceas.metacat.common.query.stream.ContentTypeInputStream;
+import edu.ucsb.nceas.metacat.metrics.MetacatMetrics;
+
+/**
+ * A bounded cache of the query responses. Concurrent lookups of the same missing key are
+ * coalesced: the first caller becomes the loader and queries the upstream server, the others
+ * wait for its response. The loader streams the upstream response to its caller and copies it
+ * into the cache on the way. The entries expire after a TTL, and all of them are dropped when the
+ * commit generation of the index changes. A response is only kept if the endpoint which answered
+ * it had the current generation, so the response of a lagging replica isn't cached as current.
+ * @author tao
+ */
+public class QueryResultCache {
+    public static final String HITS_METRIC = "metacat_query_cache_hits_total";
+    public static final String MISSES_METRIC = "metacat_query_cache_misses_total";
+    public static final String COALESCED_METRIC = "metacat_query_cache_coalesced_total";
+    public static final String SAVED_METRIC =
+                                        "metacat_query_cache_saved_upstream_milliseconds_total";
+    public static final String HIT_RATIO_METRIC = "metacat_query_cache_hit_ratio";
+    public static final String ENTRIES_METRIC = "metacat_query_cache_entries";
+    public static final String BYTES_METRIC = "metacat_query_cache_bytes";
+
+    private static Log logMetacat = LogFactory.getLog(QueryResultCache.class);
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private final long ttl;
+    private final long waitTimeout;
+    private final long generationCheckInterval;
+    private final LongSupplier generationSupplier;
+    private final LinkedHashMap<String, Response> entries =
+                                        new LinkedHashMap<String, Response>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<Response>> inFlight =
+                                    new ConcurrentHashMap<String, CompletableFuture<Response>>();
+    private final AtomicLong lastGenerationCheck = new AtomicLong(0);
+    private volatile long generation = -1;
+    private long bytes = 0;
+
+    /**
+     * A cached response
+     */
+    public static class Response {
+        private final byte[] body;
+        private final String contentType;
+        private final long upstreamMillis;
+        private final long generation;
+        private final long created;
+
+        private Response(byte[] body, String contentType, long upstreamMillis, long generation) {
+            this.body = body;
+            this.contentType = contentType;
+            this.upstreamMillis = upstreamMillis;
+            this.generation = generation;
+            this.created = System.currentTimeMillis();
+        }
+
+        /**
+         * Open a new stream of the body
+         * @return the stream carrying the content type
+         */
+        public InputStream open() {
+            ContentTypeByteArrayInputStream stream = new ContentTypeByteArrayInputStream(body);
+            stream.setContentType(contentType);
+            return stream;
+        }
+    }
+
+    /**
+     * The result of a lookup. It is either a cached response, the ticket to load the response,
+     * or neither when the caller should query the upstream server without the cache.
+     */
+    public static class Lookup {
+        private final Response response;
+        private final String key;
+        private final long generation;
+        private final long started;
+        private boolean finished = false;
+
+        private Lookup(Response response, String key, long generation) {
+            this.response = response;
+            this.key = key;
+            this.generation = generation;
+            this.started = System.nanoTime();
+        }
+
+        /**
+         * @return the cached response. Null will be returned if there isn't one.
+         */
+        public Response getResponse() {
+            return response;
+        }
+
+        /**
+         * @return true if the caller must load the response and then call the complete or the
+         *         abandon method of the cache
+         */
+        public boolean isLoader() {
+            return key != null;
+        }
+    }
+
+    /**
+     * The upstream response streamed to the loader's caller. The bytes are copied into a buffer
+     * as they pass, and the buffer becomes the cached response when the body ends. The copying
+     * stops when the response gets bigger than the max entry size.
+     */
+    private class TeeInputStream extends FilterInputStream implements ContentTypeInputStream {
+        private final Lookup lookup;
+        private final long upstreamGeneration;
+        private String contentType;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        private TeeInputStream(Lookup lookup, InputStream upstream, long upstreamGeneration) {
+            super(upstream);
+            this.lookup = lookup;
+            this.upstreamGeneration = upstreamGeneration;
+            this.contentType = upstream instanceof ContentTypeInputStream
+                                ? ((ContentTypeInputStream) upstream).getContentType() : null;
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public void setContentType(String contentType) {
+            this.contentType = contentType;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int count = read(one, 0, 1);
+            return count < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = 0;
+            try {
+                count = super.read(b, off, len);
+            } catch (IOException | RuntimeException e) {
+                copy = null;
+                abandon(lookup);
+                throw e;
+            }
+            if (copy == null) {
+                return count;
+            }
+            if (count < 0) {
+                store(lookup, copy.toByteArray(), contentType, upstreamGeneration);
+                copy = null;
+            } else if (copy.size() + count > maxEntryBytes) {
+                logMetacat.debug("QueryResultCache.TeeInputStream.read - the response of the "
+                                    + "query " + lookup.key + " is too big to cache");
+                copy = null;
+                abandon(lookup);
+            } else {
+                copy.write(b, off, count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // the skipped bytes would be missing in the copy
+            byte[] skipped = new byte[(int) Math.min(n, 8192)];
+            int count = read(skipped, 0, skipped.length);
+            return count < 0 ? 0 : count;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Close the upstream response. A response which wasn't read to the end isn't cached.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                copy = null;
+                abandon(lookup);
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     * @param maxEntries  the max number of the cached responses
+     * @param maxBytes  the max total size (bytes) of the cached responses
+     * @param maxEntryBytes  the max size (bytes) of a cached response
+     * @param ttl  the time (ms) a response stays in the cache
+     * @param waitTimeout  the max time (ms) to wait for the response loaded by another caller
+     * @param generationCheckInterval  the min time (ms) between two checks of the generation
+     * @param generationSupplier  the supplier of the current commit generation of the index.
+     *                             A negative value means unknown.
+     */
+    public QueryResultCache(int maxEntries, long maxBytes, int maxEntryBytes, long ttl,
+                            long waitTimeout, long generationCheckInterval,
+                            LongSupplier generationSupplier) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.ttl = ttl;
+        this.waitTimeout = waitTimeout;
+        this.generationCheckInterval = generationCheckInterval;
+        this.generationSupplier = generationSupplier;
+        MetacatMetrics metrics = MetacatMetrics.getInstance();
+        metrics.registerGauge(HIT_RATIO_METRIC, () -> {
+            double served = metrics.getCounter(HITS_METRIC) + metrics.getCounter(COALESCED_METRIC);
+            double total = served + metrics.getCounter(MISSES_METRIC);
+            return total == 0 ? 0 : served / total;
+        });
+        metrics.registerGauge(ENTRIES_METRIC, () -> size());
+        metrics.registerGauge(BYTES_METRIC, () -> getBytes());
+    }
+
+    /**
+     * Look up a response. On a miss, the first caller gets the ticket to load it and the
+     * concurrent callers of the same key wait for the loaded response.
+     * @param key  the normalized query
+     * @return the lookup result
+     * @throws InterruptedException
+     */
+    public Lookup lookup(String key) throws InterruptedException {
+        checkGeneration();
+        long currentGeneration = generation;
+        Response response = get(key, currentGeneration);
+        if (response != null) {
+            MetacatMetrics.getInstance().increment(HITS_METRIC);
+            MetacatMetrics.getInstance().increment(SAVED_METRIC, response.upstreamMillis);
+            return new Lookup(response, null, currentGeneration);
+        }
+        CompletableFuture<Response> flight = new CompletableFuture<Response>();
+        CompletableFuture<Response> leader = inFlight.putIfAbsent(key, flight);
+        if (leader == null) {
+            MetacatMetrics.getInstance().increment(MISSES_METRIC);
+            return new Lookup(null, key, currentGeneration);
+        }
+        try {
+            response = leader.get(waitTimeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            response = null;
+        }
+        if (response == null) {
+            // the loader failed, was too slow or got a response too big to share
+            MetacatMetrics.getInstance().increment(MISSES_METRIC);
+            return new Lookup(null, null, currentGeneration);
+        }
+        MetacatMetrics.getInstance().increment(COALESCED_METRIC);
+        MetacatMetrics.getInstance().increment(SAVED_METRIC, response.upstreamMillis);
+        return new Lookup(response, null, currentGeneration);
+    }
+
+    /**
+     * Complete a load with the upstream response. The response is streamed to the caller and
+     * cached when the caller has read it to the end, unless it is bigger than the max entry
+     * size. The waiting callers get the response then.
+     * @param lookup  the lookup which gave the ticket to load
+     * @param upstream  the response of the upstream server
+     * @param upstreamGeneration  the commit generation of the endpoint which answered, read
+     *                             before the query was sent. A negative value means unknown and
+     *                             the response isn't kept.
+     * @return the stream to return to the caller. Closing it closes the upstream response.
+     */
+    public InputStream complete(Lookup lookup, InputStream upstream, long upstreamGeneration) {
+        return new TeeInputStream(lookup, upstream, upstreamGeneration);
+    }
+
+    /**
+     * Give up a load, e.g. the upstream query failed. The waiting callers will query the
+     * upstream server by themselves.
+     * @param lookup  the lookup which gave the ticket to load
+     */
+    public void abandon(Lookup lookup) {
+        if (lookup != null && lookup.isLoader()) {
+            finish(lookup, null);
+        }
+    }
+
+    /**
+     * Remove all cached responses
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return the number of the cached responses
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total size (bytes) of the cached responses
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /*
+     * Share the response read by the loader with the waiting callers and cache it, if the
+     * endpoint which answered and the index still have the generation of the lookup. A response
+     * loaded across a commit or from a lagging replica may be stale, so it is shared but not kept.
+     */
+    private void store(Lookup lookup, byte[] body, String contentType, long upstreamGeneration) {
+        long upstreamMillis = (System.nanoTime() - lookup.started) / 1000000;
+        Response response = new Response(body, contentType, upstreamMillis, lookup.generation);
+        if (upstreamGeneration >= 0 && upstreamGeneration == lookup.generation
+                                                    && lookup.generation == generation) {
+            put(lookup.key, response);
+        } else {
+            logMetacat.debug("QueryResultCache.store - the response of the query " + lookup.key
+                            + " came from the generation " + upstreamGeneration + " while the "
+                            + "index has " + generation + ", so it isn't cached");
+        }
+        finish(lookup, response);
+    }
+
+    private void finish(Lookup lookup, Response response) {
+        if (!lookup.finished) {
+            lookup.finished = true;
+            CompletableFuture<Response> flight = inFlight.remove(lookup.key);
+            if (flight != null) {
+                flight.complete(response);
+            }
+        }
+    }
+
+    private synchronized Response get(String key, long currentGeneration) {
+        Response response = entries.get(key);
+        if (response != null && (response.generation != currentGeneration
+                        || System.currentTimeMillis() - response.created > ttl)) {
+            entries.remove(key);
+            bytes -= response.body.length;
+            response = null;
+        }
+        return response;
+    }
+
+    private synchronized void put(String key, Response response) {
+        Response old = entries.put(key, response);
+        if (old != null) {
+            bytes -= old.body.length;
+        }
+        bytes += response.body.length;
+        Iterator<Response> eldest = entries.values().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            bytes -= eldest.next().body.length;
+            eldest.remove();
+        }
+    }
+
+    /*
+     * Read the commit generation of the index at most once per check interval, and drop all
+     * entries when it changed
+     */
+    private void checkGeneration() {
+        long last = lastGenerationCheck.get();
+        long now = System.currentTimeMillis();
+        if (now - last < generationCheckInterval
+                                    || !lastGenerationCheck.compareAndSet(last, now)) {
+            return;
+        }
+        long current = generationSupplier.getAsLong();
+        if (current != generation) {
+            logMetacat.debug("QueryResultCache.checkGeneration - the index generation changed from "
+                                + generation + " to " + current + ", so the cache is cleared");
+            generation = current;
+            clear();
+        }
+    }
+}
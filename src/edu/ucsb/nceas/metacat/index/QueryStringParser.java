@@ -0,0 +1,119 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.index;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+
+/**
+ * Parses the query string of a Solr query into params in one pass. A name or value without a
+ * percent escape is taken as a substring of the query; only the escaped ones are decoded into
+ * a buffer. A "+" is kept as it is since it is part of the Solr query syntax (see
+ * https://projects.ecoinformatics.org/ecoinfo/issues/6435). A repeated param, e.g. fq, gets all
+ * of its values in order. A segment without "=" is a param with the empty value.
+ * @author tao
+ */
+public class QueryStringParser {
+
+    /**
+     * Parse a query string
+     * @param queryString  the raw query string, e.g. q=*:*&fq=formatType:METADATA&wt=json
+     * @return the params of the query
+     * @throws IllegalArgumentException  if a percent escape is malformed
+     */
+    public static ModifiableSolrParams parse(String queryString) {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        if (queryString == null || queryString.isEmpty()) {
+            return params;
+        }
+        int length = queryString.length();
+        // the empty segments only count when a non-empty one follows, like String.split
+        int skippedEmpty = 0;
+        int start = 0;
+        while (start <= length) {
+            int end = queryString.indexOf('&', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end == start) {
+                skippedEmpty++;
+            } else {
+                for (; skippedEmpty > 0; skippedEmpty--) {
+                    params.add("", "");
+                }
+                int equals = queryString.indexOf('=', start);
+                if (equals > start && equals < end) {
+                    params.add(decode(queryString, start, equals),
+                               decode(queryString, equals + 1, end));
+                } else {
+                    params.add(decode(queryString, start, end), "");
+                }
+            }
+            start = end + 1;
+        }
+        return params;
+    }
+
+    /*
+     * Decode the percent escapes of a part of the query string. The consecutive escaped bytes
+     * are decoded together as UTF-8.
+     */
+    private static String decode(String queryString, int start, int end) {
+        int percent = queryString.indexOf('%', start);
+        if (percent < 0 || percent >= end) {
+            return queryString.substring(start, end);
+        }
+        StringBuilder decoded = new StringBuilder(end - start);
+        decoded.append(queryString, start, percent);
+        ByteBuffer bytes = null;
+        int i = percent;
+        while (i < end) {
+            char c = queryString.charAt(i);
+            if (c != '%') {
+                decoded.append(c);
+                i++;
+                continue;
+            }
+            if (bytes == null) {
+                bytes = ByteBuffer.allocate((end - i) / 3);
+            }
+            bytes.clear();
+            while (i < end && queryString.charAt(i) == '%') {
+                if (i + 2 >= end) {
+                    throw new IllegalArgumentException("QueryStringParser.decode - incomplete "
+                                                        + "trailing escape (%) pattern");
+                }
+                int high = Character.digit(queryString.charAt(i + 1), 16);
+                int low = Character.digit(queryString.charAt(i + 2), 16);
+                if (high < 0 || low < 0) {
+                    throw new IllegalArgumentException("QueryStringParser.decode - illegal hex "
+                                    + "characters in the escape (%) pattern "
+                                    + queryString.substring(i, i + 3));
+                }
+                bytes.put((byte) ((high << 4) + low));
+                i += 3;
+            }
+            decoded.append(new String(bytes.array(), 0, bytes.position(),
+                                      StandardCharsets.UTF_8));
+        }
+        return decoded.toString();
+    }
+}
@@ -0,0 +1,337 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.index;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+
+import edu.ucsb.nceas.metacat.common.query.SolrQueryResponseWriterFactory;
+import edu.ucsb.nceas.metacat.common.query.SolrQueryService;
+
+/**
+ * Exports all documents matching a query by walking the Solr cursorMark pages. The sort always
+ * ends with the id, so the cursor is stable, and every page is parsed as a stream and written
+ * out document by document. The memory use doesn't depend on the number of the documents,
+ * unlike paging with start and rows, whose cost grows with start.
+ * The output is either CSV (the fields given by the fl param) or JSON lines.
+ * @author tao
+ */
+public class SolrCursorExporter {
+    public static final String EXPORT_PARAM = "export";
+    public static final String CSV = "csv";
+    public static final String JSON_LINES = "jsonl";
+    public static final String CSV_CONTENT_TYPE = "text/csv";
+    public static final String JSON_LINES_CONTENT_TYPE = "application/x-ndjson";
+    private static final String ID = "id";
+    private static final String NEXT_CURSOR_MARK = "nextCursorMark";
+    private static final String ARRAY = "arr";
+    private static final String NAME = "name";
+
+    private static Log logMetacat = LogFactory.getLog(SolrCursorExporter.class);
+    private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+
+    private final ModifiableSolrParams query;
+    private final String format;
+    private final List<String> fields = new ArrayList<String>();
+    private final PageSource source;
+    private long exported = 0;
+
+    /**
+     * The source of the pages. Each page is a Solr xml response of the given params.
+     */
+    public interface PageSource {
+        /**
+         * Query a page
+         * @param params  the params of the page
+         * @return the xml response. It will be closed after the page is read.
+         * @throws Exception
+         */
+        public InputStream fetch(SolrParams params) throws Exception;
+    }
+
+    /**
+     * Constructor
+     * @param query  the query params of the client. The start, export and wt params are
+     *                ignored.
+     * @param pageSize  the number of the documents of a page
+     * @param source  the source of the pages
+     * @throws IllegalArgumentException  if the export format isn't supported or the fields of
+     *                                   the CSV export aren't given
+     */
+    public SolrCursorExporter(SolrParams query, int pageSize, PageSource source) {
+        this.format = query.get(EXPORT_PARAM);
+        if (!CSV.equals(format) && !JSON_LINES.equals(format)) {
+            throw new IllegalArgumentException("The export format " + format
+                                    + " isn't supported. It should be " + CSV + " or "
+                                    + JSON_LINES + ".");
+        }
+        String fl = query.get(CommonParams.FL);
+        if (fl != null) {
+            for (String field : fl.split("[,\\s]+")) {
+                if (!field.isEmpty()) {
+                    fields.add(field);
+                }
+            }
+        }
+        if (CSV.equals(format) && (fields.isEmpty() || fl.contains("*"))) {
+            throw new IllegalArgumentException("The CSV export needs the field names in the "
+                                                + CommonParams.FL + " param.");
+        }
+        this.source = source;
+        this.query = new ModifiableSolrParams(query);
+        this.query.remove(EXPORT_PARAM);
+        this.query.remove(CommonParams.START);
+        this.query.set(CommonParams.ROWS, pageSize);
+        this.query.set(SolrQueryService.WT, SolrQueryResponseWriterFactory.XML);
+        this.query.set(CommonParams.SORT, stableSort(query.get(CommonParams.SORT)));
+    }
+
+    /**
+     * @return the content type of the export
+     */
+    public String getContentType() {
+        return CSV.equals(format) ? CSV_CONTENT_TYPE : JSON_LINES_CONTENT_TYPE;
+    }
+
+    /**
+     * Write all documents to the stream
+     * @param out  the stream to write to
+     * @throws Exception
+     */
+    public void write(OutputStream out) throws Exception {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        if (CSV.equals(format)) {
+            for (int i = 0; i < fields.size(); i++) {
+                writer.write(i == 0 ? "" : ",");
+                writer.write(csvEscape(fields.get(i)));
+            }
+            writer.write("\n");
+        }
+        String cursor = CursorMarkParams.CURSOR_MARK_START;
+        int pages = 0;
+        while (true) {
+            query.set(CursorMarkParams.CURSOR_MARK_PARAM, cursor);
+            String next = null;
+            try (InputStream page = source.fetch(query)) {
+                next = writePage(page, writer);
+            }
+            pages++;
+            if (next == null || next.equals(cursor)) {
+                break;
+            }
+            cursor = next;
+        }
+        writer.flush();
+        logMetacat.info("SolrCursorExporter.write - exported " + exported + " documents in "
+                            + pages + " pages");
+    }
+
+    /*
+     * Write the documents of a page
+     * @return the next cursor mark
+     */
+    private String writePage(InputStream page, Writer writer)
+                                                    throws XMLStreamException, IOException {
+        XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(page);
+        String next = null;
+        int depth = 0;
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    // response/result/doc
+                    if (depth == 3 && "doc".equals(reader.getLocalName())) {
+                        writeDocument(readDocument(reader), writer);
+                        depth--;
+                    } else if (depth == 2 && NEXT_CURSOR_MARK.equals(
+                                                        reader.getAttributeValue(null, NAME))) {
+                        next = reader.getElementText();
+                        depth--;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return next;
+    }
+
+    /**
+     * A field of a document
+     */
+    private static class Field {
+        private boolean multiValued = false;
+        private boolean quoted = true; // the strings and dates are quoted in JSON
+        private List<String> values = new ArrayList<String>(1);
+    }
+
+    /*
+     * Read the fields of a doc element
+     */
+    private static Map<String, Field> readDocument(XMLStreamReader reader)
+                                                                    throws XMLStreamException {
+        Map<String, Field> document = new LinkedHashMap<String, Field>();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getAttributeValue(null, NAME);
+            Field field = new Field();
+            if (ARRAY.equals(reader.getLocalName())) {
+                field.multiValued = true;
+                while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    readValue(reader, field);
+                }
+            } else {
+                readValue(reader, field);
+            }
+            document.put(name, field);
+        }
+        return document;
+    }
+
+    private static void readValue(XMLStreamReader reader, Field field)
+                                                                    throws XMLStreamException {
+        switch (reader.getLocalName()) {
+            case "int":
+            case "long":
+            case "float":
+            case "double":
+            case "bool":
+                field.quoted = false;
+                break;
+            default:
+                field.quoted = true;
+        }
+        field.values.add(reader.getElementText());
+    }
+
+    private void writeDocument(Map<String, Field> document, Writer writer) throws IOException {
+        if (CSV.equals(format)) {
+            for (int i = 0; i < fields.size(); i++) {
+                writer.write(i == 0 ? "" : ",");
+                Field field = document.get(fields.get(i));
+                if (field != null) {
+                    // the multiple values are separated by commas in one quoted cell
+                    writer.write(csvEscape(String.join(",", field.values)));
+                }
+            }
+            writer.write("\n");
+        } else {
+            writer.write("{");
+            boolean first = true;
+            for (Map.Entry<String, Field> entry : document.entrySet()) {
+                if (!fields.isEmpty() && !fields.contains(entry.getKey())
+                                                            && !fields.contains("*")) {
+                    continue;
+                }
+                writer.write(first ? "" : ",");
+                first = false;
+                writer.write(jsonQuote(entry.getKey()));
+                writer.write(":");
+                Field field = entry.getValue();
+                writer.write(field.multiValued ? "[" : "");
+                for (int i = 0; i < field.values.size(); i++) {
+                    writer.write(i == 0 ? "" : ",");
+                    String value = field.values.get(i);
+                    writer.write(field.quoted ? jsonQuote(value) : value);
+                }
+                writer.write(field.multiValued ? "]" : "");
+            }
+            writer.write("}\n");
+        }
+        exported++;
+    }
+
+    /*
+     * The cursor needs a sort ending with the unique key
+     */
+    private static String stableSort(String sort) {
+        if (sort == null || sort.trim().isEmpty()) {
+            return ID + " asc";
+        }
+        for (String clause : sort.split(",")) {
+            if (clause.trim().split("\\s+")[0].equals(ID)) {
+                return sort;
+            }
+        }
+        return sort + "," + ID + " asc";
+    }
+
+    private static String jsonQuote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2);
+        quoted.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static String csvEscape(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0
+                                                                && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ *  Copyright: 2024 Regents of the University of California and the
+ *             National Center for Ecological Analysis and Synthesis
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package edu.ucsb.nceas.metacat.index;
+
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.solr.common.params.SolrParams;
+
+import edu.ucsb.nceas.metacat.common.query.SolrQueryObserver;
+import edu.ucsb.nceas.metacat.common.query.SolrQueryService;
+import edu.ucsb.nceas.metacat.common.query.stream.ContentTypeMeteredInputStream;
+import edu.ucsb.nceas.metacat.metrics.MetacatMetrics;
+
+/**
+ * Records the histograms of the Solr queries in MetacatMetrics, labeled by the shape of the
+ * query and its format (the wt, the skin or the export type). The shape is the sorted param
+ * names plus the facet fields, without the values, e.g.
+ * facet,facet.field,fl,fq,q,rows,wt;facet.field=keywords|origin
+ * so the expensive kinds of queries, e.g. of a portal, stand out. The number of the labeled
+ * series is capped, and the queries beyond the cap are recorded under the "other" shape.
+ * @author tao
+ */
+public class SolrQueryMetrics implements SolrQueryObserver {
+    /** The QTime reported by Solr */
+    public static final String QTIME_METRIC = "metacat_solr_query_qtime_seconds";
+    /** The time until the response of Solr could be read */
+    public static final String SOLR_TIME_METRIC = "metacat_solr_query_seconds";
+    /** The time of writing the Solr response in another format, e.g. a skin */
+    public static final String SERIALIZATION_METRIC = "metacat_query_serialization_seconds";
+    /** The time from receiving the query until the response was sent to the client */
+    public static final String QUERY_TIME_METRIC = "metacat_query_seconds";
+    /** The size of the response sent to the client */
+    public static final String RESPONSE_SIZE_METRIC = "metacat_query_response_bytes";
+    public static final String OTHER = "other";
+
+    static final double[] SECONDS =
+                    {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+    static final double[] BYTES = {1024, 4096, 16384, 65536, 262144, 1048576, 4194304,
+                                   16777216, 67108864, 268435456};
+    // the params whose values are fields rather than search terms
+    private static final String[] FIELD_PARAMS =
+                            {"facet.field", "facet.pivot", "facet.range", "stats.field"};
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private MetacatMetrics metrics = null;
+    private int maxSeries = 500;
+    private Set<String> series = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructor
+     * @param metrics  the registry of the metrics
+     * @param maxSeries  the max number of the distinct shape and format labels
+     */
+    public SolrQueryMetrics(MetacatMetrics metrics, int maxSeries) {
+        this.metrics = metrics;
+        this.maxSeries = maxSeries;
+    }
+
+    @Override
+    public void observe(SolrParams query, long qTime, long solrNanos, long serializationNanos) {
+        String labels = labels(query);
+        if (qTime >= 0) {
+            metrics.observe(QTIME_METRIC, labels, SECONDS, qTime / 1000.0);
+        }
+        metrics.observe(SOLR_TIME_METRIC, labels, SECONDS, solrNanos / NANOS_PER_SECOND);
+        if (serializationNanos > 0) {
+            observeSerialization(query, serializationNanos);
+        }
+    }
+
+    /**
+     * Record the time of writing a Solr response in another format
+     * @param query  the query params of the client
+     * @param nanos  the time of the serialization
+     */
+    public void observeSerialization(SolrParams query, long nanos) {
+        metrics.observe(SERIALIZATION_METRIC, labels(query), SECONDS, nanos / NANOS_PER_SECOND);
+    }
+
+    /**
+     * Wrap the response of a query, so its total time and size are recorded when it is closed
+     * after being sent to the client
+     * @param response  the response of the query
+     * @param query  the query params of the client
+     * @param startNanos  the System.nanoTime() when the query was received
+     * @param cached  if the response came from the cache
+     * @return the wrapped response with the same content type
+     */
+    public InputStream meter(InputStream response, SolrParams query, long startNanos,
+                             boolean cached) {
+        String labels = labels(query) + ","
+                            + MetacatMetrics.label("cached", Boolean.toString(cached));
+        return new ContentTypeMeteredInputStream(response, bytes -> {
+            metrics.observe(QUERY_TIME_METRIC, labels, SECONDS,
+                            (System.nanoTime() - startNanos) / NANOS_PER_SECOND);
+            metrics.observe(RESPONSE_SIZE_METRIC, labels, BYTES, bytes);
+        });
+    }
+
+    /*
+     * The shape and format labels of a query, or the "other" ones beyond the cap
+     */
+    private String labels(SolrParams query) {
+        String labels = MetacatMetrics.label("shape", shape(query)) + ","
+                            + MetacatMetrics.label("format", format(query));
+        if (series.contains(labels)) {
+            return labels;
+        }
+        if (series.size() < maxSeries) {
+            series.add(labels);
+            return labels;
+        }
+        return MetacatMetrics.label("shape", OTHER) + "," + MetacatMetrics.label("format", OTHER);
+    }
+
+    /**
+     * Get the shape of a query: the sorted param names and the fields of the facet params
+     * @param query  the query params
+     * @return the shape
+     */
+    public static String shape(SolrParams query) {
+        TreeSet<String> names = new TreeSet<String>();
+        Iterator<String> iterator = query.getParameterNamesIterator();
+        while (iterator.hasNext()) {
+            names.add(iterator.next());
+        }
+        StringBuilder shape = new StringBuilder(String.join(",", names));
+        for (String param : FIELD_PARAMS) {
+            String[] values = query.getParams(param);
+            if (values == null || values.length == 0) {
+                continue;
+            }
+            TreeSet<String> fields = new TreeSet<String>();
+            for (String value : values) {
+                // drop the local params, e.g. {!ex=dt}
+                if (value.startsWith("{!") && value.indexOf('}') > 0) {
+                    value = value.substring(value.indexOf('}') + 1);
+                }
+                fields.add(value.trim());
+            }
+            shape.append(';').append(param).append('=').append(String.join("|", fields));
+        }
+        return shape.toString();
+    }
+
+    /**
+     * Get the format of the response of a query
+     * @param query  the query params
+     * @return the export type, the wt or the skin name. The default is xml.
+     */
+    public static String format(SolrParams query) {
+        String export = query.get(SolrCursorExporter.EXPORT_PARAM);
+        if (export != null) {
+            return "export:" + export;
+        }
+        String wt = query.get(SolrQueryService.WT);
+        return wt == null ? "xml" : wt;
+    }
+}
@@ -14,17 +14,36 @@ import org.dataone.service.types.v2.SystemMetadata;
 import edu.ucsb.nceas.metacat.common.index.event.IndexEvent;
 import edu.ucsb.nceas.metacat.index.IndexEventDAO;
 import edu.ucsb.nceas.metacat.index.MetacatSolrIndex;
+import edu.ucsb.nceas.metacat.metrics.MetacatMetrics;
 
 
 /**
  * A timer to regenerate failed index tasks or index tasks in a given time frame.
+ * Each run only resubmits a bounded batch of the tasks whose next attempt time has come, so a
+ * big backlog can't block the other tasks sharing the timer thread. A failed resubmission
+ * doubles the waiting time of the task until it reaches the max backoff; after the max number
+ * of attempts the task is moved to the dead-letter state and will not be resubmitted anymore.
  */
 public class FailedIndexResubmitTimerTask extends TimerTask {
+    //The names of the metrics reported by this task
+    public static final String BACKLOG_SIZE_METRIC = "metacat_index_failed_backlog_size";
+    public static final String BACKLOG_AGE_METRIC =
+                                            "metacat_index_failed_backlog_oldest_age_seconds";
+    public static final String DEAD_LETTER_SIZE_METRIC = "metacat_index_failed_dead_letter_size";
+    public static final String RESUBMITTED_METRIC = "metacat_index_failed_resubmitted_total";
+    public static final String RESUBMIT_FAILURE_METRIC =
+                                            "metacat_index_failed_resubmit_failures_total";
+    public static final String DEAD_LETTERED_METRIC = "metacat_index_failed_dead_lettered_total";
+
     private static Log log = LogFactory.getLog(FailedIndexResubmitTimerTask.class);
     //if this task need to reindex the previously failed index task
     private boolean needReindexFailedEvent = true;
     protected static long maxAgeOfFailedIndexTask = 864000000; // 10 days
-    
+    private int batchSize = 500;
+    private int maxAttempts = 10;
+    private long initialBackoff = 600000; // 10 minutes
+    private long maxBackoff = 86400000; // 1 day
+
     /**
      * Constructor
      */
@@ -42,8 +61,19 @@ public class FailedIndexResubmitTimerTask extends TimerTask {
                                                 + "index tasks: " + needReindexFailedEvent);
         maxAgeOfFailedIndexTask = Settings.getConfiguration()
                                     .getLong("index.regenerate.failedTask.max.age", 864000000);
+        batchSize = Settings.getConfiguration()
+                                    .getInt("index.regenerate.failedTask.batch.size", 500);
+        maxAttempts = Settings.getConfiguration()
+                                    .getInt("index.regenerate.failedTask.max.attempts", 10);
+        initialBackoff = Settings.getConfiguration()
+                            .getLong("index.regenerate.failedTask.backoff.initial", 600000);
+        maxBackoff = Settings.getConfiguration()
+                            .getLong("index.regenerate.failedTask.backoff.max", 86400000);
+        log.info("FailedIndexResubmitTimerTask.constructor - the batch size is " + batchSize
+                    + ", the max attempts is " + maxAttempts + ", the initial backoff is "
+                    + initialBackoff + " ms and the max backoff is " + maxBackoff + " ms.");
     }
-    
+
     /**
      * Reindex the failed index tasks stored in the index_event table
      */
@@ -53,56 +83,46 @@ public class FailedIndexResubmitTimerTask extends TimerTask {
         Date oldestAge = new Date(now.getTime() - maxAgeOfFailedIndexTask);
         try {
             List<IndexEvent> failedCreateEvents = IndexEventDAO.getInstance()
-                                                .get(IndexEvent.CREATE_FAILURE_TO_QUEUE, oldestAge);
-            reindexFailedTasks(failedCreateEvents);
+                        .getDue(IndexEvent.CREATE_FAILURE_TO_QUEUE, oldestAge, now, batchSize);
+            reindexFailedTasks(failedCreateEvents, now);
         } catch (SQLException e) {
             log.error("FailedIndexResubmitTimerTask.reIndexFAiledTasks - failed to get the failure "
                      + "create index task list since " + e.getMessage());
         }
-        
+
         try {
             List<IndexEvent> failedDeleteEvents = IndexEventDAO.getInstance()
-                                                .get(IndexEvent.DELETE_FAILURE_TO_QUEUE, oldestAge);
-            reindexFailedTasks(failedDeleteEvents);
+                        .getDue(IndexEvent.DELETE_FAILURE_TO_QUEUE, oldestAge, now, batchSize);
+            reindexFailedTasks(failedDeleteEvents, now);
         } catch (SQLException e) {
             log.error("FailedIndexResubmitTimerTask.reIndexFAiledTasks - failed to get the failure "
                     + "delete index task list since " + e.getMessage());
         }
-        
+
     }
 
     /**
      * Reindex the failed index tasks stored in the index_event table
      * @param failedEvents  the failed index event list
+     * @param now  the time when this run started
      */
-    private void reindexFailedTasks(List<IndexEvent> failedEvents) {
+    private void reindexFailedTasks(List<IndexEvent> failedEvents, Date now) {
         if(failedEvents != null) {
-            boolean firstTime = true;
-            boolean deleteEvent = false;
             for(IndexEvent event : failedEvents) {
                 if(event != null && event.getIdentifier() != null) {
                     String id = event.getIdentifier().getValue();
                     if (id != null && !id.trim().equals("")) {
                         try {
-                            if(firstTime && event.getAction()
-                                          .compareTo(IndexEvent.DELETE_FAILURE_TO_QUEUE) == 0) {
-                                firstTime = false;
-                                deleteEvent = true;
-                            }
-                            if (deleteEvent) {
-                                //this is a delete event
-                                deleteIndex(id);
-                                //Succeeded and remove it from the index event table
-                                IndexEventDAO.getInstance().remove(event.getIdentifier());
-                            } else {
-                                IndexGeneratorTimerTask.submitIndex(id);
-                                //Succeeded and remove it from the index event table
-                                IndexEventDAO.getInstance().remove(event.getIdentifier());
-                            }
+                            resubmit(event);
+                            //Succeeded and remove it from the index event table
+                            IndexEventDAO.getInstance().remove(event.getIdentifier());
+                            MetacatMetrics.getInstance().increment(RESUBMITTED_METRIC);
                         } catch (Exception e) {
                             log.warn("FailedIndexResubmitTimerTask.reIndexFAiledTasks - failed "
                                     + "to submit the reindex task for the pid " + id
                                     + " since " + e.getMessage());
+                            MetacatMetrics.getInstance().increment(RESUBMIT_FAILURE_METRIC);
+                            recordFailedAttempt(event, now);
                         }
                     }
                 }
@@ -110,20 +130,96 @@ public class FailedIndexResubmitTimerTask extends TimerTask {
         }
     }
 
-    
     /**
-     * Put a delete index task into the index queue
-     * @param id  the id whose solr doc needs to be deleted
+     * Put the index task of the event into the index queue again. Unlike the methods in
+     * MetacatSolrIndex, this method throws an exception when the task can't be published.
+     * @param event  the failed index event
+     * @throws Exception
+     */
+    private void resubmit(IndexEvent event) throws Exception {
+        Identifier pid = event.getIdentifier();
+        if (event.getAction() != null
+                && event.getAction().startsWith(IndexEvent.DELETE)) {
+            //this is a delete event
+            IndexGenerator.getInstance()
+                .publish(pid, IndexGenerator.DELETE_INDEX_TYPE, IndexGenerator.LOW_PRIORITY);
+            log.debug("FailedIndexResubmitTimerTask.resubmit - submitted the task which deletes "
+                        + "pid " + pid.getValue() + " into Rabbitmq successfully.");
+        } else {
+            SystemMetadata sysmeta = IndexGeneratorTimerTask.getSystemMetadata(pid.getValue());
+            int priority = MetacatSolrIndex.getResourceMapPriority(sysmeta);
+            IndexGenerator.getInstance()
+                .publish(pid, IndexGenerator.CREATE_INDEX_TYPE, priority);
+            log.debug("FailedIndexResubmitTimerTask.resubmit - submitted the pid "
+                        + pid.getValue() + " into Rabbitmq successfully.");
+        }
+    }
+
+    /**
+     * Increase the attempt number of a failed event and schedule its next attempt. If the
+     * attempt number reaches the max attempts, the event will be moved to the dead-letter state.
+     * @param event  the event failed to be resubmitted
+     * @param now  the time when this run started
+     */
+    private void recordFailedAttempt(IndexEvent event, Date now) {
+        int attempts = event.getAttempts() + 1;
+        event.setAttempts(attempts);
+        if (attempts >= maxAttempts) {
+            event.setDeadLetter(true);
+            event.setNextAttempt(null);
+            MetacatMetrics.getInstance().increment(DEAD_LETTERED_METRIC);
+            log.error("FailedIndexResubmitTimerTask.recordFailedAttempt - Metacat gave up "
+                        + "resubmitting the index task for " + event.getIdentifier().getValue()
+                        + " after " + attempts + " attempts. It is in the dead-letter state now.");
+        } else {
+            long delay = getBackoff(attempts, initialBackoff, maxBackoff);
+            event.setNextAttempt(new Date(now.getTime() + delay));
+            log.info("FailedIndexResubmitTimerTask.recordFailedAttempt - the index task for "
+                        + event.getIdentifier().getValue() + " failed " + attempts
+                        + " times and will be tried again after " + event.getNextAttempt());
+        }
+        try {
+            IndexEventDAO.getInstance().updateAttempt(event);
+        } catch (SQLException e) {
+            log.error("FailedIndexResubmitTimerTask.recordFailedAttempt - can't save the attempt "
+                        + "information for " + event.getIdentifier().getValue() + " since "
+                        + e.getMessage());
+        }
+    }
+
+    /**
+     * Compute the waiting time before the next attempt. It starts from the initial backoff and
+     * doubles on each failed attempt, but it never exceeds the max backoff.
+     * @param attempts  the number of the failed attempts so far. It should be at least 1.
+     * @param initialBackoff  the waiting time after the first failure
+     * @param maxBackoff  the upper limit of the waiting time
+     * @return the waiting time in milliseconds
      */
-    private void deleteIndex(String id) throws Exception {
-        if(id != null) {
-            SystemMetadata sysmeta = IndexGeneratorTimerTask.getSystemMetadata(id);
-            Identifier pid = new Identifier();
-            pid.setValue(id);
-            MetacatSolrIndex.getInstance().submitDeleteTask(pid, sysmeta);
-            log.debug("FailedIndexResubmitTimerTask.deleteIndex - "
-                          + "submitted the task which deletes pid "
-                          + pid.getValue() + " into Rabbitmq successfully.");
+    protected static long getBackoff(int attempts, long initialBackoff, long maxBackoff) {
+        long delay = initialBackoff;
+        for (int i = 1; i < attempts && delay < maxBackoff; i++) {
+            delay = delay * 2;
+        }
+        return Math.min(delay, maxBackoff);
+    }
+
+    /**
+     * Report the size and age of the backlog and the size of the dead letters to the metrics
+     */
+    private void reportBacklogMetrics() {
+        try {
+            MetacatMetrics metrics = MetacatMetrics.getInstance();
+            metrics.setGauge(BACKLOG_SIZE_METRIC, IndexEventDAO.getInstance().count(false));
+            metrics.setGauge(DEAD_LETTER_SIZE_METRIC, IndexEventDAO.getInstance().count(true));
+            Date oldest = IndexEventDAO.getInstance().getOldestEventDate();
+            double age = 0;
+            if (oldest != null) {
+                age = (System.currentTimeMillis() - oldest.getTime()) / 1000.0;
+            }
+            metrics.setGauge(BACKLOG_AGE_METRIC, age);
+        } catch (SQLException e) {
+            log.warn("FailedIndexResubmitTimerTask.reportBacklogMetrics - can't get the backlog "
+                        + "information since " + e.getMessage());
         }
     }
 
@@ -133,6 +229,7 @@ public class FailedIndexResubmitTimerTask extends TimerTask {
                         + "failed index tasks");
             reindexFailedTasks();
         }
+        reportBacklogMetrics();
     }
 
     /**
@@ -1,9 +1,14 @@
 package edu.ucsb.nceas.metacat.index.queue;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -13,19 +18,32 @@ import org.dataone.service.types.v1.Identifier;
 
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
 
 import edu.ucsb.nceas.metacat.IdentifierManager;
 import edu.ucsb.nceas.metacat.McdbDocNotFoundException;
+import edu.ucsb.nceas.metacat.admin.SolrCoreRebuildMarker;
+import edu.ucsb.nceas.metacat.common.index.IndexLane;
+import edu.ucsb.nceas.metacat.common.index.LocalIndexQueue;
 import edu.ucsb.nceas.metacat.common.index.event.IndexEvent;
+import edu.ucsb.nceas.metacat.common.storage.ObjectStoreFactory;
 import edu.ucsb.nceas.metacat.index.IndexEventDAO;
+import edu.ucsb.nceas.metacat.metrics.MetacatMetrics;
 import edu.ucsb.nceas.metacat.shared.BaseService;
 import edu.ucsb.nceas.metacat.shared.ServiceException;
 
 /**
  * The IndexGenerator class will publish (send) the index information
  * to a RabbitMQ queue. A index worker will consume the information.
+ * If the property index.queue.type is local, the information will be published to a
+ * LocalIndexQueue on the local disk instead, and the worker pool embedded in the metacat-index
+ * webapp will consume it. So a single-node deployment doesn't need a RabbitMQ broker.
+ * If the property index.rabbitmq.lanes.enabled is true, every class of work (see IndexLane) is
+ * routed to its own RabbitMQ queue rather than the single priority queue.
  * @author tao
  *
  */
@@ -57,13 +75,35 @@ public class IndexGenerator extends BaseService {
     private final static String HEADER_PATH = "path"; 
     //The header name in the message to store the index type
     private final static String HEADER_INDEX_TYPE = "index_type"; 
+    //The header name in the message to store the solr core the task is indexed into
+    private final static String HEADER_CORE = "core"; 
     private final static String EXCHANGE_NAME = "dataone-index";
     private final static String INDEX_QUEUE_NAME = "index";
     private final static String INDEX_ROUTING_KEY = "index";
+    //The types of the index queue
+    public final static String RABBITMQ_QUEUE_TYPE = "rabbitmq";
+    public final static String LOCAL_QUEUE_TYPE = "local";
+    //The names of the metrics reported by this class
+    public final static String QUEUE_DEPTH_METRIC = "metacat_index_queue_depth";
+    public final static String QUEUE_CONSUMERS_METRIC = "metacat_index_queue_consumers";
+    public final static String PUBLISHED_METRIC = "metacat_index_published_total";
+    public final static String PUBLISH_FAILURES_METRIC = "metacat_index_publish_failures_total";
+    public final static String CONFIRM_LATENCY_SUM_METRIC =
+                                    "metacat_index_publish_confirm_latency_microseconds_sum";
+    public final static String CONFIRM_LATENCY_COUNT_METRIC =
+                                    "metacat_index_publish_confirm_latency_microseconds_count";
+    public final static String CONFIRM_NACKS_METRIC = "metacat_index_publish_nacks_total";
 
     private static Connection RabbitMQconnection = null;
     private static Channel RabbitMQchannel = null;
+    private static LocalIndexQueue localQueue = null;
+    private static boolean lanesEnabled = false;
     private static IndexGenerator instance = null;
+    //The publish times (nanoseconds) of the messages waiting for the confirmation of the broker,
+    //keyed by the publish sequence number
+    private static ConcurrentNavigableMap<Long, Long> unconfirmed =
+                                                    new ConcurrentSkipListMap<Long, Long>();
+    private static final Object publishLock = new Object();
 
     private static Log logMetacat = LogFactory.getLog("IndexGenerator");
     
@@ -84,10 +124,16 @@ public class IndexGenerator extends BaseService {
     }
     
     /**
-     * Initialize the RabbitMQ service
+     * Initialize the RabbitMQ service or the local index queue
      * @throws ServiceException
      */
     private void init() throws ServiceException {
+        String queueType = Settings.getConfiguration()
+                                    .getString("index.queue.type", RABBITMQ_QUEUE_TYPE);
+        if (LOCAL_QUEUE_TYPE.equalsIgnoreCase(queueType)) {
+            initLocalQueue();
+            return;
+        }
         // Default values for the RabbitMQ message broker server. The value of
         //'localhost' is valid for a RabbitMQ server running on a 'bare metal'
         //server, inside a VM, or within a Kubernetes where Metacat and the
@@ -120,6 +166,8 @@ public class IndexGenerator extends BaseService {
         // Setup the 'InProcess' queue with a routing key - messages consumed 
         //by this queue require that this routine key be used. The routine key 
         //INDEX_ROUTING_KEY sends messages to the index worker,
+        lanesEnabled = Settings.getConfiguration()
+                                    .getBoolean("index.rabbitmq.lanes.enabled", false);
         try {
             boolean durable = true;
             RabbitMQconnection = factory.newConnection();
@@ -128,19 +176,53 @@ public class IndexGenerator extends BaseService {
 
             boolean exclusive = false;
             boolean autoDelete = false;
-            Map<String, Object> argus = new HashMap<String, Object>();
-            argus.put("x-max-priority", RabbitMQMaxPriority);
-            logMetacat.debug("IndexGenerator.init - Set RabbitMQ max priority to: " 
-                            + RabbitMQMaxPriority);
-            RabbitMQchannel.queueDeclare(INDEX_QUEUE_NAME, durable, 
-                                        exclusive, autoDelete, argus);
-            RabbitMQchannel.queueBind(INDEX_QUEUE_NAME, EXCHANGE_NAME, 
-                                    INDEX_ROUTING_KEY);
+            if (lanesEnabled) {
+                // the lanes are plain queues. The broker doesn't need to keep them sorted.
+                for (IndexLane lane : IndexLane.values()) {
+                    RabbitMQchannel.queueDeclare(lane.getQueueName(), durable,
+                                                 exclusive, autoDelete, null);
+                    RabbitMQchannel.queueBind(lane.getQueueName(), EXCHANGE_NAME,
+                                              lane.getQueueName());
+                }
+                logMetacat.debug("IndexGenerator.init - declared the index lanes.");
+            } else {
+                Map<String, Object> argus = new HashMap<String, Object>();
+                argus.put("x-max-priority", RabbitMQMaxPriority);
+                logMetacat.debug("IndexGenerator.init - Set RabbitMQ max priority to: " 
+                                + RabbitMQMaxPriority);
+                RabbitMQchannel.queueDeclare(INDEX_QUEUE_NAME, durable, 
+                                            exclusive, autoDelete, argus);
+                RabbitMQchannel.queueBind(INDEX_QUEUE_NAME, EXCHANGE_NAME, 
+                                        INDEX_ROUTING_KEY);
+            }
             
             // Channel will only send one request for each worker at a time. 
             //This is only for consumer, so we comment it out.
             //see https://www.rabbitmq.com/consumer-prefetch.html
             //RabbitMQchannel.basicQos(1);
+            // Turn on the publisher confirms to measure the confirm latency. The confirms are
+            // handled asynchronously, so publishing doesn't wait for them.
+            //see https://www.rabbitmq.com/confirms.html#publisher-confirms
+            RabbitMQchannel.confirmSelect();
+            RabbitMQchannel.addConfirmListener(new ConfirmListener() {
+                public void handleAck(long deliveryTag, boolean multiple) {
+                    confirm(deliveryTag, multiple, true);
+                }
+                public void handleNack(long deliveryTag, boolean multiple) {
+                    confirm(deliveryTag, multiple, false);
+                }
+            });
+            if (RabbitMQconnection instanceof Recoverable) {
+                // the sequence numbers restart on a recovered channel
+                ((Recoverable) RabbitMQconnection).addRecoveryListener(new RecoveryListener() {
+                    public void handleRecovery(Recoverable recoverable) {
+                        unconfirmed.clear();
+                    }
+                    public void handleRecoveryStarted(Recoverable recoverable) {
+                    }
+                });
+            }
+            registerMetrics();
             logMetacat.info("IndexGenerator.init - Connected to RabbitMQ queue " 
                             + INDEX_QUEUE_NAME);
         } catch (Exception e) {
@@ -151,6 +233,25 @@ public class IndexGenerator extends BaseService {
         }
        
     }
+
+    /**
+     * Initialize the local index queue
+     * @throws ServiceException
+     */
+    private void initLocalQueue() throws ServiceException {
+        String directory = Settings.getConfiguration()
+                            .getString("index.queue.local.directory", "/var/metacat/index-queue");
+        try {
+            localQueue = new LocalIndexQueue(Paths.get(directory));
+            registerMetrics();
+            logMetacat.info("IndexGenerator.initLocalQueue - Metacat publishes the index tasks "
+                            + "to the local index queue at " + directory);
+        } catch (IOException e) {
+            throw new ServiceException("IndexGenerator.initLocalQueue - Cannot create the local "
+                                        + "index queue at " + directory + " since "
+                                        + e.getMessage());
+        }
+    }
     
     /**
      * Get the last sub-directory in the path.
@@ -211,13 +312,30 @@ public class IndexGenerator extends BaseService {
     }
 
     /**
-     * Publish the given information to the index queue
+     * Publish the given information to the index queue. While the solr core is being rebuilt,
+     * a copy of the task is published for the rebuilding core as well.
      * @param id  the identifier of the object which will be indexed
      * @param index_type  the type of indexing, it can be delete, create or sysmeta
      * @param priority  the priority of the index task
      */
     public void publish(Identifier id, String index_type, int priority) 
                                     throws ServiceException, InvalidRequest {
+        publish(id, index_type, priority, null);
+        String rebuildingCore = SolrCoreRebuildMarker.getRebuildingCore();
+        if (rebuildingCore != null) {
+            publish(id, index_type, priority, rebuildingCore);
+        }
+    }
+
+    /**
+     * Publish the given information to the index queue for the given solr core
+     * @param id  the identifier of the object which will be indexed
+     * @param index_type  the type of indexing, it can be delete, create or sysmeta
+     * @param priority  the priority of the index task
+     * @param core  the solr core the task is indexed into. Null means the configured core.
+     */
+    public void publish(Identifier id, String index_type, int priority, String core)
+                                    throws ServiceException, InvalidRequest {
         if (id == null || id.getValue() == null 
                        || id.getValue().trim().equals("")) {
             throw new InvalidRequest("0000", 
@@ -233,7 +351,7 @@ public class IndexGenerator extends BaseService {
         if (index_type.equals(DELETE_INDEX_TYPE)) {
             errorType = IndexEvent.DELETE_FAILURE_TO_QUEUE;
         }
-        if (RabbitMQchannel == null) {
+        if (RabbitMQchannel == null && localQueue == null) {
             try {
                 saveFailedTaskToDB(errorType, id, "RabbitMQchannel is null");
             } catch (SQLException e) {
@@ -243,6 +361,7 @@ public class IndexGenerator extends BaseService {
                                     + "can't publish the index task for "
                                     + id.getValue() + " since the RabbitMQ channel "
                                     + " is null, which means Metacat cannot connect with RabbitMQ.";
+            MetacatMetrics.getInstance().increment(PUBLISH_FAILURES_METRIC);
             if (additionErrorMessage != null) {
                 error = error + " And also Metacat can't save the failure index task into DB since "
                                 + additionErrorMessage;
@@ -262,24 +381,46 @@ public class IndexGenerator extends BaseService {
             if (filePath != null) {
                 headers.put(HEADER_PATH, filePath);
             }
-            AMQP.BasicProperties basicProperties =
-                     new AMQP.BasicProperties.Builder()
-                    .contentType("text/plain")
-                    .deliveryMode(2) // set this message to persistent
-                    .priority(priority)
-                    .headers(headers)
-                    .build();
-            RabbitMQchannel.basicPublish(EXCHANGE_NAME, INDEX_ROUTING_KEY,
-                                            basicProperties, null);
+            if (core != null) {
+                headers.put(HEADER_CORE, core);
+            }
+            if (localQueue != null) {
+                localQueue.publish(id.getValue(), index_type, filePath, priority, core);
+            } else {
+                AMQP.BasicProperties basicProperties =
+                         new AMQP.BasicProperties.Builder()
+                        .contentType("text/plain")
+                        .deliveryMode(2) // set this message to persistent
+                        .priority(priority)
+                        .headers(headers)
+                        .build();
+                String routingKey = INDEX_ROUTING_KEY;
+                if (lanesEnabled) {
+                    routingKey = IndexLane.of(index_type, priority).getQueueName();
+                }
+                synchronized (publishLock) {
+                    unconfirmed.put(RabbitMQchannel.getNextPublishSeqNo(), System.nanoTime());
+                    RabbitMQchannel.basicPublish(EXCHANGE_NAME, routingKey,
+                                                    basicProperties, null);
+                }
+            }
+            MetacatMetrics.getInstance().increment(PUBLISHED_METRIC);
+            if (core == null) {
+                // the lag is measured on the core serving the queries
+                IndexLagSampler.getInstance().offer(id, index_type);
+            }
             logMetacat.info("IndexGenerator.publish - The index task with the "
                             + "object identifier " + id.getValue()
                             + ", the index type " + index_type
                             + ", the file path " + filePath
                             + " (null means Metacat doesn't have the object), "
                             + " the priority " + priority
-                            + " was push into RabbitMQ with the exchange name "
-                            + EXCHANGE_NAME);
+                            + (core != null ? " for the core " + core : "")
+                            + " was push into "
+                            + (localQueue != null ? "the local index queue"
+                                    : "RabbitMQ with the exchange name " + EXCHANGE_NAME));
         } catch (Exception e) {
+            MetacatMetrics.getInstance().increment(PUBLISH_FAILURES_METRIC);
             try {
                 saveFailedTaskToDB(errorType, id, e.getMessage());
             } catch (SQLException sqle) {
@@ -322,7 +463,8 @@ public class IndexGenerator extends BaseService {
      * object. The metadata objects are stored in the path 
      * /var/metacat/document/autogen.1.1. 
      * Since the application.documentfilepath is "/var/metacat/document", 
-     * the relative file path will be autogen.1.1.
+     * the relative file path will be autogen.1.1. In the sharded layout, it has the shard
+     * directories, e.g. ab/cd/autogen.1.1.
      * Note, the value can be null since cn doesn't store data objects.
      * @param id  the guid of object
      * @return  the relative file path
@@ -347,7 +489,11 @@ public class IndexGenerator extends BaseService {
            throw new ServiceException(e.getMessage());
         }
         if (docid != null) {
-            path = docid;
+            try {
+                path = ObjectStoreFactory.getRelativePath(docid);
+            } catch (IOException e) {
+                throw new ServiceException(e.getMessage());
+            }
         }
         logMetacat.debug("IndexGenerator.getFilePath - The relative file path " 
                       + "for the identifier " + id.getValue() + " is " + path);
@@ -372,6 +518,11 @@ public class IndexGenerator extends BaseService {
      */
     @Override
     public void stop() throws ServiceException {
+        if (localQueue != null) {
+            // nothing to close for the local index queue
+            logMetacat.info("IndexGenerator.stop - stop the index queue service.");
+            return;
+        }
         try {
             RabbitMQchannel.close();
             RabbitMQconnection.close();
@@ -382,11 +533,120 @@ public class IndexGenerator extends BaseService {
     }
     
     /**
-     * Get the number of messages in the index queue
-     * @return  the number of messages
+     * Get the number of messages in the index queue (all lanes), which are ready to be
+     * delivered to the index workers
+     * @return  the number of messages. -1 will be returned if the queue can't be reached.
      */
     public int size() {
-       return 0;
+        try {
+            if (localQueue != null) {
+                return localQueue.size();
+            }
+            if (!lanesEnabled) {
+                return declarePassive(INDEX_QUEUE_NAME).getMessageCount();
+            }
+            int size = 0;
+            for (IndexLane lane : IndexLane.values()) {
+                size += declarePassive(lane.getQueueName()).getMessageCount();
+            }
+            return size;
+        } catch (IOException e) {
+            logMetacat.warn("IndexGenerator.size - can't get the number of messages in the queue "
+                            + INDEX_QUEUE_NAME + " since " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Get the number of messages in an index lane
+     * @param lane  the lane
+     * @return  the number of messages. -1 will be returned if the lane can't be reached.
+     */
+    public int size(IndexLane lane) {
+        try {
+            return declarePassive(lane.getQueueName()).getMessageCount();
+        } catch (IOException e) {
+            logMetacat.warn("IndexGenerator.size - can't get the number of messages in the lane "
+                            + lane.getName() + " since " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Get the number of consumers (index workers) of the index queue
+     * @return  the number of consumers. -1 will be returned if the queue can't be reached or
+     *          it is the local index queue, whose workers are in another webapp.
+     */
+    public int getConsumerCount() {
+        if (localQueue != null) {
+            return -1;
+        }
+        try {
+            // every worker consumes all lanes
+            String queueName = lanesEnabled ? IndexLane.INTERACTIVE.getQueueName()
+                                            : INDEX_QUEUE_NAME;
+            return declarePassive(queueName).getConsumerCount();
+        } catch (IOException e) {
+            logMetacat.warn("IndexGenerator.getConsumerCount - can't get the number of consumers "
+                            + "of the queue " + INDEX_QUEUE_NAME + " since " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Passively declare an index queue to get its status. A passive declaration failure closes
+     * the channel, so a short-lived channel is used instead of the shared publishing channel.
+     * @param queueName  the name of the queue
+     * @return the result of the passive declaration
+     * @throws IOException
+     */
+    private AMQP.Queue.DeclareOk declarePassive(String queueName) throws IOException {
+        if (RabbitMQconnection == null) {
+            throw new IOException("the connection to RabbitMQ is null");
+        }
+        try (Channel channel = RabbitMQconnection.createChannel()) {
+            return channel.queueDeclarePassive(queueName);
+        } catch (TimeoutException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Register the gauges of the queue depth and consumer count. They are read only when the
+     * metrics are collected.
+     */
+    private void registerMetrics() {
+        MetacatMetrics.getInstance().registerGauge(QUEUE_DEPTH_METRIC, () -> size());
+        MetacatMetrics.getInstance().registerGauge(QUEUE_CONSUMERS_METRIC,
+                                                    () -> getConsumerCount());
+        if (lanesEnabled && localQueue == null) {
+            for (IndexLane lane : IndexLane.values()) {
+                MetacatMetrics.getInstance().registerGauge(QUEUE_DEPTH_METRIC + "{lane=\""
+                                            + lane.getName() + "\"}", () -> size(lane));
+            }
+        }
+    }
+
+    /**
+     * Handle a confirmation from the broker and record the confirm latency of the messages
+     * @param deliveryTag  the sequence number of the confirmed message
+     * @param multiple  if all messages up to the sequence number are confirmed
+     * @param ack  true if the broker acked the messages; false if it nacked them
+     */
+    private static void confirm(long deliveryTag, boolean multiple, boolean ack) {
+        long now = System.nanoTime();
+        Map<Long, Long> confirmed = multiple ? unconfirmed.headMap(deliveryTag, true)
+                                     : unconfirmed.subMap(deliveryTag, true, deliveryTag, true);
+        MetacatMetrics metrics = MetacatMetrics.getInstance();
+        for (Long publishTime : confirmed.values()) {
+            if (ack) {
+                metrics.increment(CONFIRM_LATENCY_SUM_METRIC, (now - publishTime) / 1000);
+                metrics.increment(CONFIRM_LATENCY_COUNT_METRIC);
+            } else {
+                metrics.increment(CONFIRM_NACKS_METRIC);
+            }
+        }
+        confirmed.clear();
     }
 
 }
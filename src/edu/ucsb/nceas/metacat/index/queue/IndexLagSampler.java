@@ -0,0 +1,195 @@
+package edu.ucsb.nceas.metacat.index.queue;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.dataone.configuration.Settings;
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v2.SystemMetadata;
+
+import edu.ucsb.nceas.metacat.common.query.SolrQueryResponseWriterFactory;
+import edu.ucsb.nceas.metacat.common.query.SolrQueryService;
+import edu.ucsb.nceas.metacat.common.query.SolrQueryServiceController;
+import edu.ucsb.nceas.metacat.metrics.MetacatMetrics;
+import edu.ucsb.nceas.metacat.systemmetadata.SystemMetadataManager;
+
+/**
+ * A timer task to measure the end-to-end index lag - the time from an object being committed
+ * (and its index task being published) to its solr document appearing in Solr. Instead of
+ * tracking every task, the sampler picks at most one published create task per sample interval
+ * as a sentinel. On each run it checks whether the solr documents of the pending sentinels,
+ * with a modification date not older than the system metadata of the object, can be found.
+ * The lag gauge is the measured lag of the last found sentinel. The pending gauge is the age of
+ * the oldest sentinel which hasn't shown up, so a stalled indexer is visible before the
+ * sentinel is found.
+ * @author tao
+ */
+public class IndexLagSampler extends TimerTask {
+    public static final String LAG_METRIC = "metacat_index_lag_seconds";
+    public static final String PENDING_LAG_METRIC = "metacat_index_lag_pending_seconds";
+    public static final String SENTINELS_FOUND_METRIC = "metacat_index_lag_sentinels_found_total";
+    public static final String SENTINELS_EXPIRED_METRIC =
+                                                    "metacat_index_lag_sentinels_expired_total";
+    private static final Pattern NUM_FOUND = Pattern.compile("numFound=\"(\\d+)\"");
+
+    private static Log logMetacat = LogFactory.getLog(IndexLagSampler.class);
+    private static volatile IndexLagSampler instance = null;
+
+    private final ConcurrentLinkedQueue<Sentinel> sentinels =
+                                                        new ConcurrentLinkedQueue<Sentinel>();
+    private volatile long lastSampleTime = 0;
+    private long sampleInterval = 60000;
+    private int maxSentinels = 20;
+    private long sentinelTimeout = 86400000;
+
+    /**
+     * A published index task whose appearance in Solr is being waited for
+     */
+    private static class Sentinel {
+        private Identifier pid;
+        private long publishTime;
+        private Date dateModified = null;
+
+        private Sentinel(Identifier pid, long publishTime) {
+            this.pid = pid;
+            this.publishTime = publishTime;
+        }
+    }
+
+    /**
+     * Private constructor
+     */
+    private IndexLagSampler() {
+        sampleInterval = Settings.getConfiguration().getLong("index.lag.sample.interval", 60000);
+        maxSentinels = Settings.getConfiguration().getInt("index.lag.sentinel.max", 20);
+        sentinelTimeout = Settings.getConfiguration()
+                                        .getLong("index.lag.sentinel.timeout", 86400000);
+        logMetacat.info("IndexLagSampler.constructor - the sample interval is " + sampleInterval
+                    + " ms, the max number of sentinels is " + maxSentinels
+                    + " and the sentinel timeout is " + sentinelTimeout + " ms.");
+    }
+
+    /**
+     * Get the singleton instance of the class
+     * @return the IndexLagSampler instance
+     */
+    public static IndexLagSampler getInstance() {
+        if (instance == null) {
+            synchronized (IndexLagSampler.class) {
+                if (instance == null) {
+                    instance = new IndexLagSampler();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Offer a just published index task as a sentinel. Only create tasks are sampled, at most
+     * one per sample interval, and nothing is sampled when there are too many pending sentinels.
+     * This method is called on the publishing thread, so it doesn't touch the database or Solr.
+     * @param pid  the identifier of the object in the index task
+     * @param indexType  the type of the index task
+     */
+    public void offer(Identifier pid, String indexType) {
+        if (sampleInterval < 0 || !IndexGenerator.CREATE_INDEX_TYPE.equals(indexType)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastSampleTime < sampleInterval || sentinels.size() >= maxSentinels) {
+            return;
+        }
+        synchronized (this) {
+            if (now - lastSampleTime < sampleInterval) {
+                return;
+            }
+            lastSampleTime = now;
+        }
+        sentinels.add(new Sentinel(pid, now));
+        logMetacat.debug("IndexLagSampler.offer - sampled " + pid.getValue() + " as a sentinel.");
+    }
+
+    /**
+     * Check the pending sentinels and update the lag metrics
+     */
+    public void run() {
+        long now = System.currentTimeMillis();
+        Iterator<Sentinel> iterator = sentinels.iterator();
+        while (iterator.hasNext()) {
+            Sentinel sentinel = iterator.next();
+            try {
+                if (isIndexed(sentinel)) {
+                    double lag = (now - sentinel.publishTime) / 1000.0;
+                    MetacatMetrics.getInstance().setGauge(LAG_METRIC, lag);
+                    MetacatMetrics.getInstance().increment(SENTINELS_FOUND_METRIC);
+                    iterator.remove();
+                    logMetacat.debug("IndexLagSampler.run - the index lag of "
+                                + sentinel.pid.getValue() + " is " + lag + " seconds.");
+                    continue;
+                }
+            } catch (Exception e) {
+                logMetacat.warn("IndexLagSampler.run - can't check the solr doc of the sentinel "
+                                + sentinel.pid.getValue() + " since " + e.getMessage());
+            }
+            if (now - sentinel.publishTime > sentinelTimeout) {
+                MetacatMetrics.getInstance().increment(SENTINELS_EXPIRED_METRIC);
+                iterator.remove();
+                logMetacat.warn("IndexLagSampler.run - the solr doc of the sentinel "
+                                + sentinel.pid.getValue() + " didn't show up in "
+                                + sentinelTimeout + " ms and Metacat stopped waiting for it.");
+            }
+        }
+        double pending = 0;
+        Sentinel oldest = sentinels.peek();
+        if (oldest != null) {
+            pending = (now - oldest.publishTime) / 1000.0;
+        }
+        MetacatMetrics.getInstance().setGauge(PENDING_LAG_METRIC, pending);
+    }
+
+    /**
+     * Check if the solr doc of the sentinel, which is not older than its system metadata,
+     * shows up in Solr.
+     * @param sentinel  the sentinel will be checked
+     * @return true if it is indexed; false otherwise.
+     * @throws Exception
+     */
+    private boolean isIndexed(Sentinel sentinel) throws Exception {
+        if (sentinel.dateModified == null) {
+            SystemMetadata sysmeta = SystemMetadataManager.getInstance().get(sentinel.pid);
+            if (sysmeta == null || sysmeta.getDateSysMetadataModified() == null) {
+                // the object is gone. Use the publish time as the lower bound
+                sentinel.dateModified = new Date(sentinel.publishTime);
+            } else {
+                sentinel.dateModified = sysmeta.getDateSysMetadataModified();
+            }
+        }
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("q", "id:" + ClientUtils.escapeQueryChars(sentinel.pid.getValue()));
+        params.set("fq", "dateModified:["
+                    + DateTimeFormatter.ISO_INSTANT.format(sentinel.dateModified.toInstant())
+                    + " TO *]");
+        params.set("rows", 0);
+        params.set(SolrQueryService.WT, SolrQueryResponseWriterFactory.XML);
+        // a null subject set bypasses the access rules
+        try (InputStream response = SolrQueryServiceController.getInstance()
+                                            .query(params, null, SolrRequest.METHOD.GET)) {
+            String result = IOUtils.toString(response, StandardCharsets.UTF_8);
+            Matcher matcher = NUM_FOUND.matcher(result);
+            return matcher.find() && Long.parseLong(matcher.group(1)) > 0;
+        }
+    }
+}
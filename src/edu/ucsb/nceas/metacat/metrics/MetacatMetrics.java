@@ -0,0 +1,327 @@
+package edu.ucsb.nceas.metacat.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * A light-weight, in-memory registry of the operational metrics of Metacat. It holds three kinds
+ * of metrics:
+ * 1. gauges - the values can go up and down, such as the size of a backlog. A gauge can be
+ *    either set directly or be backed by a supplier which is evaluated when it is read.
+ * 2. counters - the values only go up, such as the number of resubmitted index tasks.
+ * 3. histograms - the distributions of the observed values, such as the query latencies, in
+ *    fixed buckets.
+ * The metric names should be lower case with underscores, e.g. metacat_index_failed_backlog_size.
+ * All metrics can be written in the Prometheus text format.
+ * @author tao
+ */
+public class MetacatMetrics {
+    private static Log logMetacat = LogFactory.getLog(MetacatMetrics.class);
+    private static volatile MetacatMetrics instance = null;
+
+    private final Map<String, Double> gauges = new ConcurrentHashMap<String, Double>();
+    private final Map<String, DoubleSupplier> gaugeSuppliers =
+                                                new ConcurrentHashMap<String, DoubleSupplier>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+    // the histograms by their names and labels
+    private final Map<String, Map<String, Histogram>> histograms =
+                                    new ConcurrentHashMap<String, Map<String, Histogram>>();
+
+    /**
+     * The distribution of the observed values of a histogram with the given labels
+     */
+    public static class Histogram {
+        private final double[] bounds;
+        private final LongAdder[] buckets;
+        private final DoubleAdder sum = new DoubleAdder();
+        private final LongAdder count = new LongAdder();
+
+        private Histogram(double[] bounds) {
+            this.bounds = bounds.clone();
+            Arrays.sort(this.bounds);
+            buckets = new LongAdder[this.bounds.length];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void observe(double value) {
+            // the first bucket whose upper bound isn't less than the value
+            int index = Arrays.binarySearch(bounds, value);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            if (index < buckets.length) {
+                buckets[index].increment();
+            }
+            sum.add(value);
+            count.increment();
+        }
+
+        /**
+         * @return the upper bounds of the buckets in the ascending order
+         */
+        public double[] getBounds() {
+            return bounds.clone();
+        }
+
+        /**
+         * @return the numbers of the observed values less than or equal to the bounds
+         */
+        public long[] getCumulativeCounts() {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                total += buckets[i].sum();
+                counts[i] = total;
+            }
+            return counts;
+        }
+
+        /**
+         * @return the sum of the observed values
+         */
+        public double getSum() {
+            return sum.sum();
+        }
+
+        /**
+         * @return the number of the observed values
+         */
+        public long getCount() {
+            return count.sum();
+        }
+    }
+
+    /**
+     * Private constructor
+     */
+    private MetacatMetrics() {
+    }
+
+    /**
+     * Get the singleton instance of the class
+     * @return the MetacatMetrics instance
+     */
+    public static MetacatMetrics getInstance() {
+        if (instance == null) {
+            synchronized (MetacatMetrics.class) {
+                if (instance == null) {
+                    instance = new MetacatMetrics();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Set the value of a gauge
+     * @param name  the name of the gauge
+     * @param value  the current value of the gauge
+     */
+    public void setGauge(String name, double value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Register a gauge whose value is computed by the given supplier each time it is read.
+     * A registered supplier replaces the previous one with the same name.
+     * @param name  the name of the gauge
+     * @param supplier  the supplier of the current value
+     */
+    public void registerGauge(String name, DoubleSupplier supplier) {
+        gaugeSuppliers.put(name, supplier);
+    }
+
+    /**
+     * Get the current value of a gauge
+     * @param name  the name of the gauge
+     * @return the value of the gauge. Null will be returned if the gauge doesn't exist or its
+     *         supplier failed.
+     */
+    public Double getGauge(String name) {
+        DoubleSupplier supplier = gaugeSuppliers.get(name);
+        if (supplier != null) {
+            try {
+                return supplier.getAsDouble();
+            } catch (RuntimeException e) {
+                logMetacat.warn("MetacatMetrics.getGauge - can't read the gauge " + name
+                                    + " since " + e.getMessage());
+                return null;
+            }
+        }
+        return gauges.get(name);
+    }
+
+    /**
+     * Increase a counter by one
+     * @param name  the name of the counter
+     */
+    public void increment(String name) {
+        increment(name, 1);
+    }
+
+    /**
+     * Increase a counter by the given amount
+     * @param name  the name of the counter
+     * @param amount  the amount to add. It shouldn't be negative.
+     */
+    public void increment(String name, long amount) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(amount);
+    }
+
+    /**
+     * Get the current value of a counter
+     * @param name  the name of the counter
+     * @return the value of the counter. 0 will be returned if it doesn't exist.
+     */
+    public long getCounter(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * Add a value to a histogram. The histogram is created with the given bucket bounds when
+     * the name and labels are observed the first time.
+     * @param name  the name of the histogram, e.g. metacat_query_seconds
+     * @param labels  the labels of the series, e.g. shape="q,rows",format="json" (see label).
+     *                 It can be empty.
+     * @param bounds  the upper bounds of the buckets. Bigger values only go to the sum and count.
+     * @param value  the observed value
+     */
+    public void observe(String name, String labels, double[] bounds, double value) {
+        histograms.computeIfAbsent(name, k -> new ConcurrentHashMap<String, Histogram>())
+                  .computeIfAbsent(labels == null ? "" : labels, k -> new Histogram(bounds))
+                  .observe(value);
+    }
+
+    /**
+     * Get a histogram
+     * @param name  the name of the histogram
+     * @param labels  the labels of the series
+     * @return the histogram. Null will be returned if nothing was observed.
+     */
+    public Histogram getHistogram(String name, String labels) {
+        Map<String, Histogram> series = histograms.get(name);
+        return series == null ? null : series.get(labels == null ? "" : labels);
+    }
+
+    /**
+     * Format a label of a series with the escaped value
+     * @param name  the name of the label
+     * @param value  the value of the label
+     * @return the label, e.g. format="json"
+     */
+    public static String label(String name, String value) {
+        StringBuilder label = new StringBuilder(name).append("=\"");
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\' || c == '"') {
+                    label.append('\\').append(c);
+                } else if (c == '\n') {
+                    label.append("\\n");
+                } else {
+                    label.append(c);
+                }
+            }
+        }
+        return label.append('"').toString();
+    }
+
+    /**
+     * Write all metrics in the Prometheus text format (version 0.0.4)
+     * @param writer  the writer of the output
+     * @throws IOException
+     */
+    public void writePrometheus(Writer writer) throws IOException {
+        // the series of a metric must be written together under one TYPE line
+        SortedMap<String, SortedMap<String, Double>> families =
+                                            new TreeMap<String, SortedMap<String, Double>>();
+        for (Map.Entry<String, Double> entry : snapshot().entrySet()) {
+            families.computeIfAbsent(family(entry.getKey()), k -> new TreeMap<String, Double>())
+                    .put(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, SortedMap<String, Double>> family : families.entrySet()) {
+            String type = counters.containsKey(family.getValue().firstKey()) ? "counter"
+                                                                              : "gauge";
+            writer.write("# TYPE " + family.getKey() + " " + type + "\n");
+            for (Map.Entry<String, Double> entry : family.getValue().entrySet()) {
+                writer.write(entry.getKey() + " " + format(entry.getValue()) + "\n");
+            }
+        }
+        for (String name : new TreeMap<String, Map<String, Histogram>>(histograms).keySet()) {
+            writer.write("# TYPE " + name + " histogram\n");
+            SortedMap<String, Histogram> series =
+                                new TreeMap<String, Histogram>(histograms.get(name));
+            for (Map.Entry<String, Histogram> entry : series.entrySet()) {
+                String labels = entry.getKey();
+                String prefix = labels.isEmpty() ? "" : labels + ",";
+                Histogram histogram = entry.getValue();
+                double[] bounds = histogram.getBounds();
+                long[] counts = histogram.getCumulativeCounts();
+                for (int i = 0; i < bounds.length; i++) {
+                    writer.write(name + "_bucket{" + prefix + "le=\"" + format(bounds[i])
+                                    + "\"} " + counts[i] + "\n");
+                }
+                long count = histogram.getCount();
+                writer.write(name + "_bucket{" + prefix + "le=\"+Inf\"} " + count + "\n");
+                String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+                writer.write(name + "_sum" + suffix + " " + format(histogram.getSum()) + "\n");
+                writer.write(name + "_count" + suffix + " " + count + "\n");
+            }
+        }
+        writer.flush();
+    }
+
+    /*
+     * The metric name without the labels
+     */
+    private static String family(String name) {
+        int brace = name.indexOf('{');
+        return brace < 0 ? name : name.substring(0, brace);
+    }
+
+    private static String format(double value) {
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    /**
+     * Get a snapshot of all gauges and counters, sorted by their names
+     * @return the map of the metric names and their current values
+     */
+    public SortedMap<String, Double> snapshot() {
+        SortedMap<String, Double> values = new TreeMap<String, Double>();
+        for (String name : gauges.keySet()) {
+            values.put(name, gauges.get(name));
+        }
+        for (String name : gaugeSuppliers.keySet()) {
+            Double value = getGauge(name);
+            if (value != null) {
+                values.put(name, value);
+            }
+        }
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            values.put(entry.getKey(), (double) entry.getValue().sum());
+        }
+        return values;
+    }
+}
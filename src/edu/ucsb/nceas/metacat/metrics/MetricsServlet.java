@@ -0,0 +1,83 @@
+package edu.ucsb.nceas.metacat.metrics;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Serial;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.ucsb.nceas.metacat.properties.PropertyService;
+import edu.ucsb.nceas.utilities.PropertyNotFoundException;
+
+/**
+ * Serves the metrics of Metacat in the Prometheus text format, so they can be scraped. The
+ * endpoint can be turned off and restricted to the addresses of the scrapers by the
+ * metrics.endpoint.* properties.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private Log logMetacat = LogFactory.getLog(MetricsServlet.class);
+
+    /**
+     * Write all metrics
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+                                                                        throws IOException {
+        if (!isEnabled()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (!isAllowed(request.getRemoteAddr())) {
+            logMetacat.debug("MetricsServlet.doGet - the metrics are not served to "
+                                 + request.getRemoteAddr());
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        response.setContentType(CONTENT_TYPE);
+        response.setHeader("Cache-Control", "no-cache");
+        Writer writer = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+        MetacatMetrics.getInstance().writePrometheus(writer);
+        writer.flush();
+    }
+
+    /*
+     * If the endpoint is turned on. It is on by default.
+     */
+    private boolean isEnabled() {
+        try {
+            return Boolean.parseBoolean(PropertyService.getProperty("metrics.endpoint.enabled"));
+        } catch (PropertyNotFoundException e) {
+            return true;
+        }
+    }
+
+    /*
+     * If the client address is in the allowed list. A blank list allows any address.
+     */
+    private boolean isAllowed(String address) {
+        String allowed = null;
+        try {
+            allowed = PropertyService.getProperty("metrics.endpoint.allowedAddresses");
+        } catch (PropertyNotFoundException e) {
+            return true;
+        }
+        if (allowed == null || allowed.isBlank()) {
+            return true;
+        }
+        return Arrays.stream(allowed.split(",")).map(String::trim).anyMatch(address::equals);
+    }
+}
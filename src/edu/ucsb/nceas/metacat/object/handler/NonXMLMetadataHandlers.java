@@ -40,12 +40,6 @@ public class NonXMLMetadataHandlers {
     
     public static String JSON_LD = "science-on-schema.org/Dataset;ld+json";
     
-    private static Vector<String> nonXMLMetadataFormatList = new Vector<String>();
-    
-    static {
-        nonXMLMetadataFormatList = XMLSchemaService.getInstance().getNonXMLMetadataFormatList();
-    }
-    
     private static Log logMetacat = LogFactory.getLog(CNodeService.class);
     
     /**
@@ -60,6 +54,9 @@ public class NonXMLMetadataHandlers {
         if (formatId == null) {
             return handler;
         }
+        // the current schema registry, so a newly registered format is found
+        Vector<String> nonXMLMetadataFormatList =
+                                XMLSchemaService.getInstance().getNonXMLMetadataFormatList();
         if (nonXMLMetadataFormatList != null && formatId.getValue() != null && 
                                     nonXMLMetadataFormatList.contains(formatId.getValue())) {
             if (formatId.getValue().equals(JSON_LD)) {
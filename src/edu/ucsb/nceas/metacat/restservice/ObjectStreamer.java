@@ -0,0 +1,357 @@
+package edu.ucsb.nceas.metacat.restservice;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dataone.service.types.v1.Checksum;
+import org.dataone.service.types.v1.SystemMetadata;
+
+import edu.ucsb.nceas.metacat.common.storage.ObjectFileInputStream;
+import edu.ucsb.nceas.metacat.storage.ChecksumCalculator;
+
+/**
+ * Sends the bytes of an object as the body of a response with an exact Content-Length. An
+ * object stored in a file is handed to the sendfile of the servlet container (Tomcat) when the
+ * connector supports it, so the kernel copies the file to the socket. Otherwise it is sent by
+ * FileChannel.transferTo. Other streams are copied as before.
+ *
+ * It also implements the conditional and the partial GET (RFC 9110) of the objects. The strong
+ * ETag is derived from the checksum in the system metadata, so a 304 response is decided from
+ * the system metadata alone. The byte ranges are read from the file by position.
+ * @author tao
+ */
+public class ObjectStreamer {
+    /** The request attributes of the Tomcat sendfile support */
+    public static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    public static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    public static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    public static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    /** A Range header with more ranges is ignored, so it can't make us send tiny pieces */
+    public static final int MAX_RANGES = 32;
+
+    private static final Pattern RANGE = Pattern.compile("(\\d*)-(\\d*)");
+    private static final String CRLF = "\r\n";
+
+    private static Log logMetacat = LogFactory.getLog(ObjectStreamer.class);
+
+    /**
+     * Set the validators (ETag and Last-Modified) of an object on a response and check the
+     * If-None-Match and If-Modified-Since headers of the request. If the client has the current
+     * object, the status is set to 304 and nothing else should be sent.
+     * @param sysmeta  the system metadata of the object
+     * @param request  the request
+     * @param response  the response
+     * @return true if the response is a 304 (Not Modified)
+     */
+    public static boolean isNotModified(SystemMetadata sysmeta, HttpServletRequest request,
+                                                                HttpServletResponse response) {
+        String etag = getETag(sysmeta.getChecksum());
+        Date lastModified = sysmeta.getDateSysMetadataModified();
+        if (etag != null) {
+            response.setHeader("ETag", etag);
+        }
+        if (lastModified != null) {
+            response.setDateHeader("Last-Modified", lastModified.getTime());
+        }
+        response.setHeader("Accept-Ranges", "bytes");
+        boolean notModified = false;
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            // If-Modified-Since is ignored when If-None-Match is present
+            notModified = matches(ifNoneMatch, etag, false);
+        } else if (lastModified != null) {
+            long since = getDateHeader(request, "If-Modified-Since");
+            // the HTTP dates have a precision of seconds
+            notModified = since >= 0 && lastModified.getTime() / 1000 <= since / 1000;
+        }
+        if (notModified) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        }
+        return notModified;
+    }
+
+    /**
+     * Get the strong ETag of an object from its checksum, e.g. "SHA-256:2cf24d..."
+     * @param checksum  the checksum from the system metadata
+     * @return the quoted ETag. Null if the checksum is null.
+     */
+    public static String getETag(Checksum checksum) {
+        if (checksum == null || checksum.getValue() == null || checksum.getAlgorithm() == null) {
+            return null;
+        }
+        return "\"" + ChecksumCalculator.normalize(checksum.getAlgorithm()) + ":"
+                    + checksum.getValue().trim().toLowerCase(Locale.ROOT) + "\"";
+    }
+
+    /**
+     * Send an object as the body of a response and set its status. A file is sent partially
+     * (206) if the request has a satisfiable Range header and its If-Range matches. The data
+     * stream isn't closed.
+     * @param data  the content of the object
+     * @param sysmeta  the system metadata of the object
+     * @param request  the request
+     * @param response  the response whose content type is already set
+     * @return the number of the bytes of the object sent or handed to the container
+     * @throws IOException
+     */
+    public static long send(InputStream data, SystemMetadata sysmeta, HttpServletRequest request,
+                                            HttpServletResponse response) throws IOException {
+        long length = sysmeta.getSize() == null ? -1 : sysmeta.getSize().longValue();
+        if (!(data instanceof ObjectFileInputStream)) {
+            // a stream can't seek, so the whole object is sent
+            response.setStatus(HttpServletResponse.SC_OK);
+            if (length >= 0) {
+                response.setContentLengthLong(length);
+            }
+            return IOUtils.copyLarge(data, response.getOutputStream());
+        }
+        ObjectFileInputStream object = (ObjectFileInputStream) data;
+        long fileSize = object.getChannel().size();
+        if (length != fileSize) {
+            // the header must match the bytes on the wire
+            logMetacat.warn("ObjectStreamer.send - the size " + length + " in the system "
+                            + "metadata doesn't match the size " + fileSize + " of the file "
+                            + object.getFile() + ". So the file size is sent.");
+            length = fileSize;
+        }
+        List<long[]> ranges = null;
+        if (isRangeCurrent(sysmeta, request)) {
+            ranges = parseRanges(request.getHeader("Range"), length);
+        }
+        if (ranges == null) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            return sendFile(object, 0, length, request, response);
+        }
+        if (ranges.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader("Content-Range", "bytes */" + length);
+            response.setContentLengthLong(0);
+            return 0;
+        }
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        if (ranges.size() == 1) {
+            long[] range = ranges.get(0);
+            response.setHeader("Content-Range", contentRange(range, length));
+            return sendFile(object, range[0], range[1] - range[0] + 1, request, response);
+        }
+        return sendMultipart(object, ranges, length, response);
+    }
+
+    /**
+     * Parse the Range header of a request (RFC 9110 section 14.1.2)
+     * @param header  the value of the Range header. It may be null.
+     * @param length  the length of the object
+     * @return the first and last positions of the ranges. Null means the header should be
+     *         ignored since it is missing, invalid or has too many ranges; an empty list means
+     *         none of the ranges is satisfiable.
+     */
+    public static List<long[]> parseRanges(String header, long length) {
+        if (header == null) {
+            return null;
+        }
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<long[]>();
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            logMetacat.debug("ObjectStreamer.parseRanges - ignore the Range header with "
+                                 + specs.length + " ranges");
+            return null;
+        }
+        for (String spec : specs) {
+            Matcher matcher = RANGE.matcher(spec.trim());
+            if (!matcher.matches()) {
+                return null;
+            }
+            String first = matcher.group(1);
+            String last = matcher.group(2);
+            try {
+                if (first.isEmpty()) {
+                    if (last.isEmpty()) {
+                        return null;
+                    }
+                    // the suffix range -N means the last N bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix > 0 && length > 0) {
+                        ranges.add(new long[] {Math.max(0, length - suffix), length - 1});
+                    }
+                } else {
+                    long start = Long.parseLong(first);
+                    long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (end < start) {
+                        return null;
+                    }
+                    if (start < length) {
+                        ranges.add(new long[] {start, Math.min(end, length - 1)});
+                    }
+                }
+            } catch (NumberFormatException e) {
+                // the number is too large for a long
+                return null;
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Send a part of a file to a stream by FileChannel.transferTo. The stream isn't closed.
+     * @param channel  the channel of the file
+     * @param position  the position of the first byte
+     * @param count  the number of the bytes
+     * @param out  the target stream
+     * @return the number of the bytes sent
+     * @throws EOFException if the file ends before the count of bytes is sent
+     * @throws IOException
+     */
+    public static long transfer(FileChannel channel, long position, long count, OutputStream out)
+                                                                        throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        long sent = 0;
+        while (sent < count) {
+            long transferred = channel.transferTo(position + sent, count - sent, target);
+            if (transferred <= 0) {
+                throw new EOFException("The file ended after " + sent + " of " + count
+                                        + " bytes from the position " + position);
+            }
+            sent += transferred;
+        }
+        return sent;
+    }
+
+    /*
+     * Send a part of a file as the whole body, by the sendfile of the container if possible
+     */
+    private static long sendFile(ObjectFileInputStream object, long position, long count,
+                                 HttpServletRequest request, HttpServletResponse response)
+                                                                        throws IOException {
+        response.setContentLengthLong(count);
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, object.getFile().toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, Long.valueOf(position));
+            request.setAttribute(SENDFILE_END, Long.valueOf(position + count));
+            logMetacat.debug("ObjectStreamer.sendFile - hand the file " + object.getFile()
+                                 + " to the sendfile of the container");
+            return count;
+        }
+        return transfer(object.getChannel(), position, count, response.getOutputStream());
+    }
+
+    /*
+     * Send the ranges of a file as a multipart/byteranges body
+     */
+    private static long sendMultipart(ObjectFileInputStream object, List<long[]> ranges,
+                                      long length, HttpServletResponse response)
+                                                                        throws IOException {
+        String boundary = UUID.randomUUID().toString();
+        String contentType = response.getContentType();
+        List<byte[]> headers = new ArrayList<byte[]>();
+        long contentLength = 0;
+        for (long[] range : ranges) {
+            StringBuilder header = new StringBuilder();
+            header.append(CRLF).append("--").append(boundary).append(CRLF);
+            if (contentType != null) {
+                header.append("Content-Type: ").append(contentType).append(CRLF);
+            }
+            header.append("Content-Range: ").append(contentRange(range, length)).append(CRLF)
+                  .append(CRLF);
+            byte[] bytes = header.toString().getBytes(StandardCharsets.US_ASCII);
+            headers.add(bytes);
+            contentLength += bytes.length + range[1] - range[0] + 1;
+        }
+        byte[] end = (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.US_ASCII);
+        contentLength += end.length;
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        OutputStream out = response.getOutputStream();
+        long sent = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            long[] range = ranges.get(i);
+            out.write(headers.get(i));
+            sent += transfer(object.getChannel(), range[0], range[1] - range[0] + 1, out);
+        }
+        out.write(end);
+        return sent;
+    }
+
+    /*
+     * Check if the If-Range header of a request matches the object. Without the header the
+     * Range header is always used.
+     */
+    private static boolean isRangeCurrent(SystemMetadata sysmeta, HttpServletRequest request) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // If-Range uses the strong comparison
+            return matches(ifRange, getETag(sysmeta.getChecksum()), true);
+        }
+        Date lastModified = sysmeta.getDateSysMetadataModified();
+        long date = getDateHeader(request, "If-Range");
+        return lastModified != null && date >= 0 && lastModified.getTime() / 1000 == date / 1000;
+    }
+
+    /*
+     * Check if a list of entity tags contains an ETag
+     */
+    private static boolean matches(String header, String etag, boolean strong) {
+        if (etag == null) {
+            return false;
+        }
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (!strong && tag.equals("*")) {
+                return true;
+            }
+            if (tag.startsWith("W/")) {
+                if (strong) {
+                    continue;
+                }
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Get a date header. A malformed date is ignored as the RFC requires.
+     */
+    private static long getDateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            logMetacat.debug("ObjectStreamer.getDateHeader - ignore the malformed " + name
+                                 + " header " + request.getHeader(name));
+            return -1;
+        }
+    }
+
+    private static String contentRange(long[] range, long length) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + length;
+    }
+}
@@ -21,6 +21,7 @@
 package edu.ucsb.nceas.metacat.restservice.multipart;
 
 import java.io.File;
+import java.util.Map;
 
 import org.dataone.service.types.v1.Checksum;
 
@@ -32,6 +33,7 @@ import org.dataone.service.types.v1.Checksum;
 public class CheckedFile extends File {
     
     private Checksum checksum = null;
+    private Map<String, String> checksums = null;
     
     /**
      * Constructor
@@ -43,6 +45,19 @@ public class CheckedFile extends File {
         this.checksum = checksum;
     }
     
+    /**
+     * Constructor
+     * @param path  the path of the file
+     * @param checksum  the checksum in the algorithm declared by the system metadata. It may be
+     *                  null if the system metadata wasn't known when the file was written.
+     * @param checksums  all checksums calculated when the file was written - the map of the
+     *                  normalized algorithm names to the values (see ChecksumCalculator)
+     */
+    public CheckedFile(String path, Checksum checksum, Map<String, String> checksums) {
+        this(path, checksum);
+        this.checksums = checksums;
+    }
+    
     /**
      * Get the checksum of this file
      * @return the checksum of this file
@@ -50,5 +65,13 @@ public class CheckedFile extends File {
     public Checksum getChecksum() {
         return this.checksum;
     }
+    
+    /**
+     * Get all checksums calculated when the file was written
+     * @return the map of the normalized algorithm names to the values. It may be null.
+     */
+    public Map<String, String> getChecksums() {
+        return this.checksums;
+    }
 
 }
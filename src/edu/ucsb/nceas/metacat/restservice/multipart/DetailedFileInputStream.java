@@ -25,6 +25,8 @@ import java.io.FileNotFoundException;
 
 import org.dataone.service.types.v1.Checksum;
 
+import edu.ucsb.nceas.metacat.storage.ChecksumCalculator;
+
 
 /**
  * A FileInputStream class with more information, such as the object of source file itself and the expected checksum of the source file. 
@@ -55,6 +57,28 @@ public class DetailedFileInputStream extends FileInputStream {
         return this.expectedChecksum;
     }
 
+    /**
+     * Get the checksum of the source file in the given algorithm, if it was calculated when the
+     * file was written. Besides the expected checksum, a CheckedFile may have the checksums in
+     * other algorithms.
+     * @param algorithm  the algorithm, e.g. the one declared in the system metadata
+     * @return the checksum. Null if it wasn't calculated in the algorithm.
+     */
+    public Checksum getChecksum(String algorithm) {
+        if (algorithm == null) {
+            return null;
+        }
+        if (expectedChecksum != null && expectedChecksum.getAlgorithm() != null
+                && ChecksumCalculator.normalize(expectedChecksum.getAlgorithm())
+                                    .equals(ChecksumCalculator.normalize(algorithm))) {
+            return expectedChecksum;
+        }
+        if (file instanceof CheckedFile) {
+            return ChecksumCalculator.getChecksum(((CheckedFile) file).getChecksums(), algorithm);
+        }
+        return null;
+    }
+
     /**
      * Get the source file
      * @return the source file object
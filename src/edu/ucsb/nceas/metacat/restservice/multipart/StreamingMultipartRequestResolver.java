@@ -27,8 +27,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.DigestOutputStream;
-import java.security.MessageDigest;
+import java.io.OutputStream;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -37,7 +36,6 @@ import java.util.Map;
 import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
-import javax.xml.bind.DatatypeConverter;
 
 
 import org.apache.commons.fileupload.FileItemIterator;
@@ -56,6 +54,8 @@ import org.dataone.service.types.v1.Checksum;
 import org.dataone.service.types.v1.SystemMetadata;
 import org.dataone.service.util.TypeMarshaller;
 
+import edu.ucsb.nceas.metacat.storage.ChecksumCalculator;
+
 
 /**
  * This class will stream the file parts of the multipart request into a temporary file. 
@@ -150,29 +150,25 @@ public class StreamingMultipartRequestResolver extends MultipartRequestResolver
                         multipartRequest.setSystemMetadata(sysMeta);
                     } else if (name.equals("object")){
                         start = System.currentTimeMillis();
+                        String algorithm = null;
                         if (sysMeta != null && sysMeta.getChecksum() != null && sysMeta.getChecksum().getAlgorithm() != null && !sysMeta.getChecksum().getAlgorithm().trim().equals("")) {
                             sysmetaFirst = true;
                             //We are lucky and the system metadata has been processed.
-                            String algorithm = sysMeta.getChecksum().getAlgorithm();
+                            algorithm = sysMeta.getChecksum().getAlgorithm();
                             log.info("StreamingMultipartRequestResolver.resoloveMulitpart - Metacat is handling the object stream AFTER handling the system metadata stream. StreamResolver will calculate the checksum using algorithm " + algorithm);
-                            //decide the pid for debug purpose
-                            if (sysMeta != null && sysMeta.getIdentifier() != null ) {
-                                pid = sysMeta.getIdentifier().getValue();
-                            }
-                            if(pid == null || pid.trim().equals("")) {
-                                pid = "UNKNOWN";
-                            }
-                            File newFile = generateTmpFile("checked-object");
-                            CheckedFile checkedFile = writeStreamToCheckedFile(newFile,  stream, algorithm, pid);
-                            mpFiles.put(name, checkedFile);
                         } else {
-                            log.info("StreamingMultipartRequestResolver.resoloveMulitpart - Metacat is handling the object stream before handling the system metadata stream. StreamResolver can NOT calculate the checksum since we don't know the algorithm.");
-                            File newFile = generateTmpFile("unchecked-object");
-                            writeStreamToFile(newFile, stream);
-                            Checksum checksum = null;//we don't have a checksum, so set it null.
-                            CheckedFile checkedFile = new CheckedFile(newFile.getCanonicalPath(), checksum);
-                            mpFiles.put(name, checkedFile);
+                            log.info("StreamingMultipartRequestResolver.resoloveMulitpart - Metacat is handling the object stream before handling the system metadata stream. StreamResolver will calculate the MD5, SHA-1 and SHA-256 checksums since we don't know the algorithm.");
+                        }
+                        //decide the pid for debug purpose
+                        if (sysMeta != null && sysMeta.getIdentifier() != null ) {
+                            pid = sysMeta.getIdentifier().getValue();
+                        }
+                        if(pid == null || pid.trim().equals("")) {
+                            pid = "UNKNOWN";
                         }
+                        File newFile = generateTmpFile(sysmetaFirst ? "checked-object" : "unchecked-object");
+                        CheckedFile checkedFile = writeStreamToCheckedFile(newFile,  stream, algorithm, pid);
+                        mpFiles.put(name, checkedFile);
                         end = System.currentTimeMillis();
                     } else {
                         File newFile = generateTmpFile("other");
@@ -211,7 +207,7 @@ public class StreamingMultipartRequestResolver extends MultipartRequestResolver
                     edu.ucsb.nceas.metacat.common.Settings.PERFORMANCELOG_CREATE_UPDATE_METHOD + 
                     " Write the object file from the http multipart to the disk " + 
                     predicate + 
-                    " calculating the checksum" + 
+                    " knowing the checksum algorithm" + 
                     edu.ucsb.nceas.metacat.common.Settings.PERFORMANCELOG_DURATION + 
                     (end-start)/1000);
         }
@@ -238,10 +234,13 @@ public class StreamingMultipartRequestResolver extends MultipartRequestResolver
     }
     
     /**
-     * Write the input stream into the given fileName and directory while calculate the checksum.
+     * Write the input stream into the given fileName and directory while calculate the checksums.
+     * The MD5, SHA-1 and SHA-256 checksums are always calculated in the same pass, so the file
+     * doesn't have to be read again if the system metadata comes later or declares one of them.
      * @param file  the file into which the stream will be written. It should exists already.
      * @param dataStream  the source stream
-     * @param checksumAlgorithm  the algorithm will be used for calculating the checksum
+     * @param checksumAlgorithm  the algorithm declared in the system metadata. It can be null if
+     *                           the system metadata isn't known yet.
      * @param pid  the pid of the object (only used for debug information)
      * @return  a CheckedFile object ( a File object with advertised checksum)
      * @throws NoSuchAlgorithmException
@@ -252,11 +251,11 @@ public class StreamingMultipartRequestResolver extends MultipartRequestResolver
         throws NoSuchAlgorithmException, FileNotFoundException, IOException {
         Checksum checksum = null;
         log.debug("StreamingMultipartRequestResolver.writeStreamToCheckedFile - filename for writting is: " + file.getAbsolutePath() + " for the pid " + pid + " by the algorithm " + checksumAlgorithm);
-        MessageDigest md = MessageDigest.getInstance(checksumAlgorithm);
+        ChecksumCalculator calculator = new ChecksumCalculator(checksumAlgorithm);
         // write data stream to desired file
-        DigestOutputStream os = null;
+        OutputStream os = null;
         try {
-            os = new DigestOutputStream(new FileOutputStream(file), md);
+            os = calculator.wrap(new FileOutputStream(file));
             long length = IOUtils.copyLarge(dataStream, os);
         } finally {
             if (os != null) {
@@ -268,12 +267,12 @@ public class StreamingMultipartRequestResolver extends MultipartRequestResolver
                 }
             }
         }
-        String localChecksum = DatatypeConverter.printHexBinary(md.digest());
-        checksum = new Checksum();
-        checksum.setAlgorithm(checksumAlgorithm);
-        checksum.setValue(localChecksum);
-        log.info("StreamingMultipartRequestResolver.writeStreamToCheckedFile - the checksum calculated from the saved local file is " + localChecksum + " for the pid " + pid);
-        CheckedFile checkedFile = new CheckedFile(file.getCanonicalPath(), checksum);
+        Map<String, String> checksums = calculator.getChecksums();
+        if (checksumAlgorithm != null) {
+            checksum = calculator.getChecksum(checksumAlgorithm);
+        }
+        log.info("StreamingMultipartRequestResolver.writeStreamToCheckedFile - the checksums calculated from the saved local file are " + checksums + " for the pid " + pid);
+        CheckedFile checkedFile = new CheckedFile(file.getCanonicalPath(), checksum, checksums);
         return checkedFile;
     }
     
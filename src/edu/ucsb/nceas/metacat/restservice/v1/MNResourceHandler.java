@@ -551,7 +551,12 @@ public class MNResourceHandler extends D1ResourceHandler {
 	                response.setStatus(200);
 	                out = response.getOutputStream();
 	                // write the results to the output stream
-	                IOUtils.copyLarge(stream, out);
+	                try {
+	                    IOUtils.copyLarge(stream, out);
+	                } finally {
+	                    // the results may be streamed from solr, so release the connection
+	                    IOUtils.closeQuietly(stream);
+	                }
 	                return;
 	    		} else {
 	    			MNodeService mnode = MNodeService.getInstance(request);
@@ -76,6 +76,7 @@ import edu.ucsb.nceas.metacat.dataone.MNodeService;
 import edu.ucsb.nceas.metacat.doi.DOIException;
 import edu.ucsb.nceas.metacat.properties.PropertyService;
 import edu.ucsb.nceas.metacat.restservice.D1ResourceHandler;
+import edu.ucsb.nceas.metacat.restservice.ObjectStreamer;
 import edu.ucsb.nceas.metacat.restservice.multipart.CheckedFile;
 import edu.ucsb.nceas.metacat.restservice.multipart.DetailedFileInputStream;
 import edu.ucsb.nceas.metacat.restservice.multipart.MultipartRequestWithSysmeta;
@@ -598,15 +599,20 @@ public class MNResourceHandler extends D1ResourceHandler {
                     MNodeService mnode = MNodeService.getInstance(request);
                     mnode.setSession(session);
                     InputStream stream = mnode.query(session, engine, query);
-
-                    // set the content-type if we have it from the implementation
-                    if (stream instanceof ContentTypeInputStream) {
-                        response.setContentType(((ContentTypeInputStream) stream).getContentType());
+                    try {
+                        // set the content-type if we have it from the implementation
+                        if (stream instanceof ContentTypeInputStream) {
+                            response.setContentType(
+                                            ((ContentTypeInputStream) stream).getContentType());
+                        }
+                        response.setStatus(200);
+                        out = response.getOutputStream();
+                        // write the results to the output stream
+                        IOUtils.copyLarge(stream, out);
+                    } finally {
+                        // the results may be streamed from solr, so release the connection
+                        IOUtils.closeQuietly(stream);
                     }
-                    response.setStatus(200);
-                    out = response.getOutputStream();
-                    // write the results to the output stream
-                    IOUtils.copyLarge(stream, out);
                     long end = System.currentTimeMillis();
                     logMetacat.info(Settings.PERFORMANCELOG + Settings.PERFORMANCELOG_QUERY_METHOD
                                     + query + " Total query method"
@@ -673,14 +679,19 @@ public class MNResourceHandler extends D1ResourceHandler {
             }
             mnode.setSession(session);
             InputStream stream = mnode.postQuery(session, engine, params);
-            // set the content-type if we have it from the implementation
-            if (stream instanceof ContentTypeInputStream) {
-                response.setContentType(((ContentTypeInputStream) stream).getContentType());
+            try {
+                // set the content-type if we have it from the implementation
+                if (stream instanceof ContentTypeInputStream) {
+                    response.setContentType(((ContentTypeInputStream) stream).getContentType());
+                }
+                response.setStatus(200);
+                out = response.getOutputStream();
+                // write the results to the output stream
+                IOUtils.copyLarge(stream, out);
+            } finally {
+                // the results may be streamed from solr, so release the connection
+                IOUtils.closeQuietly(stream);
             }
-            response.setStatus(200);
-            out = response.getOutputStream();
-            // write the results to the output stream
-            IOUtils.copyLarge(stream, out);
             IOUtils.closeQuietly(out);
             return;
         } catch (BaseException be) {
@@ -1354,6 +1365,12 @@ public class MNResourceHandler extends D1ResourceHandler {
             id.setValue(pid);
 
             SystemMetadata sm = MNodeService.getInstance(request).getSystemMetadata(session, id);
+            // the client (or a cache) may have the current object already
+            if (ObjectStreamer.isNotModified(sm, request, response)) {
+                logMetacat.info("MNResourceHandler.getObject - the object " + pid
+                                    + " isn't modified. So it isn't sent.");
+                return;
+            }
 
             // set the headers for the content
             String mimeType = null;
@@ -1421,9 +1438,10 @@ public class MNResourceHandler extends D1ResourceHandler {
             InputStream data = null;
             try {
                 data = MNodeService.getInstance(request).get(session, id);
+                // set the status and the Content-Length, and send the file (or the requested
+                // ranges) without a copy loop if possible
+                ObjectStreamer.send(data, sm, request, response);
                 out = response.getOutputStream();
-                response.setStatus(200);
-                IOUtils.copyLarge(data, out);
                 IOUtils.closeQuietly(out);
             } finally {
                 if (data != null) {
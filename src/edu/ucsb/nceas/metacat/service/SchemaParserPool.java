@@ -0,0 +1,356 @@
+package edu.ucsb.nceas.metacat.service;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.xerces.parsers.XMLGrammarPreparser;
+import org.apache.xerces.util.XMLGrammarPoolImpl;
+import org.apache.xerces.xni.XNIException;
+import org.apache.xerces.xni.grammars.Grammar;
+import org.apache.xerces.xni.grammars.XMLGrammarDescription;
+import org.apache.xerces.xni.grammars.XMLGrammarPool;
+import org.apache.xerces.xni.parser.XMLErrorHandler;
+import org.apache.xerces.xni.parser.XMLInputSource;
+import org.apache.xerces.xni.parser.XMLParseException;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLReaderFactory;
+
+import edu.ucsb.nceas.metacat.DocumentImpl;
+import edu.ucsb.nceas.metacat.common.Settings;
+import edu.ucsb.nceas.metacat.util.SystemUtil;
+import edu.ucsb.nceas.utilities.PropertyNotFoundException;
+
+/**
+ * The cache of the compiled schemas and the schema validating parsers. Compiling the schemas,
+ * e.g. the whole EML schema tree, takes most of the time of validating a typical metadata
+ * document, and it was done again for every document. Now the grammars are compiled once into
+ * a Xerces XMLGrammarPool for each external schema location. The pool is preloaded with the
+ * schemas which the schema registry gives for the location, and the grammars in it are keyed by
+ * their target namespaces. The parsers configured for a location are reset and reused after
+ * they are released. Everything is dropped when a new version of the schema registry is loaded.
+ * @author tao
+ */
+public class SchemaParserPool {
+    public static final String GRAMMARPOOLPROPERTY =
+                                    "http://apache.org/xml/properties/internal/grammar-pool";
+
+    private static Log logMetacat = LogFactory.getLog(SchemaParserPool.class);
+    private static volatile SchemaParserPool schemaParserPool = null;
+
+    private final int maxIdleParsers;
+    private volatile Generation generation = new Generation(-1);
+    // the parsers which were handed out and the entries they will be returned to
+    private final Map<XMLReader, Entry> borrowed = new ConcurrentHashMap<XMLReader, Entry>();
+
+    /**
+     * private constructor since this is a singleton
+     */
+    private SchemaParserPool() {
+        maxIdleParsers = Settings.getConfiguration().getInt("xml.validation.maxIdleParsers", 32);
+    }
+
+    /**
+     * Get the single instance of the pool
+     * @return the instance
+     */
+    public static SchemaParserPool getInstance() {
+        if (schemaParserPool == null) {
+            synchronized (SchemaParserPool.class) {
+                if (schemaParserPool == null) {
+                    schemaParserPool = new SchemaParserPool();
+                }
+            }
+        }
+        return schemaParserPool;
+    }
+
+    /**
+     * Get a parser which validates documents against the schemas in the given location. The
+     * content, error, lexical and declaration handlers should be set by the caller, and the
+     * parser should be given back by the release method after the parsing.
+     * @param parserName  the class name of the sax parser
+     * @param schemaLocation  the space delimited namespace and location pairs, or the location
+     *                        of the schema without a namespace
+     * @param noNamespace  if the schema location is the one of a schema without a namespace
+     * @param fullChecking  if the schema full checking should be turned on
+     * @return the parser
+     * @throws SAXException
+     */
+    public XMLReader getParser(String parserName, String schemaLocation, boolean noNamespace,
+                               boolean fullChecking) throws SAXException {
+        Entry entry = getGeneration().getEntry(new Key(schemaLocation, noNamespace,
+                                                       fullChecking));
+        XMLReader parser = entry.idleParsers.poll();
+        if (parser == null) {
+            parser = XMLReaderFactory.createXMLReader(parserName);
+            parser.setFeature(DocumentImpl.VALIDATIONFEATURE, true);
+            parser.setFeature(DocumentImpl.NAMESPACEFEATURE, true);
+            parser.setFeature(DocumentImpl.SCHEMAVALIDATIONFEATURE, true);
+            if (fullChecking) {
+                parser.setFeature(DocumentImpl.FULLSCHEMAVALIDATIONFEATURE, true);
+            }
+            if (noNamespace) {
+                parser.setProperty(DocumentImpl.EXTERNALNONAMESPACESCHEMALOCATIONPROPERTY,
+                                   schemaLocation);
+            } else {
+                parser.setProperty(DocumentImpl.EXTERNALSCHEMALOCATIONPROPERTY, schemaLocation);
+            }
+            parser.setProperty(GRAMMARPOOLPROPERTY, entry.getGrammarPool());
+            logMetacat.debug("SchemaParserPool.getParser - created a new parser for "
+                                + schemaLocation);
+        }
+        borrowed.put(parser, entry);
+        return parser;
+    }
+
+    /**
+     * Give back a parser after the parsing, whether it succeeded or not. It will be reused if
+     * it came from this pool and the schema registry hasn't been changed since then. Other
+     * parsers are ignored.
+     * @param parser  the parser to give back
+     */
+    public void release(XMLReader parser) {
+        if (parser == null) {
+            return;
+        }
+        Entry entry = borrowed.remove(parser);
+        if (entry == null || entry.version != generation.version) {
+            return;
+        }
+        try {
+            // don't hold the handlers of the last document
+            parser.setContentHandler(null);
+            parser.setErrorHandler(null);
+            parser.setProperty(DocumentImpl.DECLARATIONHANDLERPROPERTY, null);
+            parser.setProperty(DocumentImpl.LEXICALPROPERTY, null);
+        } catch (SAXException e) {
+            logMetacat.warn("SchemaParserPool.release - drop the parser since its handlers "
+                                + "can't be cleared: " + e.getMessage());
+            return;
+        }
+        entry.idleParsers.offer(parser);
+    }
+
+    /**
+     * Get the grammar pool for the given schema location. It is preloaded on the first call.
+     * @param schemaLocation  the space delimited namespace and location pairs, or the location
+     *                        of the schema without a namespace
+     * @param noNamespace  if the schema location is the one of a schema without a namespace
+     * @param fullChecking  if the schema full checking is turned on
+     * @return the grammar pool
+     */
+    XMLGrammarPool getGrammarPool(String schemaLocation, boolean noNamespace,
+                                  boolean fullChecking) {
+        return getGeneration().getEntry(new Key(schemaLocation, noNamespace, fullChecking))
+                                    .getGrammarPool();
+    }
+
+    /**
+     * Get the current generation of the cache. A new one is started when the schema registry
+     * has a new version.
+     * @return the generation matching the current schema registry
+     */
+    private Generation getGeneration() {
+        long version = XMLSchemaService.getInstance().getRegistry().getVersion();
+        Generation current = generation;
+        if (current.version != version) {
+            synchronized (this) {
+                current = generation;
+                if (current.version != version) {
+                    logMetacat.info("SchemaParserPool.getGeneration - the version of the schema"
+                                        + " registry is " + version + ". So the compiled "
+                                        + "schemas and the parsers are dropped.");
+                    current = new Generation(version);
+                    generation = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * The compiled grammars and idle parsers of one version of the schema registry
+     */
+    private class Generation {
+        private final long version;
+        private final Map<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+
+        private Generation(long version) {
+            this.version = version;
+        }
+
+        private Entry getEntry(Key key) {
+            return entries.computeIfAbsent(key, k -> new Entry(k, version, maxIdleParsers));
+        }
+    }
+
+    /**
+     * The grammar pool and idle parsers of one schema location
+     */
+    private static class Entry {
+        private final Key key;
+        private final long version;
+        private final BlockingQueue<XMLReader> idleParsers;
+        private final RegisteredGrammarPool grammarPool = new RegisteredGrammarPool();
+        private volatile boolean preloaded = false;
+
+        private Entry(Key key, long version, int maxIdleParsers) {
+            this.key = key;
+            this.version = version;
+            this.idleParsers = new ArrayBlockingQueue<XMLReader>(Math.max(1, maxIdleParsers));
+        }
+
+        /**
+         * Get the grammar pool. The first caller compiles the schemas of the location into it,
+         * and the other callers wait for it instead of compiling them again.
+         * @return the preloaded grammar pool
+         */
+        private XMLGrammarPool getGrammarPool() {
+            if (!preloaded) {
+                synchronized (this) {
+                    if (!preloaded) {
+                        preload();
+                        preloaded = true;
+                    }
+                }
+            }
+            return grammarPool;
+        }
+
+        private void preload() {
+            long start = System.currentTimeMillis();
+            XMLGrammarPreparser preparser = new XMLGrammarPreparser();
+            preparser.registerPreparser(XMLGrammarDescription.XML_SCHEMA, null);
+            preparser.setGrammarPool(grammarPool);
+            preparser.setErrorHandler(new LogErrorHandler());
+            preparser.setFeature(DocumentImpl.NAMESPACEFEATURE, true);
+            preparser.setFeature(DocumentImpl.VALIDATIONFEATURE, true);
+            preparser.setFeature(DocumentImpl.FULLSCHEMAVALIDATIONFEATURE, key.fullChecking);
+            // resolve the imports the same way as the validating parsers do
+            if (key.noNamespace) {
+                preparser.setProperty(DocumentImpl.EXTERNALNONAMESPACESCHEMALOCATIONPROPERTY,
+                                      key.schemaLocation);
+            } else {
+                preparser.setProperty(DocumentImpl.EXTERNALSCHEMALOCATIONPROPERTY,
+                                      key.schemaLocation);
+            }
+            String[] tokens = key.schemaLocation.trim().split("\\s+");
+            // the pairs are "namespace location"; a no-namespace location stands alone
+            for (int i = key.noNamespace ? 0 : 1; i < tokens.length; i += key.noNamespace ? 1 : 2) {
+                try {
+                    preparser.preparseGrammar(XMLGrammarDescription.XML_SCHEMA,
+                                              new XMLInputSource(null, tokens[i], null));
+                } catch (IOException | XNIException e) {
+                    // the validating parser will compile it by itself
+                    logMetacat.warn("SchemaParserPool.preload - can't compile the schema "
+                                        + tokens[i] + " since " + e.getMessage());
+                }
+            }
+            logMetacat.info("SchemaParserPool.preload - compiled "
+                                + grammarPool.retrieveInitialGrammarSet(
+                                        XMLGrammarDescription.XML_SCHEMA).length
+                                + " grammars for " + key.schemaLocation + " in "
+                                + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * A grammar pool which only keeps the grammars compiled from the files in the schema
+     * directory of Metacat. The grammars of the schemas which a document points to somewhere
+     * else are used for that document only, so they can't change how the next documents are
+     * validated.
+     */
+    private static class RegisteredGrammarPool extends XMLGrammarPoolImpl {
+        private static final Path schemaDir = getSchemaDir();
+
+        @Override
+        public void putGrammar(Grammar grammar) {
+            String systemId = grammar.getGrammarDescription().getExpandedSystemId();
+            if (isInSchemaDir(systemId)) {
+                super.putGrammar(grammar);
+            } else {
+                logMetacat.debug("SchemaParserPool.putGrammar - don't cache the grammar from "
+                                    + systemId + " since it isn't in the schema directory.");
+            }
+        }
+
+        private static boolean isInSchemaDir(String systemId) {
+            if (systemId == null || !systemId.startsWith("file:")) {
+                return false;
+            }
+            try {
+                return Paths.get(URI.create(systemId)).normalize().startsWith(schemaDir);
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+
+        private static Path getSchemaDir() {
+            String dir = null;
+            try {
+                dir = SystemUtil.getContextDir() + XMLSchemaService.SCHEMA_DIR;
+            } catch (PropertyNotFoundException e) {
+                // the same fallback as XMLSchema.setFileName
+                dir = XMLSchemaService.SCHEMA_DIR;
+            }
+            return Paths.get(dir).toAbsolutePath().normalize();
+        }
+    }
+
+    /**
+     * Log the problems of the schemas found during preloading
+     */
+    private static class LogErrorHandler implements XMLErrorHandler {
+        public void warning(String domain, String key, XMLParseException e) {
+            logMetacat.debug("SchemaParserPool.preload - " + e.getMessage());
+        }
+
+        public void error(String domain, String key, XMLParseException e) {
+            logMetacat.warn("SchemaParserPool.preload - " + e.getMessage());
+        }
+
+        public void fatalError(String domain, String key, XMLParseException e) {
+            throw e;
+        }
+    }
+
+    /**
+     * The key of the grammar pool and parsers: the schema location and how it is validated
+     */
+    private static class Key {
+        private final String schemaLocation;
+        private final boolean noNamespace;
+        private final boolean fullChecking;
+
+        private Key(String schemaLocation, boolean noNamespace, boolean fullChecking) {
+            this.schemaLocation = schemaLocation;
+            this.noNamespace = noNamespace;
+            this.fullChecking = fullChecking;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return schemaLocation.equals(other.schemaLocation) && noNamespace == other.noNamespace
+                            && fullChecking == other.fullChecking;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(schemaLocation, noNamespace, fullChecking);
+        }
+    }
+}
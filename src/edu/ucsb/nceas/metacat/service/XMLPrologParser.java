@@ -0,0 +1,196 @@
+package edu.ucsb.nceas.metacat.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * This class reads the prolog and the root element start tag of an xml document in one
+ * streaming pass and gets what Metacat needs to choose a validator: the DOCTYPE, the namespace
+ * of the root element and the xsi:schemaLocation and xsi:noNamespaceSchemaLocation attributes.
+ * It stops reading after the root start tag, so the size of the document doesn't matter. The
+ * external DTD isn't loaded.
+ * @author tao
+ */
+public class XMLPrologParser {
+    private static final Pattern EXTERNAL_ID = Pattern.compile(
+                    "<!DOCTYPE\\s+[^\\s\\[>]+\\s+(?:PUBLIC\\s+(\"[^\"]*\"|'[^']*')\\s+"
+                    + "(\"[^\"]*\"|'[^']*')|SYSTEM\\s+(\"[^\"]*\"|'[^']*'))");
+    private static final XMLInputFactory factory = createFactory();
+    private static Log logMetacat = LogFactory.getLog(XMLPrologParser.class);
+
+    private String rootElement = null;
+    private String publicId = null;
+    private String systemId = null;
+    private String namespace = null;
+    private String schemaLocation = null;
+    private String noNamespaceSchemaLocation = null;
+
+    private XMLPrologParser() {
+    }
+
+    /**
+     * Parse the prolog and the root start tag of the given xml document. The stream isn't
+     * closed.
+     * @param xml  the bytes of the document. The encoding is detected by the parser.
+     * @return the parser holding the found values
+     * @throws XMLStreamException if the prolog or the root start tag isn't well-formed
+     */
+    public static XMLPrologParser parse(InputStream xml) throws XMLStreamException {
+        XMLPrologParser prolog = new XMLPrologParser();
+        XMLStreamReader reader = factory.createXMLStreamReader(xml);
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.DTD) {
+                    prolog.parseDoctype(reader.getText());
+                } else if (event == XMLStreamConstants.START_ELEMENT) {
+                    prolog.parseRootElement(reader);
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        logMetacat.debug("XMLPrologParser.parse - the root element " + prolog.rootElement
+                            + " has the namespace " + prolog.namespace
+                            + ", the DOCTYPE public id " + prolog.publicId + ", system id "
+                            + prolog.systemId + ", schemaLocation " + prolog.schemaLocation
+                            + " and noNamespaceSchemaLocation "
+                            + prolog.noNamespaceSchemaLocation);
+        return prolog;
+    }
+
+    private void parseDoctype(String doctype) {
+        Matcher matcher = EXTERNAL_ID.matcher(doctype);
+        if (matcher.find()) {
+            if (matcher.group(1) != null) {
+                publicId = unquote(matcher.group(1));
+                systemId = unquote(matcher.group(2));
+            } else {
+                systemId = unquote(matcher.group(3));
+            }
+        }
+    }
+
+    private void parseRootElement(XMLStreamReader reader) {
+        rootElement = reader.getLocalName();
+        String uri = reader.getNamespaceURI();
+        if (uri != null && !uri.trim().equals("")) {
+            namespace = uri;
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (!XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI
+                                                .equals(reader.getAttributeNamespace(i))) {
+                continue;
+            }
+            String value = reader.getAttributeValue(i);
+            if (value == null || value.trim().equals("")) {
+                continue;
+            }
+            if ("schemaLocation".equals(reader.getAttributeLocalName(i))) {
+                schemaLocation = value.trim();
+            } else if ("noNamespaceSchemaLocation".equals(reader.getAttributeLocalName(i))) {
+                noNamespaceSchemaLocation = value.trim();
+            }
+        }
+    }
+
+    private static String unquote(String quoted) {
+        return quoted.substring(1, quoted.length() - 1);
+    }
+
+    private static XMLInputFactory createFactory() {
+        // the JDK implementation reports the whole DOCTYPE declaration as the DTD text
+        XMLInputFactory factory = XMLInputFactory.newDefaultFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     * Check if the document declares an external DTD by a PUBLIC or SYSTEM identifier, so it
+     * should be validated by the DTD
+     * @return true if there is an external DTD
+     */
+    public boolean hasExternalDTD() {
+        return publicId != null || systemId != null;
+    }
+
+    /**
+     * @return the local name of the root element. Null if the document has no element.
+     */
+    public String getRootElement() {
+        return rootElement;
+    }
+
+    /**
+     * @return the public id in the DOCTYPE. Null if there is none.
+     */
+    public String getPublicId() {
+        return publicId;
+    }
+
+    /**
+     * @return the system id in the DOCTYPE. Null if there is none.
+     */
+    public String getSystemId() {
+        return systemId;
+    }
+
+    /**
+     * @return the namespace of the root element. Null if it doesn't have one.
+     */
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * @return the value of the xsi:schemaLocation attribute of the root element. Null if it
+     *         doesn't have one.
+     */
+    public String getSchemaLocation() {
+        return schemaLocation;
+    }
+
+    /**
+     * @return the value of the xsi:noNamespaceSchemaLocation attribute of the root element. Null
+     *         if it doesn't have one.
+     */
+    public String getNoNamespaceSchemaLocation() {
+        return noNamespaceSchemaLocation;
+    }
+
+    /**
+     * Get the schemas in the xsi:schemaLocation attribute of the root element
+     * @return a vector of XMLSchema objects, or an empty vector if none are found
+     * @throws IOException if the attribute doesn't have an even number of uris
+     */
+    public Vector<XMLSchema> getSchemaList() throws IOException {
+        Vector<XMLSchema> schemaList = new Vector<XMLSchema>();
+        if (schemaLocation != null) {
+            String[] parsedUri = schemaLocation.split("\\s+");
+            if (parsedUri.length % 2 != 0) {
+                throw new IOException("Odd number of elements found when parsing schema location: "
+                                      + schemaLocation + ". There should be an even number of "
+                                      + "uri/files in location.");
+            }
+            for (int j = 0; j < parsedUri.length; j = j + 2) {
+                String formatId = null;
+                schemaList.add(new XMLSchema(parsedUri[j], parsedUri[j + 1], formatId));
+            }
+        }
+        return schemaList;
+    }
+}
@@ -0,0 +1,156 @@
+package edu.ucsb.nceas.metacat.service;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+
+/**
+ * An immutable snapshot of the schemas registered in the xml_catalog table which have files on
+ * disk. XMLSchemaService builds a new snapshot when the table changes and swaps it in one
+ * assignment, so the validations read a consistent registry without a lock. The lists returned
+ * by the getters are shared by all readers and must not be modified.
+ * @author tao
+ */
+public class XMLSchemaRegistry {
+    /** The registry before the first load */
+    public static final XMLSchemaRegistry EMPTY = new XMLSchemaRegistry(0, null, false,
+                                            new Vector<XMLSchema>(),
+                                            new Vector<XMLNoNamespaceSchema>(),
+                                            new Vector<String>());
+
+    private final long version;
+    private final String fingerprint;
+    private final boolean useFullSchemaValidation;
+    private final Vector<XMLSchema> schemaList;
+    private final Vector<XMLNoNamespaceSchema> noNamespaceSchemaList;
+    private final Vector<String> nonXMLMetadataFormatList;
+    private final Vector<String> nameSpaceList = new Vector<String>();
+    private final Set<String> nameSpaces = new HashSet<String>();
+    private final String nameSpaceAndLocationStringWithoutFormatId;
+    private final Map<String, String> formatIdNamespaceLocations;
+
+    /**
+     * Constructor
+     * @param version  the version of the registry, which increases with every load
+     * @param fingerprint  the hash of the xml_catalog table which the registry was loaded from
+     * @param useFullSchemaValidation  the value of the xml.useFullSchemaValidation property
+     * @param schemaList  the registered schemas with namespaces
+     * @param noNamespaceSchemaList  the registered schemas without namespaces
+     * @param nonXMLMetadataFormatList  the format ids of the non-xml metadata
+     */
+    public XMLSchemaRegistry(long version, String fingerprint, boolean useFullSchemaValidation,
+                             Vector<XMLSchema> schemaList,
+                             Vector<XMLNoNamespaceSchema> noNamespaceSchemaList,
+                             Vector<String> nonXMLMetadataFormatList) {
+        this.version = version;
+        this.fingerprint = fingerprint;
+        this.useFullSchemaValidation = useFullSchemaValidation;
+        this.schemaList = schemaList;
+        this.noNamespaceSchemaList = noNamespaceSchemaList;
+        this.nonXMLMetadataFormatList = nonXMLMetadataFormatList;
+        StringBuilder withoutFormatId = new StringBuilder();
+        Hashtable<String, String> locations = new Hashtable<String, String>();
+        for (XMLSchema xmlSchema : schemaList) {
+            nameSpaceList.add(xmlSchema.getFileNamespace());
+            if (xmlSchema.getFileNamespace() != null) {
+                nameSpaces.add(xmlSchema.getFileNamespace());
+            }
+            String pair = xmlSchema.getFileNamespace() + " " + xmlSchema.getLocalFileUri();
+            String formatId = xmlSchema.getFormatId();
+            if (formatId == null || formatId.trim().equals("")) {
+                //this is to handle the old way - no schema variants
+                if (withoutFormatId.length() > 0) {
+                    withoutFormatId.append(" ");
+                }
+                withoutFormatId.append(pair);
+            } else {
+                //it has a format id on the xml_catalog table. It is a variant. The pairs of
+                //the same format id are delimited by a space.
+                String value = locations.get(formatId);
+                locations.put(formatId, value == null ? pair : value + " " + pair);
+            }
+        }
+        this.nameSpaceAndLocationStringWithoutFormatId = withoutFormatId.toString();
+        this.formatIdNamespaceLocations = Collections.unmodifiableMap(locations);
+    }
+
+    /**
+     * Get the version of the registry. It increases every time the registry is loaded, so the
+     * caches derived from the registry know when to rebuild themselves.
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the hash of the xml_catalog table which the registry was loaded from
+     * @return the fingerprint. Null if the registry wasn't loaded from the table.
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return the value of the xml.useFullSchemaValidation property when it was loaded
+     */
+    public boolean useFullSchemaValidation() {
+        return useFullSchemaValidation;
+    }
+
+    /**
+     * @return the registered schemas with namespaces
+     */
+    public Vector<XMLSchema> getRegisteredSchemaList() {
+        return schemaList;
+    }
+
+    /**
+     * @return the registered schemas without namespaces
+     */
+    public Vector<XMLNoNamespaceSchema> getRegisteredNoNamespaceSchemaList() {
+        return noNamespaceSchemaList;
+    }
+
+    /**
+     * @return the namespaces of the registered schemas
+     */
+    public Vector<String> getNameSpaceList() {
+        return nameSpaceList;
+    }
+
+    /**
+     * @return the format ids of the non-xml metadata
+     */
+    public Vector<String> getNonXMLMetadataFormatList() {
+        return nonXMLMetadataFormatList;
+    }
+
+    /**
+     * @return the space delimited namespaces and locations of the schemas without format ids
+     */
+    public String getNameSpaceAndLocationStringWithoutFormatId() {
+        return nameSpaceAndLocationStringWithoutFormatId;
+    }
+
+    /**
+     * Get the space delimited namespaces and locations registered for a format id
+     * @param formatId  the format id
+     * @return the namespace and location pairs. Null if nothing is registered for it.
+     */
+    public String getNameSpaceAndLocation(String formatId) {
+        return formatId == null ? null : formatIdNamespaceLocations.get(formatId);
+    }
+
+    /**
+     * Check if a namespace is registered
+     * @param namespace  the namespace
+     * @return true if a registered schema has the namespace
+     */
+    public boolean isNamespaceRegistered(String namespace) {
+        return namespace != null && nameSpaces.contains(namespace);
+    }
+}
@@ -7,8 +7,8 @@ import java.io.StringReader;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Hashtable;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -17,6 +17,7 @@ import org.apache.commons.logging.LogFactory;
 import org.xml.sax.SAXException;
 
 import edu.ucsb.nceas.metacat.client.MetacatException;
+import edu.ucsb.nceas.metacat.common.Settings;
 import edu.ucsb.nceas.metacat.database.DBConnection;
 import edu.ucsb.nceas.metacat.database.DBConnectionPool;
 import edu.ucsb.nceas.metacat.properties.PropertyService;
@@ -34,40 +35,34 @@ public class XMLSchemaService extends BaseService {
 
     public static String NONXML = "NonXML";
 
-    private static XMLSchemaService xmlSchemaService = null;
+    // the hash of all rows of the xml_catalog table. It tells if the table was changed since
+    // the registry was loaded.
+    private static final String FINGERPRINT_SQL = "SELECT md5(string_agg(concat_ws('|', "
+                    + "catalog_id, entry_type, source_doctype, target_doctype, public_id, "
+                    + "system_id, format_id, no_namespace_schema_location), ',' "
+                    + "ORDER BY catalog_id)) FROM xml_catalog";
 
-    private static Log logMetacat = LogFactory.getLog(XMLSchemaService.class);
-
-    private static boolean useFullSchemaValidation = false;
-
-    // all schema objects that represent schemas registered in the db that
-    // actually have files on disk. It doesn't include the schemas without namespace
-    private static Vector<XMLSchema> registeredSchemaList = new Vector<XMLSchema>();
-
-    // all non-amespace schema objects that represent schemas registered in the db that
-    // actually have files on disk. It doesn't include the schemas with namespaces
-    private static Vector<XMLNoNamespaceSchema> registeredNoNamespaceSchemaList = new Vector<XMLNoNamespaceSchema>();
-
-    // a convenience list that holds the names of registered namespaces.
-    private static Vector<String> nameSpaceList = new Vector<String>();
+    private static volatile XMLSchemaService xmlSchemaService = null;
 
-    // a convenience string that holds all name spaces and locations in a space
-    // delimited format. Those items don't have a format id. This is the old way we handle the schema location
-    private static String nameSpaceAndLocationStringWithoutFormatId = ""; 
+    private static Log logMetacat = LogFactory.getLog(XMLSchemaService.class);
 
-    //this hash table is design for schema variants. Two schemas have the same name space,
-    //but they have different content (location). So we different format id to
-    //distinguish them. The key of the hash table is the format id, the values is all the namespace schema location
-    //delimited string for this format id.
-    private static Hashtable<String, String> formatId_NamespaceLocationHash = new Hashtable<String, String>();
+    // the current snapshot of the registered schemas. It is replaced as a whole by doRefresh, so
+    // the readers never see a registry being loaded and don't need a lock.
+    private static volatile XMLSchemaRegistry registry = XMLSchemaRegistry.EMPTY;
 
-    private static Vector<String> nonXMLMetadataFormatList = new Vector<String>();
+    // how often (ms) the xml_catalog table is checked for changes. 0 means it is only reloaded
+    // by the refresh calls.
+    private static long checkInterval = 300000;
+    private static volatile long lastCheck = 0;
+    private static final AtomicBoolean checking = new AtomicBoolean(false);
 
     /**
      * private constructor since this is a singleton
      */
     private XMLSchemaService() {
         _serviceName = "XMLSchemaService";
+        checkInterval = Settings.getConfiguration()
+                            .getLong("xml.schemaRegistry.checkInterval", 300) * 1000;
         try {
             doRefresh();
         } catch (ServiceException e) {
@@ -82,7 +77,11 @@ public class XMLSchemaService extends BaseService {
      */
     public static XMLSchemaService getInstance() {
         if (xmlSchemaService == null) {
-            xmlSchemaService = new XMLSchemaService();
+            synchronized (XMLSchemaService.class) {
+                if (xmlSchemaService == null) {
+                    xmlSchemaService = new XMLSchemaService();
+                }
+            }
         }
         return xmlSchemaService;
     }
@@ -92,21 +91,74 @@ public class XMLSchemaService extends BaseService {
     }
 
     /**
-     * refresh the persistant values in this service.
+     * Reload the registry from the xml_catalog table and the schema files, and swap it in.
+     * This is the explicit refresh, e.g. after a schema is registered. The validations don't
+     * call it; they use the current registry, which is reloaded when the table changes.
      */
     public synchronized void doRefresh() throws ServiceException {
         logMetacat.debug("XMLService.doRefresh - refreshing the schema service.");
+        boolean useFullSchemaValidation = false;
         try {
-            populateRegisteredSchemaList();
-            populateRegisteredNoNamespaceSchemaList();
-            setUseFullSchemaValidation();
-            createRegisteredNameSpaceList();
-            createRegisteredNameSpaceAndLocationString();
-            populateNonXMLMetadataFormatList();
+            useFullSchemaValidation = Boolean.valueOf(
+                                PropertyService.getProperty("xml.useFullSchemaValidation"));
         } catch (PropertyNotFoundException pnfe) {
-            logMetacat.warn("XMLService.doRefresh - Could not find property: xml.useFullSchemaValidation."
-                    + " Setting to false.");
+            logMetacat.warn("XMLService.doRefresh - Could not find property: "
+                                + "xml.useFullSchemaValidation. Setting to false.");
         }
+        // read the fingerprint first, so a change during the loading is found by the next check
+        String fingerprint = loadFingerprint();
+        XMLSchemaRegistry loaded = new XMLSchemaRegistry(registry.getVersion() + 1, fingerprint,
+                                              useFullSchemaValidation,
+                                              populateRegisteredSchemaList(),
+                                              populateRegisteredNoNamespaceSchemaList(),
+                                              populateNonXMLMetadataFormatList());
+        registry = loaded;
+        lastCheck = System.currentTimeMillis();
+        logMetacat.info("XMLService.doRefresh - loaded the version " + loaded.getVersion()
+                            + " of the schema registry with "
+                            + loaded.getRegisteredSchemaList().size() + " schemas and "
+                            + loaded.getRegisteredNoNamespaceSchemaList().size()
+                            + " no-namespace schemas");
+    }
+
+    /**
+     * Get the current snapshot of the registered schemas. At most once in the check interval,
+     * one caller checks if the xml_catalog table was changed and reloads the registry if so;
+     * the other callers keep using the current one meanwhile.
+     * @return the registry
+     */
+    public XMLSchemaRegistry getRegistry() {
+        if (checkInterval > 0 && System.currentTimeMillis() - lastCheck >= checkInterval
+                && checking.compareAndSet(false, true)) {
+            try {
+                refreshIfChanged();
+            } finally {
+                checking.set(false);
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * Reload the registry if the xml_catalog table was changed since it was loaded
+     * @return true if it was reloaded
+     */
+    public boolean refreshIfChanged() {
+        lastCheck = System.currentTimeMillis();
+        String fingerprint = loadFingerprint();
+        if (fingerprint == null || fingerprint.equals(registry.getFingerprint())) {
+            return false;
+        }
+        logMetacat.info("XMLService.refreshIfChanged - the xml_catalog table was changed. "
+                            + "So the schema registry is reloaded.");
+        try {
+            doRefresh();
+        } catch (ServiceException e) {
+            logMetacat.error("XMLService.refreshIfChanged - can't reload the schema registry "
+                                 + "since " + e.getMessage());
+            return false;
+        }
+        return true;
     }
 
     public void stop() throws ServiceException {
@@ -121,7 +173,7 @@ public class XMLSchemaService extends BaseService {
      * @return a list of XMLSchema objects holding registered schema information
      */
     public Vector<XMLSchema> getRegisteredSchemaList() {
-        return registeredSchemaList;
+        return getRegistry().getRegisteredSchemaList();
     }
 
     /**
@@ -131,7 +183,7 @@ public class XMLSchemaService extends BaseService {
      * @return a list of XMLNoNamespaceSchema objects
      */
     public Vector<XMLNoNamespaceSchema> getRegisteredNoNamespaceSchemaList() {
-        return registeredNoNamespaceSchemaList;
+        return getRegistry().getRegisteredNoNamespaceSchemaList();
     }
 
     /**
@@ -145,7 +197,7 @@ public class XMLSchemaService extends BaseService {
      *         locations.
      */
     public String getNameSpaceAndLocationStringWithoutFormatId() {
-        return nameSpaceAndLocationStringWithoutFormatId;
+        return getRegistry().getNameSpaceAndLocationStringWithoutFormatId();
     }
 
     /**
@@ -155,11 +207,7 @@ public class XMLSchemaService extends BaseService {
      * @return
      */
     public String getNameSpaceAndLocation(String formatId) {
-        if(formatId == null) {
-            return null;
-        } else {
-            return formatId_NamespaceLocationHash.get(formatId);
-        }
+        return getRegistry().getNameSpaceAndLocation(formatId);
     }
 
     /**
@@ -169,7 +217,7 @@ public class XMLSchemaService extends BaseService {
      * @return a list that holds registered namespaces.
      */
     public Vector<String> getNameSpaceList() {
-        return nameSpaceList;
+        return getRegistry().getNameSpaceList();
     }
 
     /**
@@ -177,7 +225,7 @@ public class XMLSchemaService extends BaseService {
      * @return a list that holds the format ids for non-xml metadata type
      */
     public Vector<String> getNonXMLMetadataFormatList() {
-        return nonXMLMetadataFormatList;
+        return getRegistry().getNonXMLMetadataFormatList();
     }
 
     /**
@@ -189,30 +237,43 @@ public class XMLSchemaService extends BaseService {
      *         false otherwise.
      */
     public boolean useFullSchemaValidation() {
-        return useFullSchemaValidation;
+        return getRegistry().useFullSchemaValidation();
     }
 
-    /**
-     * sets the UseFullSchemaValidation variable.  The only way this should be
-     * set is in the constructor or the refresh methods.
+    /*
+     * Read the fingerprint of the xml_catalog table
      */
-    private void setUseFullSchemaValidation() throws PropertyNotFoundException {
-        String strUseFullSchemaValidation =
-            PropertyService.getProperty("xml.useFullSchemaValidation");
-        useFullSchemaValidation = Boolean.valueOf(strUseFullSchemaValidation);
+    private String loadFingerprint() {
+        DBConnection conn = null;
+        int serialNumber = -1;
+        try {
+            conn = DBConnectionPool.getDBConnection("XMLService.loadFingerprint");
+            serialNumber = conn.getCheckOutSerialNumber();
+            try (PreparedStatement pstmt = conn.prepareStatement(FINGERPRINT_SQL);
+                 ResultSet resultSet = pstmt.executeQuery()) {
+                String fingerprint = resultSet.next() ? resultSet.getString(1) : null;
+                // an empty table has no hash
+                return fingerprint == null ? "" : fingerprint;
+            }
+        } catch (SQLException e) {
+            logMetacat.error("XMLService.loadFingerprint - SQL Error: " + e.getMessage());
+            return null;
+        } finally {
+            DBConnectionPool.returnDBConnection(conn, serialNumber);
+        }
     }
 
-    /**
+    /*
      * Populate the list of registered schemas. This reads all schemas in the
      * xml_catalog table and then makes sure the schema actually exists and is
      * readable on disk.
      */
-    public void populateRegisteredSchemaList() {
+    private Vector<XMLSchema> populateRegisteredSchemaList() {
         DBConnection conn = null;
         int serialNumber = -1;
         PreparedStatement pstmt = null;
         ResultSet resultSet = null;
-        registeredSchemaList = new Vector<XMLSchema>();
+        Vector<XMLSchema> registeredSchemaList = new Vector<XMLSchema>();
 
         // get the system id from the xml_catalog table for all schemas.
         String sql = "SELECT public_id, system_id, format_id FROM xml_catalog where "
@@ -270,6 +331,7 @@ public class XMLSchemaService extends BaseService {
             }
             DBConnectionPool.returnDBConnection(conn, serialNumber);
         }
+        return registeredSchemaList;
     }
 
     /*
@@ -277,12 +339,13 @@ public class XMLSchemaService extends BaseService {
      * xml_catalog table and then makes sure the schema actually exists and is
      * readable on disk.
      */
-    private void populateRegisteredNoNamespaceSchemaList() {
+    private Vector<XMLNoNamespaceSchema> populateRegisteredNoNamespaceSchemaList() {
         DBConnection conn = null;
         int serialNumber = -1;
         PreparedStatement pstmt = null;
         ResultSet resultSet = null;
-        registeredNoNamespaceSchemaList = new Vector<XMLNoNamespaceSchema>();
+        Vector<XMLNoNamespaceSchema> registeredNoNamespaceSchemaList =
+                                                        new Vector<XMLNoNamespaceSchema>();
         // get the system id from the xml_catalog table for all schemas.
         String sql = "SELECT no_namespace_schema_location, system_id, format_id FROM xml_catalog where "
                 + "entry_type ='" + XMLNoNamespaceSchema.getType()+ "'";
@@ -339,17 +402,18 @@ public class XMLSchemaService extends BaseService {
             }
             DBConnectionPool.returnDBConnection(conn, serialNumber);
         }
+        return registeredNoNamespaceSchemaList;
     }
 
     /*
      * Populate the list of format ids for the non-xml metadata type
      */
-    private void populateNonXMLMetadataFormatList() {
+    private Vector<String> populateNonXMLMetadataFormatList() {
         DBConnection conn = null;
         int serialNumber = -1;
         PreparedStatement pstmt = null;
         ResultSet resultSet = null;
-        nonXMLMetadataFormatList = new Vector<String>();
+        Vector<String> nonXMLMetadataFormatList = new Vector<String>();
         String sql = "SELECT format_id FROM xml_catalog where " + "entry_type ='" + NONXML + "'";
         try {
             // check out DBConnection
@@ -385,53 +449,7 @@ public class XMLSchemaService extends BaseService {
             }
             DBConnectionPool.returnDBConnection(conn, serialNumber);
         }
-    }
-
-    /**
-     * create a space delimited string of all namespaces and locations
-     * in the registered schema list.
-     */
-    private static void createRegisteredNameSpaceAndLocationString() {
-        boolean firstRowWithoutFormatid = true;
-        boolean firstRowWithFormatid = true;
-        nameSpaceAndLocationStringWithoutFormatId = "";
-        formatId_NamespaceLocationHash = new Hashtable<String, String>();
-        for (XMLSchema xmlSchema : registeredSchemaList) {
-            String formatId = xmlSchema.getFormatId();
-            if( formatId == null ||formatId.trim().equals("")) {
-                //this is to handle the old way - no schema variants
-                if (!firstRowWithoutFormatid) {
-                    nameSpaceAndLocationStringWithoutFormatId += " ";
-                }
-                nameSpaceAndLocationStringWithoutFormatId += xmlSchema.getFileNamespace() + " "
-                        + xmlSchema.getLocalFileUri();
-                firstRowWithoutFormatid = false;
-            } else {
-                //it has a format id on the xml_catalog table. It is a variant.
-                if(!formatId_NamespaceLocationHash.containsKey(xmlSchema.getFormatId())) {
-                    //the hash table hasn't stored the value. So put it on the hash.
-                    formatId_NamespaceLocationHash.put(formatId, xmlSchema.getFileNamespace() + " "
-                            + xmlSchema.getLocalFileUri());
-                } else {
-                  //the hash table already has it. We will attache the new pair to the exist value
-                    String value = formatId_NamespaceLocationHash.get(formatId);
-                    value += " "+ xmlSchema.getFileNamespace() + " "
-                            + xmlSchema.getLocalFileUri();
-                    formatId_NamespaceLocationHash.put(formatId, value);
-                }
-            }
-
-        }
-    }
-
-    /**
-     * create a lsit of all namespaces in the registered schema list.
-     */
-    private static void createRegisteredNameSpaceList() {
-        nameSpaceList = new Vector<String>();
-        for (XMLSchema xmlSchema : registeredSchemaList) {
-            nameSpaceList.add(xmlSchema.getFileNamespace());
-        }
+        return nonXMLMetadataFormatList;
     }
 
     /**
@@ -459,7 +477,8 @@ public class XMLSchemaService extends BaseService {
      * @return true if the schema is registered, false otherwise.
      */
     public static boolean isSchemaRegistered(XMLSchema xmlSchema) {
-        for (XMLSchema registeredXmlSchema : registeredSchemaList) {
+        for (XMLSchema registeredXmlSchema
+                                : getInstance().getRegistry().getRegisteredSchemaList()) {
             if (registeredXmlSchema.getLocalFileUri().equals(
                         xmlSchema.getLocalFileUri())
                     && registeredXmlSchema.getFileNamespace().equals(
@@ -479,16 +498,10 @@ public class XMLSchemaService extends BaseService {
     public static boolean isNamespaceRegistered(String namespace) {
         boolean registered = false;
         if(namespace != null && !namespace.trim().equals("")) {
-            if(nameSpaceList != null && !nameSpaceList.isEmpty()) {
-                for (String registeredNamespace : nameSpaceList) {
-                    logMetacat.debug("XMLSchemaService.isNamespaceRegistered - "
-                     + "Loop the registered namespaces in Metacat: "
-                     + registeredNamespace + " to compare the given namespace "+namespace);
-                    if (registeredNamespace != null && registeredNamespace.equals(namespace)) {
-                        registered = true;
-                        break;
-                    }
-                }
+            XMLSchemaRegistry current = getInstance().getRegistry();
+            if (!current.getNameSpaceList().isEmpty()) {
+                // a set lookup instead of a loop over the namespaces
+                registered = current.isNamespaceRegistered(namespace);
             } else {
                 logMetacat.error("XMLSchemaService.isNamespaceRegistered - "
                               + "The registered namespace list is null or empty! "
@@ -572,6 +585,8 @@ public class XMLSchemaService extends BaseService {
         logMetacat.debug("XMLSchemaService.findNoNamespaceSchemaLocalLocation - "
              + " the given noNamespaceSchemaLocationURI for determining the schema local location is "
              + noNamespaceSchemaLocation);
+        Vector<XMLNoNamespaceSchema> registeredNoNamespaceSchemaList =
+                                        getRegistry().getRegisteredNoNamespaceSchemaList();
         if(registeredNoNamespaceSchemaList != null && !registeredNoNamespaceSchemaList.isEmpty()) {
             if((formatId != null && !formatId.trim().equals(""))) {
                 logMetacat.debug("XMLSchemaService.findNoNamespaceSchemaLocalLocation - the given format id "
@@ -1,6 +1,7 @@
 package edu.ucsb.nceas.metacat.startup;
 
 import java.io.File;
+import java.io.IOException;
 import java.sql.SQLException;
 import java.text.DateFormat;
 import java.text.ParseException;
@@ -11,6 +12,7 @@ import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.Timer;
+import java.util.function.IntSupplier;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
@@ -23,11 +25,21 @@ import org.apache.commons.logging.LogFactory;
 
 import edu.ucsb.nceas.metacat.MetacatVersion;
 import edu.ucsb.nceas.metacat.Sitemap;
+import edu.ucsb.nceas.metacat.admin.AdminException;
+import edu.ucsb.nceas.metacat.admin.SolrAdmin;
+import edu.ucsb.nceas.metacat.admin.SolrCoreRebuildMarker;
+import edu.ucsb.nceas.metacat.admin.SolrCoreRebuilder;
+import edu.ucsb.nceas.metacat.common.SolrServerFactory;
+import edu.ucsb.nceas.metacat.common.query.SolrQueryServiceController;
+import edu.ucsb.nceas.metacat.common.storage.ObjectStore;
+import edu.ucsb.nceas.metacat.common.storage.ObjectStoreFactory;
+import edu.ucsb.nceas.metacat.common.storage.ShardedObjectStore;
 import edu.ucsb.nceas.metacat.database.DBConnectionPool;
 import edu.ucsb.nceas.metacat.database.DatabaseService;
 import edu.ucsb.nceas.metacat.index.queue.FailedIndexResubmitTimerTask;
 import edu.ucsb.nceas.metacat.index.queue.IndexGenerator;
 import edu.ucsb.nceas.metacat.index.queue.IndexGeneratorTimerTask;
+import edu.ucsb.nceas.metacat.index.queue.IndexLagSampler;
 import edu.ucsb.nceas.metacat.plugin.MetacatHandlerPluginManager;
 import edu.ucsb.nceas.metacat.properties.PropertyService;
 import edu.ucsb.nceas.metacat.properties.SkinPropertyService;
@@ -36,6 +48,7 @@ import edu.ucsb.nceas.metacat.service.SessionService;
 import edu.ucsb.nceas.metacat.service.XMLSchemaService;
 import edu.ucsb.nceas.metacat.shared.MetacatUtilException;
 import edu.ucsb.nceas.metacat.shared.ServiceException;
+import edu.ucsb.nceas.metacat.storage.ObjectStoreMigrator;
 import edu.ucsb.nceas.metacat.util.ConfigurationUtil;
 import edu.ucsb.nceas.metacat.util.SystemUtil;
 import edu.ucsb.nceas.utilities.FileUtil;
@@ -56,6 +69,8 @@ public class MetacatInitializer implements ServletContextListener{
     private static boolean fullInit = false;
     private static Log logMetacat = LogFactory.getLog(MetacatInitializer.class);
     private static Timer timer = new Timer();
+    // the temporary files modified within an hour may be written by another Metacat instance
+    private static final long STALE_TEMP_FILE_AGE = 3600000L;
 
     /**
      * An implementation of ServletContextListener that is called automatically by the servlet
@@ -121,6 +136,8 @@ public class MetacatInitializer implements ServletContextListener{
     public void contextDestroyed(ServletContextEvent sce) {
         logMetacat.info("MetacatInitializer.destroy - Destroying MetacatServlet");
         ServiceService.stopAllServices();
+        SolrAdmin.shutdownRebuild();
+        SolrQueryServiceController.shutdown();
         timer.cancel();
         DBConnectionPool.release();
     }
@@ -164,6 +181,21 @@ public class MetacatInitializer implements ServletContextListener{
             // set up the time task to reindex objects (for the dataone api)
             startIndexReGenerator();
 
+            // set up the time task to measure the index lag
+            startIndexLagSampler();
+
+            // clean up a rebuild of the solr core interrupted by the shutdown
+            recoverSolrCoreRebuild();
+
+            // copy the index tasks to the shadow core of a rebuild run by any Metacat instance
+            startSolrCoreRebuildWatcher();
+
+            // remove the staged files left by a crash before any object is written
+            removeStaleTempFiles();
+
+            // move the objects of the flat directories into the sharded layout
+            startObjectStoreMigration();
+
             logMetacat.info("MetacatInitializer.initAfterMetacatConfig - Metacat ("
                                       + MetacatVersion.getVersionID() + ") initialized.");
     }
@@ -349,6 +381,163 @@ public class MetacatInitializer implements ServletContextListener{
         }
     }
 
+    /**
+     * Start the timer task which checks the sentinels of the index lag periodically.
+     * If the property of "index.lag.check.interval" is less than 1, the task would NOT run.
+     */
+    protected static void startIndexLagSampler() {
+        long interval = 10000;
+        try {
+            interval = Long.parseLong(PropertyService.getProperty("index.lag.check.interval"));
+        } catch (PropertyNotFoundException | NumberFormatException e) {
+            logMetacat.debug("MetacatInitializer.startIndexLagSampler - the property "
+                    + "index.lag.check.interval"
+                    + " is not found and Metacat will use " + interval
+                    + " ms as the default one.");
+        }
+        if (interval > 0) {
+            try {
+                timer.schedule(IndexLagSampler.getInstance(), interval, interval);
+                logMetacat.info("MetacatInitializer.startIndexLagSampler - the interval of "
+                        + "checking the index lag sentinels is " + interval);
+            } catch (IllegalStateException e) {
+                logMetacat.debug("MetacatInitializer.startIndexLagSampler - the sampler was "
+                        + "already scheduled: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Drop the shadow core if Metacat was shut down while the solr core was being rebuilt, i.e.
+     * this host recorded a rebuild which is still there. A failure doesn't stop Metacat from
+     * starting.
+     */
+    protected static void recoverSolrCoreRebuild() {
+        if (!SolrCoreRebuildMarker.isRecordedByThisHost()) {
+            return;
+        }
+        try {
+            new SolrCoreRebuilder().recover();
+        } catch (AdminException e) {
+            logMetacat.warn("MetacatInitializer.recoverSolrCoreRebuild - " + e.getMessage());
+        }
+    }
+
+    /**
+     * Schedule the timer task checking if the solr core is being rebuilt, so the index tasks of
+     * this instance are copied to the shadow core during a rebuild. The embedded solr server
+     * can't be rebuilt and doesn't need it.
+     */
+    protected static void startSolrCoreRebuildWatcher() {
+        try {
+            if (SolrServerFactory.createSolrAdminClient() == null) {
+                return;
+            }
+        } catch (Exception e) {
+            logMetacat.warn("MetacatInitializer.startSolrCoreRebuildWatcher - can't create the "
+                    + "solr admin client, so a rebuild of the solr core isn't followed since "
+                    + e.getMessage());
+            return;
+        }
+        long interval = 10000;
+        try {
+            interval = Long.parseLong(PropertyService.getProperty("solr.rebuild.watchInterval"));
+        } catch (PropertyNotFoundException | NumberFormatException e) {
+            logMetacat.debug("MetacatInitializer.startSolrCoreRebuildWatcher - the property "
+                    + "solr.rebuild.watchInterval is not found and Metacat will use " + interval
+                    + " ms as the default one.");
+        }
+        try {
+            timer.schedule(new SolrCoreRebuildMarker(), 0, interval);
+        } catch (IllegalStateException e) {
+            logMetacat.debug("MetacatInitializer.startSolrCoreRebuildWatcher - the watcher was "
+                        + "already scheduled: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Remove the files left by a crash in the temporary directories of the data and metadata
+     * stores. A failure doesn't stop Metacat from starting.
+     */
+    protected static void removeStaleTempFiles() {
+        try {
+            for (ObjectStore store : new ObjectStore[] {ObjectStoreFactory.getMetadataStore(),
+                                                        ObjectStoreFactory.getDataStore()}) {
+                int removed = store.removeStaleTempFiles(STALE_TEMP_FILE_AGE);
+                logMetacat.info("MetacatInitializer.removeStaleTempFiles - removed " + removed
+                                    + " files left in the temporary directory of "
+                                    + store.getDirectory());
+            }
+        } catch (IOException e) {
+            logMetacat.warn("MetacatInitializer.removeStaleTempFiles - " + e.getMessage());
+        }
+    }
+
+    /**
+     * Start the thread moving the objects of the flat data and metadata directories into the
+     * sharded layout, if the layout is sharded and the property storage.migration.enabled is
+     * true. A failure doesn't stop Metacat from starting.
+     */
+    protected static void startObjectStoreMigration() {
+        try {
+            if (!Boolean.parseBoolean(PropertyService.getProperty("storage.migration.enabled"))) {
+                return;
+            }
+            List<ShardedObjectStore> stores = new ArrayList<ShardedObjectStore>();
+            for (ObjectStore store : new ObjectStore[] {ObjectStoreFactory.getMetadataStore(),
+                                                        ObjectStoreFactory.getDataStore()}) {
+                if (store instanceof ShardedObjectStore) {
+                    stores.add((ShardedObjectStore) store);
+                }
+            }
+            if (stores.isEmpty()) {
+                logMetacat.info("MetacatInitializer.startObjectStoreMigration - the objects "
+                                    + "are stored in the flat layout, so nothing is moved.");
+                return;
+            }
+            int maxRate = 200;
+            try {
+                maxRate = Integer.parseInt(PropertyService.getProperty("storage.migration.rate"));
+            } catch (PropertyNotFoundException | NumberFormatException e) {
+                logMetacat.debug("MetacatInitializer.startObjectStoreMigration - the property "
+                        + "storage.migration.rate is not found and Metacat will use "
+                        + maxRate + " objects per second as the default one.");
+            }
+            int maxBandwidth = 20;
+            try {
+                maxBandwidth = Integer.parseInt(
+                                    PropertyService.getProperty("storage.migration.bandwidth"));
+            } catch (PropertyNotFoundException | NumberFormatException e) {
+                logMetacat.debug("MetacatInitializer.startObjectStoreMigration - the property "
+                        + "storage.migration.bandwidth is not found and Metacat will use "
+                        + maxBandwidth + " MB per second as the default one.");
+            }
+            long grace = 600;
+            try {
+                grace = Long.parseLong(PropertyService.getProperty("storage.migration.grace"));
+            } catch (PropertyNotFoundException | NumberFormatException e) {
+                logMetacat.debug("MetacatInitializer.startObjectStoreMigration - the property "
+                        + "storage.migration.grace is not found and Metacat will use "
+                        + grace + " seconds as the default one.");
+            }
+            IntSupplier queueSize = () -> {
+                try {
+                    return IndexGenerator.getInstance().size();
+                } catch (ServiceException e) {
+                    return -1;
+                }
+            };
+            Thread migration = new Thread(new ObjectStoreMigrator(stores, maxRate, maxBandwidth,
+                                                                  queueSize, grace * 1000),
+                                          "ObjectStoreMigrator");
+            migration.setDaemon(true);
+            migration.setPriority(Thread.MIN_PRIORITY);
+            migration.start();
+        } catch (PropertyNotFoundException | IOException e) {
+            logMetacat.warn("MetacatInitializer.startObjectStoreMigration - " + e.getMessage());
+        }
+    }
+
     /**
      * Determine the time to run the regenerating thread in the first time.
      * If the given time already passed or only be less than 2 seconds to pass,
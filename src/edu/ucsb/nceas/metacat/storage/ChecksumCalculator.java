@@ -0,0 +1,137 @@
+package edu.ucsb.nceas.metacat.storage;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.dataone.service.types.v1.Checksum;
+
+/**
+ * Calculates the checksums of the algorithms commonly used by DataONE (MD5, SHA-1 and SHA-256),
+ * plus any other requested ones, in one pass over the bytes of an object. The streams returned by
+ * the wrap methods feed every digest, so the object is read or written only once.
+ * @author tao
+ */
+public class ChecksumCalculator {
+    public static final String MD5 = "MD5";
+    public static final String SHA_1 = "SHA-1";
+    public static final String SHA_256 = "SHA-256";
+    private static final String[] DEFAULT_ALGORITHMS = {MD5, SHA_1, SHA_256};
+
+    private Map<String, MessageDigest> digests = new LinkedHashMap<String, MessageDigest>();
+    private Map<String, String> checksums = null;
+
+    /**
+     * Constructor
+     * @param algorithms  the algorithms calculated besides MD5, SHA-1 and SHA-256. The null or
+     *                    blank ones are ignored.
+     * @throws NoSuchAlgorithmException
+     */
+    public ChecksumCalculator(String... algorithms) throws NoSuchAlgorithmException {
+        for (String algorithm : DEFAULT_ALGORITHMS) {
+            digests.put(algorithm, MessageDigest.getInstance(algorithm));
+        }
+        if (algorithms != null) {
+            for (String algorithm : algorithms) {
+                if (algorithm != null && !algorithm.isBlank()) {
+                    String name = normalize(algorithm);
+                    if (!digests.containsKey(name)) {
+                        digests.put(name, MessageDigest.getInstance(name));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Wrap a stream so every byte read from it updates the checksums
+     * @param in  the source stream
+     * @return the stream which should be read instead of the source
+     */
+    public InputStream wrap(InputStream in) {
+        for (MessageDigest md : digests.values()) {
+            in = new DigestInputStream(in, md);
+        }
+        return in;
+    }
+
+    /**
+     * Wrap a stream so every byte written to it updates the checksums
+     * @param out  the target stream
+     * @return the stream which should be written instead of the target
+     */
+    public OutputStream wrap(OutputStream out) {
+        for (MessageDigest md : digests.values()) {
+            out = new DigestOutputStream(out, md);
+        }
+        return out;
+    }
+
+    /**
+     * Get the checksums of the bytes which went through the wrapped stream. The digests are
+     * completed by the first call, so the stream shouldn't be used afterwards.
+     * @return the map of the normalized algorithm names (e.g. SHA-1) to the lower case hex values
+     */
+    public synchronized Map<String, String> getChecksums() {
+        if (checksums == null) {
+            Map<String, String> values = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, MessageDigest> entry : digests.entrySet()) {
+                values.put(entry.getKey(),
+                           HexFormat.of().formatHex(entry.getValue().digest()));
+            }
+            checksums = Collections.unmodifiableMap(values);
+        }
+        return checksums;
+    }
+
+    /**
+     * Get the checksum of an algorithm
+     * @param algorithm  the algorithm, e.g. MD5 or SHA-256
+     * @return the checksum. Null if the algorithm wasn't calculated.
+     */
+    public Checksum getChecksum(String algorithm) {
+        return getChecksum(getChecksums(), algorithm);
+    }
+
+    /**
+     * Look up the checksum of an algorithm in a map returned by getChecksums
+     * @param checksums  the map of the normalized algorithm names to the values. It may be null.
+     * @param algorithm  the algorithm as it is declared, e.g. in system metadata
+     * @return the checksum with the algorithm as declared. Null if it isn't in the map.
+     */
+    public static Checksum getChecksum(Map<String, String> checksums, String algorithm) {
+        if (checksums == null || algorithm == null || algorithm.isBlank()) {
+            return null;
+        }
+        String value = checksums.get(normalize(algorithm));
+        if (value == null) {
+            return null;
+        }
+        Checksum checksum = new Checksum();
+        checksum.setAlgorithm(algorithm);
+        checksum.setValue(value);
+        return checksum;
+    }
+
+    /**
+     * Normalize the name of an algorithm, so the spellings used in system metadata, such as
+     * SHA1, sha-1 and SHA-1, map to the same name
+     * @param algorithm  the name of the algorithm
+     * @return the upper case name with a dash after SHA, e.g. SHA-256
+     */
+    public static String normalize(String algorithm) {
+        String name = algorithm.trim().toUpperCase(Locale.ROOT);
+        if (name.matches("SHA\\d+")) {
+            name = "SHA-" + name.substring(3);
+        }
+        return name;
+    }
+}
@@ -0,0 +1,137 @@
+package edu.ucsb.nceas.metacat.storage;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dataone.service.types.v1.Checksum;
+import org.dataone.service.types.v1.Identifier;
+
+import edu.ucsb.nceas.metacat.database.DBConnection;
+import edu.ucsb.nceas.metacat.database.DBConnectionPool;
+
+/**
+ * Maintains the object_checksums table, which holds the checksums of every object in the
+ * algorithms calculated when its bytes were stored (see ChecksumCalculator). So a checksum in
+ * another algorithm than the one in the system metadata is a lookup instead of a read of the
+ * whole object.
+ * @author tao
+ */
+public class ChecksumDAO {
+    private static final String INSERT = "INSERT INTO object_checksums (guid, checksum_algorithm, "
+                    + "checksum) VALUES (?, ?, ?) ON CONFLICT DO NOTHING";
+    private static final String DELETE = "DELETE FROM object_checksums WHERE guid = ?";
+    private static final String SELECT = "SELECT checksum FROM object_checksums "
+                    + "WHERE guid = ? AND checksum_algorithm = ?";
+
+    private static volatile ChecksumDAO instance = null;
+    private static Log logMetacat = LogFactory.getLog(ChecksumDAO.class);
+
+    private ChecksumDAO() {}
+
+    /**
+     * Get the singleton instance
+     * @return the instance of ChecksumDAO
+     */
+    public static ChecksumDAO getInstance() {
+        if (instance == null) {
+            synchronized (ChecksumDAO.class) {
+                if (instance == null) {
+                    instance = new ChecksumDAO();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Add the checksums of an object. The caller is responsible for the transaction.
+     * @param pid  the identifier of the object
+     * @param checksums  the map of the normalized algorithm names to the values
+     * @param conn  the connection to run the statement
+     * @throws SQLException
+     */
+    public void add(Identifier pid, Map<String, String> checksums, DBConnection conn)
+                                                                        throws SQLException {
+        if (checksums == null || checksums.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(INSERT)) {
+            for (Map.Entry<String, String> entry : checksums.entrySet()) {
+                stmt.setString(1, pid.getValue());
+                stmt.setString(2, entry.getKey());
+                stmt.setString(3, entry.getValue());
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+        logMetacat.debug("ChecksumDAO.add - added the checksums " + checksums.keySet()
+                            + " of the object " + pid.getValue());
+    }
+
+    /**
+     * Add the checksums of an existing object in its own transaction, e.g. the ones calculated
+     * for an object stored before the table existed
+     * @param pid  the identifier of the object
+     * @param checksums  the map of the normalized algorithm names to the values
+     * @throws SQLException
+     */
+    public void add(Identifier pid, Map<String, String> checksums) throws SQLException {
+        DBConnection dbConn = null;
+        int serialNumber = -1;
+        try {
+            dbConn = DBConnectionPool.getDBConnection("ChecksumDAO.add");
+            serialNumber = dbConn.getCheckOutSerialNumber();
+            add(pid, checksums, dbConn);
+        } finally {
+            DBConnectionPool.returnDBConnection(dbConn, serialNumber);
+        }
+    }
+
+    /**
+     * Remove the checksums of an object. The caller is responsible for the transaction.
+     * @param pid  the identifier of the object
+     * @param conn  the connection to run the statement
+     * @throws SQLException
+     */
+    public void remove(Identifier pid, DBConnection conn) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(DELETE)) {
+            stmt.setString(1, pid.getValue());
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Get the checksum of an object in an algorithm
+     * @param pid  the identifier of the object
+     * @param algorithm  the algorithm, e.g. SHA-256 or SHA256
+     * @return the checksum with the algorithm as given. Null if it isn't recorded.
+     * @throws SQLException
+     */
+    public Checksum get(Identifier pid, String algorithm) throws SQLException {
+        Checksum checksum = null;
+        DBConnection dbConn = null;
+        int serialNumber = -1;
+        try {
+            dbConn = DBConnectionPool.getDBConnection("ChecksumDAO.get");
+            serialNumber = dbConn.getCheckOutSerialNumber();
+            try (PreparedStatement stmt = dbConn.prepareStatement(SELECT)) {
+                stmt.setString(1, pid.getValue());
+                stmt.setString(2, ChecksumCalculator.normalize(algorithm));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (rs.next()) {
+                        checksum = new Checksum();
+                        checksum.setAlgorithm(algorithm);
+                        checksum.setValue(rs.getString(1));
+                    }
+                }
+            }
+        } finally {
+            DBConnectionPool.returnDBConnection(dbConn, serialNumber);
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,219 @@
+package edu.ucsb.nceas.metacat.storage;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.IntSupplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.ucsb.nceas.metacat.common.storage.ShardedObjectStore;
+import edu.ucsb.nceas.metacat.metrics.MetacatMetrics;
+
+/**
+ * Moves the objects of the flat layout into the sharded layout while Metacat serves requests.
+ * The index tasks carry the relative paths of the objects, which were fixed when the tasks were
+ * published. So the move takes two passes. The first one links every object into its shard and
+ * keeps its flat name (see ShardedObjectStore.linkToShard), after which the new tasks get the
+ * sharded paths. The second one removes the flat names (see ShardedObjectStore.migrate), but
+ * only after the index queue was found empty twice, a grace period apart, so the tasks queued
+ * with the flat paths have been indexed.
+ *
+ * Without the deduplication the first pass only creates the links. With it, every object is
+ * read once to get its hash, i.e. the whole directory is read. Both passes are throttled by the
+ * number of the objects per second, and the reading by the number of megabytes per second, so
+ * the disk isn't saturated. An interrupted migration continues from the objects left in the
+ * flat layout when it runs again.
+ * @author tao
+ */
+public class ObjectStoreMigrator implements Runnable {
+    public static final String MIGRATED_METRIC = "metacat_storage_migrated_objects";
+    public static final String FAILED_METRIC = "metacat_storage_migration_failures";
+    private static final int PROGRESS_INTERVAL = 10000;
+    private static final long QUEUE_CHECK_INTERVAL = 60000;
+
+    private static Log logMetacat = LogFactory.getLog(ObjectStoreMigrator.class);
+
+    private List<ShardedObjectStore> stores = null;
+    private int maxRate = 0;
+    private int maxBandwidth = 0;
+    private IntSupplier queueSize = null;
+    private long grace = 0;
+    private volatile boolean stopped = false;
+
+    /**
+     * Constructor
+     * @param stores  the stores whose flat objects are moved
+     * @param maxRate  the max number of the objects per second in a pass. 0 means no limit.
+     * @param maxBandwidth  the max number of the megabytes per second read to hash the objects.
+     *                      0 means no limit.
+     * @param queueSize  the number of the tasks in the index queue. -1 if it is unknown.
+     * @param grace  the time in milliseconds between the two checks of the empty index queue
+     */
+    public ObjectStoreMigrator(List<ShardedObjectStore> stores, int maxRate, int maxBandwidth,
+                               IntSupplier queueSize, long grace) {
+        this.stores = stores;
+        this.maxRate = maxRate;
+        this.maxBandwidth = maxBandwidth;
+        this.queueSize = queueSize;
+        this.grace = grace;
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (ShardedObjectStore store : stores) {
+                if (stopped) {
+                    return;
+                }
+                try {
+                    link(store);
+                } catch (IOException e) {
+                    logMetacat.error("ObjectStoreMigrator.run - can't list the objects in "
+                                         + store.getDirectory() + " since " + e.getMessage());
+                }
+            }
+            if (!awaitDrainedQueue()) {
+                return;
+            }
+            for (ShardedObjectStore store : stores) {
+                if (stopped) {
+                    return;
+                }
+                try {
+                    migrate(store);
+                } catch (IOException e) {
+                    logMetacat.error("ObjectStoreMigrator.run - can't list the objects in "
+                                         + store.getDirectory() + " since " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop the migration after the current object
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Link all objects of the flat layout in a store into their shards, keeping their flat names
+     * @param store  the store
+     * @return the number of the linked objects
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public long link(ShardedObjectStore store) throws IOException, InterruptedException {
+        return sweep(store, true);
+    }
+
+    /**
+     * Move all objects of the flat layout in a store, or remove their flat names if they were
+     * linked into their shards. The index tasks with their flat paths will fail after it.
+     * @param store  the store
+     * @return the number of the moved objects
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public long migrate(ShardedObjectStore store) throws IOException, InterruptedException {
+        return sweep(store, false);
+    }
+
+    /*
+     * Link or move all objects of the flat layout in a store
+     */
+    private long sweep(ShardedObjectStore store, boolean linkOnly)
+                                                    throws IOException, InterruptedException {
+        String action = linkOnly ? "linked" : "moved";
+        long done = 0;
+        long failed = 0;
+        long visited = 0;
+        long bytes = 0;
+        long start = System.nanoTime();
+        logMetacat.info("ObjectStoreMigrator.sweep - start to " + (linkOnly ? "link" : "move")
+                            + " the objects in " + store.getDirectory()
+                            + " into the sharded layout");
+        try (DirectoryStream<Path> files = store.newFlatObjectStream()) {
+            for (Path file : files) {
+                if (stopped) {
+                    break;
+                }
+                String localId = file.getFileName().toString();
+                try {
+                    if (linkOnly && store.isDeduplicating()) {
+                        // the object is read to get its hash
+                        bytes += Files.size(file);
+                    }
+                    if (linkOnly ? store.linkToShard(localId) : store.migrate(localId)) {
+                        done++;
+                        if (!linkOnly) {
+                            MetacatMetrics.getInstance().increment(MIGRATED_METRIC);
+                        }
+                    }
+                } catch (IOException e) {
+                    failed++;
+                    MetacatMetrics.getInstance().increment(FAILED_METRIC);
+                    logMetacat.error("ObjectStoreMigrator.sweep - can't handle the object "
+                                         + file + " since " + e.getMessage());
+                }
+                visited++;
+                if (done > 0 && done % PROGRESS_INTERVAL == 0) {
+                    logMetacat.info("ObjectStoreMigrator.sweep - " + action + " " + done
+                                        + " objects in " + store.getDirectory());
+                }
+                throttle(visited, bytes, start);
+            }
+        }
+        logMetacat.info("ObjectStoreMigrator.sweep - " + action + " " + done + " objects in "
+                            + store.getDirectory() + " and " + failed + " failed in "
+                            + (System.nanoTime() - start) / 1000000 + " ms");
+        return done;
+    }
+
+    /*
+     * Wait until the index queue is empty at two checks a grace period apart, so the tasks
+     * queued with the flat paths, including the ones being indexed at the first check, are done.
+     * Return false if the migration was stopped meanwhile.
+     */
+    private boolean awaitDrainedQueue() throws InterruptedException {
+        boolean empty = false;
+        while (!stopped) {
+            int size = queueSize.getAsInt();
+            if (size == 0 && empty) {
+                return true;
+            }
+            empty = size == 0;
+            if (!empty) {
+                logMetacat.info("ObjectStoreMigrator.awaitDrainedQueue - the flat names of the "
+                                    + "objects are kept until the index queue is empty. It has "
+                                    + (size < 0 ? "an unknown number of" : size) + " tasks.");
+            }
+            Thread.sleep(empty ? grace : QUEUE_CHECK_INTERVAL);
+        }
+        return false;
+    }
+
+    /*
+     * Sleep until the rates are under the limits
+     */
+    private void throttle(long visited, long bytes, long start) throws InterruptedException {
+        long due = start;
+        if (maxRate > 0) {
+            due = Math.max(due, start + visited * 1000000000L / maxRate);
+        }
+        if (maxBandwidth > 0) {
+            due = Math.max(due, start + (long) (bytes * 1000000000.0
+                                                    / (maxBandwidth * 1048576.0)));
+        }
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+    }
+}
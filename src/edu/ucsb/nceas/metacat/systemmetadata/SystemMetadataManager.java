@@ -31,7 +31,9 @@ import edu.ucsb.nceas.metacat.McdbDocNotFoundException;
 import edu.ucsb.nceas.metacat.accesscontrol.XMLAccessAccess;
 import edu.ucsb.nceas.metacat.database.DBConnection;
 import edu.ucsb.nceas.metacat.database.DBConnectionPool;
+import edu.ucsb.nceas.metacat.dataone.resourcemap.PackageMembershipDAO;
 import edu.ucsb.nceas.metacat.shared.AccessException;
+import edu.ucsb.nceas.metacat.storage.ChecksumDAO;
 import edu.ucsb.nceas.utilities.access.AccessControlInterface;
 import edu.ucsb.nceas.utilities.access.XMLAccessDAO;
 
@@ -721,6 +723,10 @@ public class SystemMetadataManager {
                     logMetacat.debug("delete xml_access: " + stmt.toString());
                     stmt.executeUpdate();
                 }
+                // remove the members if it is a resource map
+                PackageMembershipDAO.getInstance().remove(guid, dbConn);
+                // remove the checksums calculated when it was stored
+                ChecksumDAO.getInstance().remove(guid, dbConn);
                 // remove main system metadata entry
                 query = "delete from " + IdentifierManager.TYPE_SYSTEM_METADATA + " where guid = ? ";
                 try (PreparedStatement stmt = dbConn.prepareStatement(query)) {
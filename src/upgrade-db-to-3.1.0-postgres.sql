@@ -0,0 +1,38 @@
+/*
+ * Add the columns to track the resubmission of the failed index tasks
+ */
+ALTER TABLE index_event ADD COLUMN IF NOT EXISTS attempts INT DEFAULT 0;
+ALTER TABLE index_event ADD COLUMN IF NOT EXISTS next_attempt TIMESTAMP;
+ALTER TABLE index_event ADD COLUMN IF NOT EXISTS dead_letter BOOLEAN DEFAULT FALSE;
+CREATE INDEX IF NOT EXISTS index_event_action_next_attempt
+    ON index_event(event_action, next_attempt);
+
+/*
+ * Add the table of the objects aggregated by the resource maps. It is filled by the
+ * upgrade utility of 3.1.0.
+ */
+CREATE TABLE IF NOT EXISTS package_membership (
+  resource_map text,
+  member text,
+  CONSTRAINT package_membership_pk PRIMARY KEY (resource_map, member)
+);
+CREATE INDEX IF NOT EXISTS package_membership_member ON package_membership(member);
+
+/*
+ * Add the table of the checksums calculated when the objects are stored. The objects stored
+ * before have their checksums added when they are requested.
+ */
+CREATE TABLE IF NOT EXISTS object_checksums (
+  guid text,
+  checksum_algorithm text,
+  checksum text,
+  CONSTRAINT object_checksums_pk PRIMARY KEY (guid, checksum_algorithm)
+);
+
+/*
+ * update the database version
+ */
+UPDATE db_version SET status=0;
+
+INSERT INTO db_version (version, status, date_created)
+  VALUES ('3.1.0', 1, CURRENT_DATE);
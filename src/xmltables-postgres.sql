@@ -269,7 +269,32 @@ CREATE TABLE index_event (
   guid text,
   event_action VARCHAR(250),
   description text,
-  event_date TIMESTAMP
+  event_date TIMESTAMP,
+  attempts INT DEFAULT 0,          -- the number of the failed resubmission attempts
+  next_attempt TIMESTAMP,          -- the earliest time of the next resubmission attempt
+  dead_letter BOOLEAN DEFAULT FALSE -- true if the resubmission was given up
+);
+CREATE INDEX index_event_action_next_attempt ON index_event(event_action, next_attempt);
+
+/*
+ * package_membership -- the objects aggregated by the resource maps
+ */
+CREATE TABLE package_membership (
+  resource_map text,  -- the identifier of the resource map
+  member text,        -- the identifier of an object aggregated by the resource map
+  CONSTRAINT package_membership_pk PRIMARY KEY (resource_map, member)
+);
+CREATE INDEX package_membership_member ON package_membership(member);
+
+/*
+ * object_checksums -- the checksums of the objects in the algorithms calculated when they were
+ * stored
+ */
+CREATE TABLE object_checksums (
+  guid text,                -- the identifier of the object
+  checksum_algorithm text,  -- the normalized name of the algorithm, e.g. SHA-256
+  checksum text,            -- the lower case hex value
+  CONSTRAINT object_checksums_pk PRIMARY KEY (guid, checksum_algorithm)
 );
 
 
@@ -0,0 +1,160 @@
+package edu.ucsb.nceas.metacat;
+
+import java.io.StringReader;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.junit.Test;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The test class of EMLIdentifierHandler
+ * @author tao
+ */
+public class EMLIdentifierHandlerTest {
+    private static final String EML_START = "<eml:eml xmlns:eml=\"https://eml.ecoinformatics.org/"
+                                            + "eml-2.2.0\" packageId=\"test.1.1\" system=\"test\">";
+    private static final String EML_END = "</eml:eml>";
+
+    /**
+     * Test the documents with unique ids and resolved references
+     * @throws Exception
+     */
+    @Test
+    public void testValidIds() throws Exception {
+        assertTrue(check("<dataset id=\"ds\"><title>title</title></dataset>").isChecked());
+        assertTrue(check("<dataset><attribute id=\"a1\"/><attribute><references>a1</references>"
+                         + "</attribute><access><allow/></access></dataset>"
+                         + "<annotations><annotation references=\"a1\"/></annotations>"
+                         + "<additionalMetadata><describes>a1</describes></additionalMetadata>")
+                            .isChecked());
+        // an id of the foreign content in another namespace only has to be unique
+        assertTrue(check("<additionalMetadata><metadata><x:a xmlns:x=\"urn:x\" id=\"x1\"/>"
+                         + "</metadata></additionalMetadata>").isChecked());
+        assertNull(check("<dataset id=\"ds\"><title>title</title></dataset>")
+                            .getIdentifierError());
+    }
+
+    /**
+     * Test the ids and references of the access rules, including the inline ones in the
+     * distribution of an entity
+     * @throws Exception
+     */
+    @Test
+    public void testAccessRules() throws Exception {
+        String dataset = "<dataset><access id=\"acc\"><allow/></access><otherEntity>"
+                            + "<physical id=\"p1\"><distribution><online/><access>";
+        assertTrue(check(dataset + "<references>acc</references></access></distribution>"
+                         + "</physical></otherEntity></dataset>").isChecked());
+        // an inline access rule pointing nowhere or to another type of element
+        EMLIdentifierHandler handler = check(dataset + "<references>acc1</references>"
+                                            + "</access></distribution></physical></otherEntity>"
+                                            + "</dataset>");
+        assertFalse(handler.isChecked());
+        assertEquals("Error in xml document. This EML document is not valid because no "
+                     + "element has the id acc1.", handler.getIdentifierError().getMessage());
+        handler = check(dataset + "<references>p1</references></access></distribution>"
+                        + "</physical></otherEntity></dataset>");
+        assertEquals("Error in xml document. This EML document is not valid because the "
+                     + "element access references the physical p1.",
+                     handler.getIdentifierError().getMessage());
+        // an inline access rule with an id and references
+        handler = check(dataset.replace("<online/><access>", "<online/><access id=\"acc2\">")
+                        + "<references>acc</references></access></distribution></physical>"
+                        + "</otherEntity></dataset>");
+        assertEquals("Error in xml document. This EML document is not valid because the "
+                     + "element access has both an id and references.",
+                     handler.getIdentifierError().getMessage());
+    }
+
+    /**
+     * Test the documents whose ids violate the rules
+     * @throws Exception
+     */
+    @Test
+    public void testInvalidIds() throws Exception {
+        // duplicated ids
+        assertFalse(check("<dataset><physical id=\"a\"/><attribute id=\"a\"/></dataset>")
+                            .isChecked());
+        // a references element pointing nowhere
+        assertFalse(check("<dataset><attribute><references>a1</references></attribute>"
+                          + "</dataset>").isChecked());
+        // a references element pointing to another type of element
+        assertFalse(check("<dataset><physical id=\"p1\"/><attribute><references>p1"
+                          + "</references></attribute></dataset>").isChecked());
+        // the parent of a references element has an id itself
+        assertFalse(check("<dataset><attribute id=\"a1\"/><attribute id=\"a2\"><references>a1"
+                          + "</references></attribute></dataset>").isChecked());
+        // an annotation and a describes element pointing nowhere
+        assertFalse(check("<annotations><annotation references=\"a1\"/></annotations>")
+                            .isChecked());
+        assertFalse(check("<additionalMetadata><describes>a1</describes></additionalMetadata>")
+                            .isChecked());
+        // an id of the foreign content can't be referenced
+        assertFalse(check("<dataset><references>x1</references></dataset><additionalMetadata>"
+                          + "<metadata><x:dataset xmlns:x=\"urn:x\" id=\"x1\"/></metadata>"
+                          + "</additionalMetadata>").isChecked());
+        // the duplicated ids are reported before the other violations
+        EMLIdentifierHandler handler = check("<dataset><attribute><references>b1</references>"
+                                             + "</attribute><physical id=\"a\"/>"
+                                             + "<attribute id=\"a\"/></dataset>");
+        assertEquals("Error in xml document. This EML document is not valid because the id a "
+                     + "is not unique.", handler.getIdentifierError().getMessage());
+    }
+
+    /**
+     * Test that a document which can't be parsed to the end isn't taken as checked
+     * @throws Exception
+     */
+    @Test
+    public void testMalformed() throws Exception {
+        EMLIdentifierHandler handler = new EMLIdentifierHandler();
+        try {
+            parse(handler, EML_START + "<dataset><title>a & b</title></dataset>" + EML_END);
+            fail("Test can't reach here since the document isn't well-formed");
+        } catch (SAXException e) {
+            assertEquals("Fatal processing error.", e.getMessage());
+        }
+        assertFalse(handler.isChecked());
+        // the parse error is reported as the EMLParser did
+        assertTrue(handler.getIdentifierError().getMessage().contains("'&'"));
+    }
+
+    /**
+     * Test that the first validation error is kept rather than thrown
+     * @throws Exception
+     */
+    @Test
+    public void testValidationError() throws Exception {
+        EMLIdentifierHandler handler = new EMLIdentifierHandler();
+        assertNull(handler.getValidationError());
+        handler.error(new SAXParseException("the element title1 is invalid", null));
+        handler.warning(new SAXParseException("a warning", null));
+        handler.error(new SAXParseException("the element title2 is invalid", null));
+        assertEquals("the element title1 is invalid", handler.getValidationError().getMessage());
+    }
+
+    private static EMLIdentifierHandler check(String content) throws Exception {
+        EMLIdentifierHandler handler = new EMLIdentifierHandler();
+        parse(handler, EML_START + content + EML_END);
+        return handler;
+    }
+
+    private static void parse(EMLIdentifierHandler handler, String xml) throws Exception {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        XMLReader parser = factory.newSAXParser().getXMLReader();
+        parser.setContentHandler(handler);
+        parser.setErrorHandler(handler);
+        parser.parse(new InputSource(new StringReader(xml)));
+    }
+}
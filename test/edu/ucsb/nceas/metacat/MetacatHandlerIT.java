@@ -1,18 +1,36 @@
 package edu.ucsb.nceas.metacat;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import javax.xml.bind.DatatypeConverter;
 
@@ -26,6 +44,8 @@ import org.dataone.service.types.v1.Identifier;
 import org.dataone.service.types.v1.ObjectFormatIdentifier;
 import org.dataone.service.types.v1.Subject;
 import org.dataone.service.types.v2.SystemMetadata;
+import org.ecoinformatics.eml.EMLParser;
+import org.ecoinformatics.eml.EMLParserException;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.MockedStatic;
@@ -43,6 +63,8 @@ import static org.junit.Assert.assertTrue;
 import edu.ucsb.nceas.IntegrationTestUtils;
 import edu.ucsb.nceas.LeanTestUtils;
 import edu.ucsb.nceas.metacat.MetacatHandler.Action;
+import edu.ucsb.nceas.metacat.common.storage.ObjectStore;
+import edu.ucsb.nceas.metacat.common.storage.ObjectStoreFactory;
 import edu.ucsb.nceas.metacat.database.DBConnection;
 import edu.ucsb.nceas.metacat.database.DBConnectionPool;
 import edu.ucsb.nceas.metacat.dataone.D1NodeServiceTest;
@@ -50,6 +72,8 @@ import edu.ucsb.nceas.metacat.object.handler.JsonLDHandlerTest;
 import edu.ucsb.nceas.metacat.object.handler.NonXMLMetadataHandlers;
 import edu.ucsb.nceas.metacat.properties.PropertyService;
 import edu.ucsb.nceas.metacat.restservice.multipart.DetailedFileInputStream;
+import edu.ucsb.nceas.metacat.service.XMLSchemaService;
+import edu.ucsb.nceas.metacat.storage.ChecksumDAO;
 import edu.ucsb.nceas.metacat.systemmetadata.SystemMetadataManager;
 import edu.ucsb.nceas.metacat.util.DocumentUtil;
 
@@ -378,7 +402,7 @@ public class MetacatHandlerIT {
                       e instanceof InvalidSystemMetadata);
         }
         handler.saveBytes(dataStream, localId, checksum, DocumentImpl.BIN, pid);
-        File result = new File(dataDir + localId);
+        File result = ObjectStoreFactory.getStore(dataDir).getPath(localId).toFile();
         assertTrue("File " + result + " should exist.", result.exists());
         InputStream in = MetacatHandler.read(localId, DocumentImpl.BIN);
         String readChecksum = getChecksum(in, MD5);
@@ -452,7 +476,7 @@ public class MetacatHandlerIT {
         upper.setAlgorithm(MD5);
         upper.setValue(str.toUpperCase());
         handler.saveBytes(dataStream3, localId, upper, "eml", pid);
-        result = new File(documentDir + localId);
+        result = ObjectStoreFactory.getStore(documentDir).getPath(localId).toFile();
         assertTrue("File " + result + " should exist.", result.exists());
         in = MetacatHandler.read(localId, DocumentImpl.BIN);
         String readFrom = getChecksum(in, MD5);
@@ -484,7 +508,7 @@ public class MetacatHandlerIT {
         }
         handler.saveBytes(dataStream, localId, checksum, "eml", pid);
         dataStream.close();
-        File result = new File(documentDir + localId);
+        File result = ObjectStoreFactory.getStore(documentDir).getPath(localId).toFile();
         assertTrue("File " + result + " should exist.", result.exists());
         InputStream in = MetacatHandler.read(localId, "eml");
         String readChecksum = getChecksum(in, MD5);
@@ -555,7 +579,7 @@ public class MetacatHandlerIT {
         localId = "autogen." + System.currentTimeMillis() +".5";
         handler.saveBytes(dataStream3, localId, fakeChecksum, DocumentImpl.BIN, pid);
         dataStream3.close();
-        result = new File(dataDir + localId);
+        result = ObjectStoreFactory.getStore(dataDir).getPath(localId).toFile();
         assertTrue("File " + result + " should exist.", result.exists());
         in = MetacatHandler.read(localId, "eml");
         String readFrom = getChecksum(in, MD5);
@@ -849,6 +873,11 @@ public class MetacatHandlerIT {
                 originModificationDate, readSys.getDateSysMetadataModified().getTime());
         assertEquals("The upload time in system metadata should not change.",
                                 originUploadDate, readSys.getDateUploaded().getTime());
+        // The checksums of the common algorithms were recorded in the same pass
+        assertEquals(test_file_checksum, ChecksumDAO.getInstance().get(pid, MD5).getValue());
+        readObj = MetacatHandler.read(localId, DocumentImpl.BIN);
+        assertEquals(getChecksum(readObj, "SHA-256"),
+                     ChecksumDAO.getInstance().get(pid, "SHA256").getValue());
 
         // Updating
         Identifier newPid = new Identifier();
@@ -1091,7 +1120,8 @@ public class MetacatHandlerIT {
         assertTrue("The read object should have the checksum " + test_eml_file_checksum
                     + " rather than " + readChecksum, test_eml_file_checksum.equals(readChecksum));
         // Check file directly
-        File originalFile = new File(handler.getMetadataDir(), localId);
+        File originalFile = ObjectStoreFactory.getStore(handler.getMetadataDir()).getPath(localId)
+                                                                                          .toFile();
         assertTrue("The file should exist " + originalFile.getAbsoluteFile(),
                                                                        originalFile.exists());
         String fileChecksum = getChecksum(new FileInputStream(originalFile), MD5);
@@ -1143,7 +1173,8 @@ public class MetacatHandlerIT {
         assertTrue("The read object should have the checksum "
                     + test_eml_file_checksum + " rather than "
                     + readChecksum, test_eml_file_checksum.equals(readChecksum));
-        originalFile = new File(handler.getMetadataDir(), localId);
+        originalFile = ObjectStoreFactory.getStore(handler.getMetadataDir()).getPath(localId)
+                                                                                          .toFile();
         assertTrue("The file should exist " + originalFile.getAbsoluteFile(),
                                                                        originalFile.exists());
         String fileChecksum2 = getChecksum(new FileInputStream(originalFile), MD5);
@@ -1185,7 +1216,8 @@ public class MetacatHandlerIT {
         assertTrue("The read object should have the checksum "
                     + test_eml_file_checksum + " rather than "
                     + readChecksum, test_eml_file_checksum.equals(readChecksum));
-        originalFile = new File(handler.getMetadataDir(), localId);
+        originalFile = ObjectStoreFactory.getStore(handler.getMetadataDir()).getPath(localId)
+                                                                                          .toFile();
         assertTrue("The file should exist " + originalFile.getAbsoluteFile(),
                                                                        originalFile.exists());
         fileChecksum = getChecksum(new FileInputStream(originalFile), MD5);
@@ -1232,7 +1264,8 @@ public class MetacatHandlerIT {
         assertTrue("The read object should have the checksum "
                     + test_eml_file_checksum + " rather than "
                     + readChecksum, test_eml_file_checksum.equals(readChecksum));
-        originalFile = new File(handler.getMetadataDir(), localId);
+        originalFile = ObjectStoreFactory.getStore(handler.getMetadataDir()).getPath(localId)
+                                                                                          .toFile();
         assertTrue("The file should exist " + originalFile.getAbsoluteFile(),
                                                                        originalFile.exists());
         fileChecksum = getChecksum(new FileInputStream(originalFile), MD5);
@@ -1245,6 +1278,233 @@ public class MetacatHandlerIT {
     }
 
 
+    /**
+     * Test the concurrent uploads of large objects don't hold DB connections while their bytes
+     * are transferred. Every upload stops in the middle of its stream until all of them do, so
+     * there are more uploads in progress than a small pool would have connections.
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentLargeUploads() throws Exception {
+        final int uploads = 8;
+        final int size = 4 * 1024 * 1024;
+        String user = "http://orcid.org/1234/4567";
+        Subject owner = new Subject();
+        owner.setValue(user);
+        CountDownLatch transferring = new CountDownLatch(uploads);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(uploads);
+        List<Identifier> pids = new ArrayList<Identifier>();
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        try {
+            Random random = new Random();
+            for (int i = 0; i < uploads; i++) {
+                byte[] content = new byte[size];
+                random.nextBytes(content);
+                Identifier pid = new Identifier();
+                pid.setValue("MetacatHandler.testConcurrentLargeUploads-" + i + "-"
+                                                            + System.currentTimeMillis());
+                pids.add(pid);
+                SystemMetadata sysmeta = D1NodeServiceTest.createSystemMetadata(pid, owner,
+                                                            new ByteArrayInputStream(content));
+                InputStream object = new GatedInputStream(new ByteArrayInputStream(content),
+                                                          size / 2, transferring, release);
+                results.add(executor.submit(() -> handler.save(sysmeta, true, Action.INSERT,
+                                                    DocumentImpl.BIN, object, null, user)));
+            }
+            assertTrue("All uploads should be transferring their bytes at the same time",
+                       transferring.await(2, TimeUnit.MINUTES));
+            assertEquals("No upload should hold a DB connection while its bytes are transferred",
+                         0, DBConnectionPool.getBusyDBConnectionNumber("MetacatHandler.save"));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+        for (int i = 0; i < uploads; i++) {
+            String localId = results.get(i).get(2, TimeUnit.MINUTES);
+            assertEquals(localId,
+                         IdentifierManager.getInstance().getLocalId(pids.get(i).getValue()));
+            File result = ObjectStoreFactory.getStore(dataDir).getPath(localId).toFile();
+            assertEquals("The object of " + pids.get(i).getValue() + " should be complete",
+                         size, result.length());
+        }
+        try (Stream<Path> staged =
+                        Files.list(Paths.get(dataDir).resolve(ObjectStore.TEMP_DIR))) {
+            assertEquals("No staged file should be left", 0, staged.count());
+        }
+    }
+
+    /**
+     * Test that a metadata document larger than the heap is validated from its file. The size
+     * is the maximum heap plus 16 MB, at most 256 MB, so run it with a small heap (e.g.
+     * -Xmx128m) to verify that the validation doesn't hold the document in memory.
+     * @throws Exception
+     */
+    @Test
+    public void testValidateLargeDocument() throws Exception {
+        long size = Math.min(Runtime.getRuntime().maxMemory() + 16 * 1024 * 1024,
+                             256L * 1024 * 1024);
+        Path large = Files.createTempFile("MetacatHandlerIT-large", ".xml");
+        try {
+            byte[] item = "<item>metadata</item>\n".getBytes(StandardCharsets.UTF_8);
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(large))) {
+                out.write("<?xml version=\"1.0\"?>\n<root>\n".getBytes(StandardCharsets.UTF_8));
+                for (long written = 0; written < size; written += item.length) {
+                    out.write(item);
+                }
+                out.write("</root>\n".getBytes(StandardCharsets.UTF_8));
+            }
+            ObjectFormatIdentifier formatId = new ObjectFormatIdentifier();
+            formatId.setValue("http://example.com/large-metadata");
+            Runtime.getRuntime().gc();
+            long used = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+            handler.validateSciMeta(ReplayableInputSource.of(large), formatId);
+            System.out.println("MetacatHandlerIT.testValidateLargeDocument - validated "
+                                + Files.size(large) / (1024 * 1024) + " MB with a heap of "
+                                + Runtime.getRuntime().maxMemory() / (1024 * 1024) + " MB ("
+                                + used / (1024 * 1024) + " MB used before)");
+            // the whole file is parsed, so an error at its end is found
+            try (OutputStream out = Files.newOutputStream(large, StandardOpenOption.APPEND)) {
+                out.write("<broken>".getBytes(StandardCharsets.UTF_8));
+            }
+            try {
+                handler.validateSciMeta(ReplayableInputSource.of(large), formatId);
+                fail("Test can't reach here since the document isn't well-formed");
+            } catch (InvalidRequest e) {
+                assertTrue(e.getMessage().contains("Invalid metadata"));
+            }
+        } finally {
+            Files.deleteIfExists(large);
+        }
+    }
+
+    /**
+     * Test that an EML document larger than the heap is validated, and its ids checked, from
+     * its file. Run it with a small heap (e.g. -Xmx128m) as testValidateLargeDocument.
+     * @throws Exception
+     */
+    @Test
+    public void testValidateLargeEMLDocument() throws Exception {
+        long size = Math.min(Runtime.getRuntime().maxMemory() + 16 * 1024 * 1024,
+                             256L * 1024 * 1024);
+        Path large = Files.createTempFile("MetacatHandlerIT-large", ".xml");
+        try {
+            String start = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<eml:eml xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" "
+                + "xmlns:eml=\"https://eml.ecoinformatics.org/eml-2.2.0\" packageId=\"large\" "
+                + "system=\"test\" xsi:schemaLocation=\"https://eml.ecoinformatics.org/eml-2.2.0"
+                + " eml.xsd\">\n<dataset id=\"ds\">\n<title>A large document</title>\n"
+                + "<creator><individualName><surName>Tao</surName></individualName></creator>\n"
+                + "<abstract>\n";
+            String end = "</abstract>\n<contact><individualName><surName>Tao</surName>"
+                + "</individualName></contact>\n</dataset>\n<additionalMetadata><describes>%s"
+                + "</describes><metadata><note/></metadata></additionalMetadata>\n</eml:eml>\n";
+            byte[] para = "<para>metadata of a large dataset</para>\n"
+                                                            .getBytes(StandardCharsets.UTF_8);
+            for (String described : new String[] {"ds", "ds1"}) {
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(large))) {
+                    out.write(start.getBytes(StandardCharsets.UTF_8));
+                    for (long written = 0; written < size; written += para.length) {
+                        out.write(para);
+                    }
+                    out.write(String.format(end, described).getBytes(StandardCharsets.UTF_8));
+                }
+                ObjectFormatIdentifier formatId = new ObjectFormatIdentifier();
+                formatId.setValue(eml_format);
+                Runtime.getRuntime().gc();
+                long used =
+                        Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+                if (described.equals("ds")) {
+                    handler.validateSciMeta(ReplayableInputSource.of(large), formatId);
+                    System.out.println("MetacatHandlerIT.testValidateLargeEMLDocument - "
+                                + "validated " + Files.size(large) / (1024 * 1024)
+                                + " MB of EML with a heap of "
+                                + Runtime.getRuntime().maxMemory() / (1024 * 1024) + " MB ("
+                                + used / (1024 * 1024) + " MB used before)");
+                } else {
+                    // the reference at the end of the file is checked
+                    try {
+                        handler.validateSciMeta(ReplayableInputSource.of(large), formatId);
+                        fail("Test can't reach here since the described id doesn't exist");
+                    } catch (EMLParserException e) {
+                        assertTrue(e.getMessage(), e.getMessage().contains("ds1"));
+                    }
+                }
+            }
+        } finally {
+            Files.deleteIfExists(large);
+        }
+    }
+
+    /**
+     * Test that concurrent validations share the schema registry instead of reloading it for
+     * every object, and print the throughput
+     * @throws Exception
+     */
+    @Test
+    public void testValidationThroughput() throws Exception {
+        final int docs = 200;
+        byte[] xmlBytes = FileUtils.readFileToByteArray(new File(test_eml_file));
+        ObjectFormatIdentifier formatId = new ObjectFormatIdentifier();
+        formatId.setValue(eml_format);
+        // warm up
+        handler.validateSciMeta(xmlBytes, formatId);
+        long version = XMLSchemaService.getInstance().getRegistry().getVersion();
+        for (int threads : new int[] {1, 8}) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            long start = System.nanoTime();
+            try {
+                for (int i = 0; i < docs; i++) {
+                    results.add(executor.submit(() -> {
+                        handler.validateSciMeta(xmlBytes, formatId);
+                        return null;
+                    }));
+                }
+                for (Future<?> result : results) {
+                    result.get(2, TimeUnit.MINUTES);
+                }
+            } finally {
+                executor.shutdown();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println("MetacatHandlerIT.testValidationThroughput - " + threads
+                                + " thread(s) validated " + (long) (docs / seconds)
+                                + " EML 2.2.0 documents per second");
+        }
+        assertEquals("The schema registry shouldn't be reloaded by the validations", version,
+                     XMLSchemaService.getInstance().getRegistry().getVersion());
+    }
+
+    /**
+     * Compare the CPU time of validating an EML 2.2.0 document, which checks its ids in the
+     * validating parse, with the time of the former second pass of the EMLParser
+     * @throws Exception
+     */
+    @Test
+    public void testEMLValidationCpuTime() throws Exception {
+        final int docs = 200;
+        byte[] xmlBytes = FileUtils.readFileToByteArray(new File(test_eml_file));
+        ObjectFormatIdentifier formatId = new ObjectFormatIdentifier();
+        formatId.setValue(eml_format);
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        for (boolean secondPass : new boolean[] {true, false}) {
+            // warm up
+            handler.validateSciMeta(xmlBytes, formatId);
+            long start = threadBean.getCurrentThreadCpuTime();
+            for (int i = 0; i < docs; i++) {
+                handler.validateSciMeta(xmlBytes, formatId);
+                if (secondPass) {
+                    new EMLParser(new String(xmlBytes, StandardCharsets.UTF_8));
+                }
+            }
+            long micros = (threadBean.getCurrentThreadCpuTime() - start) / docs / 1000;
+            System.out.println("MetacatHandlerIT.testEMLValidationCpuTime - "
+                                + (secondPass ? "with" : "without") + " the EMLParser pass, "
+                                + "an EML 2.2.0 document took " + micros + " microseconds of CPU");
+        }
+    }
+
     /**
      * Test a failure of save process can roll back clearly
      * @throws Exception IOUtils.closeQuietly(dataStream);
@@ -1255,8 +1515,8 @@ public class MetacatHandlerIT {
         long originSysCount = getRecordCount("systemmetadata");
         long originIdCount = getRecordCount("identifier");
         long originDocCount = getRecordCount("xml_documents");
-        int originDocumentDirSize = (new File(handler.getMetadataDir()).list()).length;
-        int originDataDirSize = (new File(handler.getDataDir()).list()).length;
+        int originDocumentDirSize = countFiles(handler.getMetadataDir());
+        int originDataDirSize = countFiles(handler.getDataDir());
         String user = "http://orcid.org/1234/4567";
         Subject owner = new Subject();
         owner.setValue(user);
@@ -1294,10 +1554,10 @@ public class MetacatHandlerIT {
         assertEquals("The identifier count should be " + originIdCount, originIdCount, idCount);
         long docCount = getRecordCount("xml_documents");
         assertEquals("The xml_document count is " + originDocCount, originDocCount, docCount);
-        int documentDirSize = (new File(handler.getMetadataDir()).list()).length;
+        int documentDirSize = countFiles(handler.getMetadataDir());
         assertEquals("The document file count in the dir is " + originDocumentDirSize,
                                     originDocumentDirSize, documentDirSize);
-        int dataDirSize = (new File(handler.getDataDir()).list()).length;
+        int dataDirSize = countFiles(handler.getDataDir());
         assertEquals("The data file count in the dir is " + originDataDirSize,
                                                                 originDataDirSize, dataDirSize);
         SystemMetadata readSys = SystemMetadataManager.getInstance().get(pid);
@@ -1332,10 +1592,10 @@ public class MetacatHandlerIT {
             assertEquals("The identifier count should be " + originIdCount, originIdCount, idCount);
             docCount = getRecordCount("xml_documents");
             assertEquals("The xml_document count is " + originDocCount, originDocCount, docCount);
-            documentDirSize = (new File(handler.getMetadataDir()).list()).length;
+            documentDirSize = countFiles(handler.getMetadataDir());
             assertEquals("The document file count in the dir is " + originDocumentDirSize,
                                         originDocumentDirSize, documentDirSize);
-            dataDirSize = (new File(handler.getDataDir()).list()).length;
+            dataDirSize = countFiles(handler.getDataDir());
             assertEquals("The data file count in the dir is " + originDataDirSize,
                                                                     originDataDirSize, dataDirSize);
             readSys = SystemMetadataManager.getInstance().get(newPid);
@@ -1393,7 +1653,7 @@ public class MetacatHandlerIT {
         assertTrue(IdentifierManager.getInstance().mappingExists(pid.getValue()));
         IdentifierManager.getInstance().removeMapping(pid.getValue(), localId);
         deleteXMLDocuments(localId);
-        File savedFile = new File(documentDir, localId);
+        File savedFile = ObjectStoreFactory.getStore(documentDir).getPath(localId).toFile();
         assertTrue(savedFile.exists());
         DocumentImpl.deleteFromFileSystem(localId, true);
         assertFalse(savedFile.exists());
@@ -1419,7 +1679,7 @@ public class MetacatHandlerIT {
         assertTrue(IdentifierManager.getInstance().mappingExists(pid.getValue()));
         IdentifierManager.getInstance().removeMapping(pid.getValue(), localId);
         deleteXMLDocuments(localId);
-        File savedFile2 = new File(documentDir, localId);
+        File savedFile2 = ObjectStoreFactory.getStore(documentDir).getPath(localId).toFile();
         assertTrue(savedFile2.exists());
         DocumentImpl.deleteFromFileSystem(localId, true);
         assertTrue(!savedFile2.exists());
@@ -1477,7 +1737,8 @@ public class MetacatHandlerIT {
             assertTrue(e instanceof InvalidRequest);
         }
         assertTrue(!IdentifierManager.getInstance().mappingExists(pid.getValue()));
-        temp4.delete();
+        // the file was moved into the staging directory of the store and removed there
+        assertFalse(temp4.exists());
 
         //save the DetaiedFileInputStream from the valid json-ld object with a wrong checksum
         File temp5 = JsonLDHandlerTest.generateTmpFile("temp5-json-ld-valid");
@@ -1543,7 +1804,7 @@ public class MetacatHandlerIT {
         assertTrue(IdentifierManager.getInstance().mappingExists(pid.getValue()));
         IdentifierManager.getInstance().removeMapping(pid.getValue(), localId);
         deleteXMLDocuments(localId);
-        File savedFile = new File(documentDir, localId);
+        File savedFile = ObjectStoreFactory.getStore(documentDir).getPath(localId).toFile();
         assertTrue(savedFile.exists());
         DocumentImpl.deleteFromFileSystem(localId, true);
         assertTrue(!savedFile.exists());
@@ -1624,7 +1885,7 @@ public class MetacatHandlerIT {
         assertTrue(IdentifierManager.getInstance().mappingExists(pid.getValue()));
         IdentifierManager.getInstance().removeMapping(pid.getValue(), localId);
         deleteXMLDocuments(localId);
-        File savedFile = new File(documentDir, localId);
+        File savedFile = ObjectStoreFactory.getStore(documentDir).getPath(localId).toFile();
         assertTrue(savedFile.exists());
         data.close();
         DocumentImpl.deleteFromFileSystem(localId, true);
@@ -1779,4 +2040,57 @@ public class MetacatHandlerIT {
         checksum.setAlgorithm(MD5);
         return new DetailedFileInputStream(tmpFile, checksum);
     }
+
+    /*
+     * Count the files in an object directory, including the ones in its sub-directories
+     */
+    private int countFiles(String dir) throws Exception {
+        try (Stream<Path> files = Files.walk(Paths.get(dir))) {
+            return (int) files.filter(Files::isRegularFile).count();
+        }
+    }
+
+    /**
+     * A stream which stops at a position until it is released, as an upload over a slow link
+     */
+    private static class GatedInputStream extends FilterInputStream {
+        private long position = 0;
+        private long gate;
+        private CountDownLatch arrived;
+        private CountDownLatch release;
+
+        GatedInputStream(InputStream in, long gate, CountDownLatch arrived,
+                                                                CountDownLatch release) {
+            super(in);
+            this.gate = gate;
+            this.arrived = arrived;
+            this.release = release;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position == gate) {
+                arrived.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (position < gate) {
+                len = (int) Math.min(len, gate - position);
+            }
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+    }
 }
@@ -0,0 +1,293 @@
+package edu.ucsb.nceas.metacat.admin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A unit test for the SolrCoreRebuilder class. The Solr cores and the index workers are
+ * simulated, so the test checks the live core always serves a complete index.
+ */
+public class SolrCoreRebuilderTest {
+    private static final String LIVE = "metacat-index";
+    private static final String SHADOW = LIVE + SolrCoreRebuilder.SHADOW_SUFFIX;
+    private static final String HOME = "/var/metacat/solr-home2";
+
+    private FakeCores cores = null;
+    private FakeReindexer reindexer = null;
+
+    @Before
+    public void setUp() {
+        cores = new FakeCores();
+        cores.homeDir = HOME;
+        cores.cores.put(LIVE, new Core(HOME, 100));
+        reindexer = new FakeReindexer();
+    }
+
+    /**
+     * Test a rebuild which indexes all objects
+     */
+    @Test
+    public void testRebuild() throws Exception {
+        reindexer.submitted = 120;
+        reindexer.indexed = 120;
+        rebuilder(0.999).rebuild();
+        assertEquals(1, cores.cores.size());
+        Core live = cores.cores.get(LIVE);
+        assertEquals(HOME + SolrCoreRebuilder.SHADOW_SUFFIX, live.dir);
+        assertEquals(120, live.docs);
+        assertFalse(live.relaxed);
+        assertEquals(HOME + SolrCoreRebuilder.SHADOW_SUFFIX, cores.homeDir);
+        assertNull(cores.rebuildingCore);
+        assertNull(cores.markedStart);
+        // the objects went to the shadow core, which got the copies of the index tasks, while
+        // the complete live core served the queries
+        assertEquals(SHADOW, reindexer.targetCore);
+        assertEquals(SHADOW, reindexer.rebuildingCoreDuringReindex);
+        assertEquals(100, reindexer.liveDocsDuringReindex);
+        assertEquals(HOME, reindexer.liveDirDuringReindex);
+        assertTrue(reindexer.markedDuringReindex);
+        assertFalse(SolrCoreRebuilder.isRunning());
+    }
+
+    /**
+     * Test a rebuild whose core misses too many documents keeps the live core
+     */
+    @Test
+    public void testFailedValidation() throws Exception {
+        reindexer.submitted = 120;
+        reindexer.indexed = 80;
+        try {
+            rebuilder(0.999).rebuild();
+            fail("The rebuild should fail since the core misses documents");
+        } catch (AdminException e) {
+            assertTrue(e.getMessage().contains("80 documents"));
+        }
+        assertLiveCoreKept();
+        assertEquals(0, cores.swaps);
+    }
+
+    /**
+     * Test a failure of the reindex keeps the live core
+     */
+    @Test
+    public void testFailedReindex() throws Exception {
+        reindexer.failure = new Exception("the queue is down");
+        try {
+            rebuilder(0.999).rebuild();
+            fail("The rebuild should fail since the objects can't be submitted");
+        } catch (AdminException e) {
+            assertTrue(e.getMessage().contains("the queue is down"));
+        }
+        assertLiveCoreKept();
+        assertEquals(0, cores.swaps);
+    }
+
+    /**
+     * Test a shadow core left by another instance stops the rebuild up front
+     */
+    @Test
+    public void testShadowCoreOfAnotherInstance() throws Exception {
+        cores.cores.put(SHADOW, new Core(HOME + SolrCoreRebuilder.SHADOW_SUFFIX, 7));
+        try {
+            rebuilder(0.999).rebuild();
+            fail("The rebuild should fail since the shadow core exists");
+        } catch (AdminException e) {
+            assertTrue(e.getMessage().contains("Unload the core " + SHADOW));
+        }
+        assertEquals(2, cores.cores.size());
+        assertEquals(100, cores.cores.get(LIVE).docs);
+        assertEquals(-1, reindexer.liveDocsDuringReindex);
+    }
+
+    /**
+     * Test cleaning up the cores of the interrupted rebuilds
+     */
+    @Test
+    public void testRecover() throws Exception {
+        // interrupted during the reindex: the shadow core is partly filled
+        cores.mark(new Date());
+        cores.cores.put(SHADOW, new Core(HOME + SolrCoreRebuilder.SHADOW_SUFFIX, 7));
+        cores.rebuildingCore = SHADOW;
+        rebuilder(0.999).recover();
+        assertLiveCoreKept();
+        // interrupted before the shadow core was created
+        cores.mark(new Date());
+        rebuilder(0.999).recover();
+        assertLiveCoreKept();
+        // nothing to clean up
+        rebuilder(0.999).recover();
+        assertLiveCoreKept();
+        // interrupted after the swap: the shadow core is the old index
+        cores.mark(new Date());
+        cores.cores.put(SHADOW, cores.cores.remove(LIVE));
+        cores.cores.put(LIVE, new Core(HOME + SolrCoreRebuilder.SHADOW_SUFFIX, 120));
+        rebuilder(0.999).recover();
+        assertEquals(1, cores.cores.size());
+        assertEquals(120, cores.cores.get(LIVE).docs);
+        assertEquals(HOME + SolrCoreRebuilder.SHADOW_SUFFIX, cores.homeDir);
+        assertNull(cores.markedStart);
+    }
+
+    /**
+     * Test the cores take turns on the two instance directories
+     */
+    @Test
+    public void testGetShadowDir() throws Exception {
+        assertEquals(HOME + "-rebuild", SolrCoreRebuilder.getShadowDir(HOME));
+        assertEquals(HOME + "-rebuild", SolrCoreRebuilder.getShadowDir(HOME + "/"));
+        assertEquals(HOME, SolrCoreRebuilder.getShadowDir(HOME + "-rebuild"));
+    }
+
+    private void assertLiveCoreKept() {
+        assertEquals(1, cores.cores.size());
+        Core live = cores.cores.get(LIVE);
+        assertEquals(HOME, live.dir);
+        assertEquals(100, live.docs);
+        assertFalse(live.relaxed);
+        assertEquals(HOME, cores.homeDir);
+        assertNull(cores.rebuildingCore);
+        assertNull(cores.markedStart);
+    }
+
+    private SolrCoreRebuilder rebuilder(double minRatio) {
+        return new SolrCoreRebuilder(cores, reindexer, LIVE, 1, 20, minRatio, 1000, 0);
+    }
+
+    private static class Core {
+        private String dir = null;
+        private long docs = 0;
+        private boolean relaxed = false;
+
+        private Core(String dir, long docs) {
+            this.dir = dir;
+            this.docs = docs;
+        }
+    }
+
+    /*
+     * The cores of a Solr server in memory
+     */
+    private static class FakeCores implements SolrCoreRebuilder.SolrCores {
+        private Map<String, Core> cores = new HashMap<String, Core>();
+        private String homeDir = null;
+        private String rebuildingCore = null;
+        private Date markedStart = null;
+        private int swaps = 0;
+
+        @Override
+        public String getInstanceDir(String coreName) {
+            return cores.containsKey(coreName) ? cores.get(coreName).dir : null;
+        }
+
+        @Override
+        public void create(String coreName, String sourceInstanceDir, String instanceDir)
+                                                                            throws Exception {
+            for (Core core : cores.values()) {
+                if (core.dir.equals(instanceDir)) {
+                    throw new Exception("the instance directory " + instanceDir + " is used");
+                }
+            }
+            cores.put(coreName, new Core(instanceDir, 0));
+        }
+
+        @Override
+        public void swap(String coreName, String otherCoreName) {
+            swaps++;
+            Core core = cores.get(coreName);
+            cores.put(coreName, cores.get(otherCoreName));
+            cores.put(otherCoreName, core);
+        }
+
+        @Override
+        public void unload(String coreName) {
+            cores.remove(coreName);
+        }
+
+        @Override
+        public long count(String coreName) {
+            return cores.get(coreName).docs;
+        }
+
+        @Override
+        public void commit(String coreName) {
+        }
+
+        @Override
+        public void relaxCommits(String coreName, long interval) {
+            cores.get(coreName).relaxed = true;
+        }
+
+        @Override
+        public void restoreCommits(String coreName) {
+            cores.get(coreName).relaxed = false;
+        }
+
+        @Override
+        public void follow(String rebuildingCore) {
+            this.rebuildingCore = rebuildingCore;
+        }
+
+        @Override
+        public void mark(Date start) {
+            markedStart = start;
+        }
+
+        @Override
+        public void unmark() {
+            markedStart = null;
+        }
+
+        @Override
+        public Date getMarkedStart() {
+            return markedStart;
+        }
+
+        @Override
+        public String getHomeDir() {
+            return homeDir;
+        }
+
+        @Override
+        public void relocateHomeDir(String instanceDir) {
+            homeDir = instanceDir;
+        }
+    }
+
+    /*
+     * The index workers writing the objects into the target core of the tasks
+     */
+    private class FakeReindexer implements SolrCoreRebuilder.Reindexer {
+        private long submitted = 0;
+        private long indexed = 0;
+        private String targetCore = null;
+        private String rebuildingCoreDuringReindex = null;
+        private long liveDocsDuringReindex = -1;
+        private String liveDirDuringReindex = null;
+        private boolean markedDuringReindex = false;
+        private Exception failure = null;
+
+        @Override
+        public long submitAll(String coreName) throws Exception {
+            if (failure != null) {
+                throw failure;
+            }
+            targetCore = coreName;
+            rebuildingCoreDuringReindex = cores.rebuildingCore;
+            liveDocsDuringReindex = cores.count(LIVE);
+            liveDirDuringReindex = cores.getInstanceDir(LIVE);
+            markedDuringReindex = cores.markedStart != null;
+            cores.cores.get(coreName).docs = indexed;
+            return submitted;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package edu.ucsb.nceas.metacat.dataone.resourcemap;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v1.ObjectFormatIdentifier;
+
+import edu.ucsb.nceas.MCTestCase;
+import edu.ucsb.nceas.metacat.database.DBConnection;
+import edu.ucsb.nceas.metacat.database.DBConnectionPool;
+
+/**
+ * Test the PackageMembershipDAO class
+ */
+public class PackageMembershipDAOTest extends MCTestCase {
+    private static final String RESOURCEMAP_FILEPATH = "test/resourcemap.xml";
+
+    /**
+     * Test parsing the members of a resource map
+     */
+    public void testParseMembers() throws Exception {
+        Set<Identifier> members = null;
+        try (InputStream resourceMap = new FileInputStream(RESOURCEMAP_FILEPATH)) {
+            members = PackageMembershipDAO.parseMembers(resourceMap);
+        }
+        assertEquals(2, members.size());
+        assertTrue(members.contains(identifier("tao.13640.1")));
+        assertTrue(members.contains(identifier("tao.13639.1")));
+        assertFalse(members.contains(identifier("resourceMap_tao.13640.1")));
+    }
+
+    /**
+     * Test the resource map formats
+     */
+    public void testIsResourceMap() throws Exception {
+        ObjectFormatIdentifier formatId = new ObjectFormatIdentifier();
+        formatId.setValue("http://www.openarchives.org/ore/terms");
+        assertTrue(PackageMembershipDAO.isResourceMap(formatId));
+        formatId.setValue("https://eml.ecoinformatics.org/eml-2.2.0");
+        assertFalse(PackageMembershipDAO.isResourceMap(formatId));
+        assertFalse(PackageMembershipDAO.isResourceMap(null));
+    }
+
+    /**
+     * Test adding, looking up and removing the members of the resource maps
+     */
+    public void testAddAndLookup() throws Exception {
+        long time = System.currentTimeMillis();
+        Identifier resourceMap1 = identifier("PackageMembershipDAOTest.ore1." + time);
+        Identifier resourceMap2 = identifier("PackageMembershipDAOTest.ore2." + time);
+        Identifier metadata = identifier("PackageMembershipDAOTest.metadata." + time);
+        Identifier data = identifier("PackageMembershipDAOTest.data." + time);
+        Set<Identifier> members = new HashSet<Identifier>();
+        members.add(metadata);
+        members.add(data);
+        DBConnection dbConn = DBConnectionPool.getDBConnection("PackageMembershipDAOTest");
+        int serialNumber = dbConn.getCheckOutSerialNumber();
+        try {
+            PackageMembershipDAO.getInstance().add(resourceMap1, members, dbConn);
+            PackageMembershipDAO.getInstance().add(resourceMap2, members, dbConn);
+            List<Identifier> resourceMaps =
+                            PackageMembershipDAO.getInstance().getResourceMaps(data, true);
+            assertEquals(2, resourceMaps.size());
+            assertTrue(resourceMaps.contains(resourceMap1));
+            assertTrue(resourceMaps.contains(resourceMap2));
+            // the objects don't have system metadata, so they aren't obsoleted
+            assertEquals(2, PackageMembershipDAO.getInstance()
+                                                    .getResourceMaps(metadata, false).size());
+            PackageMembershipDAO.getInstance().remove(resourceMap1, dbConn);
+            resourceMaps = PackageMembershipDAO.getInstance().getResourceMaps(metadata, true);
+            assertEquals(1, resourceMaps.size());
+            assertEquals(resourceMap2, resourceMaps.get(0));
+            assertTrue(PackageMembershipDAO.getInstance()
+                        .getResourceMaps(identifier("PackageMembershipDAOTest.foo"), true)
+                        .isEmpty());
+        } finally {
+            PackageMembershipDAO.getInstance().remove(resourceMap1, dbConn);
+            PackageMembershipDAO.getInstance().remove(resourceMap2, dbConn);
+            DBConnectionPool.returnDBConnection(dbConn, serialNumber);
+        }
+    }
+
+    /**
+     * Test that the archived resource maps aren't returned
+     */
+    public void testArchivedResourceMap() throws Exception {
+        long time = System.currentTimeMillis();
+        Identifier archived = identifier("PackageMembershipDAOTest.archived." + time);
+        Identifier current = identifier("PackageMembershipDAOTest.current." + time);
+        Identifier data = identifier("PackageMembershipDAOTest.data." + time);
+        Set<Identifier> members = new HashSet<Identifier>();
+        members.add(data);
+        DBConnection dbConn = DBConnectionPool.getDBConnection("PackageMembershipDAOTest");
+        int serialNumber = dbConn.getCheckOutSerialNumber();
+        try {
+            insertSystemMetadata(archived, true, dbConn);
+            insertSystemMetadata(current, false, dbConn);
+            PackageMembershipDAO.getInstance().add(archived, members, dbConn);
+            PackageMembershipDAO.getInstance().add(current, members, dbConn);
+            List<Identifier> resourceMaps =
+                            PackageMembershipDAO.getInstance().getResourceMaps(data, true);
+            assertEquals(1, resourceMaps.size());
+            assertEquals(current, resourceMaps.get(0));
+        } finally {
+            PackageMembershipDAO.getInstance().remove(archived, dbConn);
+            PackageMembershipDAO.getInstance().remove(current, dbConn);
+            deleteSystemMetadata(archived, dbConn);
+            deleteSystemMetadata(current, dbConn);
+            DBConnectionPool.returnDBConnection(dbConn, serialNumber);
+        }
+    }
+
+    private static void insertSystemMetadata(Identifier guid, boolean archived,
+                                             DBConnection dbConn) throws Exception {
+        try (PreparedStatement stmt = dbConn.prepareStatement(
+                "INSERT INTO systemMetadata (guid, date_uploaded, archived) VALUES (?, ?, ?)")) {
+            stmt.setString(1, guid.getValue());
+            stmt.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+            stmt.setBoolean(3, archived);
+            stmt.executeUpdate();
+        }
+    }
+
+    private static void deleteSystemMetadata(Identifier guid, DBConnection dbConn)
+                                                                            throws Exception {
+        try (PreparedStatement stmt =
+                        dbConn.prepareStatement("DELETE FROM systemMetadata WHERE guid = ?")) {
+            stmt.setString(1, guid.getValue());
+            stmt.executeUpdate();
+        }
+    }
+
+    private static Identifier identifier(String value) {
+        Identifier identifier = new Identifier();
+        identifier.setValue(value);
+        return identifier;
+    }
+}
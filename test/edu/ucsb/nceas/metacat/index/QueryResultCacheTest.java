@@ -0,0 +1,228 @@
+package edu.ucsb.nceas.metacat.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import edu.ucsb.nceas.metacat.common.query.stream.ContentTypeByteArrayInputStream;
+import edu.ucsb.nceas.metacat.common.query.stream.ContentTypeInputStream;
+import edu.ucsb.nceas.metacat.metrics.MetacatMetrics;
+
+/**
+ * A unit test for the QueryResultCache class. The upstream Solr server is simulated.
+ */
+public class QueryResultCacheTest {
+    private static final String BODY = "<response><result numFound=\"42\"/></response>";
+
+    private final AtomicLong generation = new AtomicLong(1);
+    private final AtomicInteger upstreamCalls = new AtomicInteger(0);
+
+    /**
+     * Test that a cached response is served with its content type, and expires with the TTL
+     */
+    @Test
+    public void testHitAndTtl() throws Exception {
+        QueryResultCache cache = new QueryResultCache(10, 100000, 1000, 200, 1000, 0,
+                                                      () -> generation.get());
+        long hits = MetacatMetrics.getInstance().getCounter(QueryResultCache.HITS_METRIC);
+        assertEquals(BODY, read(load(cache, "q=*:*", 0)));
+        InputStream cached = load(cache, "q=*:*", 0);
+        assertEquals("text/xml", ((ContentTypeInputStream) cached).getContentType());
+        assertEquals(BODY, read(cached));
+        assertEquals(1, upstreamCalls.get());
+        assertEquals(hits + 1,
+                     MetacatMetrics.getInstance().getCounter(QueryResultCache.HITS_METRIC));
+        assertTrue(MetacatMetrics.getInstance().getGauge(QueryResultCache.HIT_RATIO_METRIC) > 0);
+        Thread.sleep(300);
+        load(cache, "q=*:*", 0);
+        assertEquals(2, upstreamCalls.get());
+    }
+
+    /**
+     * Test that a new commit generation of the index drops the cached responses
+     */
+    @Test
+    public void testGenerationInvalidation() throws Exception {
+        QueryResultCache cache = new QueryResultCache(10, 100000, 1000, 60000, 1000, 0,
+                                                      () -> generation.get());
+        read(load(cache, "q=*:*", 0));
+        read(load(cache, "q=*:*", 0));
+        assertEquals(1, upstreamCalls.get());
+        generation.incrementAndGet();
+        read(load(cache, "q=*:*", 0));
+        assertEquals(2, upstreamCalls.get());
+        assertEquals(1, cache.size());
+    }
+
+    /**
+     * Test that the response of a replica behind the current generation is returned but not
+     * cached, and neither is a response of an unknown generation
+     */
+    @Test
+    public void testLaggingReplica() throws Exception {
+        QueryResultCache cache = new QueryResultCache(10, 100000, 1000, 60000, 1000, 0,
+                                                      () -> generation.get());
+        assertEquals(BODY, read(load(cache, "q=*:*", 0, generation.get() - 1)));
+        assertEquals(0, cache.size());
+        assertEquals(BODY, read(load(cache, "q=*:*", 0, -1)));
+        assertEquals(0, cache.size());
+        assertEquals(BODY, read(load(cache, "q=*:*", 0)));
+        assertEquals(1, cache.size());
+        assertEquals(3, upstreamCalls.get());
+    }
+
+    /**
+     * Test that the loader's caller gets the first bytes of a response before the upstream
+     * server has sent all of it, and the response is cached when it ends
+     */
+    @Test
+    public void testStreamedMiss() throws Exception {
+        QueryResultCache cache = new QueryResultCache(10, 100000, 1000, 60000, 1000, 0,
+                                                      () -> generation.get());
+        PipedOutputStream server = new PipedOutputStream();
+        InputStream upstream = new PipedInputStream(server);
+        QueryResultCache.Lookup lookup = cache.lookup("q=*:*");
+        assertTrue(lookup.isLoader());
+        InputStream stream = cache.complete(lookup, upstream, generation.get());
+        byte[] body = BODY.getBytes(StandardCharsets.UTF_8);
+        int half = body.length / 2;
+        server.write(body, 0, half);
+        server.flush();
+        byte[] head = new byte[half];
+        IOUtils.readFully(stream, head);
+        assertEquals(BODY.substring(0, half), new String(head, StandardCharsets.UTF_8));
+        assertEquals(0, cache.size());
+        server.write(body, half, body.length - half);
+        server.close();
+        assertEquals(BODY.substring(half), read(stream));
+        assertEquals(1, cache.size());
+        assertEquals(BODY, read(cache.lookup("q=*:*").getResponse().open()));
+    }
+
+    /**
+     * Test that concurrent identical misses send a single upstream request
+     */
+    @Test
+    public void testSingleFlight() throws Exception {
+        QueryResultCache cache = new QueryResultCache(10, 100000, 1000, 60000, 5000, 0,
+                                                      () -> generation.get());
+        long served = served();
+        int callers = 20;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < callers; i++) {
+            results.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    start.await();
+                    return read(load(cache, "q=*:*&facet=true", 300));
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<String> result : results) {
+            assertEquals(BODY, result.get());
+        }
+        executor.shutdown();
+        assertEquals(1, upstreamCalls.get());
+        // the others waited for the response of the first one or hit the cache
+        assertEquals(served + callers - 1, served());
+    }
+
+    /**
+     * Test that a response bigger than the max entry size is returned as a whole but not cached,
+     * and an abandoned load lets the waiting callers query by themselves
+     */
+    @Test
+    public void testTooBigAndAbandoned() throws Exception {
+        QueryResultCache cache = new QueryResultCache(10, 100000, 10, 60000, 1000, 0,
+                                                      () -> generation.get());
+        InputStream stream = load(cache, "q=*:*", 0);
+        assertEquals("text/xml", ((ContentTypeInputStream) stream).getContentType());
+        assertEquals(BODY, read(stream));
+        assertEquals(0, cache.size());
+        // a response which wasn't read to the end isn't cached
+        QueryResultCache unread = new QueryResultCache(10, 100000, 1000, 60000, 1000, 0,
+                                                       () -> generation.get());
+        stream = load(unread, "q=*:*", 0);
+        stream.read();
+        stream.close();
+        assertEquals(0, unread.size());
+        assertTrue(unread.lookup("q=*:*").isLoader());
+        QueryResultCache.Lookup lookup = cache.lookup("q=id:1");
+        assertTrue(lookup.isLoader());
+        Thread abandoner = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+            cache.abandon(lookup);
+        });
+        abandoner.start();
+        QueryResultCache.Lookup follower = cache.lookup("q=id:1");
+        abandoner.join();
+        assertNull(follower.getResponse());
+        assertFalse(follower.isLoader());
+    }
+
+    /*
+     * Query through the cache like the MetacatSolrIndex class does
+     */
+    private InputStream load(QueryResultCache cache, String key, long latency)
+                                                                            throws Exception {
+        return load(cache, key, latency, generation.get());
+    }
+
+    private InputStream load(QueryResultCache cache, String key, long latency,
+                             long upstreamGeneration) throws Exception {
+        QueryResultCache.Lookup lookup = cache.lookup(key);
+        if (lookup.getResponse() != null) {
+            return lookup.getResponse().open();
+        }
+        InputStream upstream = upstream(latency);
+        return lookup.isLoader() ? cache.complete(lookup, upstream, upstreamGeneration)
+                                 : upstream;
+    }
+
+    private InputStream upstream(long latency) throws InterruptedException {
+        upstreamCalls.incrementAndGet();
+        Thread.sleep(latency);
+        ContentTypeByteArrayInputStream stream =
+                    new ContentTypeByteArrayInputStream(BODY.getBytes(StandardCharsets.UTF_8));
+        stream.setContentType("text/xml");
+        return stream;
+    }
+
+    private static long served() {
+        return MetacatMetrics.getInstance().getCounter(QueryResultCache.COALESCED_METRIC)
+                    + MetacatMetrics.getInstance().getCounter(QueryResultCache.HITS_METRIC);
+    }
+
+    private static String read(InputStream stream) throws Exception {
+        try {
+            return IOUtils.toString(stream, StandardCharsets.UTF_8);
+        } finally {
+            stream.close();
+        }
+    }
+}
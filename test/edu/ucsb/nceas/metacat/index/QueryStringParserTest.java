@@ -0,0 +1,209 @@
+package edu.ucsb.nceas.metacat.index;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.junit.Test;
+
+/**
+ * A unit test for the QueryStringParser class. The parser is checked against the former
+ * split-and-decode implementation on generated query strings, and timed on the query strings
+ * the search clients send.
+ */
+public class QueryStringParserTest {
+    private static final long SEED = 20241019L;
+    private static final String[] QUERIES = {
+        "q=*:*&fl=id,title,origin,pubDate,abstract&sort=dateUploaded+desc&rows=25&start=0&wt=json",
+        "q=formatType:METADATA+-obsoletedBy:*&fq=-obsoletedBy:*&fq=formatType:METADATA"
+            + "&fq=isPublic:true&rows=10&start=0&fl=id,seriesId,title,origin,pubDate,dateUploaded,"
+            + "abstract,resourceMap,beginDate,endDate,read_count_i,geohash_9,datasource,isPublic,"
+            + "documents,sem_annotation,northBoundCoord,southBoundCoord,eastBoundCoord,"
+            + "westBoundCoord&sort=dateUploaded+desc&facet=true&facet.field=keywords"
+            + "&facet.limit=50&facet.mincount=1&wt=json",
+        "q=id:%22doi%3A10.5063%2FF1QN650R%22&fl=id,resourceMap,documents,isDocumentedBy&wt=json",
+        "q=(resourceMap:%22urn%3Auuid%3A8d1c7f4e-8a3b-4b6f-9b0e-2f4c8a1d5e6f%22+OR+id:"
+            + "%22urn%3Auuid%3A8d1c7f4e-8a3b-4b6f-9b0e-2f4c8a1d5e6f%22)&fl=id,formatType,size,"
+            + "checksum,checksumAlgorithm,fileName,formatId&rows=1000&wt=xml",
+        "q=text:%22s%C3%A3o+paulo%22+AND+beginDate:[1990-01-01T00:00:00Z+TO+*]"
+            + "&fq=rightsHolder:%22CN%3Dtest%2CO%3DUniversity%2CC%3DUS%2CDC%3Dcilogon%2CDC%3Dorg%22"
+            + "&stats=true&stats.field=size&rows=0&wt=json"
+    };
+
+    /**
+     * Test the repeated params, the kept "+" and the escapes
+     */
+    @Test
+    public void testParse() throws Exception {
+        ModifiableSolrParams params = QueryStringParser.parse(
+                    "q=a+b&fq=x:1&fq=y%3A2&rows=&debug&fl=id&=c&wt=%C3%A3");
+        assertEquals("a+b", params.get("q"));
+        assertArrayEquals(new String[] {"x:1", "y:2"}, params.getParams("fq"));
+        assertEquals("", params.get("rows"));
+        assertEquals("", params.get("debug"));
+        assertEquals("id", params.get("fl"));
+        assertEquals("", params.get("=c"));
+        assertEquals("\u00e3", params.get("wt"));
+        assertEquals(0, toMap(QueryStringParser.parse("")).size());
+        assertEquals(0, toMap(QueryStringParser.parse(null)).size());
+    }
+
+    /**
+     * Test that the malformed escapes are rejected like URLDecoder does
+     */
+    @Test
+    public void testMalformedEscape() throws Exception {
+        for (String query : new String[] {"q=abc%", "q=abc%4", "q=%zz", "q=%-1&fl=id"}) {
+            try {
+                QueryStringParser.parse(query);
+                fail("The query " + query + " should be rejected");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains("escape"));
+            }
+        }
+    }
+
+    /**
+     * Test that the parser gives the same params as the former implementation on generated
+     * query strings
+     */
+    @Test
+    public void testSameAsFormerParser() throws Exception {
+        Random random = new Random(SEED);
+        for (int i = 0; i < 20000; i++) {
+            String query = randomQuery(random);
+            Map<String, List<String>> expected = null;
+            try {
+                expected = formerParse(query);
+            } catch (IllegalArgumentException e) {
+                try {
+                    QueryStringParser.parse(query);
+                    fail("The query " + query + " should be rejected");
+                } catch (IllegalArgumentException ee) {
+                    continue;
+                }
+            }
+            assertEquals("the query " + query, expected, toMap(QueryStringParser.parse(query)));
+        }
+    }
+
+    /**
+     * Time the parsers on the query strings of the search clients, and check the new one
+     * allocates less
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        int rounds = 20000;
+        // warm up
+        for (int i = 0; i < rounds; i++) {
+            QueryStringParser.parse(QUERIES[i % QUERIES.length]);
+            formerParse(QUERIES[i % QUERIES.length]);
+        }
+        com.sun.management.ThreadMXBean threads =
+                            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(id);
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            QueryStringParser.parse(QUERIES[i % QUERIES.length]);
+        }
+        long newTime = System.nanoTime() - start;
+        long newAllocated = threads.getThreadAllocatedBytes(id) - allocated;
+        allocated = threads.getThreadAllocatedBytes(id);
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            formerParse(QUERIES[i % QUERIES.length]);
+        }
+        long formerTime = System.nanoTime() - start;
+        long formerAllocated = threads.getThreadAllocatedBytes(id) - allocated;
+        System.out.println("QueryStringParserTest.testBenchmark - per query the parser took "
+                    + newTime / rounds + " ns and allocated " + newAllocated / rounds
+                    + " bytes, the former one took " + formerTime / rounds + " ns and allocated "
+                    + formerAllocated / rounds + " bytes");
+        assertTrue(newAllocated < formerAllocated);
+    }
+
+    /*
+     * The former implementation, which replaced "+" by %2B, split the query and decoded the
+     * parts with URLDecoder
+     */
+    private static Map<String, List<String>> formerParse(String queryString)
+                                                        throws UnsupportedEncodingException {
+        queryString = queryString.replaceAll("\\+", "%2B");
+        Map<String, List<String>> map = new LinkedHashMap<String, List<String>>();
+        if (queryString.length() > 0) {
+            for (String kv : queryString.split("&")) {
+                int idx = kv.indexOf('=');
+                if (idx > 0) {
+                    add(map, URLDecoder.decode(kv.substring(0, idx), "UTF-8"),
+                        URLDecoder.decode(kv.substring(idx + 1), "UTF-8"));
+                } else {
+                    add(map, URLDecoder.decode(kv, "UTF-8"), "");
+                }
+            }
+        }
+        return map;
+    }
+
+    private static void add(Map<String, List<String>> map, String name, String value) {
+        map.computeIfAbsent(name, key -> new ArrayList<String>()).add(value);
+    }
+
+    private static Map<String, List<String>> toMap(ModifiableSolrParams params) {
+        Map<String, List<String>> map = new LinkedHashMap<String, List<String>>();
+        Iterator<String> names = params.getParameterNamesIterator();
+        while (names.hasNext()) {
+            String name = names.next();
+            map.put(name, new ArrayList<String>(Arrays.asList(params.getParams(name))));
+        }
+        return map;
+    }
+
+    /*
+     * A query string of the random params, encoded or not, with the stray separators and
+     * escapes now and then
+     */
+    private static String randomQuery(Random random) throws UnsupportedEncodingException {
+        String[] names = {"q", "fq", "fl", "rows", "sort", "wt", "", "a b", "fq"};
+        String[] pieces = {"*:*", "id", "+", "=", "&", "%", "%2", "%41", "%C3%A3", "%e2%82%ac",
+                            "\u00e3", "doi:10.5063/F1", " ", "x", "-obsoletedBy:*", "%ZZ"};
+        StringBuilder query = new StringBuilder();
+        int params = random.nextInt(6);
+        for (int i = 0; i < params; i++) {
+            if (i > 0 || random.nextInt(8) == 0) {
+                query.append('&');
+            }
+            query.append(names[random.nextInt(names.length)]);
+            int form = random.nextInt(4);
+            if (form == 0) {
+                continue;
+            }
+            query.append('=');
+            StringBuilder value = new StringBuilder();
+            int length = random.nextInt(5);
+            for (int j = 0; j < length; j++) {
+                value.append(pieces[random.nextInt(pieces.length)]);
+            }
+            query.append(form == 1 ? URLEncoder.encode(value.toString(), "UTF-8")
+                                                                    : value.toString());
+        }
+        if (random.nextInt(8) == 0) {
+            query.append('&');
+        }
+        return query.toString();
+    }
+}
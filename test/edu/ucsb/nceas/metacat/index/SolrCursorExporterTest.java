@@ -0,0 +1,323 @@
+package edu.ucsb.nceas.metacat.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.QueryResponseWriter;
+import org.apache.solr.response.QueryResponseWriterUtil;
+import org.apache.solr.response.SolrQueryResponse;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.ucsb.nceas.metacat.common.query.stream.ContentTypePipedInputStream;
+
+/**
+ * A unit test for the SolrCursorExporter class. The Solr cursor pages are generated as they are
+ * read, so the test holds no copy of the index. The cursor walk is also tested against the
+ * responses of an embedded Solr core.
+ */
+public class SolrCursorExporterTest {
+    private static final int DOCS = 500000;
+    private static final int PAGE_SIZE = 1000;
+    private static final String SOLR_HOME = "metacat-common/src/main/resources/solr-home";
+    private static final String COLLECTION = "collection1";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The stand-in of Solr. The cursor mark is the index of the next document.
+     */
+    private static class Pages implements SolrCursorExporter.PageSource {
+        private final int docs;
+        private final List<SolrParams> queries = new ArrayList<SolrParams>();
+        private final AtomicInteger open = new AtomicInteger(0);
+        private int maxOpen = 0;
+
+        private Pages(int docs) {
+            this.docs = docs;
+        }
+
+        @Override
+        public InputStream fetch(SolrParams params) throws Exception {
+            if (queries.size() < 3) {
+                queries.add(new ModifiableSolrParams(params));
+            }
+            String cursor = params.get("cursorMark");
+            int start = "*".equals(cursor) ? 0 : Integer.parseInt(cursor);
+            int rows = params.getInt("rows");
+            int end = Math.min(start + rows, docs);
+            maxOpen = Math.max(maxOpen, open.incrementAndGet());
+            return new PageStream(start, end, open);
+        }
+    }
+
+    /**
+     * The pages of an embedded Solr core. Solr handles the cursor marks and the pages are the
+     * xml its response writer produces.
+     */
+    private static class SolrPages implements SolrCursorExporter.PageSource {
+        private final EmbeddedSolrServer solr;
+        private final List<String> cursors = new ArrayList<String>();
+
+        private SolrPages(EmbeddedSolrServer solr) {
+            this.solr = solr;
+        }
+
+        @Override
+        public InputStream fetch(SolrParams params) throws Exception {
+            cursors.add(params.get("cursorMark"));
+            try (SolrCore core = solr.getCoreContainer().getCore(COLLECTION)) {
+                QueryResponse response = solr.query(params);
+                SolrQueryResponse solrResponse = new SolrQueryResponse();
+                solrResponse.setAllValues(response.getResponse());
+                SolrQueryRequest request = new LocalSolrQueryRequest(core, params);
+                try {
+                    QueryResponseWriter writer = core.getQueryResponseWriter(request);
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    QueryResponseWriterUtil.writeQueryResponse(body, writer, request,
+                                    solrResponse, writer.getContentType(request, solrResponse));
+                    return new ByteArrayInputStream(body.toByteArray());
+                } finally {
+                    request.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * A page of the xml response generated as it is read
+     */
+    private static class PageStream extends InputStream {
+        private final int end;
+        private final AtomicInteger open;
+        private int doc;
+        private byte[] chunk;
+        private int position = 0;
+        private boolean closed = false;
+
+        private PageStream(int start, int end, AtomicInteger open) {
+            this.doc = start - 1;
+            this.end = end;
+            this.open = open;
+            chunk = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><response><lst "
+                        + "name=\"responseHeader\"><int name=\"status\">0</int></lst><result "
+                        + "name=\"response\" numFound=\"" + DOCS + "\" start=\"0\">")
+                        .getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == chunk.length) {
+                doc++;
+                if (doc > end) {
+                    return -1;
+                }
+                String next = doc == end ? "</result><str name=\"nextCursorMark\">" + end
+                                                + "</str></response>"
+                                : "<doc><str name=\"id\">urn:uuid:" + doc + "</str><str "
+                                    + "name=\"title\">Data, \"" + doc + "\"</str><int "
+                                    + "name=\"size\">" + doc + "</int><arr name=\"keywords\">"
+                                    + "<str>a</str><str>b</str></arr></doc>";
+                chunk = next.getBytes(StandardCharsets.UTF_8);
+                position = 0;
+            }
+            return chunk[position++] & 0xff;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                open.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Test the cursor params and the JSON lines of the documents
+     */
+    @Test
+    public void testJsonLines() throws Exception {
+        Pages pages = new Pages(5);
+        ModifiableSolrParams query = new ModifiableSolrParams();
+        query.set("q", "*:*");
+        query.set("export", "jsonl");
+        query.set("start", 100);
+        query.set("sort", "dateUploaded desc");
+        query.set("wt", "json");
+        SolrCursorExporter exporter = new SolrCursorExporter(query, 2, pages);
+        assertEquals(SolrCursorExporter.JSON_LINES_CONTENT_TYPE, exporter.getContentType());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exporter.write(out);
+        String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertEquals(5, lines.length);
+        assertEquals("{\"id\":\"urn:uuid:0\",\"title\":\"Data, \\\"0\\\"\",\"size\":0,"
+                        + "\"keywords\":[\"a\",\"b\"]}", lines[0]);
+        assertEquals(3, pages.queries.size());
+        SolrParams first = pages.queries.get(0);
+        assertEquals("*", first.get("cursorMark"));
+        assertEquals("dateUploaded desc,id asc", first.get("sort"));
+        assertEquals("xml", first.get("wt"));
+        assertEquals("2", first.get("rows"));
+        assertNull(first.get("start"));
+        assertNull(first.get("export"));
+        assertEquals("2", pages.queries.get(1).get("cursorMark"));
+        assertEquals("4", pages.queries.get(2).get("cursorMark"));
+    }
+
+    /**
+     * Test walking the cursor of an embedded Solr core. The pages end when Solr returns the
+     * cursor mark it was given.
+     */
+    @Test
+    public void testSolrCursor() throws Exception {
+        File solrHome = folder.newFolder("solr-home");
+        FileUtils.copyDirectory(new File(SOLR_HOME), solrHome);
+        CoreContainer container = new CoreContainer(solrHome.toPath(), new Properties());
+        container.load();
+        EmbeddedSolrServer solr = new EmbeddedSolrServer(container, COLLECTION);
+        try {
+            int docs = 25;
+            for (int i = 0; i < docs; i++) {
+                SolrInputDocument doc = new SolrInputDocument();
+                doc.addField("id", String.format("urn:uuid:%02d", i));
+                doc.addField("title", "Data, \"" + i + "\"");
+                doc.addField("size", (long) i);
+                doc.addField("keywords", "a");
+                doc.addField("keywords", "b");
+                solr.add(doc);
+            }
+            solr.commit();
+            ModifiableSolrParams query = new ModifiableSolrParams();
+            query.set("q", "*:*");
+            query.set("export", "jsonl");
+            query.set("fl", "id,title,size,keywords");
+            query.set("sort", "size desc");
+            SolrPages pages = new SolrPages(solr);
+            SolrCursorExporter exporter = new SolrCursorExporter(query, 10, pages);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            exporter.write(out);
+            String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+            assertEquals(docs, lines.length);
+            assertEquals("{\"id\":\"urn:uuid:24\",\"title\":\"Data, \\\"24\\\"\",\"size\":24,"
+                            + "\"keywords\":[\"a\",\"b\"]}", lines[0]);
+            for (int i = 0; i < docs; i++) {
+                assertTrue(lines[i], lines[i].contains("\"size\":" + (docs - 1 - i) + ","));
+            }
+            // three full or partial pages and the empty one which returns the same cursor mark
+            assertEquals(4, pages.cursors.size());
+            assertEquals("*", pages.cursors.get(0));
+            assertEquals(4, new HashSet<String>(pages.cursors).size());
+        } finally {
+            solr.close();
+        }
+    }
+
+    /**
+     * Test the CSV rows with the fields given by the fl param
+     */
+    @Test
+    public void testCsv() throws Exception {
+        ModifiableSolrParams query = new ModifiableSolrParams();
+        query.set("q", "*:*");
+        query.set("export", "csv");
+        query.set("fl", "id,title,keywords,missing");
+        query.set("sort", "id desc");
+        Pages pages = new Pages(3);
+        SolrCursorExporter exporter = new SolrCursorExporter(query, 10, pages);
+        assertEquals(SolrCursorExporter.CSV_CONTENT_TYPE, exporter.getContentType());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exporter.write(out);
+        String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertEquals(4, lines.length);
+        assertEquals("id,title,keywords,missing", lines[0]);
+        assertEquals("urn:uuid:1,\"Data, \"\"1\"\"\",\"a,b\",", lines[2]);
+        assertEquals("id desc", pages.queries.get(0).get("sort"));
+    }
+
+    /**
+     * Test that the bad export requests are rejected
+     */
+    @Test
+    public void testInvalidExport() throws Exception {
+        ModifiableSolrParams query = new ModifiableSolrParams();
+        query.set("q", "*:*");
+        query.set("export", "xlsx");
+        try {
+            new SolrCursorExporter(query, 10, new Pages(1));
+            fail("The xlsx format should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("xlsx"));
+        }
+        query.set("export", "csv");
+        query.set("fl", "*");
+        try {
+            new SolrCursorExporter(query, 10, new Pages(1));
+            fail("The CSV export without the field names should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("fl"));
+        }
+    }
+
+    /**
+     * Test exporting a big result through the pipe the query endpoint uses. Only one page is
+     * open at a time and the output is read while the pages are fetched, so the memory doesn't
+     * grow with the number of the documents.
+     */
+    @Test
+    public void testBigExport() throws Exception {
+        ModifiableSolrParams query = new ModifiableSolrParams();
+        query.set("q", "*:*");
+        query.set("export", "jsonl");
+        Pages pages = new Pages(DOCS);
+        SolrCursorExporter exporter = new SolrCursorExporter(query, PAGE_SIZE, pages);
+        long lines = 0;
+        long size = 0;
+        long start = System.currentTimeMillis();
+        try (InputStream stream = new ContentTypePipedInputStream(65536, exporter::write)) {
+            byte[] buffer = new byte[8192];
+            int count = stream.read(buffer);
+            while (count >= 0) {
+                size += count;
+                for (int i = 0; i < count; i++) {
+                    if (buffer[i] == '\n') {
+                        lines++;
+                    }
+                }
+                count = stream.read(buffer);
+            }
+        }
+        System.out.println("SolrCursorExporterTest.testBigExport - exported " + lines
+                    + " documents (" + size + " bytes) in " + (System.currentTimeMillis() - start)
+                    + " ms");
+        assertEquals(DOCS, lines);
+        assertEquals(1, pages.maxOpen);
+        assertEquals(0, pages.open.get());
+    }
+}
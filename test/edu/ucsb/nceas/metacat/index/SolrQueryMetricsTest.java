@@ -0,0 +1,139 @@
+package edu.ucsb.nceas.metacat.index;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.junit.Test;
+
+import edu.ucsb.nceas.metacat.metrics.MetacatMetrics;
+
+/**
+ * A unit test for the SolrQueryMetrics class and the histograms of MetacatMetrics
+ */
+public class SolrQueryMetricsTest {
+
+    /**
+     * Test the shape keeps the param names and the facet fields but drops the values
+     */
+    @Test
+    public void testShape() throws Exception {
+        ModifiableSolrParams query = new ModifiableSolrParams();
+        query.add("q", "title:soil");
+        query.add("rows", "25");
+        query.add("fq", "-obsoletedBy:*");
+        query.add("fq", "isPublic:true");
+        query.add("facet", "true");
+        query.add("facet.field", "{!ex=kw}origin");
+        query.add("facet.field", "keywords");
+        query.add("wt", "json");
+        assertEquals("facet,facet.field,fq,q,rows,wt;facet.field=keywords|origin",
+                     SolrQueryMetrics.shape(query));
+        ModifiableSolrParams other = new ModifiableSolrParams();
+        other.add("wt", "json");
+        other.add("facet.field", "origin");
+        other.add("facet.field", "keywords");
+        other.add("facet", "false");
+        other.add("rows", "1000");
+        other.add("q", "*:*");
+        other.add("fq", "formatType:DATA");
+        assertEquals(SolrQueryMetrics.shape(query), SolrQueryMetrics.shape(other));
+        assertEquals("json", SolrQueryMetrics.format(query));
+        query.remove("wt");
+        assertEquals("xml", SolrQueryMetrics.format(query));
+        query.set(SolrCursorExporter.EXPORT_PARAM, "csv");
+        assertEquals("export:csv", SolrQueryMetrics.format(query));
+    }
+
+    /**
+     * Test the timings reported by the query service and the metered responses
+     */
+    @Test
+    public void testObserve() throws Exception {
+        MetacatMetrics metrics = MetacatMetrics.getInstance();
+        SolrQueryMetrics queryMetrics = new SolrQueryMetrics(metrics, 100);
+        ModifiableSolrParams query = new ModifiableSolrParams();
+        query.add("q", "id:testObserve");
+        query.add("wt", "csv");
+        String labels = MetacatMetrics.label("shape", "q,wt") + ","
+                            + MetacatMetrics.label("format", "csv");
+        queryMetrics.observe(query, 20, 30000000L, 0);
+        queryMetrics.observe(query, -1, 2000000000L, 5000000L);
+        MetacatMetrics.Histogram qTime = metrics.getHistogram(SolrQueryMetrics.QTIME_METRIC,
+                                                              labels);
+        assertEquals(1, qTime.getCount());
+        assertEquals(0.02, qTime.getSum(), 1e-9);
+        MetacatMetrics.Histogram solrTime =
+                        metrics.getHistogram(SolrQueryMetrics.SOLR_TIME_METRIC, labels);
+        assertEquals(2, solrTime.getCount());
+        // 0.03s and 2s
+        assertEquals(1, solrTime.getCumulativeCounts()[3]);
+        assertEquals(2, solrTime.getCumulativeCounts()[8]);
+        assertEquals(1, metrics.getHistogram(SolrQueryMetrics.SERIALIZATION_METRIC, labels)
+                               .getCount());
+
+        byte[] body = new byte[5000];
+        InputStream response = queryMetrics.meter(new ByteArrayInputStream(body), query,
+                                                  System.nanoTime(), true);
+        String cachedLabels = labels + "," + MetacatMetrics.label("cached", "true");
+        assertArrayEquals(body, IOUtils.toByteArray(response));
+        assertNull(metrics.getHistogram(SolrQueryMetrics.RESPONSE_SIZE_METRIC, cachedLabels));
+        response.close();
+        response.close();
+        MetacatMetrics.Histogram size =
+                    metrics.getHistogram(SolrQueryMetrics.RESPONSE_SIZE_METRIC, cachedLabels);
+        assertEquals(1, size.getCount());
+        assertEquals(5000, size.getSum(), 0);
+        assertEquals(0, size.getCumulativeCounts()[1]);
+        assertEquals(1, size.getCumulativeCounts()[2]);
+        assertNotNull(metrics.getHistogram(SolrQueryMetrics.QUERY_TIME_METRIC, cachedLabels));
+
+        StringWriter writer = new StringWriter();
+        metrics.writePrometheus(writer);
+        String output = writer.toString();
+        assertTrue(output.contains("# TYPE " + SolrQueryMetrics.RESPONSE_SIZE_METRIC
+                                       + " histogram\n"));
+        assertTrue(output.contains(SolrQueryMetrics.RESPONSE_SIZE_METRIC + "_bucket{"
+                                       + cachedLabels + ",le=\"4096\"} 0\n"));
+        assertTrue(output.contains(SolrQueryMetrics.RESPONSE_SIZE_METRIC + "_bucket{"
+                                       + cachedLabels + ",le=\"+Inf\"} 1\n"));
+        assertTrue(output.contains(SolrQueryMetrics.RESPONSE_SIZE_METRIC + "_sum{"
+                                       + cachedLabels + "} 5000\n"));
+        assertTrue(output.contains(SolrQueryMetrics.QTIME_METRIC + "_count{" + labels + "} 1\n"));
+    }
+
+    /**
+     * Test the shapes beyond the cap are recorded as the other shape
+     */
+    @Test
+    public void testMaxSeries() throws Exception {
+        MetacatMetrics metrics = MetacatMetrics.getInstance();
+        SolrQueryMetrics queryMetrics = new SolrQueryMetrics(metrics, 2);
+        String other = MetacatMetrics.label("shape", SolrQueryMetrics.OTHER) + ","
+                            + MetacatMetrics.label("format", SolrQueryMetrics.OTHER);
+        MetacatMetrics.Histogram before =
+                            metrics.getHistogram(SolrQueryMetrics.SOLR_TIME_METRIC, other);
+        long otherCount = before == null ? 0 : before.getCount();
+        for (int i = 0; i < 5; i++) {
+            ModifiableSolrParams query = new ModifiableSolrParams();
+            query.add("q", "*:*");
+            query.add("testMaxSeries" + i, "x");
+            queryMetrics.observe(query, 1, 1000000L, 0);
+            queryMetrics.observe(query, 1, 1000000L, 0);
+        }
+        assertEquals(6, metrics.getHistogram(SolrQueryMetrics.SOLR_TIME_METRIC, other)
+                               .getCount() - otherCount);
+        String first = MetacatMetrics.label("shape", "q,testMaxSeries0") + ","
+                            + MetacatMetrics.label("format", "xml");
+        assertEquals(2, metrics.getHistogram(SolrQueryMetrics.SOLR_TIME_METRIC, first)
+                               .getCount());
+    }
+}
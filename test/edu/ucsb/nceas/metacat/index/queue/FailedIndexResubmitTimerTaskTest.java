@@ -0,0 +1,257 @@
+package edu.ucsb.nceas.metacat.index.queue;
+
+import edu.ucsb.nceas.LeanTestUtils;
+import edu.ucsb.nceas.metacat.common.index.event.IndexEvent;
+import edu.ucsb.nceas.metacat.index.IndexEventDAO;
+import edu.ucsb.nceas.metacat.metrics.MetacatMetrics;
+import edu.ucsb.nceas.metacat.shared.ServiceException;
+import org.dataone.configuration.Settings;
+import org.dataone.service.types.v1.Identifier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A unit test for the FailedIndexResubmitTimerTask class. The index_event table is replaced by
+ * an in-memory map and RabbitMQ is replaced by a stub which fails intermittently.
+ */
+public class FailedIndexResubmitTimerTaskTest {
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int BATCH_SIZE = 4;
+    private static final long INITIAL_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 3000;
+
+    private Map<String, IndexEvent> table = new ConcurrentHashMap<String, IndexEvent>();
+    private AtomicInteger publishCalls = new AtomicInteger(0);
+    private boolean brokerDown = false;
+    private MockedStatic<IndexEventDAO> daoMock;
+    private MockedStatic<IndexGenerator> generatorMock;
+    private MockedStatic<IndexGeneratorTimerTask> timerTaskMock;
+
+    /**
+     * Set up the in-memory table and the intermittently failing broker stub
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+        LeanTestUtils.initializePropertyService(LeanTestUtils.PropertiesMode.UNIT_TEST);
+        Settings.getConfiguration().setProperty("index.regenerate.failedObject", true);
+        Settings.getConfiguration()
+                    .setProperty("index.regenerate.failedTask.max.attempts", MAX_ATTEMPTS);
+        Settings.getConfiguration()
+                    .setProperty("index.regenerate.failedTask.batch.size", BATCH_SIZE);
+        Settings.getConfiguration()
+                    .setProperty("index.regenerate.failedTask.backoff.initial", INITIAL_BACKOFF);
+        Settings.getConfiguration()
+                    .setProperty("index.regenerate.failedTask.backoff.max", MAX_BACKOFF);
+
+        IndexEventDAO dao = Mockito.mock(IndexEventDAO.class);
+        Mockito.when(dao.getDue(ArgumentMatchers.anyString(), ArgumentMatchers.any(Date.class),
+                                ArgumentMatchers.any(Date.class), ArgumentMatchers.anyInt()))
+                .thenAnswer(invocation -> {
+                    String action = invocation.getArgument(0);
+                    Date now = invocation.getArgument(2);
+                    int limit = invocation.getArgument(3);
+                    List<IndexEvent> due = new ArrayList<IndexEvent>();
+                    for (IndexEvent event : table.values()) {
+                        if (due.size() < limit && event.getAction().equals(action)
+                                && !event.isDeadLetter() && (event.getNextAttempt() == null
+                                || !event.getNextAttempt().after(now))) {
+                            due.add(copy(event));
+                        }
+                    }
+                    return due;
+                });
+        Mockito.doAnswer(invocation -> {
+            Identifier id = invocation.getArgument(0);
+            table.remove(id.getValue());
+            return null;
+        }).when(dao).remove(ArgumentMatchers.any(Identifier.class));
+        Mockito.doAnswer(invocation -> {
+            IndexEvent event = invocation.getArgument(0);
+            table.put(event.getIdentifier().getValue(), copy(event));
+            return null;
+        }).when(dao).updateAttempt(ArgumentMatchers.any(IndexEvent.class));
+        Mockito.when(dao.count(ArgumentMatchers.anyBoolean())).thenAnswer(invocation -> {
+            boolean deadLetter = invocation.getArgument(0);
+            return table.values().stream().filter(e -> e.isDeadLetter() == deadLetter).count();
+        });
+        daoMock = Mockito.mockStatic(IndexEventDAO.class);
+        daoMock.when(IndexEventDAO::getInstance).thenReturn(dao);
+
+        // the broker stub fails on every other call, or always when it is down
+        IndexGenerator broker = Mockito.mock(IndexGenerator.class);
+        Mockito.doAnswer(invocation -> {
+            int call = publishCalls.incrementAndGet();
+            if (brokerDown || call % 2 == 0) {
+                throw new ServiceException("The broker stub failed on the call " + call);
+            }
+            return null;
+        }).when(broker).publish(ArgumentMatchers.any(Identifier.class),
+                                ArgumentMatchers.anyString(), ArgumentMatchers.anyInt());
+        generatorMock = Mockito.mockStatic(IndexGenerator.class);
+        generatorMock.when(IndexGenerator::getInstance).thenReturn(broker);
+        // no system metadata is needed to compute the priority
+        timerTaskMock = Mockito.mockStatic(IndexGeneratorTimerTask.class);
+    }
+
+    /**
+     * Release the static mocks
+     */
+    @After
+    public void tearDown() {
+        timerTaskMock.close();
+        generatorMock.close();
+        daoMock.close();
+    }
+
+    /**
+     * Test the backoff computation
+     */
+    @Test
+    public void testGetBackoff() {
+        assertEquals(1000, FailedIndexResubmitTimerTask.getBackoff(1, 1000, 10000));
+        assertEquals(2000, FailedIndexResubmitTimerTask.getBackoff(2, 1000, 10000));
+        assertEquals(8000, FailedIndexResubmitTimerTask.getBackoff(4, 1000, 10000));
+        assertEquals(10000, FailedIndexResubmitTimerTask.getBackoff(5, 1000, 10000));
+        assertEquals(10000, FailedIndexResubmitTimerTask.getBackoff(1000, 1000, 10000));
+    }
+
+    /**
+     * Test that only a bounded batch is resubmitted, the failed ones are scheduled with a
+     * backoff and the succeeded ones are removed
+     * @throws Exception
+     */
+    @Test
+    public void testIntermittentFailures() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            addEvent("testIntermittentFailures." + i, IndexEvent.CREATE_FAILURE_TO_QUEUE);
+        }
+        long resubmitted = MetacatMetrics.getInstance()
+                                .getCounter(FailedIndexResubmitTimerTask.RESUBMITTED_METRIC);
+        FailedIndexResubmitTimerTask task = new FailedIndexResubmitTimerTask();
+        long start = System.currentTimeMillis();
+        task.run();
+        // only the batch size of events were tried and half of them failed
+        assertEquals(BATCH_SIZE, publishCalls.get());
+        assertEquals(6 - BATCH_SIZE / 2, table.size());
+        assertEquals(resubmitted + BATCH_SIZE / 2, MetacatMetrics.getInstance()
+                                .getCounter(FailedIndexResubmitTimerTask.RESUBMITTED_METRIC));
+        int waiting = 0;
+        for (IndexEvent event : table.values()) {
+            if (event.getAttempts() == 1) {
+                waiting++;
+                assertNotNull(event.getNextAttempt());
+                assertTrue(event.getNextAttempt().getTime() >= start + INITIAL_BACKOFF);
+            } else {
+                assertEquals(0, event.getAttempts());
+                assertNull(event.getNextAttempt());
+            }
+        }
+        assertEquals(BATCH_SIZE / 2, waiting);
+        assertEquals((double) table.size(), MetacatMetrics.getInstance()
+                                .getGauge(FailedIndexResubmitTimerTask.BACKLOG_SIZE_METRIC), 0);
+
+        // the second run only picks up the two events which haven't been tried
+        task.run();
+        assertEquals(BATCH_SIZE + 2, publishCalls.get());
+        assertEquals(3, table.size());
+
+        // make all events due, then they can be tried again
+        for (IndexEvent event : table.values()) {
+            event.setNextAttempt(new Date(start - 1));
+        }
+        task.run();
+        assertEquals(BATCH_SIZE + 5, publishCalls.get());
+        assertEquals(1, table.size());
+        assertFalse(table.values().iterator().next().isDeadLetter());
+    }
+
+    /**
+     * Test that an event is moved to the dead-letter state after the max attempts
+     * @throws Exception
+     */
+    @Test
+    public void testDeadLetter() throws Exception {
+        brokerDown = true;
+        String id = "testDeadLetter." + System.currentTimeMillis();
+        addEvent(id, IndexEvent.DELETE_FAILURE_TO_QUEUE);
+        FailedIndexResubmitTimerTask task = new FailedIndexResubmitTimerTask();
+        long previousBackoff = 0;
+        for (int i = 1; i <= MAX_ATTEMPTS; i++) {
+            long now = System.currentTimeMillis();
+            task.run();
+            IndexEvent event = table.get(id);
+            assertEquals(i, event.getAttempts());
+            if (i < MAX_ATTEMPTS) {
+                assertFalse(event.isDeadLetter());
+                long backoff = event.getNextAttempt().getTime() - now;
+                assertTrue(backoff >= previousBackoff);
+                assertTrue(backoff <= MAX_BACKOFF + 1000);
+                previousBackoff = backoff;
+                event.setNextAttempt(new Date(now - 1));
+            } else {
+                assertTrue(event.isDeadLetter());
+                assertNull(event.getNextAttempt());
+            }
+        }
+        assertEquals(MAX_ATTEMPTS, publishCalls.get());
+        // a dead letter will never be tried again, even if the broker is back
+        brokerDown = false;
+        task.run();
+        assertEquals(MAX_ATTEMPTS, publishCalls.get());
+        assertEquals(1.0, MetacatMetrics.getInstance()
+                        .getGauge(FailedIndexResubmitTimerTask.DEAD_LETTER_SIZE_METRIC), 0);
+        assertEquals(0.0, MetacatMetrics.getInstance()
+                        .getGauge(FailedIndexResubmitTimerTask.BACKLOG_SIZE_METRIC), 0);
+    }
+
+    /**
+     * Add a failed event into the in-memory table
+     * @param id  the identifier of the event
+     * @param action  the failed action
+     */
+    private void addEvent(String id, String action) {
+        Identifier pid = new Identifier();
+        pid.setValue(id);
+        IndexEvent event = new IndexEvent();
+        event.setIdentifier(pid);
+        event.setAction(action);
+        event.setDate(new Date());
+        event.setDescription("Testing the broker stub");
+        table.put(id, event);
+    }
+
+    /**
+     * Copy an event, so the task can't modify the one in the table directly
+     * @param event  the event will be copied
+     * @return a copy of the event
+     */
+    private static IndexEvent copy(IndexEvent event) {
+        IndexEvent copy = new IndexEvent();
+        copy.setIdentifier(event.getIdentifier());
+        copy.setAction(event.getAction());
+        copy.setDate(event.getDate());
+        copy.setDescription(event.getDescription());
+        copy.setAttempts(event.getAttempts());
+        copy.setNextAttempt(event.getNextAttempt());
+        copy.setDeadLetter(event.isDeadLetter());
+        return copy;
+    }
+}
@@ -0,0 +1,98 @@
+package edu.ucsb.nceas.metacat.index.queue;
+
+import edu.ucsb.nceas.LeanTestUtils;
+import edu.ucsb.nceas.metacat.common.query.SolrQueryServiceController;
+import edu.ucsb.nceas.metacat.metrics.MetacatMetrics;
+import edu.ucsb.nceas.metacat.systemmetadata.SystemMetadataManager;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.common.params.SolrParams;
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A unit test for the IndexLagSampler class. Solr and the system metadata are mocked.
+ */
+public class IndexLagSamplerTest {
+    private static final String NOT_FOUND =
+                "<response><result name=\"response\" numFound=\"0\" start=\"0\"/></response>";
+    private static final String FOUND =
+                "<response><result name=\"response\" numFound=\"1\" start=\"0\"/></response>";
+
+    /**
+     * Set up the property service
+     */
+    @Before
+    public void setUp() {
+        LeanTestUtils.initializePropertyService(LeanTestUtils.PropertiesMode.UNIT_TEST);
+    }
+
+    /**
+     * Test that a sampled create task is reported as pending until its solr doc shows up
+     * @throws Exception
+     */
+    @Test
+    public void testSentinel() throws Exception {
+        Identifier pid = new Identifier();
+        pid.setValue("IndexLagSamplerTest." + System.currentTimeMillis());
+        SystemMetadata sysmeta = new SystemMetadata();
+        sysmeta.setIdentifier(pid);
+        sysmeta.setDateSysMetadataModified(new Date());
+        SystemMetadataManager manager = Mockito.mock(SystemMetadataManager.class);
+        Mockito.when(manager.get(ArgumentMatchers.any(Identifier.class))).thenReturn(sysmeta);
+        SolrQueryServiceController solr = Mockito.mock(SolrQueryServiceController.class);
+        Mockito.when(solr.query(ArgumentMatchers.any(SolrParams.class), ArgumentMatchers.isNull(),
+                                ArgumentMatchers.any(SolrRequest.METHOD.class)))
+            .thenAnswer(invocation -> new ByteArrayInputStream(
+                                                NOT_FOUND.getBytes(StandardCharsets.UTF_8)))
+            .thenAnswer(invocation -> new ByteArrayInputStream(
+                                                FOUND.getBytes(StandardCharsets.UTF_8)));
+        try (MockedStatic<SystemMetadataManager> ignored =
+                                            Mockito.mockStatic(SystemMetadataManager.class);
+             MockedStatic<SolrQueryServiceController> ignored2 =
+                                            Mockito.mockStatic(SolrQueryServiceController.class)) {
+            Mockito.when(SystemMetadataManager.getInstance()).thenReturn(manager);
+            Mockito.when(SolrQueryServiceController.getInstance()).thenReturn(solr);
+            IndexLagSampler sampler = IndexLagSampler.getInstance();
+            long found = MetacatMetrics.getInstance()
+                                        .getCounter(IndexLagSampler.SENTINELS_FOUND_METRIC);
+            // a delete task is never sampled
+            sampler.offer(pid, IndexGenerator.DELETE_INDEX_TYPE);
+            sampler.run();
+            Mockito.verify(solr, Mockito.never()).query(ArgumentMatchers.any(SolrParams.class),
+                           ArgumentMatchers.any(), ArgumentMatchers.any(SolrRequest.METHOD.class));
+            // a create task is sampled, but its solr doc isn't there in the first check
+            sampler.offer(pid, IndexGenerator.CREATE_INDEX_TYPE);
+            Thread.sleep(50);
+            sampler.run();
+            assertTrue(MetacatMetrics.getInstance()
+                                    .getGauge(IndexLagSampler.PENDING_LAG_METRIC) > 0);
+            assertEquals(found, MetacatMetrics.getInstance()
+                                    .getCounter(IndexLagSampler.SENTINELS_FOUND_METRIC));
+            // another create task in the same sample interval isn't sampled
+            Identifier other = new Identifier();
+            other.setValue(pid.getValue() + ".other");
+            sampler.offer(other, IndexGenerator.CREATE_INDEX_TYPE);
+            // the solr doc shows up in the second check
+            sampler.run();
+            assertEquals(found + 1, MetacatMetrics.getInstance()
+                                    .getCounter(IndexLagSampler.SENTINELS_FOUND_METRIC));
+            assertTrue(MetacatMetrics.getInstance().getGauge(IndexLagSampler.LAG_METRIC) > 0);
+            assertEquals(0.0, MetacatMetrics.getInstance()
+                                    .getGauge(IndexLagSampler.PENDING_LAG_METRIC), 0);
+            Mockito.verify(solr, Mockito.times(2)).query(ArgumentMatchers.any(SolrParams.class),
+                           ArgumentMatchers.any(), ArgumentMatchers.any(SolrRequest.METHOD.class));
+        }
+    }
+}
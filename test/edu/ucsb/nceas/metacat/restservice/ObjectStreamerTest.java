@@ -0,0 +1,475 @@
+package edu.ucsb.nceas.metacat.restservice;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.dataone.service.types.v1.Checksum;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import edu.ucsb.nceas.metacat.common.storage.ObjectFileInputStream;
+
+/**
+ * A unit test for the ObjectStreamer class. The benchmark sends a 256MB file by default; run it
+ * with -Dstreamer.benchmark.megabytes=4096 to measure larger objects.
+ */
+public class ObjectStreamerTest {
+    private static final String CHECKSUM = "5d41402abc4b2a76b9719d911017c592";
+    private static final Date MODIFIED = new Date(1729332000123L);
+
+    private Path file = null;
+    private byte[] content = new byte[100000];
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(20241019L).nextBytes(content);
+        file = Files.createTempFile("ObjectStreamerTest", null);
+        Files.write(file, content);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Test a file is sent by the channel with the exact Content-Length
+     */
+    @Test
+    public void testSendFile() throws Exception {
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        HttpServletResponse response = mockResponse(body);
+        try (InputStream data = ObjectFileInputStream.open(file)) {
+            long sent = ObjectStreamer.send(data, sysmeta(content.length), request, response);
+            assertEquals(content.length, sent);
+        }
+        Mockito.verify(response).setStatus(HttpServletResponse.SC_OK);
+        Mockito.verify(response).setContentLengthLong(content.length);
+        assertArrayEquals(content, body.toByteArray());
+        // the size of the file wins over a wrong size in the system metadata
+        body.reset();
+        try (InputStream data = ObjectFileInputStream.open(file)) {
+            ObjectStreamer.send(data, sysmeta(10), request, response);
+        }
+        Mockito.verify(response, Mockito.times(2)).setContentLengthLong(content.length);
+        assertArrayEquals(content, body.toByteArray());
+    }
+
+    /**
+     * Test a file is handed to the sendfile of the container when it is supported
+     */
+    @Test
+    public void testSendfile() throws Exception {
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getAttribute(ObjectStreamer.SENDFILE_SUPPORT))
+                                                                    .thenReturn(Boolean.TRUE);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        HttpServletResponse response = mockResponse(body);
+        try (InputStream data = ObjectFileInputStream.open(file)) {
+            ObjectStreamer.send(data, sysmeta(content.length), request, response);
+        }
+        Mockito.verify(response).setContentLengthLong(content.length);
+        Mockito.verify(request).setAttribute(ObjectStreamer.SENDFILE_FILENAME,
+                                             file.toAbsolutePath().toString());
+        Mockito.verify(request).setAttribute(ObjectStreamer.SENDFILE_START, Long.valueOf(0));
+        Mockito.verify(request).setAttribute(ObjectStreamer.SENDFILE_END,
+                                             Long.valueOf(content.length));
+        assertEquals(0, body.size());
+    }
+
+    /**
+     * Test a stream which isn't a file is copied with the size from the system metadata
+     */
+    @Test
+    public void testSendStream() throws Exception {
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        HttpServletResponse response = mockResponse(body);
+        ObjectStreamer.send(new ByteArrayInputStream(content), sysmeta(content.length), request,
+                            response);
+        Mockito.verify(response).setContentLengthLong(content.length);
+        assertArrayEquals(content, body.toByteArray());
+        // no Content-Length without a size
+        body.reset();
+        SystemMetadata sysmeta = sysmeta(content.length);
+        sysmeta.setSize(null);
+        ObjectStreamer.send(new ByteArrayInputStream(content), sysmeta, request, response);
+        Mockito.verify(response, Mockito.times(1)).setContentLengthLong(Mockito.anyLong());
+        assertArrayEquals(content, body.toByteArray());
+    }
+
+    /**
+     * Test the ETag and the 304 responses of the conditional requests
+     */
+    @Test
+    public void testIsNotModified() throws Exception {
+        SystemMetadata sysmeta = sysmeta(content.length);
+        String etag = "\"MD5:" + CHECKSUM + "\"";
+        assertEquals(etag, ObjectStreamer.getETag(sysmeta.getChecksum()));
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getDateHeader(Mockito.anyString())).thenReturn(-1L);
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        assertFalse(ObjectStreamer.isNotModified(sysmeta, request, response));
+        Mockito.verify(response).setHeader("ETag", etag);
+        Mockito.verify(response).setDateHeader("Last-Modified", MODIFIED.getTime());
+        Mockito.verify(response).setHeader("Accept-Ranges", "bytes");
+        Mockito.verify(response, Mockito.never()).setStatus(Mockito.anyInt());
+
+        Mockito.when(request.getHeader("If-None-Match")).thenReturn("\"SHA-1:abc\", W/" + etag);
+        response = Mockito.mock(HttpServletResponse.class);
+        assertTrue(ObjectStreamer.isNotModified(sysmeta, request, response));
+        Mockito.verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        Mockito.when(request.getHeader("If-None-Match")).thenReturn("*");
+        assertTrue(ObjectStreamer.isNotModified(sysmeta, request, response));
+        // If-Modified-Since is ignored when If-None-Match is present
+        Mockito.when(request.getHeader("If-None-Match")).thenReturn("\"SHA-1:abc\"");
+        Mockito.when(request.getDateHeader("If-Modified-Since"))
+                                                        .thenReturn(MODIFIED.getTime() + 1000);
+        assertFalse(ObjectStreamer.isNotModified(sysmeta, request, response));
+
+        Mockito.when(request.getHeader("If-None-Match")).thenReturn(null);
+        assertTrue(ObjectStreamer.isNotModified(sysmeta, request, response));
+        // the milliseconds are not in an HTTP date
+        Mockito.when(request.getDateHeader("If-Modified-Since"))
+                                                    .thenReturn(MODIFIED.getTime() / 1000 * 1000);
+        assertTrue(ObjectStreamer.isNotModified(sysmeta, request, response));
+        Mockito.when(request.getDateHeader("If-Modified-Since"))
+                                                        .thenReturn(MODIFIED.getTime() - 1000);
+        assertFalse(ObjectStreamer.isNotModified(sysmeta, request, response));
+        Mockito.when(request.getDateHeader("If-Modified-Since"))
+                                            .thenThrow(new IllegalArgumentException("bad date"));
+        assertFalse(ObjectStreamer.isNotModified(sysmeta, request, response));
+    }
+
+    /**
+     * Test the parsing of the Range headers
+     */
+    @Test
+    public void testParseRanges() throws Exception {
+        long length = 10000;
+        assertNull(ObjectStreamer.parseRanges(null, length));
+        assertRanges(ObjectStreamer.parseRanges("bytes=0-499", length), 0, 499);
+        assertRanges(ObjectStreamer.parseRanges("BYTES= 500-999 ", length), 500, 999);
+        assertRanges(ObjectStreamer.parseRanges("bytes=9500-", length), 9500, 9999);
+        assertRanges(ObjectStreamer.parseRanges("bytes=-500", length), 9500, 9999);
+        // the last position and the suffix are limited by the length
+        assertRanges(ObjectStreamer.parseRanges("bytes=9000-20000", length), 9000, 9999);
+        assertRanges(ObjectStreamer.parseRanges("bytes=-20000", length), 0, 9999);
+        assertRanges(ObjectStreamer.parseRanges("bytes=0-0,-1", length), 0, 0, 9999, 9999);
+        // the unsatisfiable ranges are dropped
+        assertRanges(ObjectStreamer.parseRanges("bytes=10000-,0-9", length), 0, 9);
+        assertTrue(ObjectStreamer.parseRanges("bytes=10000-10001", length).isEmpty());
+        assertTrue(ObjectStreamer.parseRanges("bytes=-0", length).isEmpty());
+        assertTrue(ObjectStreamer.parseRanges("bytes=0-", 0).isEmpty());
+        assertTrue(ObjectStreamer.parseRanges("bytes=-5", 0).isEmpty());
+        // the invalid headers are ignored
+        assertNull(ObjectStreamer.parseRanges("items=0-10", length));
+        assertNull(ObjectStreamer.parseRanges("bytes=", length));
+        assertNull(ObjectStreamer.parseRanges("bytes=-", length));
+        assertNull(ObjectStreamer.parseRanges("bytes=500-100", length));
+        assertNull(ObjectStreamer.parseRanges("bytes=a-b", length));
+        assertNull(ObjectStreamer.parseRanges("bytes=0-10,,20-30", length));
+        assertNull(ObjectStreamer.parseRanges("bytes=+1-5", length));
+        assertNull(ObjectStreamer.parseRanges("bytes=99999999999999999999-", length));
+        StringBuilder many = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= ObjectStreamer.MAX_RANGES; i++) {
+            many.append(",").append(i * 2).append("-").append(i * 2);
+        }
+        assertNull(ObjectStreamer.parseRanges(many.toString(), length));
+    }
+
+    /**
+     * Test the single range, unsatisfiable and If-Range responses
+     */
+    @Test
+    public void testSendRange() throws Exception {
+        SystemMetadata sysmeta = sysmeta(content.length);
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getHeader("Range")).thenReturn("bytes=1000-1099");
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        HttpServletResponse response = mockResponse(body);
+        try (InputStream data = ObjectFileInputStream.open(file)) {
+            assertEquals(100, ObjectStreamer.send(data, sysmeta, request, response));
+        }
+        Mockito.verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        Mockito.verify(response).setHeader("Content-Range", "bytes 1000-1099/" + content.length);
+        Mockito.verify(response).setContentLengthLong(100);
+        assertArrayEquals(Arrays.copyOfRange(content, 1000, 1100), body.toByteArray());
+
+        // the sendfile gets the same range
+        Mockito.when(request.getAttribute(ObjectStreamer.SENDFILE_SUPPORT))
+                                                                    .thenReturn(Boolean.TRUE);
+        try (InputStream data = ObjectFileInputStream.open(file)) {
+            ObjectStreamer.send(data, sysmeta, request, response);
+        }
+        Mockito.verify(request).setAttribute(ObjectStreamer.SENDFILE_START, Long.valueOf(1000));
+        Mockito.verify(request).setAttribute(ObjectStreamer.SENDFILE_END, Long.valueOf(1100));
+        Mockito.when(request.getAttribute(ObjectStreamer.SENDFILE_SUPPORT)).thenReturn(null);
+
+        // unsatisfiable
+        Mockito.when(request.getHeader("Range")).thenReturn("bytes=" + content.length + "-");
+        body.reset();
+        response = mockResponse(body);
+        try (InputStream data = ObjectFileInputStream.open(file)) {
+            assertEquals(0, ObjectStreamer.send(data, sysmeta, request, response));
+        }
+        Mockito.verify(response).setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        Mockito.verify(response).setHeader("Content-Range", "bytes */" + content.length);
+        assertEquals(0, body.size());
+
+        // the whole object is sent if If-Range doesn't match
+        Mockito.when(request.getHeader("Range")).thenReturn("bytes=0-9");
+        Mockito.when(request.getHeader("If-Range")).thenReturn("\"MD5:other\"");
+        body.reset();
+        response = mockResponse(body);
+        try (InputStream data = ObjectFileInputStream.open(file)) {
+            assertEquals(content.length, ObjectStreamer.send(data, sysmeta, request, response));
+        }
+        Mockito.verify(response).setStatus(HttpServletResponse.SC_OK);
+        assertArrayEquals(content, body.toByteArray());
+        // a weak tag never matches If-Range
+        String etag = ObjectStreamer.getETag(sysmeta.getChecksum());
+        Mockito.when(request.getHeader("If-Range")).thenReturn("W/" + etag);
+        body.reset();
+        try (InputStream data = ObjectFileInputStream.open(file)) {
+            assertEquals(content.length, ObjectStreamer.send(data, sysmeta, request, response));
+        }
+        Mockito.when(request.getHeader("If-Range")).thenReturn(etag);
+        body.reset();
+        try (InputStream data = ObjectFileInputStream.open(file)) {
+            assertEquals(10, ObjectStreamer.send(data, sysmeta, request, response));
+        }
+        // the date of If-Range must be the Last-Modified date
+        Mockito.when(request.getHeader("If-Range")).thenReturn("Sat, 19 Oct 2024 10:00:00 GMT");
+        Mockito.when(request.getDateHeader("If-Range")).thenReturn(MODIFIED.getTime());
+        try (InputStream data = ObjectFileInputStream.open(file)) {
+            assertEquals(10, ObjectStreamer.send(data, sysmeta, request, response));
+        }
+        Mockito.when(request.getDateHeader("If-Range")).thenReturn(MODIFIED.getTime() - 5000);
+        try (InputStream data = ObjectFileInputStream.open(file)) {
+            assertEquals(content.length, ObjectStreamer.send(data, sysmeta, request, response));
+        }
+
+        // a stream which isn't a file is sent whole
+        Mockito.when(request.getHeader("If-Range")).thenReturn(null);
+        body.reset();
+        assertEquals(content.length, ObjectStreamer.send(new ByteArrayInputStream(content),
+                                                         sysmeta, request, response));
+        assertArrayEquals(content, body.toByteArray());
+    }
+
+    /**
+     * Test a multipart/byteranges response
+     */
+    @Test
+    public void testSendMultipleRanges() throws Exception {
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getHeader("Range")).thenReturn("bytes=0-9, 500-519, -5");
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        HttpServletResponse response = mockResponse(body);
+        Mockito.when(response.getContentType()).thenReturn("application/octet-stream");
+        try (InputStream data = ObjectFileInputStream.open(file)) {
+            assertEquals(35, ObjectStreamer.send(data, sysmeta(content.length), request,
+                                                 response));
+        }
+        Mockito.verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        ArgumentCaptor<String> type = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(response).setContentType(type.capture());
+        assertTrue(type.getValue(), type.getValue().startsWith("multipart/byteranges; boundary="));
+        String boundary = type.getValue().substring(type.getValue().indexOf('=') + 1);
+        Mockito.verify(response).setContentLengthLong(body.size());
+        // the parts are read back byte by byte, since they are binary
+        byte[] bytes = body.toByteArray();
+        int position = 0;
+        long[][] ranges = {{0, 9}, {500, 519}, {content.length - 5, content.length - 1}};
+        for (long[] range : ranges) {
+            String header = "\r\n--" + boundary + "\r\nContent-Type: application/octet-stream"
+                               + "\r\nContent-Range: bytes " + range[0] + "-" + range[1] + "/"
+                               + content.length + "\r\n\r\n";
+            assertEquals(header, new String(bytes, position, header.length(),
+                                            StandardCharsets.US_ASCII));
+            position += header.length();
+            int count = (int) (range[1] - range[0] + 1);
+            assertArrayEquals(Arrays.copyOfRange(content, (int) range[0], (int) range[1] + 1),
+                              Arrays.copyOfRange(bytes, position, position + count));
+            position += count;
+        }
+        assertEquals("\r\n--" + boundary + "--\r\n",
+                     new String(bytes, position, bytes.length - position,
+                                StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Measure the bytes saved when interrupted downloads are resumed with a Range header
+     * instead of being restarted
+     */
+    @Test
+    public void testResume() throws Exception {
+        SystemMetadata sysmeta = sysmeta(content.length);
+        String etag = ObjectStreamer.getETag(sysmeta.getChecksum());
+        long restarted = 0;
+        long resumed = 0;
+        for (int percent = 10; percent <= 90; percent += 10) {
+            long received = content.length * percent / 100;
+            HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+            Mockito.when(request.getHeader("Range")).thenReturn("bytes=" + received + "-");
+            Mockito.when(request.getHeader("If-Range")).thenReturn(etag);
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            HttpServletResponse response = mockResponse(body);
+            try (InputStream data = ObjectFileInputStream.open(file)) {
+                resumed += ObjectStreamer.send(data, sysmeta, request, response);
+            }
+            assertArrayEquals(Arrays.copyOfRange(content, (int) received, content.length),
+                              body.toByteArray());
+            restarted += content.length;
+        }
+        System.out.println("ObjectStreamerTest.testResume - resuming the downloads interrupted "
+                            + "at 10% to 90% sent " + resumed + " bytes instead of " + restarted
+                            + " bytes, " + (restarted - resumed) * 100 / restarted + "% less");
+        assertEquals(restarted / 2, resumed);
+    }
+
+    /**
+     * Test a part of a file is transferred and a truncated file is detected
+     */
+    @Test
+    public void testTransfer() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ObjectFileInputStream data = ObjectFileInputStream.open(file)) {
+            assertEquals(100, ObjectStreamer.transfer(data.getChannel(), 500, 100, out));
+            byte[] expected = new byte[100];
+            System.arraycopy(content, 500, expected, 0, 100);
+            assertArrayEquals(expected, out.toByteArray());
+            try {
+                ObjectStreamer.transfer(data.getChannel(), content.length - 10, 20, out);
+                fail("The transfer should fail since the file ends");
+            } catch (EOFException e) {
+                assertEquals(110, out.size());
+            }
+        }
+    }
+
+    /**
+     * Compare the throughput and the CPU time per GB of FileChannel.transferTo and the copy loop
+     * on the heap
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        long megabytes = Long.getLong("streamer.benchmark.megabytes", 256);
+        Path large = Files.createTempFile("ObjectStreamerBenchmark", null);
+        try {
+            byte[] block = new byte[1024 * 1024];
+            new Random(20241019L).nextBytes(block);
+            try (OutputStream out = Files.newOutputStream(large)) {
+                for (long i = 0; i < megabytes; i++) {
+                    out.write(block);
+                }
+            }
+            long size = megabytes * block.length;
+            // warm up the file cache and both code paths
+            copy(large, size, true);
+            copy(large, size, false);
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            for (boolean channel : new boolean[] {false, true}) {
+                long cpu = bean.getCurrentThreadCpuTime();
+                long start = System.nanoTime();
+                assertEquals(size, copy(large, size, channel));
+                long wall = System.nanoTime() - start;
+                cpu = bean.getCurrentThreadCpuTime() - cpu;
+                double gigabytes = size / (1024.0 * 1024 * 1024);
+                System.out.println("ObjectStreamerTest.testBenchmark - "
+                        + (channel ? "FileChannel.transferTo" : "IOUtils.copyLarge") + " sent "
+                        + megabytes + " MB at " + (long) (megabytes * 1e9 / wall) + " MB/s with "
+                        + (long) (cpu / 1e6 / gigabytes) + " ms of CPU per GB");
+            }
+        } finally {
+            Files.deleteIfExists(large);
+        }
+    }
+
+    private static long copy(Path large, long size, boolean channel) throws IOException {
+        OutputStream out = OutputStream.nullOutputStream();
+        try (ObjectFileInputStream data = ObjectFileInputStream.open(large)) {
+            if (channel) {
+                return ObjectStreamer.transfer(data.getChannel(), 0, size, out);
+            }
+            return IOUtils.copyLarge(data, out);
+        }
+    }
+
+    private static SystemMetadata sysmeta(long size) {
+        SystemMetadata sysmeta = new SystemMetadata();
+        sysmeta.setSize(BigInteger.valueOf(size));
+        Checksum checksum = new Checksum();
+        checksum.setAlgorithm("md5");
+        checksum.setValue(CHECKSUM.toUpperCase());
+        sysmeta.setChecksum(checksum);
+        sysmeta.setDateSysMetadataModified(MODIFIED);
+        return sysmeta;
+    }
+
+    private static void assertRanges(List<long[]> ranges, long... positions) {
+        assertEquals(positions.length / 2, ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            assertEquals(positions[i * 2], ranges.get(i)[0]);
+            assertEquals(positions[i * 2 + 1], ranges.get(i)[1]);
+        }
+    }
+
+    private static HttpServletResponse mockResponse(OutputStream body) throws IOException {
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        Mockito.when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                body.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                body.write(b, off, len);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener listener) {
+            }
+        });
+        return response;
+    }
+}
@@ -26,6 +26,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -181,6 +182,9 @@ public class StreamingMultipartRequestResolverTest extends D1NodeServiceTest {
         assertTrue(savedChecksum.getAlgorithm().equals(algorithm));
         assertTrue(savedChecksum.getValue().equalsIgnoreCase(sysmeta.getChecksum().getValue()));
         assertTrue(savedChecksum.getValue().equalsIgnoreCase(calculatedChecksum.getValue()));
+        // the common algorithms are calculated in the same pass
+        assertTrue(savedFile.getChecksums().keySet().containsAll(
+                                                Arrays.asList("MD5", "SHA-1", "SHA-256")));
     }
     
     
@@ -0,0 +1,189 @@
+package edu.ucsb.nceas.metacat.service;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.xerces.xni.grammars.Grammar;
+import org.apache.xerces.xni.grammars.XMLGrammarDescription;
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLReaderFactory;
+
+import edu.ucsb.nceas.LeanTestUtils;
+import edu.ucsb.nceas.metacat.DBSAXHandler;
+import edu.ucsb.nceas.metacat.DocumentImpl;
+import edu.ucsb.nceas.metacat.properties.PropertyService;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The test class of SchemaParserPool
+ * @author tao
+ */
+public class SchemaParserPoolIT {
+    private static final String test_eml_file = "test/eml-2.2.0.xml";
+    private static final String eml_format = "https://eml.ecoinformatics.org/eml-2.2.0";
+    private String parserName;
+    private String schemaLocation;
+    private String eml;
+
+    /**
+     * Setup
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+        LeanTestUtils.initializePropertyService(LeanTestUtils.PropertiesMode.UNIT_TEST);
+        parserName = PropertyService.getProperty("xml.saxparser");
+        schemaLocation = XMLSchemaService.getInstance()
+                    .findNamespaceAndSchemaLocalLocation(eml_format,
+                                                         DocumentImpl.EML2_2_0NAMESPACE);
+        eml = FileUtils.readFileToString(new File(test_eml_file), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Test that the grammar pool is preloaded with the EML schemas
+     * @throws Exception
+     */
+    @Test
+    public void testGetGrammarPool() throws Exception {
+        Grammar[] grammars = SchemaParserPool.getInstance()
+                                .getGrammarPool(schemaLocation, false, false)
+                                .retrieveInitialGrammarSet(XMLGrammarDescription.XML_SCHEMA);
+        Set<String> namespaces = new HashSet<String>();
+        for (Grammar grammar : grammars) {
+            namespaces.add(grammar.getGrammarDescription().getNamespace());
+        }
+        assertTrue("The grammar of EML 2.2.0 should be preloaded",
+                   namespaces.contains(DocumentImpl.EML2_2_0NAMESPACE));
+        assertTrue("The imported grammars should be preloaded as well", namespaces.size() > 1);
+    }
+
+    /**
+     * Test that the released parsers are reused until the schema registry is reloaded
+     * @throws Exception
+     */
+    @Test
+    public void testReuse() throws Exception {
+        SchemaParserPool pool = SchemaParserPool.getInstance();
+        XMLReader parser = pool.getParser(parserName, schemaLocation, false, false);
+        XMLReader another = pool.getParser(parserName, schemaLocation, false, false);
+        assertNotSame("A borrowed parser shouldn't be handed out again", parser, another);
+        pool.release(another);
+        pool.release(parser);
+        XMLReader reused = pool.getParser(parserName, schemaLocation, false, false);
+        assertTrue("A released parser should be reused", reused == parser || reused == another);
+        XMLReader fullChecking = pool.getParser(parserName, schemaLocation, false, true);
+        assertTrue(fullChecking != parser && fullChecking != another);
+        pool.release(fullChecking);
+        pool.release(reused);
+        // a parser released after the registry is reloaded is dropped
+        XMLReader old = pool.getParser(parserName, schemaLocation, false, false);
+        XMLSchemaService.getInstance().doRefresh();
+        pool.release(old);
+        XMLReader fresh = pool.getParser(parserName, schemaLocation, false, false);
+        assertTrue(fresh != parser && fresh != another && fresh != old);
+        pool.release(fresh);
+        assertSame(fresh, pool.getParser(parserName, schemaLocation, false, false));
+        pool.release(fresh);
+    }
+
+    /**
+     * Test that a reused parser still rejects the invalid documents
+     * @throws Exception
+     */
+    @Test
+    public void testValidate() throws Exception {
+        String invalid = eml.replaceFirst("<title>", "<title1>")
+                            .replaceFirst("</title>", "</title1>");
+        for (int i = 0; i < 3; i++) {
+            validate(eml);
+            try {
+                validate(invalid);
+                fail("Test can't reach here since the eml object is invalid");
+            } catch (SAXException e) {
+                assertTrue("The message should say the element title1 is incorrect",
+                           e.getMessage().contains("title1"));
+            }
+        }
+    }
+
+    /**
+     * Compare the throughput of validating EML 2.2.0 documents with the pooled parsers and
+     * the new parsers compiling the schemas every time
+     * @throws Exception
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        final int docs = Integer.getInteger("schemaParserPool.benchmark.docs", 200);
+        for (boolean pooled : new boolean[] {false, true}) {
+            for (int threads : new int[] {1, 8}) {
+                // warm up
+                benchmark(pooled, 1, threads);
+                long start = System.nanoTime();
+                benchmark(pooled, docs, threads);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.println("SchemaParserPoolIT.testBenchmark - "
+                                    + (pooled ? "pooled parsers" : "new parsers") + " with "
+                                    + threads + " thread(s) validated " + (long) (docs / seconds)
+                                    + " EML 2.2.0 documents per second");
+            }
+        }
+    }
+
+    private void benchmark(boolean pooled, int docs, int threads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        try {
+            for (int i = 0; i < docs; i++) {
+                results.add(executor.submit(() -> {
+                    if (pooled) {
+                        validate(eml);
+                    } else {
+                        XMLReader parser = XMLReaderFactory.createXMLReader(parserName);
+                        parser.setFeature(DocumentImpl.VALIDATIONFEATURE, true);
+                        parser.setFeature(DocumentImpl.NAMESPACEFEATURE, true);
+                        parser.setFeature(DocumentImpl.SCHEMAVALIDATIONFEATURE, true);
+                        parser.setProperty(DocumentImpl.EXTERNALSCHEMALOCATIONPROPERTY,
+                                           schemaLocation);
+                        parser.setErrorHandler(new DBSAXHandler());
+                        parser.parse(new InputSource(new StringReader(eml)));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get(5, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void validate(String doc) throws Exception {
+        XMLReader parser = DocumentImpl.initializeParser(new Vector<XMLSchema>(), null,
+                                         DocumentImpl.EML210, true, schemaLocation);
+        try {
+            parser.parse(new InputSource(new StringReader(doc)));
+        } finally {
+            DocumentImpl.releaseParser(parser);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package edu.ucsb.nceas.metacat.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Vector;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.LeanTestUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The test class of XMLPrologParser
+ * @author tao
+ */
+public class XMLPrologParserTest {
+    private static final String XSI = "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"";
+
+    /**
+     * Setup
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+        LeanTestUtils.initializePropertyService(LeanTestUtils.PropertiesMode.UNIT_TEST);
+    }
+
+    /**
+     * Test a document validated by a DTD
+     * @throws Exception
+     */
+    @Test
+    public void testDTD() throws Exception {
+        XMLPrologParser prolog = parse("test/jones.204.22.xml");
+        assertTrue(prolog.hasExternalDTD());
+        assertEquals("-//ecoinformatics.org//eml-dataset-2.0.0beta6//EN", prolog.getPublicId());
+        assertEquals("http://metacat.nceas.ucsb.edu/metacat/dtd/eml-dataset-2.0.0beta6.dtd",
+                     prolog.getSystemId());
+        assertEquals("dataset", prolog.getRootElement());
+        assertNull(prolog.getNamespace());
+        // a system id only, after a comment and without the xml declaration
+        prolog = parse("<!-- comment --><!DOCTYPE root SYSTEM 'root.dtd'><root/>");
+        assertTrue(prolog.hasExternalDTD());
+        assertNull(prolog.getPublicId());
+        assertEquals("root.dtd", prolog.getSystemId());
+        // a commented DOCTYPE and an internal subset only are not DTD validated
+        prolog = parse("<!-- <!DOCTYPE root SYSTEM 'root.dtd'> --><root/>");
+        assertFalse(prolog.hasExternalDTD());
+        prolog = parse("<!DOCTYPE root [<!ELEMENT root EMPTY>]><root/>");
+        assertFalse(prolog.hasExternalDTD());
+    }
+
+    /**
+     * Test documents with namespaces and schema locations
+     * @throws Exception
+     */
+    @Test
+    public void testNamespace() throws Exception {
+        XMLPrologParser prolog = parse("test/eml-2.2.0.xml");
+        assertFalse(prolog.hasExternalDTD());
+        assertEquals("eml", prolog.getRootElement());
+        assertEquals("https://eml.ecoinformatics.org/eml-2.2.0", prolog.getNamespace());
+        assertEquals("https://eml.ecoinformatics.org/eml-2.2.0 eml.xsd",
+                     prolog.getSchemaLocation());
+        Vector<XMLSchema> schemas = prolog.getSchemaList();
+        assertEquals(1, schemas.size());
+        assertEquals("https://eml.ecoinformatics.org/eml-2.2.0",
+                     schemas.get(0).getFileNamespace());
+        assertNull(prolog.getNoNamespaceSchemaLocation());
+
+        prolog = parse("<root xmlns=\"urn:a\" " + XSI + " xsi:schemaLocation=\"urn:a\n a.xsd  "
+                       + "urn:b b.xsd\"><child/></root>");
+        assertEquals("urn:a", prolog.getNamespace());
+        assertEquals(2, prolog.getSchemaList().size());
+
+        prolog = parse("<root " + XSI + " xsi:schemaLocation=\"urn:a a.xsd urn:b\"/>");
+        try {
+            prolog.getSchemaList();
+            fail("Test can't reach here since the schema location has an odd number of uris");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Odd number"));
+        }
+    }
+
+    /**
+     * Test a document without a namespace
+     * @throws Exception
+     */
+    @Test
+    public void testNoNamespace() throws Exception {
+        XMLPrologParser prolog = parse("test/fgdc.xml");
+        assertFalse(prolog.hasExternalDTD());
+        assertNull(prolog.getNamespace());
+        assertTrue(prolog.getNoNamespaceSchemaLocation() != null);
+        assertTrue(prolog.getSchemaList().isEmpty());
+        prolog = parse("<root><title>title1</title></root>");
+        assertNull(prolog.getNamespace());
+        assertNull(prolog.getNoNamespaceSchemaLocation());
+        assertNull(prolog.getSchemaLocation());
+    }
+
+    /**
+     * Test that the parser stops after the root start tag, so the rest of the document is
+     * neither read nor checked
+     * @throws Exception
+     */
+    @Test
+    public void testStopAfterRootElement() throws Exception {
+        CountingInputStream body = new CountingInputStream();
+        InputStream xml = new SequenceInputStream(new ByteArrayInputStream(
+                        "<root xmlns=\"urn:a\">".getBytes(StandardCharsets.UTF_8)), body);
+        XMLPrologParser prolog = XMLPrologParser.parse(xml);
+        assertEquals("urn:a", prolog.getNamespace());
+        assertTrue("Only a buffer of the body should be read, not " + body.read,
+                   body.read <= 64 * 1024);
+        try {
+            parse("<root xmlns=\"urn:a\" attr=\"unclosed><child/></root>");
+            fail("Test can't reach here since the root start tag isn't well-formed");
+        } catch (XMLStreamException e) {
+            assertTrue(e.getMessage() != null);
+        }
+    }
+
+    private static XMLPrologParser parse(String fileOrXml) throws Exception {
+        if (fileOrXml.startsWith("<")) {
+            return XMLPrologParser.parse(
+                            new ByteArrayInputStream(fileOrXml.getBytes(StandardCharsets.UTF_8)));
+        }
+        try (InputStream in = new FileInputStream(fileOrXml)) {
+            return XMLPrologParser.parse(in);
+        }
+    }
+
+    /**
+     * An endless stream of child elements which counts the bytes read
+     */
+    private static class CountingInputStream extends InputStream {
+        private static final byte[] CHILD = "<child>text</child>".getBytes(StandardCharsets.UTF_8);
+        private long read = 0;
+
+        @Override
+        public int read() {
+            return CHILD[(int) (read++ % CHILD.length)];
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            for (int i = 0; i < length; i++) {
+                buffer[offset + i] = CHILD[(int) (read++ % CHILD.length)];
+            }
+            return length;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package edu.ucsb.nceas.metacat.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.dataone.service.types.v1.Checksum;
+import org.junit.Test;
+
+/**
+ * A unit test for the ChecksumCalculator class
+ */
+public class ChecksumCalculatorTest {
+    private static final byte[] CONTENT = "hello".getBytes(StandardCharsets.UTF_8);
+    private static final String MD5 = "5d41402abc4b2a76b9719d911017c592";
+    private static final String SHA1 = "aaf4c61ddcc5e8a2dabede0f3b482cd9aea9434d";
+    private static final String SHA256 =
+                        "2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824";
+
+    /**
+     * Test the common algorithms are calculated in one read of a stream
+     */
+    @Test
+    public void testWrapInputStream() throws Exception {
+        ChecksumCalculator calculator = new ChecksumCalculator();
+        try (InputStream in = calculator.wrap(new ByteArrayInputStream(CONTENT))) {
+            assertEquals(CONTENT.length, IOUtils.toByteArray(in).length);
+        }
+        Map<String, String> checksums = calculator.getChecksums();
+        assertEquals(3, checksums.size());
+        assertEquals(MD5, checksums.get(ChecksumCalculator.MD5));
+        assertEquals(SHA1, checksums.get(ChecksumCalculator.SHA_1));
+        assertEquals(SHA256, checksums.get(ChecksumCalculator.SHA_256));
+        // the values are kept after the digests are completed
+        assertEquals(SHA256, calculator.getChecksums().get(ChecksumCalculator.SHA_256));
+        assertNull(calculator.getChecksum("SHA-512"));
+    }
+
+    /**
+     * Test a declared algorithm is added and found by its other spellings
+     */
+    @Test
+    public void testWrapOutputStream() throws Exception {
+        ChecksumCalculator calculator = new ChecksumCalculator("sha512", "SHA1", null);
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        try (OutputStream out = calculator.wrap(target)) {
+            out.write(CONTENT);
+        }
+        assertEquals("hello", target.toString(StandardCharsets.UTF_8));
+        assertEquals(4, calculator.getChecksums().size());
+        Checksum checksum = calculator.getChecksum("sha1");
+        assertEquals("sha1", checksum.getAlgorithm());
+        assertEquals(SHA1, checksum.getValue());
+        assertEquals(128, calculator.getChecksum("SHA-512").getValue().length());
+        assertEquals(SHA256, ChecksumCalculator.getChecksum(calculator.getChecksums(), "SHA256")
+                                                                                .getValue());
+        assertNull(ChecksumCalculator.getChecksum(null, "MD5"));
+    }
+
+    /**
+     * Test the normalization of the algorithm names
+     */
+    @Test
+    public void testNormalize() throws Exception {
+        assertEquals("MD5", ChecksumCalculator.normalize("md5"));
+        assertEquals("SHA-1", ChecksumCalculator.normalize("SHA1"));
+        assertEquals("SHA-256", ChecksumCalculator.normalize(" sha-256 "));
+        assertEquals("SHA-256", ChecksumCalculator.normalize("sha256"));
+    }
+}
@@ -0,0 +1,251 @@
+package edu.ucsb.nceas.metacat.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.metacat.common.storage.FlatObjectStore;
+import edu.ucsb.nceas.metacat.common.storage.ObjectStore;
+import edu.ucsb.nceas.metacat.common.storage.ShardedObjectStore;
+
+/**
+ * A unit test for the ShardedObjectStore and ObjectStoreMigrator classes. The benchmark creates
+ * and reads 10,000 objects by default; run it with -Dstorage.benchmark.objects=5000000 to
+ * measure the latencies at 5M objects.
+ */
+public class ShardedObjectStoreTest {
+    private static final String CONTENT = "<eml>the same content</eml>";
+
+    private Path dir = null;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("ShardedObjectStoreTest");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir.toFile());
+    }
+
+    /**
+     * Test the objects are put in two levels of shard directories and never overwritten
+     */
+    @Test
+    public void testPutAndOpen() throws Exception {
+        ShardedObjectStore store = new ShardedObjectStore(dir, true);
+        Path file = store.put("autogen.1.1", stream(CONTENT));
+        assertEquals(file, store.getPath("autogen.1.1"));
+        String relative = store.getRelativePath("autogen.1.1");
+        assertTrue(relative, relative.matches("[0-9a-f]{2}/[0-9a-f]{2}/autogen\\.1\\.1"));
+        assertEquals(CONTENT, read(store, "autogen.1.1"));
+        try {
+            store.put("autogen.1.1", stream("other"));
+            fail("An existing object can't be overwritten");
+        } catch (FileAlreadyExistsException e) {
+            assertEquals(CONTENT, read(store, "autogen.1.1"));
+        }
+        try {
+            store.open("autogen.2.1");
+            fail("A missing object can't be opened");
+        } catch (NoSuchFileException e) {
+            assertFalse(Files.exists(store.getPath("autogen.2.1")));
+        }
+        assertEquals(0, countFiles(dir.resolve(ShardedObjectStore.TEMP_DIR)));
+    }
+
+    /**
+     * Test the objects with the same content share one file, which is removed with the last one
+     */
+    @Test
+    public void testDeduplication() throws Exception {
+        ShardedObjectStore store = new ShardedObjectStore(dir, true);
+        store.put("autogen.1.1", stream(CONTENT));
+        Path temp = Files.createTempFile(dir, "upload", null);
+        Files.writeString(temp, CONTENT);
+        store.putFile("autogen.2.1", temp);
+        assertFalse(Files.exists(temp));
+        store.put("autogen.3.1", stream("different"));
+        assertTrue(Files.isSameFile(store.getPath("autogen.1.1"), store.getPath("autogen.2.1")));
+        assertEquals(1, store.getReferenceCount("autogen.1.1"));
+        assertEquals(0, store.getReferenceCount("autogen.3.1"));
+        assertEquals(2, countFiles(dir.resolve(ShardedObjectStore.CONTENT_DIR)));
+
+        assertTrue(store.delete("autogen.1.1"));
+        assertFalse(store.delete("autogen.1.1"));
+        assertEquals(CONTENT, read(store, "autogen.2.1"));
+        assertEquals(0, store.getReferenceCount("autogen.2.1"));
+        assertEquals(2, countFiles(dir.resolve(ShardedObjectStore.CONTENT_DIR)));
+        assertTrue(store.delete("autogen.2.1"));
+        assertTrue(store.delete("autogen.3.1"));
+        assertEquals(0, countFiles(dir.resolve(ShardedObjectStore.CONTENT_DIR)));
+        // the content can be stored again
+        store.put("autogen.4.1", stream(CONTENT));
+        assertEquals(CONTENT, read(store, "autogen.4.1"));
+    }
+
+    /**
+     * Test the objects of the flat layout are readable before and after the migration
+     */
+    @Test
+    public void testMigrate() throws Exception {
+        for (int i = 1; i <= 5; i++) {
+            Files.writeString(dir.resolve("autogen." + i + ".1"), i <= 3 ? CONTENT : "data " + i);
+        }
+        ShardedObjectStore store = new ShardedObjectStore(dir, true);
+        assertEquals(dir.resolve("autogen.1.1"), store.getPath("autogen.1.1"));
+        assertEquals("autogen.1.1", store.getRelativePath("autogen.1.1"));
+        assertEquals(CONTENT, read(store, "autogen.1.1"));
+        try {
+            store.put("autogen.1.1", stream("other"));
+            fail("An object of the flat layout can't be overwritten");
+        } catch (FileAlreadyExistsException e) {
+            assertEquals(CONTENT, read(store, "autogen.1.1"));
+        }
+        List<ShardedObjectStore> stores = new ArrayList<ShardedObjectStore>();
+        stores.add(store);
+        new ObjectStoreMigrator(stores, 0, 0, () -> 0, 0).run();
+        for (int i = 1; i <= 5; i++) {
+            String localId = "autogen." + i + ".1";
+            assertFalse(Files.exists(dir.resolve(localId)));
+            assertTrue(store.getRelativePath(localId).endsWith("/" + localId));
+            assertEquals(i <= 3 ? CONTENT : "data " + i, read(store, localId));
+        }
+        assertEquals(2, store.getReferenceCount("autogen.1.1"));
+        assertEquals(3, countFiles(dir.resolve(ShardedObjectStore.CONTENT_DIR)));
+        // nothing is left to move
+        assertEquals(0, new ObjectStoreMigrator(stores, 0, 0, () -> 0, 0).migrate(store));
+    }
+
+    /**
+     * Test that the flat paths stay valid after the first pass of the migration, and that the
+     * flat names are only removed by the second one
+     */
+    @Test
+    public void testLinkToShard() throws Exception {
+        for (int i = 1; i <= 3; i++) {
+            Files.writeString(dir.resolve("autogen." + i + ".1"), i <= 2 ? CONTENT : "data");
+        }
+        ShardedObjectStore store = new ShardedObjectStore(dir, true);
+        List<ShardedObjectStore> stores = new ArrayList<ShardedObjectStore>();
+        stores.add(store);
+        ObjectStoreMigrator migrator = new ObjectStoreMigrator(stores, 0, 0, () -> 1, 0);
+        assertEquals(3, migrator.link(store));
+        assertEquals(0, migrator.link(store));
+        for (int i = 1; i <= 3; i++) {
+            String localId = "autogen." + i + ".1";
+            // the path in a task published before is still valid
+            assertEquals(read(store, localId), Files.readString(dir.resolve(localId)));
+            // the new tasks get the sharded path
+            assertTrue(store.getRelativePath(localId).endsWith("/" + localId));
+        }
+        assertEquals(1, store.getReferenceCount("autogen.1.1"));
+        try {
+            store.put("autogen.1.1", stream("other"));
+            fail("A linked object can't be overwritten");
+        } catch (FileAlreadyExistsException e) {
+            assertEquals(CONTENT, read(store, "autogen.1.1"));
+        }
+        // both names of a deleted object are removed
+        assertTrue(store.delete("autogen.3.1"));
+        assertFalse(Files.exists(dir.resolve("autogen.3.1")));
+        assertFalse(Files.exists(store.getPath("autogen.3.1")));
+        assertEquals(1, countFiles(dir.resolve(ShardedObjectStore.CONTENT_DIR)));
+
+        assertEquals(2, migrator.migrate(store));
+        assertFalse(Files.exists(dir.resolve("autogen.1.1")));
+        assertFalse(Files.exists(dir.resolve("autogen.2.1")));
+        assertEquals(CONTENT, read(store, "autogen.2.1"));
+        assertEquals(1, store.getReferenceCount("autogen.2.1"));
+        // the content file goes with the last object
+        assertTrue(store.delete("autogen.1.1"));
+        assertTrue(store.delete("autogen.2.1"));
+        assertEquals(0, countFiles(dir.resolve(ShardedObjectStore.CONTENT_DIR)));
+    }
+
+    /**
+     * Test that the staged files are only removed on request and when they are old enough
+     */
+    @Test
+    public void testRemoveStaleTempFiles() throws Exception {
+        ShardedObjectStore store = new ShardedObjectStore(dir, false);
+        Path stale = store.createStagingFile();
+        Files.setLastModifiedTime(stale, FileTime.fromMillis(System.currentTimeMillis() - 7200000));
+        Path fresh = store.createStagingFile();
+        // another store of the directory doesn't remove the files being written
+        new ShardedObjectStore(dir, false);
+        assertTrue(Files.exists(stale));
+        assertEquals(1, store.removeStaleTempFiles(3600000));
+        assertFalse(Files.exists(stale));
+        assertTrue(Files.exists(fresh));
+    }
+
+    /**
+     * Time the creation and the reading of the objects in the sharded and flat layouts
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        int objects = Integer.getInteger("storage.benchmark.objects", 10000);
+        Files.createDirectories(dir.resolve("flat"));
+        benchmark(new ShardedObjectStore(dir.resolve("sharded"), true), objects);
+        benchmark(new FlatObjectStore(dir.resolve("flat")), objects);
+    }
+
+    private void benchmark(ObjectStore store, int objects) throws Exception {
+        byte[] content = new byte[512];
+        Random random = new Random(20241019L);
+        long start = System.nanoTime();
+        for (int i = 0; i < objects; i++) {
+            random.nextBytes(content);
+            store.put("autogen." + i + ".1", new ByteArrayInputStream(content));
+        }
+        long createTime = System.nanoTime() - start;
+        int reads = Math.min(objects, 10000);
+        start = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            try (InputStream in = store.open("autogen." + random.nextInt(objects) + ".1")) {
+                assertEquals(content.length, IOUtils.toByteArray(in).length);
+            }
+        }
+        long readTime = System.nanoTime() - start;
+        System.out.println("ShardedObjectStoreTest.testBenchmark - with " + objects + " objects "
+                    + store.getClass().getSimpleName() + " took " + createTime / objects / 1000
+                    + " us per create and " + readTime / reads / 1000 + " us per read");
+    }
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(ObjectStore store, String localId) throws Exception {
+        try (InputStream in = store.open(localId)) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static long countFiles(Path directory) throws Exception {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+}
@@ -5,6 +5,7 @@ import org.apache.commons.io.FileUtils;
 import edu.ucsb.nceas.MCTestCase;
 import edu.ucsb.nceas.metacat.client.MetacatException;
 import edu.ucsb.nceas.metacat.service.XMLSchemaParser;
+import edu.ucsb.nceas.metacat.service.XMLSchemaRegistry;
 import edu.ucsb.nceas.metacat.service.XMLSchemaService;
 
 import java.io.File;
@@ -66,6 +67,7 @@ public class XMLSchemaServiceTest extends MCTestCase
     suite.addTest(new XMLSchemaServiceTest("testIsNamespaceRegistered"));
     suite.addTest(new XMLSchemaServiceTest("testFindNoNamespaceSchemaLocationAttr"));
     suite.addTest(new XMLSchemaServiceTest("testDoRefresh"));
+    suite.addTest(new XMLSchemaServiceTest("testRegistrySnapshot"));
     return suite;
   }
 
@@ -292,4 +294,32 @@ public class XMLSchemaServiceTest extends MCTestCase
       assertTrue(originNOAASize==NOAASize2);
       
   }
+
+  /**
+   * Test that a refresh swaps in a new registry and leaves the old snapshot untouched, and that
+   * the change check doesn't reload an unchanged xml_catalog table.
+   */
+  public void testRegistrySnapshot() throws Exception {
+      XMLSchemaRegistry origin = XMLSchemaService.getInstance().getRegistry();
+      int originSchemaListSize = origin.getRegisteredSchemaList().size();
+      String originNOAA = origin.getNameSpaceAndLocation("http://www.isotc211.org/2005/gmd-noaa");
+      assertNotNull(origin.getFingerprint());
+      assertFalse(XMLSchemaService.getInstance().refreshIfChanged());
+      assertTrue(XMLSchemaService.getInstance().getRegistry() == origin);
+
+      XMLSchemaService.getInstance().doRefresh();
+      XMLSchemaRegistry refreshed = XMLSchemaService.getInstance().getRegistry();
+      assertTrue(refreshed != origin);
+      assertTrue(refreshed.getVersion() == origin.getVersion() + 1);
+      assertEquals(origin.getFingerprint(), refreshed.getFingerprint());
+      assertTrue(refreshed.getRegisteredSchemaList().size() == originSchemaListSize);
+      assertEquals(originNOAA,
+                   refreshed.getNameSpaceAndLocation("http://www.isotc211.org/2005/gmd-noaa"));
+      // the old snapshot still serves the validations which started before the refresh
+      assertTrue(origin.getRegisteredSchemaList().size() == originSchemaListSize);
+      assertEquals(originNOAA,
+                   origin.getNameSpaceAndLocation("http://www.isotc211.org/2005/gmd-noaa"));
+      assertTrue(XMLSchemaService.isNamespaceRegistered("https://eml.ecoinformatics.org/eml-2.2.0"));
+      assertFalse(refreshed.isNamespaceRegistered("http://foo.com/not-registered"));
+  }
 }